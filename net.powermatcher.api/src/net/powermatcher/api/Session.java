@@ -14,6 +14,11 @@ import net.powermatcher.api.messages.PriceUpdate;
  */
 public interface Session {
 
+    /**
+     * The value of {@link #getAgentHandle()} when no handle has been set.
+     */
+    int NO_AGENT_HANDLE = -1;
+
     /**
      * @return the agentId of the {@link AgentEndpoint} of this {@link Session}.
      */
@@ -49,6 +54,27 @@ public interface Session {
      */
     void setMarketBasis(MarketBasis marketBasis);
 
+    /**
+     * @return the handle that the {@link MatcherEndpoint} has given to the agent of this {@link Session}, or
+     *         {@link #NO_AGENT_HANDLE} when none has been set.
+     */
+    default int getAgentHandle() {
+        return NO_AGENT_HANDLE;
+    }
+
+    /**
+     * Sets the handle of the agent of this {@link Session}. This can be set by the {@link MatcherEndpoint} when its
+     * {@link MatcherEndpoint#connectToAgent(Session)} method is called. The handle is a small number that is unique
+     * among the agents of that matcher, which it can use to find the agent without looking up its agentId. A
+     * {@link Session} that does not store the handle makes the matcher fall back to the agentId.
+     *
+     * @param agentHandle
+     *            the handle of the agent, given by the {@link MatcherEndpoint} of this {@link Session}.
+     */
+    default void setAgentHandle(int agentHandle) {
+        // The handle is optional, by default the matcher will use the agentId
+    }
+
     /**
      * Passes the {@link PriceUpdate} sent by the {@link MatcherEndpoint} to the {@link AgentEndpoint} of this
      * {@link Session}. It calls {@link AgentEndpoint#handlePriceUpdate(PriceUpdate)}.
@@ -6,6 +6,11 @@ import java.util.Arrays;
  * This immutable data object represents a {@link Bid} with a <code>double</code> demand array to represent the bid
  * curve. This is used because it is easy to perform calculations with.
  *
+ * Internally a bid curve that consists of only a few flat or straight segments is not stored as a demand array, but as
+ * the breakpoints of those segments (see {@link PiecewiseLinearDemand}). The memory use and the cost of aggregating
+ * and transposing such a bid then depend on the number of breakpoints instead of the number of price steps. This is
+ * not visible from the outside: the demand at each price step is exactly the same as it would have been in the array.
+ *
  * @author FAN
  * @version 2.1
  */
@@ -17,10 +22,16 @@ public class Bid {
     protected final MarketBasis marketBasis;
 
     /**
-     * The array of <code>double</code> values that make up the bid curve.
+     * The array of <code>double</code> values that make up the bid curve, or <code>null</code> when the bid curve is
+     * stored as a curve.
      */
     private final double[] demandArray;
 
+    /**
+     * The breakpoints of the bid curve, or <code>null</code> when the bid curve is stored as a demand array.
+     */
+    private final PiecewiseLinearDemand curve;
+
     /**
      * This method checks to see it the given demand array is descending.
      *
@@ -30,8 +41,26 @@ public class Bid {
      *             is the demand is not ascending.
      */
     static void checkDescending(double[] demandArray) {
+        if (!isDescending(demandArray)) {
+            throw new IllegalArgumentException("The demand can not be ascending");
+        }
+    }
+
+    /**
+     * Checks whether a demand array can be used for a {@link Bid}, without creating the bid.
+     *
+     * @param demandArray
+     *            The demand array that has to be checked.
+     * @return <code>true</code> when no demand value is larger than the one before it
+     */
+    public static boolean isDescending(double[] demandArray) {
+        return DemandArrays.isDescending(demandArray);
+    }
+
+    private static void checkDescending(Bid bid) {
         double last = Double.POSITIVE_INFINITY;
-        for (double demand : demandArray) {
+        for (int ix = 0; ix < bid.marketBasis.getPriceSteps(); ix++) {
+            double demand = bid.demandAt(ix);
             if (demand > last) {
                 throw new IllegalArgumentException("The demand can not be ascending");
             }
@@ -109,7 +138,55 @@ public class Bid {
             throw new IllegalArgumentException("Length of the demandArray is not equal to the number of price steps");
         }
         checkDescending(demandArray);
-        this.demandArray = Arrays.copyOf(demandArray, demandArray.length);
+        curve = PiecewiseLinearDemand.fromArray(marketBasis, demandArray);
+        this.demandArray = curve == null ? Arrays.copyOf(demandArray, demandArray.length) : null;
+    }
+
+    /**
+     * A constructor to create a copy of another {@link Bid}. Because a {@link Bid} is immutable, the copy shares the
+     * demand array or curve of the original.
+     *
+     * @param bid
+     *            the {@link Bid} that should be copied.
+     */
+    protected Bid(Bid bid) {
+        marketBasis = bid.marketBasis;
+        demandArray = bid.demandArray;
+        curve = bid.curve;
+    }
+
+    /**
+     * Creates a new {@link Bid} from the breakpoints of its bid curve. When the curve has too many segments, it is
+     * stored as a demand array instead.
+     *
+     * @param marketBasis
+     *            the {@link MarketBasis} of the cluster
+     * @param curve
+     *            the breakpoints of the bid curve, which should be descending.
+     * @return A new {@link Bid} object
+     */
+    static Bid fromCurve(MarketBasis marketBasis, PiecewiseLinearDemand curve) {
+        return curve.isSparse() ? new Bid(marketBasis, null, curve) : new Bid(marketBasis, curve.toArray(), null);
+    }
+
+    /**
+     * Creates a new {@link Bid} that takes ownership of the given demand array, without making a copy of it. This is
+     * used for arrays that have just been calculated and can not be referenced from anywhere else.
+     *
+     * @param demandArray
+     *            the demandArray that belongs to the new bid.
+     * @return A new {@link Bid} object
+     */
+    private Bid newBid(double[] demandArray) {
+        checkDescending(demandArray);
+        PiecewiseLinearDemand flatSegments = PiecewiseLinearDemand.fromArray(marketBasis, demandArray);
+        return flatSegments == null ? new Bid(marketBasis, demandArray, null) : new Bid(marketBasis, null, flatSegments);
+    }
+
+    private Bid(MarketBasis marketBasis, double[] demandArray, PiecewiseLinearDemand curve) {
+        this.marketBasis = marketBasis;
+        this.demandArray = demandArray;
+        this.curve = curve;
     }
 
     /**
@@ -124,11 +201,23 @@ public class Bid {
             throw new IllegalArgumentException("The marketbasis of the supplied bid does not equal this market basis");
         }
 
-        double[] aggregatedDemand = other.getDemand();
-        for (int i = 0; i < aggregatedDemand.length; i++) {
-            aggregatedDemand[i] += demandArray[i];
+        if (curve != null && other.curve != null) {
+            PiecewiseLinearDemand aggregatedCurve = curve.combine(other.curve, false);
+            if (aggregatedCurve != null) {
+                // The sum of 2 descending curves is always descending
+                return fromCurve(marketBasis, aggregatedCurve);
+            }
         }
-        return new Bid(marketBasis, aggregatedDemand);
+
+        double[] aggregatedDemand;
+        if (demandArray != null && other.demandArray != null) {
+            aggregatedDemand = new double[demandArray.length];
+            DemandArrays.sum(other.demandArray, demandArray, aggregatedDemand);
+        } else {
+            aggregatedDemand = getDemand();
+            other.addDemandTo(aggregatedDemand);
+        }
+        return newBid(aggregatedDemand);
     }
 
     /**
@@ -139,25 +228,25 @@ public class Bid {
      * @return The {@link Price} for which the demand in this {@link Bid} is closests to the targetDemand
      */
     public Price calculateIntersection(double targetDemand) {
-        int leftIx = 0, rightIx = demandArray.length - 1;
+        int leftIx = 0, rightIx = marketBasis.getPriceSteps() - 1;
 
         // First test for a few special cases
-        if (targetDemand > demandArray[leftIx]) {
+        if (targetDemand > demandAt(leftIx)) {
             // If the target is higher than the maximum of the bid, return the minimum price
             return new Price(marketBasis, marketBasis.getMinimumPrice());
-        } else if (targetDemand < demandArray[rightIx]) {
+        } else if (targetDemand < demandAt(rightIx)) {
             // If the target is lower than the minimum of the bid, return the maximum price
             return new Price(marketBasis, marketBasis.getMaximumPrice());
-        } else if (demandIsEqual(targetDemand, demandArray[leftIx])) {
+        } else if (demandIsEqual(targetDemand, demandAt(leftIx))) {
             rightIx = leftIx;
-        } else if (demandIsEqual(targetDemand, demandArray[rightIx])) {
+        } else if (demandIsEqual(targetDemand, demandAt(rightIx))) {
             leftIx = rightIx;
         } else { // demand is between the limits of this bid, which can not be flat at this point
             // Go on while there is at least 1 point between the left and right index
             while (rightIx - leftIx > 1) {
                 // Determine the middle between the 2 boundaries
                 int middleIx = (leftIx + rightIx) / 2;
-                double middleDemand = demandArray[middleIx];
+                double middleDemand = demandAt(middleIx);
 
                 if (demandIsEqual(targetDemand, middleDemand)) {
                     // A point with the target demand is found, select this point
@@ -174,10 +263,10 @@ public class Bid {
         }
 
         // If the left or right point matches the targetDemand, expand the range
-        while (leftIx > 0 && demandIsEqual(targetDemand, demandArray[leftIx - 1])) {
+        while (leftIx > 0 && demandIsEqual(targetDemand, demandAt(leftIx - 1))) {
             leftIx--;
         }
-        while (rightIx < demandArray.length - 1 && demandIsEqual(targetDemand, demandArray[rightIx + 1])) {
+        while (rightIx < marketBasis.getPriceSteps() - 1 && demandIsEqual(targetDemand, demandAt(rightIx + 1))) {
             rightIx++;
         }
 
@@ -187,12 +276,12 @@ public class Bid {
     private Price interpolate(int leftIx, int rightIx, double targetDemand) {
         double leftPrice = rightIx == 0 ? marketBasis.getMinimumPrice()
                                         : Price.fromPriceIndex(marketBasis, leftIx).getPriceValue();
-        double rightPrice = leftIx == demandArray.length - 1 ? marketBasis.getMaximumPrice()
+        double rightPrice = leftIx == marketBasis.getPriceSteps() - 1 ? marketBasis.getMaximumPrice()
                                                              : Price.fromPriceIndex(marketBasis, rightIx)
                                                                     .getPriceValue();
 
-        double leftDemand = demandArray[leftIx];
-        double rightDemand = demandArray[rightIx];
+        double leftDemand = demandAt(leftIx);
+        double rightDemand = demandAt(rightIx);
 
         double demandFactor = demandIsEqual(leftDemand, rightDemand) ? 0.5
                                                                      : (leftDemand - targetDemand)
@@ -206,21 +295,83 @@ public class Bid {
      * @return the maximum demand (expressed in watts) in this bid
      */
     public double getMaximumDemand() {
-        return demandArray[0];
+        return demandAt(0);
     }
 
     /**
      * @return the minimum demand (expressed in watts) in this bid
      */
     public double getMinimumDemand() {
-        return demandArray[demandArray.length - 1];
+        return demandAt(marketBasis.getPriceSteps() - 1);
     }
 
     /**
-     * @return a copy of the demand array.
+     * @return a copy of the demand array. Use {@link #getDemandAt(int)} when the demand only has to be read, to avoid
+     *         the copy.
      */
     public double[] getDemand() {
-        return Arrays.copyOf(demandArray, demandArray.length);
+        return demandArray == null ? curve.toArray() : Arrays.copyOf(demandArray, demandArray.length);
+    }
+
+    /**
+     * Gives read access to the demand array without copying it. When the bid is stored as a curve, the demand is
+     * calculated from its breakpoints.
+     *
+     * @param priceIndex
+     *            the index in the demand array, between 0 (inclusive) and the number of price steps of the
+     *            {@link MarketBasis} (exclusive).
+     * @return the demand at the given price index.
+     * @throws IndexOutOfBoundsException
+     *             when the priceIndex is not a valid index in the demand array
+     */
+    public double getDemandAt(int priceIndex) {
+        return demandAt(priceIndex);
+    }
+
+    /**
+     * Adds the demand of this bid to each element of the given array. This gives the same result as adding
+     * {@link #getDemandAt(int)} for every price index, but works on whole arrays or segments at once.
+     *
+     * @param target
+     *            the array to which the demand is added, with an element for every price step.
+     * @throws IllegalArgumentException
+     *             when the length of the target is not equal to the number of price steps
+     */
+    public void addDemandTo(double[] target) {
+        checkLength(target);
+        if (demandArray == null) {
+            curve.addTo(target, false);
+        } else {
+            DemandArrays.add(target, demandArray);
+        }
+    }
+
+    /**
+     * Subtracts the demand of this bid from each element of the given array. This gives the same result as
+     * subtracting {@link #getDemandAt(int)} for every price index, but works on whole arrays or segments at once.
+     *
+     * @param target
+     *            the array from which the demand is subtracted, with an element for every price step.
+     * @throws IllegalArgumentException
+     *             when the length of the target is not equal to the number of price steps
+     */
+    public void subtractDemandFrom(double[] target) {
+        checkLength(target);
+        if (demandArray == null) {
+            curve.addTo(target, true);
+        } else {
+            DemandArrays.subtract(target, demandArray);
+        }
+    }
+
+    private void checkLength(double[] target) {
+        if (target.length != marketBasis.getPriceSteps()) {
+            throw new IllegalArgumentException("Length of the array is not equal to the number of price steps");
+        }
+    }
+
+    private double demandAt(int priceIndex) {
+        return demandArray == null ? curve.getDemandAt(priceIndex) : demandArray[priceIndex];
     }
 
     /**
@@ -234,7 +385,7 @@ public class Bid {
         if (!price.getMarketBasis().equals(marketBasis)) {
             throw new IllegalArgumentException("The marketbasis of the pricestep does not equal this market basis");
         }
-        return demandArray[price.getPriceIndex()];
+        return demandAt(price.getPriceIndex());
     }
 
     /**
@@ -253,12 +404,25 @@ public class Bid {
      * @return A copy of this bid with the other bid subtracted from it.
      */
     public Bid subtract(final Bid other) {
-        double[] otherDemand = other.getDemand();
-        double[] newDemand = getDemand();
-        for (int i = 0; i < newDemand.length; i++) {
-            newDemand[i] -= otherDemand[i];
+        if (curve != null && other.curve != null && other.marketBasis.equals(marketBasis)) {
+            PiecewiseLinearDemand subtractedCurve = curve.combine(other.curve, true);
+            if (subtractedCurve != null) {
+                Bid result = fromCurve(marketBasis, subtractedCurve);
+                // The difference of 2 descending curves does not have to be descending
+                checkDescending(result);
+                return result;
+            }
         }
-        return new Bid(marketBasis, newDemand);
+
+        double[] newDemand;
+        if (demandArray != null && other.demandArray != null) {
+            newDemand = new double[demandArray.length];
+            DemandArrays.difference(demandArray, other.demandArray, newDemand);
+        } else {
+            newDemand = getDemand();
+            other.subtractDemandFrom(newDemand);
+        }
+        return newBid(newDemand);
     }
 
     /**
@@ -269,11 +433,23 @@ public class Bid {
      * @return The {@link Bid} that has been shifted.
      */
     public Bid transpose(final double offset) {
-        double[] newDemand = getDemand();
-        for (int i = 0; i < newDemand.length; i++) {
-            newDemand[i] += offset;
+        if (curve != null) {
+            PiecewiseLinearDemand transposedCurve = curve.transpose(offset);
+            if (transposedCurve != null) {
+                // Adding the same offset everywhere keeps the curve descending
+                return fromCurve(marketBasis, transposedCurve);
+            }
+        }
+
+        double[] newDemand;
+        if (demandArray == null) {
+            newDemand = curve.toArray();
+            DemandArrays.offset(newDemand, offset, newDemand);
+        } else {
+            newDemand = new double[demandArray.length];
+            DemandArrays.offset(demandArray, offset, newDemand);
         }
-        return new Bid(marketBasis, newDemand);
+        return newBid(newDemand);
     }
 
     /**
@@ -281,7 +457,16 @@ public class Bid {
      */
     @Override
     public int hashCode() {
-        return 2011 * Arrays.hashCode(demandArray) + marketBasis.hashCode();
+        if (demandArray != null) {
+            return 2011 * Arrays.hashCode(demandArray) + marketBasis.hashCode();
+        }
+        // The same as Arrays.hashCode of the demand array
+        int demandHashCode = 1;
+        for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+            long bits = Double.doubleToLongBits(curve.getDemandAt(ix));
+            demandHashCode = 31 * demandHashCode + (int) (bits ^ (bits >>> 32));
+        }
+        return 2011 * demandHashCode + marketBasis.hashCode();
     }
 
     /**
@@ -295,9 +480,23 @@ public class Bid {
             return false;
         } else {
             Bid other = (Bid) obj;
-            return marketBasis.equals(other.marketBasis)
-                   && Arrays.equals(other.getDemand(), getDemand());
+            return marketBasis.equals(other.marketBasis) && demandEquals(other);
+        }
+    }
+
+    private boolean demandEquals(Bid other) {
+        if (demandArray != null && other.demandArray != null) {
+            return Arrays.equals(other.demandArray, demandArray);
+        } else if (curve != null && curve.equals(other.curve)) {
+            return true;
+        }
+        // Different representations of the bid curve can still have the same demand
+        for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+            if (Double.doubleToLongBits(demandAt(ix)) != Double.doubleToLongBits(other.demandAt(ix))) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
@@ -308,8 +507,8 @@ public class Bid {
         StringBuilder b = new StringBuilder();
         b.append("Bid [");
 
-        for (double demand : demandArray) {
-            b.append(MarketBasis.DEMAND_FORMAT.format(demand)).append(',');
+        for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+            b.append(MarketBasis.DEMAND_FORMAT.format(demandAt(ix))).append(',');
         }
         b.setLength(b.length() - 1);
         b.append(']');
@@ -0,0 +1,83 @@
+package net.powermatcher.api.data;
+
+/**
+ * The arithmetic on demand arrays that is used by {@link Bid} and {@link PiecewiseLinearDemand}.
+ *
+ * Each method is a plain counted loop over arrays, without any calls or branches in its body. The JIT compiler turns
+ * loops like these into SIMD instructions on processors that support them, while a processor without them runs the
+ * same scalar code. Every element is calculated with the same single operation in both cases, so the result is the
+ * same bit for bit.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+final class DemandArrays {
+    private DemandArrays() {
+    }
+
+    /**
+     * target[ix] += source[ix] for every ix
+     */
+    static void add(double[] target, double[] source) {
+        for (int ix = 0; ix < target.length; ix++) {
+            target[ix] += source[ix];
+        }
+    }
+
+    /**
+     * target[ix] -= source[ix] for every ix
+     */
+    static void subtract(double[] target, double[] source) {
+        for (int ix = 0; ix < target.length; ix++) {
+            target[ix] -= source[ix];
+        }
+    }
+
+    /**
+     * target[ix] += value for every ix from (inclusive) to (exclusive)
+     */
+    static void add(double[] target, int from, int to, double value) {
+        for (int ix = from; ix < to; ix++) {
+            target[ix] += value;
+        }
+    }
+
+    /**
+     * result[ix] = left[ix] + right[ix] for every ix
+     */
+    static void sum(double[] left, double[] right, double[] result) {
+        for (int ix = 0; ix < result.length; ix++) {
+            result[ix] = left[ix] + right[ix];
+        }
+    }
+
+    /**
+     * result[ix] = left[ix] - right[ix] for every ix
+     */
+    static void difference(double[] left, double[] right, double[] result) {
+        for (int ix = 0; ix < result.length; ix++) {
+            result[ix] = left[ix] - right[ix];
+        }
+    }
+
+    /**
+     * result[ix] = source[ix] + offset for every ix
+     */
+    static void offset(double[] source, double offset, double[] result) {
+        for (int ix = 0; ix < result.length; ix++) {
+            result[ix] = source[ix] + offset;
+        }
+    }
+
+    /**
+     * @return <code>true</code> when no element is larger than the one before it
+     */
+    static boolean isDescending(double[] demand) {
+        // Counting instead of returning on the first ascending pair keeps the loop free of branches
+        int ascending = 0;
+        for (int ix = 1; ix < demand.length; ix++) {
+            ascending += demand[ix] > demand[ix - 1] ? 1 : 0;
+        }
+        return ascending == 0;
+    }
+}
@@ -10,6 +10,11 @@ import java.util.Locale;
  * range, the commodity being exchanges, the currency being used and the number of price steps used in the demand
  * arrays.
  *
+ * The {@link Price} of every price index is created once, the first time a price index is converted to a price. These
+ * instances are shared by all the users of {@link Price#fromPriceIndex(MarketBasis, int)}, which makes converting a price
+ * index to a price a simple lookup. A {@link MarketBasis} that is never used for that (e.g. one that is only decoded to
+ * be compared with the market basis of the cluster) does not pay for the table.
+ *
  * @author FAN
  * @version 2.1
  */
@@ -52,6 +57,18 @@ public class MarketBasis {
      */
     private final double maximumPrice;
 
+    /**
+     * The difference in market price between a price step.
+     */
+    private final double priceIncrement;
+
+    /**
+     * The {@link Price} for each price index. An entry is <code>null</code> when the price index does not result in a
+     * valid price (e.g. when there is only a single price step). The table is created on first use; creating it twice
+     * in a race is harmless, because the entries are equal.
+     */
+    private volatile Price[] prices;
+
     /**
      * A constructor used to create an instance of this class.
      *
@@ -90,6 +107,8 @@ public class MarketBasis {
         this.priceSteps = priceSteps;
         this.minimumPrice = minimumPrice;
         this.maximumPrice = maximumPrice;
+
+        priceIncrement = (maximumPrice - minimumPrice) / (priceSteps - 1);
     }
 
     /**
@@ -124,7 +143,39 @@ public class MarketBasis {
      * @return The difference in market price between a price step.
      */
     public final double getPriceIncrement() {
-        return (maximumPrice - minimumPrice) / (priceSteps - 1);
+        return priceIncrement;
+    }
+
+    /**
+     * @param priceIndex
+     *            the price index
+     * @return the shared {@link Price} instance for the price index, or <code>null</code> when the price index does not
+     *         have a valid price in this market.
+     */
+    Price getPrice(int priceIndex) {
+        if (priceIndex < 0 || priceIndex >= priceSteps) {
+            return null;
+        }
+        Price[] table = prices;
+        if (table == null) {
+            table = createPriceTable();
+            prices = table;
+        }
+        return table[priceIndex];
+    }
+
+    /**
+     * @return a new table with the {@link Price} for each price index.
+     */
+    private Price[] createPriceTable() {
+        Price[] table = new Price[priceSteps];
+        for (int ix = 0; ix < priceSteps; ix++) {
+            double priceValue = minimumPrice + ix * priceIncrement;
+            if (priceValue >= minimumPrice && priceValue <= maximumPrice) {
+                table[ix] = new Price(this, priceValue, ix);
+            }
+        }
+        return table;
     }
 
     /**
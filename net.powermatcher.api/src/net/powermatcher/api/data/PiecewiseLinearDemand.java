@@ -0,0 +1,434 @@
+package net.powermatcher.api.data;
+
+import java.util.Arrays;
+
+/**
+ * {@link PiecewiseLinearDemand} is the sparse representation of the demand of a {@link Bid}. Instead of a demand value
+ * for every price step, only the breakpoints of the bid curve are kept. The price steps are divided in segments in
+ * which the demand is either flat or lies on the line between two points of the curve, optionally with an offset.
+ *
+ * The demand of a price step on a line is calculated in exactly the same way as the {@link PointBidBuilder} calculated
+ * the demand array, so a {@link Bid} that is stored like this has exactly the same demand as the {@link Bid} with the
+ * full demand array.
+ *
+ * This class is immutable.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+final class PiecewiseLinearDemand {
+
+    /**
+     * Epsilon for correcting rounding errors
+     */
+    private static final double EPSILON = 0.0000000001;
+
+    /**
+     * A curve is only considered sparse when it has at most 1 segment for every SPARSE_RATIO price steps.
+     */
+    private static final int SPARSE_RATIO = 4;
+
+    /**
+     * A builder that appends segments in the order of their price index. When a segment continues the previous
+     * segment, no new segment is created.
+     */
+    private static final class Builder {
+        private final MarketBasis marketBasis;
+        private int segmentCount;
+        private int[] starts;
+        private double[] values;
+        private double[] lines;
+
+        Builder(MarketBasis marketBasis) {
+            this.marketBasis = marketBasis;
+            starts = new int[4];
+            values = new double[4];
+        }
+
+        Builder flat(int start, double demand) {
+            int last = segmentCount - 1;
+            if (last < 0 || isSloped(lines, last) || !sameValue(values[last], demand)) {
+                append(start, demand);
+            }
+            return this;
+        }
+
+        Builder line(int start, double[] sourceLines, int segment, double offset) {
+            int line = 4 * segment;
+            return line(start,
+                        sourceLines[line],
+                        sourceLines[line + 1],
+                        sourceLines[line + 2],
+                        sourceLines[line + 3],
+                        offset);
+        }
+
+        Builder line(int start,
+                     double lowPrice,
+                     double lowDemand,
+                     double highPrice,
+                     double highDemand,
+                     double offset) {
+            int last = segmentCount - 1;
+            int line = 4 * last;
+            if (last < 0 || !isSloped(lines, last)
+                || !sameValue(values[last], offset)
+                || !sameValue(lines[line], lowPrice)
+                || !sameValue(lines[line + 1], lowDemand)
+                || !sameValue(lines[line + 2], highPrice)
+                || !sameValue(lines[line + 3], highDemand)) {
+                append(start, offset);
+                if (lines == null) {
+                    lines = new double[4 * starts.length];
+                    Arrays.fill(lines, Double.NaN);
+                }
+                line = 4 * last + 4;
+                lines[line] = lowPrice;
+                lines[line + 1] = lowDemand;
+                lines[line + 2] = highPrice;
+                lines[line + 3] = highDemand;
+            }
+            return this;
+        }
+
+        private void append(int start, double value) {
+            if (segmentCount == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * segmentCount);
+                values = Arrays.copyOf(values, 2 * segmentCount);
+                if (lines != null) {
+                    lines = Arrays.copyOf(lines, 8 * segmentCount);
+                    Arrays.fill(lines, 4 * segmentCount, lines.length, Double.NaN);
+                }
+            }
+            starts[segmentCount] = start;
+            values[segmentCount] = value;
+            segmentCount++;
+        }
+
+        PiecewiseLinearDemand build() {
+            return new PiecewiseLinearDemand(marketBasis,
+                                             Arrays.copyOf(starts, segmentCount),
+                                             Arrays.copyOf(values, segmentCount),
+                                             lines == null ? null : Arrays.copyOf(lines, 4 * segmentCount));
+        }
+    }
+
+    /**
+     * Calculates the demand of the bid curve that goes through the given points at every price step, in the same way
+     * as the {@link PointBidBuilder} has always done it.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} of the bid
+     * @param prices
+     *            The prices of the points, sorted from low to high
+     * @param demands
+     *            The demands of the points. Points with the same price are sorted from high to low demand.
+     * @param pointCount
+     *            The number of points in the arrays
+     * @return The segments of the curve
+     * @throws IllegalArgumentException
+     *             when the demand is ascending
+     */
+    static PiecewiseLinearDemand fromPoints(MarketBasis marketBasis, double[] prices, double[] demands, int pointCount) {
+        Builder builder = new Builder(marketBasis);
+        double demandMinimumPrice = demands[0];
+        double demandMaximumPrice = demands[pointCount - 1];
+        if (demandMinimumPrice == demandMaximumPrice) {
+            // Flat bid, all the demands are the same
+            return builder.flat(0, demandMaximumPrice).build();
+        }
+
+        // The last point with a price lower than or equal to the price at ix, or -1 when there is none
+        int point = -1;
+        double last = Double.POSITIVE_INFINITY;
+        for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+            double price = Price.fromPriceIndex(marketBasis, ix).getPriceValue();
+            while (point + 1 < pointCount && prices[point + 1] <= price) {
+                point++;
+            }
+
+            double demand;
+            boolean sloped = false;
+            if (point < 0) {
+                demand = demandMinimumPrice;
+            } else if (point == pointCount - 1) {
+                demand = demandMaximumPrice;
+            } else if (prices[point] == price) {
+                // The special case with an open and closed node, the last point (with the lowest demand) is used
+                demand = demands[point];
+            } else {
+                demand = interpolate(price, prices[point], demands[point], prices[point + 1], demands[point + 1]);
+                sloped = true;
+            }
+
+            // Ensure we still have a (not strictly) descending curve when rounding issues occur
+            if (demand > last && demand - EPSILON < last) {
+                // Second value is higher, but not significantly. Fix this by using the last value.
+                demand = last;
+                sloped = false;
+            } else if (demand > last) {
+                throw new IllegalArgumentException("The demand can not be ascending");
+            }
+            last = demand;
+
+            if (sloped) {
+                builder.line(ix, prices[point], demands[point], prices[point + 1], demands[point + 1], Double.NaN);
+            } else {
+                builder.flat(ix, demand);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Divides a demand array in flat segments.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} of the bid
+     * @param demandArray
+     *            The demand at every price step
+     * @return The flat segments of the demand array, or <code>null</code> when there are too many of them for the
+     *         curve to be sparse.
+     */
+    static PiecewiseLinearDemand fromArray(MarketBasis marketBasis, double[] demandArray) {
+        int segmentCount = 1;
+        for (int ix = 1; ix < demandArray.length; ix++) {
+            if (!sameValue(demandArray[ix - 1], demandArray[ix])) {
+                segmentCount++;
+            }
+        }
+        if (!isSparse(segmentCount, demandArray.length)) {
+            return null;
+        }
+
+        Builder builder = new Builder(marketBasis);
+        for (int ix = 0; ix < demandArray.length; ix++) {
+            builder.flat(ix, demandArray[ix]);
+        }
+        return builder.build();
+    }
+
+    private static double interpolate(double price,
+                                      double lowPrice,
+                                      double lowDemand,
+                                      double highPrice,
+                                      double highDemand) {
+        // First the factor (between 0 and 1) of where the price is on the line
+        double factor = (price - lowPrice) / (highPrice - lowPrice);
+        // Now calculate the demand
+        return (1 - factor) * lowDemand + factor * highDemand;
+    }
+
+    private static boolean isSparse(int segmentCount, int priceSteps) {
+        return segmentCount <= Math.max(1, priceSteps / SPARSE_RATIO);
+    }
+
+    private static boolean sameValue(double value1, double value2) {
+        // Compares the bits, like Arrays.equals does, so the sign of zero is kept
+        return Double.doubleToLongBits(value1) == Double.doubleToLongBits(value2);
+    }
+
+    private static boolean isSloped(double[] lines, int segment) {
+        return lines != null && !Double.isNaN(lines[4 * segment]);
+    }
+
+    private final MarketBasis marketBasis;
+
+    /**
+     * The first price index of each segment. A segment runs until the start of the next one.
+     */
+    private final int[] starts;
+
+    /**
+     * The demand of a flat segment, or the offset that is added to the demand of a sloped segment (NaN when there is
+     * none).
+     */
+    private final double[] values;
+
+    /**
+     * The low price, low demand, high price and high demand of the line of each sloped segment, or NaN for a flat
+     * segment. This is <code>null</code> when there are no sloped segments.
+     */
+    private final double[] lines;
+
+    private PiecewiseLinearDemand(MarketBasis marketBasis, int[] starts, double[] values, double[] lines) {
+        this.marketBasis = marketBasis;
+        this.starts = starts;
+        this.values = values;
+        this.lines = lines;
+    }
+
+    /**
+     * @return <code>true</code> when this curve has few enough segments to be worth keeping instead of a demand array
+     */
+    boolean isSparse() {
+        return isSparse(starts.length, marketBasis.getPriceSteps());
+    }
+
+    /**
+     * @param priceIndex
+     *            the price index, between 0 (inclusive) and the number of price steps of the {@link MarketBasis}
+     *            (exclusive).
+     * @return the demand at the given price index
+     * @throws IndexOutOfBoundsException
+     *             when the priceIndex is not a valid index
+     */
+    double getDemandAt(int priceIndex) {
+        if (priceIndex < 0 || priceIndex >= marketBasis.getPriceSteps()) {
+            throw new ArrayIndexOutOfBoundsException(priceIndex);
+        }
+        int segment = Arrays.binarySearch(starts, priceIndex);
+        if (segment < 0) {
+            segment = -segment - 2;
+        }
+        return getDemandAt(segment, priceIndex);
+    }
+
+    private double getDemandAt(int segment, int priceIndex) {
+        if (!isSloped(lines, segment)) {
+            return values[segment];
+        }
+        int line = 4 * segment;
+        double demand = interpolate(Price.fromPriceIndex(marketBasis, priceIndex).getPriceValue(),
+                                    lines[line],
+                                    lines[line + 1],
+                                    lines[line + 2],
+                                    lines[line + 3]);
+        double offset = values[segment];
+        return Double.isNaN(offset) ? demand : demand + offset;
+    }
+
+    private int getEnd(int segment) {
+        return segment + 1 < starts.length ? starts[segment + 1] : marketBasis.getPriceSteps();
+    }
+
+    /**
+     * @return the demand at every price step
+     */
+    double[] toArray() {
+        double[] demandArray = new double[marketBasis.getPriceSteps()];
+        for (int segment = 0; segment < starts.length; segment++) {
+            int end = getEnd(segment);
+            if (isSloped(lines, segment)) {
+                for (int ix = starts[segment]; ix < end; ix++) {
+                    demandArray[ix] = getDemandAt(segment, ix);
+                }
+            } else {
+                Arrays.fill(demandArray, starts[segment], end, values[segment]);
+            }
+        }
+        return demandArray;
+    }
+
+    /**
+     * Adds the demand to (or subtracts it from) each element of the target array.
+     *
+     * @param target
+     *            an array with an element for every price step
+     * @param subtract
+     *            <code>true</code> when the demand should be subtracted
+     */
+    void addTo(double[] target, boolean subtract) {
+        for (int segment = 0; segment < starts.length; segment++) {
+            int end = getEnd(segment);
+            if (isSloped(lines, segment)) {
+                for (int ix = starts[segment]; ix < end; ix++) {
+                    double demand = getDemandAt(segment, ix);
+                    target[ix] = subtract ? target[ix] - demand : target[ix] + demand;
+                }
+            } else {
+                // x - d is exactly x + (-d)
+                DemandArrays.add(target, starts[segment], end, subtract ? -values[segment] : values[segment]);
+            }
+        }
+    }
+
+    /**
+     * Adds an offset to the demand.
+     *
+     * @param offset
+     *            the offset that is added to the demand
+     * @return the transposed curve, or <code>null</code> when this can not be expressed in segments, because a sloped
+     *         segment already has an offset.
+     */
+    PiecewiseLinearDemand transpose(double offset) {
+        Builder builder = new Builder(marketBasis);
+        for (int segment = 0; segment < starts.length; segment++) {
+            if (!isSloped(lines, segment)) {
+                builder.flat(starts[segment], values[segment] + offset);
+            } else if (Double.isNaN(values[segment])) {
+                builder.line(starts[segment], lines, segment, offset);
+            } else {
+                return null;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Adds or subtracts the demand of another curve to the demand of this curve. This is only possible when every
+     * sloped segment is combined with a flat segment, in any other case the result can not be expressed in segments.
+     *
+     * @param other
+     *            the other curve, with the same {@link MarketBasis}
+     * @param subtract
+     *            <code>true</code> when the other demand should be subtracted from this demand
+     * @return the combined curve, or <code>null</code> when this can not be expressed in segments.
+     */
+    PiecewiseLinearDemand combine(PiecewiseLinearDemand other, boolean subtract) {
+        Builder builder = new Builder(marketBasis);
+        int segment = 0, otherSegment = 0;
+        int start = 0;
+        while (start < marketBasis.getPriceSteps()) {
+            boolean sloped = isSloped(lines, segment);
+            boolean otherSloped = isSloped(other.lines, otherSegment);
+            double value = values[segment];
+            double otherValue = other.values[otherSegment];
+
+            if (!sloped && !otherSloped) {
+                builder.flat(start, subtract ? value - otherValue : otherValue + value);
+            } else if (sloped && !otherSloped && Double.isNaN(value)) {
+                builder.line(start, lines, segment, subtract ? -otherValue : otherValue);
+            } else if (!sloped && otherSloped && !subtract && Double.isNaN(otherValue)) {
+                builder.line(start, other.lines, otherSegment, value);
+            } else {
+                return null;
+            }
+
+            int end = getEnd(segment);
+            int otherEnd = other.getEnd(otherSegment);
+            start = Math.min(end, otherEnd);
+            if (end == start) {
+                segment++;
+            }
+            if (otherEnd == start) {
+                otherSegment++;
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(starts) + Arrays.hashCode(values);
+    }
+
+    /**
+     * Two curves are equal when they consist of the same segments. Curves with different segments can still have the
+     * same demand at every price step.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        } else if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        } else {
+            PiecewiseLinearDemand other = (PiecewiseLinearDemand) obj;
+            return marketBasis.equals(other.marketBasis)
+                   && Arrays.equals(starts, other.starts)
+                   && Arrays.equals(values, other.values)
+                   && Arrays.equals(lines, other.lines);
+        }
+    }
+}
@@ -1,31 +1,37 @@
 package net.powermatcher.api.data;
 
 import java.util.Arrays;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * A builder class to create an {@link Bid} instance.
  *
+ * The points are kept as primitive price and demand pairs, sorted by price while they are added. Since the points
+ * are usually added from low to high price, this hardly ever has to move a point. The demand of the price steps is
+ * filled in with a single sweep over the sorted points. After {@link #clear()}, the builder can be used again for the
+ * next bid, reusing its buffers.
+ *
  * @author FAN
  * @version 2.1
  */
 public final class PointBidBuilder {
 
     /**
-     * Epsilon for correcting rounding errors
+     * The {@link MarketBasis} of the cluster.
      */
-    private static final double EPSILON = 0.0000000001;
+    private final MarketBasis marketBasis;
 
     /**
-     * The {@link MarketBasis} of the cluster.
+     * The prices of the points that make up the bid curve, from low to high.
      */
-    private final MarketBasis marketBasis;
+    private double[] prices;
 
     /**
-     * The set of {@link PointBid} values that make up the bid curve.
+     * The demands of the points that make up the bid curve. Points with the same price are sorted from high to low
+     * demand.
      */
-    private final SortedSet<PricePoint> pricePoints;
+    private double[] demands;
+
+    private int pointCount;
 
     /**
      * Constructor to create an instance of this class.
@@ -38,7 +44,9 @@ public final class PointBidBuilder {
             throw new IllegalArgumentException("marketBasis is not allowed to be null");
         }
         this.marketBasis = marketBasis;
-        pricePoints = new TreeSet<PricePoint>();
+        prices = new double[4];
+        demands = new double[4];
+        pointCount = 0;
     }
 
     /**
@@ -47,9 +55,15 @@ public final class PointBidBuilder {
      * @param pricePoint
      *            The point to add
      * @return this instance of the Builder with the array
+     * @throws IllegalArgumentException
+     *             when the price of the point is not based on the {@link MarketBasis} of this builder
      */
     public PointBidBuilder add(PricePoint pricePoint) {
-        pricePoints.add(pricePoint);
+        Price price = pricePoint.getPrice();
+        if (!marketBasis.equals(price.getMarketBasis())) {
+            throw new IllegalArgumentException("Non-equal market basis");
+        }
+        insert(price.getPriceValue(), pricePoint.getDemand());
         return this;
     }
 
@@ -63,101 +77,91 @@ public final class PointBidBuilder {
      */
     public PointBidBuilder addAll(PricePoint[] pricePoints) {
         for (PricePoint pp : pricePoints) {
-            this.pricePoints.add(pp);
+            add(pp);
         }
         return this;
     }
 
     /**
-     * Creates a PricePoint with the supplied price and demand. Adds the point to the PricePoint array.
+     * Adds a point with the supplied price and demand to the PricePoint array. Unlike {@link #add(PricePoint)}, this
+     * does not create any objects.
      *
      * @param price
      *            The price of the point that should be added
      * @param demand
      *            The demand value of the point that should be added
      * @return this instance of the Builder with the array
+     * @throws IllegalArgumentException
+     *             when the price is not within the bounds of the {@link MarketBasis} or the demand is NaN or infinite
      */
     public PointBidBuilder add(double price, double demand) {
-        return add(new PricePoint(marketBasis, price, demand));
+        // The same checks as the Price and PricePoint constructors
+        if (Double.isNaN(price)) {
+            throw new IllegalArgumentException("Price NaN is not valid");
+        } else if (price < marketBasis.getMinimumPrice() || price > marketBasis.getMaximumPrice()) {
+            throw new IllegalArgumentException("Price " + price
+                                               + " is out of bounds ["
+                                               + marketBasis.getMinimumPrice()
+                                               + ", "
+                                               + marketBasis.getMaximumPrice()
+                                               + "]");
+        } else if (Double.isNaN(demand)) {
+            throw new IllegalArgumentException("Can not create a PricePoint for a NaN demand");
+        } else if (Double.isInfinite(demand)) {
+            throw new IllegalArgumentException("Can not create a PricePoint for an infinite demand");
+        }
+        insert(price, demand);
+        return this;
     }
 
     /**
-     * Uses the supplied parameters to create a new PointBid.
+     * Removes all the points, so this builder can be used to create another {@link Bid}.
      *
-     * @return The created {@link PointBid}
-     * @throws IllegalArgumentException
-     *             when the marketBasis is null
+     * @return this instance of the Builder, without any points
      */
-    public Bid build() {
-        int priceSteps = marketBasis.getPriceSteps();
-        double[] demandArray = new double[priceSteps];
+    public PointBidBuilder clear() {
+        pointCount = 0;
+        return this;
+    }
 
-        PricePoint[] sortedPricePoints = pricePoints.toArray(new PricePoint[pricePoints.size()]);
-        // Sort from low price to high price
-        Arrays.sort(sortedPricePoints);
+    /**
+     * Inserts a point at its place in the sorted arrays, in the same order as {@link PricePoint#compareTo(PricePoint)}.
+     * A point that is equal to a point that was already added is ignored.
+     */
+    private void insert(double price, double demand) {
+        int ix = pointCount;
+        while (ix > 0 && (prices[ix - 1] > price || prices[ix - 1] == price && demands[ix - 1] < demand)) {
+            ix--;
+        }
+        if (ix > 0 && prices[ix - 1] == price && demands[ix - 1] == demand) {
+            return;
+        }
 
-        double last = Double.POSITIVE_INFINITY;
-        for (int ix = 0; ix < priceSteps; ix++) {
-            demandArray[ix] = getDemandAt(Price.fromPriceIndex(marketBasis, ix), sortedPricePoints);
-            // Ensure we still have a (not strictly) descending array when rounding issues occur
-            if (demandArray[ix] > last && demandArray[ix] - EPSILON < last) {
-                // Second value is higher, but not significantly. Fix this by using the last value.
-                demandArray[ix] = last;
-            }
-            last = demandArray[ix];
+        if (pointCount == prices.length) {
+            prices = Arrays.copyOf(prices, 2 * pointCount);
+            demands = Arrays.copyOf(demands, 2 * pointCount);
         }
-        return new Bid(marketBasis, demandArray);
+        System.arraycopy(prices, ix, prices, ix + 1, pointCount - ix);
+        System.arraycopy(demands, ix, demands, ix + 1, pointCount - ix);
+        prices[ix] = price;
+        demands[ix] = demand;
+        pointCount++;
     }
 
-    private double getDemandAt(Price price, PricePoint[] sortedPricePoints) {
-        double demandMinimumPrice = sortedPricePoints[0].getDemand();
-        double demandMaximumPrice = sortedPricePoints[sortedPricePoints.length - 1].getDemand();
-
-        if (demandMinimumPrice == demandMaximumPrice) {
-            // Flat bid, send any demand (they are all the same)
-            return demandMaximumPrice;
-        } else if (price.compareTo(sortedPricePoints[0].getPrice()) < 0) {
-            // If the price is lower than the lowest price, return the maximum
-            // demand
-            return demandMinimumPrice;
-        } else if (price.compareTo(sortedPricePoints[sortedPricePoints.length - 1].getPrice()) >= 0) {
-            // If the price is higher than the highest price, return the minimum demand
-            return demandMaximumPrice;
-        } else {
-            // We have a normal case that is somewhere in between the lower and higher demands
-
-            // First determine which 2 pricepoints it is in between
-            int lowIx = 0, highIx = sortedPricePoints.length;
-            while (highIx - lowIx > 1) {
-                int middleIx = (lowIx + highIx) / 2;
-                PricePoint middle = sortedPricePoints[middleIx];
-
-                int cmp = middle.getPrice().compareTo(price);
-                if (cmp < 0) {
-                    lowIx = middleIx;
-                } else if (cmp > 0) {
-                    highIx = middleIx;
-                } else {
-                    // Found at least 1 point that is equal in price.
-                    // This is the special case with an open and closed node. Always the lower demand should be chosen.
-                    // We are going to look for the last node with price 'price'
-                    int currentIx = middleIx;
-                    while (currentIx + 1 < sortedPricePoints.length
-                           && sortedPricePoints[currentIx + 1].getPrice().equals(price)) {
-                        currentIx++;
-                    }
-                    return sortedPricePoints[currentIx].getDemand();
-                }
-            }
-            PricePoint lower = sortedPricePoints[lowIx];
-            PricePoint higher = sortedPricePoints[highIx];
-
-            // Now calculate the demand between the 2 points
-            // First the factor (between 0 and 1) of where the price is on the line
-            double factor = (price.getPriceValue() - lower.getPrice().getPriceValue())
-                            / (higher.getPrice().getPriceValue() - lower.getPrice().getPriceValue());
-            // Now calculate the demand
-            return (1 - factor) * lower.getDemand() + factor * higher.getDemand();
+    /**
+     * Uses the supplied parameters to create a new PointBid. Only the points of the bid curve are kept in the new
+     * {@link Bid}, unless the curve has too many segments.
+     *
+     * @return The created {@link PointBid}
+     * @throws IllegalArgumentException
+     *             when the demand of the points is ascending
+     * @throws IllegalStateException
+     *             when no points have been added
+     */
+    public Bid build() {
+        if (pointCount == 0) {
+            throw new IllegalStateException("No points have been added to the bid");
         }
+        return Bid.fromCurve(marketBasis, PiecewiseLinearDemand.fromPoints(marketBasis, prices, demands, pointCount));
     }
 }
@@ -23,6 +23,12 @@ public class Price
      */
     private final double priceValue;
 
+    /**
+     * The price index of this Price instance when it is known up front (for the instances in the price table of the
+     * {@link MarketBasis}), or <code>-1</code> when it has to be calculated from the price value.
+     */
+    private final int priceIndex;
+
     /**
      * A constructor to create an instance of Price.
      *
@@ -46,6 +52,24 @@ public class Price
         }
         this.marketBasis = marketBasis;
         priceValue = price;
+        priceIndex = -1;
+    }
+
+    /**
+     * Creates the Price for a price index of the price table of the {@link MarketBasis}. The price value must already
+     * have been checked against the bounds of the market basis.
+     *
+     * @param marketBasis
+     *            the {@link MarketBasis} of this Price.
+     * @param price
+     *            the value of this Price.
+     * @param priceIndex
+     *            the price index that results in this price.
+     */
+    Price(MarketBasis marketBasis, double price, int priceIndex) {
+        this.marketBasis = marketBasis;
+        priceValue = price;
+        this.priceIndex = priceIndex;
     }
 
     /**
@@ -77,6 +101,9 @@ public class Price
      *         demand array of {@link Bid}.
      */
     public int getPriceIndex() {
+        if (priceIndex >= 0) {
+            return priceIndex;
+        }
         return (int) Math.round(getPriceStep());
     }
 
@@ -170,9 +197,17 @@ public class Price
      *            MarketBasis to be used for the Price
      * @param priceIndex
      *            priceIndex value to be used for the {@link Price} object
-     * @return new {@link Price} object
+     * @return {@link Price} object, which is shared by all callers with the same {@link MarketBasis} instance
      */
     public static Price fromPriceIndex(MarketBasis marketBasis, int priceIndex) {
+        if (marketBasis == null) {
+            throw new IllegalArgumentException("marketBasis cannot be null");
+        }
+        Price price = marketBasis.getPrice(priceIndex);
+        if (price != null) {
+            return price;
+        }
+        // Not a valid price index, this will throw the appropriate exception
         return Price.fromPriceStep(marketBasis, priceIndex);
     }
 }
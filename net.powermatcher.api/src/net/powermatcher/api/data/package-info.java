@@ -2,5 +2,5 @@
  * This package contains all the data objects that are used in the PowerMatcher, for example to represent bids and
  * prices.
  */
-@org.osgi.annotation.versioning.Version("3.0.0.${tstamp}")
+@org.osgi.annotation.versioning.Version("3.1.0.${tstamp}")
 package net.powermatcher.api.data;
@@ -0,0 +1,27 @@
+package net.powermatcher.api.monitoring;
+
+import net.powermatcher.api.monitoring.events.AgentEvent;
+
+/**
+ * {@link FilteredAgentObserver} is an {@link AgentObserver} that tells the {@link ObservableAgent}s which events it is
+ * interested in. An {@link ObservableAgent} can use this to not create events for which no observer is interested and
+ * it will only send an event to the observers that are interested in it.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public interface FilteredAgentObserver
+    extends AgentObserver {
+
+    /**
+     * This method is called by an {@link ObservableAgent} before it creates an {@link AgentEvent}. It should be cheap,
+     * since it can be called for every event that the {@link ObservableAgent} could send.
+     *
+     * @param eventType
+     *            the type of the {@link AgentEvent} that the {@link ObservableAgent} wants to send
+     * @param agentId
+     *            the id of the {@link ObservableAgent} that wants to send the event
+     * @return <code>true</code> when this observer wants to receive events of the given type from the given agent
+     */
+    boolean isInterestedIn(Class<? extends AgentEvent> eventType, String agentId);
+}
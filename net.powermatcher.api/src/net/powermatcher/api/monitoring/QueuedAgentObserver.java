@@ -0,0 +1,310 @@
+package net.powermatcher.api.monitoring;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.powermatcher.api.monitoring.events.AgentEvent;
+
+/**
+ * {@link QueuedAgentObserver} decouples an {@link AgentObserver} from the {@link ObservableAgent}s that it observes.
+ * Instead of the observer itself, this wrapper is added to the {@link ObservableAgent}s. The events are put in a
+ * bounded queue and are delivered to the observer by a task on the given {@link Executor}, so a slow observer does not
+ * hold up the agent that sends the event. Adding and taking events from the queue does not lock.
+ *
+ * When the queue is full, the {@link OverflowPolicy} determines what happens with a new event.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class QueuedAgentObserver
+    implements FilteredAgentObserver {
+
+    /**
+     * Determines what happens with a new event when the queue of a {@link QueuedAgentObserver} is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The oldest event in the queue is dropped to make room for the new event.
+         */
+        DROP_OLDEST,
+        /**
+         * The sending agent waits until there is room in the queue. Use with care: a slow observer will slow down the
+         * agents that it observes.
+         *
+         * The queue is only emptied by the task on the executor, so the executor should not run on the threads that
+         * send the events. When all its threads wait for room in the queue, the task can never run. An event that is
+         * sent by the observer itself, on the thread that delivers the events, does not wait but drops the oldest
+         * event instead.
+         */
+        BLOCK,
+        /**
+         * Only one out of every sampleInterval events that do not fit is kept, for which the oldest event in the queue is
+         * dropped. The other events are dropped. This keeps a thinned out trail of recent events when the observer can
+         * not keep up.
+         */
+        SAMPLE
+    }
+
+    /**
+     * The default maximum number of events in the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The default number of events of which one is kept when the {@link OverflowPolicy#SAMPLE} policy applies.
+     */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 10;
+
+    /**
+     * The time that a blocked agent waits before it checks again whether there is room in the queue.
+     */
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AgentObserver observer;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final int sampleInterval;
+
+    private final Queue<AgentEvent> queue = new ConcurrentLinkedQueue<AgentEvent>();
+
+    /**
+     * The number of events in the queue, including the ones that are being added. This is kept separately, since the
+     * size of a {@link ConcurrentLinkedQueue} is not a constant time operation.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * The thread that is delivering the events, or <code>null</code> when no events are being delivered
+     */
+    private volatile Thread deliveringThread;
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    private final Runnable deliverer = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Creates a new {@link QueuedAgentObserver} with a queue of {@link #DEFAULT_CAPACITY} events that drops the oldest
+     * event when it is full.
+     *
+     * @param observer
+     *            The observer to which the events are delivered
+     * @param executor
+     *            The executor that runs the task that delivers the events
+     */
+    public QueuedAgentObserver(AgentObserver observer, Executor executor) {
+        this(observer, executor, DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST, DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Creates a new {@link QueuedAgentObserver}.
+     *
+     * @param observer
+     *            The observer to which the events are delivered
+     * @param executor
+     *            The executor that runs the task that delivers the events
+     * @param capacity
+     *            The maximum number of events in the queue
+     * @param overflowPolicy
+     *            What happens with a new event when the queue is full
+     * @param sampleInterval
+     *            The number of events of which one is kept when the queue is full and the {@link OverflowPolicy#SAMPLE}
+     *            policy is used
+     * @throws IllegalArgumentException
+     *             When the capacity or sampleInterval is smaller than 1
+     */
+    public QueuedAgentObserver(AgentObserver observer,
+                               Executor executor,
+                               int capacity,
+                               OverflowPolicy overflowPolicy,
+                               int sampleInterval) {
+        if (observer == null) {
+            throw new NullPointerException("observer");
+        } else if (executor == null) {
+            throw new NullPointerException("executor");
+        } else if (overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        } else if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity should be at least 1");
+        } else if (sampleInterval < 1) {
+            throw new IllegalArgumentException("The sampleInterval should be at least 1");
+        }
+        this.observer = observer;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * @return The observer to which the events are delivered
+     */
+    public AgentObserver getObserver() {
+        return observer;
+    }
+
+    /**
+     * @return The maximum number of events in the queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return What happens with a new event when the queue is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return The number of events that have been dropped because the queue was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This is delegated to the wrapped observer when it is a {@link FilteredAgentObserver}, otherwise all events are
+     * accepted.
+     */
+    @Override
+    public boolean isInterestedIn(Class<? extends AgentEvent> eventType, String agentId) {
+        return !(observer instanceof FilteredAgentObserver)
+               || ((FilteredAgentObserver) observer).isInterestedIn(eventType, agentId);
+    }
+
+    /**
+     * Puts the event in the queue, after which it will be delivered to the wrapped observer.
+     *
+     * @param event
+     *            the {@link AgentEvent} sent by the {@link ObservableAgent}
+     */
+    @Override
+    public void handleAgentEvent(AgentEvent event) {
+        if (event == null) {
+            throw new NullPointerException("event");
+        }
+
+        if (!tryReserve()) {
+            switch (overflowPolicy) {
+            case BLOCK:
+                if (Thread.currentThread() == deliveringThread) {
+                    // Waiting here would wait for this thread itself
+                    makeRoom();
+                } else if (!waitForRoom()) {
+                    droppedEvents.incrementAndGet();
+                    return;
+                }
+                break;
+            case SAMPLE:
+                if (overflows.getAndIncrement() % sampleInterval != 0) {
+                    droppedEvents.incrementAndGet();
+                    return;
+                }
+                makeRoom();
+                break;
+            case DROP_OLDEST:
+            default:
+                makeRoom();
+                break;
+            }
+        }
+
+        queue.add(event);
+        schedule();
+    }
+
+    /**
+     * Reserves a place in the queue for a new event.
+     *
+     * @return <code>true</code> when a place has been reserved, <code>false</code> when the queue is full
+     */
+    private boolean tryReserve() {
+        int current = size.get();
+        while (current < capacity) {
+            if (size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = size.get();
+        }
+        return false;
+    }
+
+    /**
+     * Drops the oldest events until a place in the queue has been reserved.
+     */
+    private void makeRoom() {
+        do {
+            AgentEvent dropped = queue.poll();
+            if (dropped != null) {
+                size.decrementAndGet();
+                droppedEvents.incrementAndGet();
+            } else {
+                // The places are reserved by events that are being added right now
+                Thread.yield();
+            }
+        } while (!tryReserve());
+    }
+
+    /**
+     * Waits until a place in the queue has been reserved.
+     *
+     * @return <code>false</code> when the thread has been interrupted while waiting
+     */
+    private boolean waitForRoom() {
+        do {
+            // Make sure that the queue is being emptied while we wait
+            schedule();
+            LockSupport.parkNanos(this, BLOCK_WAIT_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        } while (!tryReserve());
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(deliverer);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                throw ex;
+            }
+        }
+    }
+
+    private void deliver() {
+        deliveringThread = Thread.currentThread();
+        try {
+            for (AgentEvent event = queue.poll(); event != null; event = queue.poll()) {
+                size.decrementAndGet();
+                observer.handleAgentEvent(event);
+            }
+        } finally {
+            deliveringThread = null;
+            scheduled.set(false);
+            // Events that are left (or have been added in the meantime) need a new task
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
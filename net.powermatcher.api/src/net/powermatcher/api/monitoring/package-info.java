@@ -1,5 +1,5 @@
 /**
  * This package contain the observable/observer pattern for agents.
  */
-@org.osgi.annotation.versioning.Version("2.0.0.${tstamp}")
+@org.osgi.annotation.versioning.Version("2.1.0.${tstamp}")
 package net.powermatcher.api.monitoring;
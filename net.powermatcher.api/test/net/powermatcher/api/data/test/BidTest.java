@@ -261,6 +261,19 @@ public class BidTest {
         assertThat(demand, is(equalTo(demandFive)));
     }
 
+    @Test
+    public void testGetDemandAtIndex() {
+        for (int ix = 0; ix < demandFive.length; ix++) {
+            assertThat(bid1.getDemandAt(ix), is(equalTo(demandFive[ix])));
+        }
+    }
+
+    @Test
+    public void testGetDemandAtIndexOutOfBounds() {
+        expectedException.expect(IndexOutOfBoundsException.class);
+        bid1.getDemandAt(demandFive.length);
+    }
+
     @Test
     public void testGetDemandAtPrice() {
         Price price = new Price(marketBasisFiveSteps, 7.0);
@@ -323,6 +336,29 @@ public class BidTest {
         assertThat(transposedBid.getDemand(), is(equalTo(expectedDemand)));
     }
 
+    @Test
+    public void testAddDemandTo() {
+        double[] demand = bid4.getDemand();
+        bid3.addDemandTo(demand);
+        assertThat(demand, is(equalTo(bid3.aggregate(bid4).getDemand())));
+
+        bid3.subtractDemandFrom(demand);
+        assertThat(demand, is(equalTo(demandTen2)));
+
+        Bid flat = Bid.flatDemand(marketBasisTenSteps, 10.0);
+        flat.addDemandTo(demand);
+        assertThat(demand, is(equalTo(bid4.transpose(10.0).getDemand())));
+        flat.subtractDemandFrom(demand);
+        assertThat(demand, is(equalTo(demandTen2)));
+    }
+
+    @Test
+    public void testAddDemandToWrongSize() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Length of the array is not equal to the number of price steps");
+        bid1.addDemandTo(new double[demandTen.length]);
+    }
+
     @Test
     public void testEquals() {
         // check equals null
@@ -389,4 +425,10 @@ public class BidTest {
         assertThat(bid1String.startsWith("Bid"), is(true));
     }
 
+    @Test
+    public void testIsDescending() {
+        assertThat(Bid.isDescending(new double[] { 3, 3, 2, 0, -1 }), is(true));
+        assertThat(Bid.isDescending(new double[] { 3, 2, 2.5, 0, -1 }), is(false));
+        assertThat(Bid.isDescending(new double[0]), is(true));
+    }
 }
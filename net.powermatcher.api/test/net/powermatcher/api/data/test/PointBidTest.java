@@ -8,6 +8,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -247,4 +251,146 @@ public class PointBidTest {
             // it was supposed to throw an exception
         }
     }
+
+    @Test
+    public void testSameDemandAsDemandArray() {
+        MarketBasis marketBasis = new MarketBasis(COMMODITY_ELECTRICITY, CURRENCY_EUR, 100, 0, 1);
+        Random random = new Random(42);
+        for (int test = 0; test < 200; test++) {
+            PricePoint[] points = randomPoints(marketBasis, random);
+            Bid bid = Bid.create(marketBasis).addAll(points).build();
+            double[] expectedDemand = calculateDemandArray(marketBasis, points);
+            Bid arrayBid = new Bid(marketBasis, expectedDemand);
+
+            assertThat(bid.getDemand(), is(equalTo(expectedDemand)));
+            for (int ix = 0; ix < expectedDemand.length; ix++) {
+                assertThat(bid.getDemandAt(ix), is(equalTo(expectedDemand[ix])));
+            }
+            assertThat(bid, is(equalTo(arrayBid)));
+            assertThat(arrayBid, is(equalTo(bid)));
+            assertThat(bid.hashCode(), is(equalTo(arrayBid.hashCode())));
+            assertThat(bid.getMaximumDemand(), is(equalTo(expectedDemand[0])));
+            assertThat(bid.getMinimumDemand(), is(equalTo(expectedDemand[expectedDemand.length - 1])));
+
+            double targetDemand = (random.nextDouble() - 0.5) * 200;
+            assertThat(bid.calculateIntersection(targetDemand),
+                       is(equalTo(arrayBid.calculateIntersection(targetDemand))));
+
+            double offset = random.nextDouble() * 10;
+            Bid transposed = bid.transpose(offset);
+            assertThat(transposed.getDemand(), is(equalTo(arrayBid.transpose(offset).getDemand())));
+            assertThat(transposed.transpose(-offset).getDemand(),
+                       is(equalTo(arrayBid.transpose(offset).transpose(-offset).getDemand())));
+
+            Bid flat = Bid.flatDemand(marketBasis, offset);
+            Bid other = Bid.create(marketBasis).addAll(randomPoints(marketBasis, random)).build();
+            Bid otherArrayBid = new Bid(marketBasis, other.getDemand());
+            assertThat(bid.aggregate(flat).getDemand(), is(equalTo(arrayBid.aggregate(flat).getDemand())));
+            assertThat(flat.aggregate(bid).getDemand(), is(equalTo(flat.aggregate(arrayBid).getDemand())));
+            assertThat(bid.aggregate(other).getDemand(), is(equalTo(arrayBid.aggregate(otherArrayBid).getDemand())));
+            assertThat(bid.transpose(offset).subtract(flat).getDemand(),
+                       is(equalTo(arrayBid.transpose(offset).subtract(flat).getDemand())));
+        }
+    }
+
+    @Test
+    public void testPointOrderDoesNotMatter() {
+        MarketBasis marketBasis = new MarketBasis(COMMODITY_ELECTRICITY, CURRENCY_EUR, 100, 0, 1);
+        Random random = new Random(7);
+        PointBidBuilder builder = Bid.create(marketBasis);
+        for (int test = 0; test < 100; test++) {
+            PricePoint[] points = randomPoints(marketBasis, random);
+            Bid expected = new Bid(marketBasis, calculateDemandArray(marketBasis, points));
+
+            // Add the points in reverse order and some of them twice, reusing the builder
+            builder.clear();
+            for (int ix = points.length - 1; ix >= 0; ix--) {
+                builder.add(points[ix].getPrice().getPriceValue(), points[ix].getDemand());
+                if (random.nextBoolean()) {
+                    builder.add(points[ix]);
+                }
+            }
+            assertThat(builder.build().getDemand(), is(equalTo(expected.getDemand())));
+        }
+    }
+
+    @Test
+    public void testBuildWithoutPoints() {
+        expectedException.expect(IllegalStateException.class);
+        Bid.create(marketBasisFiveSteps).build();
+    }
+
+    @Test
+    public void testAddPriceOutOfBounds() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Price 8.0 is out of bounds [-1.0, 7.0]");
+        Bid.create(marketBasisFiveSteps).add(8.0, 10.0);
+    }
+
+    @Test
+    public void testAddPointOfOtherMarketBasis() {
+        expectedException.expect(IllegalArgumentException.class);
+        Bid.create(marketBasisFiveSteps).add(pricePoint(marketBasisTenSteps, 1, 10.0));
+    }
+
+    private PricePoint[] randomPoints(MarketBasis marketBasis, Random random) {
+        double[] prices = new double[1 + random.nextInt(4)];
+        for (int ix = 0; ix < prices.length; ix++) {
+            // Some points are exactly on a price step, or have the same price as the previous point
+            prices[ix] = random.nextBoolean() ? random.nextDouble() : random.nextInt(100) / 99.0;
+            if (ix > 0 && random.nextInt(4) == 0) {
+                prices[ix] = prices[ix - 1];
+            }
+        }
+        Arrays.sort(prices);
+
+        // Demand should go down with the price
+        PricePoint[] points = new PricePoint[prices.length];
+        double demand = random.nextInt(3) == 0 ? 0 : random.nextDouble() * 100;
+        for (int ix = 0; ix < points.length; ix++) {
+            points[ix] = new PricePoint(marketBasis, prices[ix], demand);
+            demand -= random.nextInt(3) == 0 ? 0 : random.nextDouble() * 50;
+        }
+        return points;
+    }
+
+    /**
+     * Calculates the demand array in the way that the {@link PointBidBuilder} has always done it, by looking up the
+     * demand of every price step between the sorted points.
+     */
+    private double[] calculateDemandArray(MarketBasis marketBasis, PricePoint[] points) {
+        PricePoint[] sorted = new TreeSet<PricePoint>(Arrays.asList(points)).toArray(new PricePoint[0]);
+        double first = sorted[0].getDemand();
+        double last = sorted[sorted.length - 1].getDemand();
+        double[] demandArray = new double[marketBasis.getPriceSteps()];
+        double previous = Double.POSITIVE_INFINITY;
+        for (int ix = 0; ix < demandArray.length; ix++) {
+            Price price = Price.fromPriceIndex(marketBasis, ix);
+            double demand;
+            if (first == last || price.compareTo(sorted[0].getPrice()) < 0) {
+                demand = first;
+            } else if (price.compareTo(sorted[sorted.length - 1].getPrice()) >= 0) {
+                demand = last;
+            } else {
+                int low = 0;
+                while (sorted[low + 1].getPrice().compareTo(price) <= 0) {
+                    low++;
+                }
+                if (sorted[low].getPrice().equals(price)) {
+                    demand = sorted[low].getDemand();
+                } else {
+                    double factor = (price.getPriceValue() - sorted[low].getPrice().getPriceValue())
+                                    / (sorted[low + 1].getPrice().getPriceValue()
+                                       - sorted[low].getPrice().getPriceValue());
+                    demand = (1 - factor) * sorted[low].getDemand() + factor * sorted[low + 1].getDemand();
+                }
+            }
+            if (demand > previous && demand - 1e-10 < previous) {
+                demand = previous;
+            }
+            demandArray[ix] = demand;
+            previous = demand;
+        }
+        return demandArray;
+    }
 }
@@ -153,4 +153,30 @@ public class PriceTest {
         assertThat(price.toString(), is(equalTo(expected)));
     }
 
+    @Test
+    public void testFromPriceIndex() {
+        for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+            Price fromIndex = Price.fromPriceIndex(marketBasis, ix);
+            assertThat(fromIndex, is(equalTo(Price.fromPriceStep(marketBasis, ix))));
+            assertThat(fromIndex.getPriceIndex(), is(equalTo(ix)));
+            // The instances are shared
+            Assert.assertSame(fromIndex, Price.fromPriceIndex(marketBasis, ix));
+        }
+    }
+
+    @Test
+    public void testPriceIndexMatchesCalculatedIndex() {
+        MarketBasis odd = new MarketBasis(COMMODITY_ELECTRICITY, CURRENCY_EUR, 37, -0.3d, 1.7d);
+        for (int ix = 0; ix < odd.getPriceSteps(); ix++) {
+            Price fromIndex = Price.fromPriceIndex(odd, ix);
+            Price calculated = new Price(odd, fromIndex.getPriceValue());
+            assertThat(calculated.getPriceIndex(), is(equalTo(fromIndex.getPriceIndex())));
+        }
+    }
+
+    @Test
+    public void testFromPriceIndexOutOfRange() {
+        expectedException.expect(IllegalArgumentException.class);
+        Price.fromPriceIndex(marketBasis, marketBasis.getPriceSteps());
+    }
 }
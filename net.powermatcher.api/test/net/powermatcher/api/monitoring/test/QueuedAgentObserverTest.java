@@ -0,0 +1,214 @@
+package net.powermatcher.api.monitoring.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.monitoring.AgentObserver;
+import net.powermatcher.api.monitoring.FilteredAgentObserver;
+import net.powermatcher.api.monitoring.QueuedAgentObserver;
+import net.powermatcher.api.monitoring.QueuedAgentObserver.OverflowPolicy;
+import net.powermatcher.api.monitoring.events.AgentEvent;
+import net.powermatcher.api.monitoring.events.IncomingBidUpdateEvent;
+import net.powermatcher.api.monitoring.events.IncomingPriceUpdateEvent;
+import net.powermatcher.api.monitoring.events.OutgoingBidUpdateEvent;
+
+/**
+ * JUnit tests for the {@link QueuedAgentObserver} class.
+ */
+public class QueuedAgentObserverTest {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("electricity", "EUR", 5, 0, 10);
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    /**
+     * Holds the submitted tasks until they are run by hand.
+     */
+    private static class ManualExecutor
+        implements Executor {
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.poll().run();
+            }
+        }
+    }
+
+    private static class CollectingObserver
+        implements AgentObserver {
+        private final List<Integer> bidNumbers = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void handleAgentEvent(AgentEvent event) {
+            bidNumbers.add(((OutgoingBidUpdateEvent) event).getBidUpdate().getBidNumber());
+        }
+    }
+
+    private static AgentEvent event(int bidNumber) {
+        return new OutgoingBidUpdateEvent("cluster",
+                                          "agent",
+                                          "session",
+                                          new Date(),
+                                          new BidUpdate(Bid.flatDemand(MARKET_BASIS, 0), bidNumber));
+    }
+
+    private static List<Integer> numbers(int... values) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int value : values) {
+            result.add(value);
+        }
+        return result;
+    }
+
+    @Test
+    public void testDeliveredByExecutor() {
+        ManualExecutor executor = new ManualExecutor();
+        CollectingObserver observer = new CollectingObserver();
+        QueuedAgentObserver queued = new QueuedAgentObserver(observer, executor);
+
+        queued.handleAgentEvent(event(1));
+        queued.handleAgentEvent(event(2));
+        assertThat(observer.bidNumbers.isEmpty(), is(true));
+        // Only a single task is needed for all the queued events
+        assertThat(executor.tasks.size(), is(equalTo(1)));
+
+        executor.runAll();
+        assertThat(observer.bidNumbers, is(equalTo(numbers(1, 2))));
+        assertThat(queued.getDroppedEvents(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void testDropOldest() {
+        ManualExecutor executor = new ManualExecutor();
+        CollectingObserver observer = new CollectingObserver();
+        QueuedAgentObserver queued = new QueuedAgentObserver(observer, executor, 3, OverflowPolicy.DROP_OLDEST, 1);
+
+        for (int bidNumber = 1; bidNumber <= 5; bidNumber++) {
+            queued.handleAgentEvent(event(bidNumber));
+        }
+        executor.runAll();
+        assertThat(observer.bidNumbers, is(equalTo(numbers(3, 4, 5))));
+        assertThat(queued.getDroppedEvents(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void testSample() {
+        ManualExecutor executor = new ManualExecutor();
+        CollectingObserver observer = new CollectingObserver();
+        QueuedAgentObserver queued = new QueuedAgentObserver(observer, executor, 2, OverflowPolicy.SAMPLE, 3);
+
+        // Events 3 to 8 do not fit, of which 3 and 6 are kept
+        for (int bidNumber = 1; bidNumber <= 8; bidNumber++) {
+            queued.handleAgentEvent(event(bidNumber));
+        }
+        executor.runAll();
+        assertThat(observer.bidNumbers, is(equalTo(numbers(3, 6))));
+        assertThat(queued.getDroppedEvents(), is(equalTo(6L)));
+    }
+
+    @Test
+    public void testBlock() throws InterruptedException {
+        final CollectingObserver observer = new CollectingObserver();
+        final QueuedAgentObserver queued = new QueuedAgentObserver(observer, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        }, 1, OverflowPolicy.BLOCK, 1);
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int bidNumber = 1; bidNumber <= 100; bidNumber++) {
+                    queued.handleAgentEvent(event(bidNumber));
+                }
+            }
+        };
+        producer.start();
+        producer.join(10000);
+
+        // Wait for the last delivery
+        for (int ix = 0; ix < 1000 && observer.bidNumbers.size() < 100; ix++) {
+            Thread.sleep(10);
+        }
+        assertThat(observer.bidNumbers.size(), is(equalTo(100)));
+        assertThat(observer.bidNumbers.get(99), is(equalTo(100)));
+        assertThat(queued.getDroppedEvents(), is(equalTo(0L)));
+    }
+
+    /**
+     * An observer that sends events itself, on the thread that delivers them, must not wait for that thread.
+     */
+    @Test
+    public void testBlockOnDeliveringThreadDoesNotWait() {
+        ManualExecutor executor = new ManualExecutor();
+        final CollectingObserver collector = new CollectingObserver();
+        final QueuedAgentObserver[] queued = new QueuedAgentObserver[1];
+        AgentObserver observer = new AgentObserver() {
+            @Override
+            public void handleAgentEvent(AgentEvent event) {
+                collector.handleAgentEvent(event);
+                int bidNumber = ((OutgoingBidUpdateEvent) event).getBidUpdate().getBidNumber();
+                if (bidNumber == 1) {
+                    queued[0].handleAgentEvent(event(2));
+                    queued[0].handleAgentEvent(event(3));
+                }
+            }
+        };
+        queued[0] = new QueuedAgentObserver(observer, executor, 1, OverflowPolicy.BLOCK, 1);
+
+        queued[0].handleAgentEvent(event(1));
+        executor.runAll();
+        assertThat(collector.bidNumbers, is(equalTo(numbers(1, 3))));
+        assertThat(queued[0].getDroppedEvents(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testFilterIsDelegated() {
+        ManualExecutor executor = new ManualExecutor();
+        assertThat(new QueuedAgentObserver(new CollectingObserver(), executor).isInterestedIn(IncomingBidUpdateEvent.class,
+                                                                                             "agent"),
+                   is(true));
+
+        QueuedAgentObserver queued = new QueuedAgentObserver(new FilteredAgentObserver() {
+            @Override
+            public boolean isInterestedIn(Class<? extends AgentEvent> eventType, String agentId) {
+                return eventType == IncomingPriceUpdateEvent.class;
+            }
+
+            @Override
+            public void handleAgentEvent(AgentEvent event) {
+            }
+        }, executor);
+        assertThat(queued.isInterestedIn(IncomingPriceUpdateEvent.class, "agent"), is(true));
+        assertThat(queued.isInterestedIn(IncomingBidUpdateEvent.class, "agent"), is(false));
+    }
+
+    @Test
+    public void testInvalidCapacity() {
+        exception.expect(IllegalArgumentException.class);
+        new QueuedAgentObserver(new CollectingObserver(), new ManualExecutor(), 0, OverflowPolicy.BLOCK, 1);
+    }
+}
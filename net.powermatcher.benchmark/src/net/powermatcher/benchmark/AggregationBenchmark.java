@@ -0,0 +1,94 @@
+package net.powermatcher.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.bidcache.BidCache;
+
+/**
+ * Benchmarks the aggregation of the bids of many agents, both from scratch with the {@link AggregatedBid.Builder} and
+ * through the {@link BidCache} when a single agent has changed its bid (which is what a matcher does on every incoming
+ * bid).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int priceSteps;
+
+    @Param({ "100", "1000", "10000" })
+    private int agentCount;
+
+    private MarketBasis marketBasis;
+    private String[] agentIds;
+    private BidUpdate[] bidUpdates;
+    private Bid[] alternativeBids;
+    private BidCache bidCache;
+
+    private int nextAgent;
+    private int nextBidNumber;
+
+    @Setup
+    public void setUp() {
+        marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 1);
+        Random random = new Random(0);
+
+        agentIds = new String[agentCount];
+        bidUpdates = new BidUpdate[agentCount];
+        alternativeBids = new Bid[agentCount];
+        bidCache = new BidCache(marketBasis);
+        for (int ix = 0; ix < agentCount; ix++) {
+            double maxDemand = random.nextDouble() * 1000;
+            double minDemand = maxDemand - random.nextDouble() * 1000;
+            double price = random.nextDouble();
+
+            agentIds[ix] = "agent" + ix;
+            bidUpdates[ix] = new BidUpdate(Bid.create(marketBasis).add(price, maxDemand).add(price, minDemand).build(),
+                                           ix);
+            alternativeBids[ix] = bidUpdates[ix].getBid().transpose(random.nextDouble());
+            bidCache.updateAgentBid(agentIds[ix], bidUpdates[ix]);
+        }
+        bidCache.aggregate();
+    }
+
+    @Benchmark
+    public AggregatedBid builder() {
+        AggregatedBid.Builder builder = new AggregatedBid.Builder(marketBasis);
+        for (int ix = 0; ix < agentCount; ix++) {
+            builder.addAgentBid(agentIds[ix], bidUpdates[ix]);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public AggregatedBid bidCacheAggregate() {
+        int agent = nextAgent;
+        nextAgent = (nextAgent + 1) % agentCount;
+
+        // Alternate between 2 bids, such that every call actually changes the cache
+        Bid bid = ++nextBidNumber % 2 == 0 ? bidUpdates[agent].getBid() : alternativeBids[agent];
+        bidCache.updateAgentBid(agentIds[agent], new BidUpdate(bid, nextBidNumber));
+        return bidCache.aggregate();
+    }
+}
@@ -0,0 +1,71 @@
+package net.powermatcher.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.PointBidBuilder;
+import net.powermatcher.api.data.Price;
+
+/**
+ * Benchmarks the operations on a single {@link Bid}: creating it with the {@link PointBidBuilder} and calculating the
+ * intersection (as done by the Auctioneer for every aggregated bid).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BidBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int priceSteps;
+
+    private MarketBasis marketBasis;
+    private Bid bid;
+    private double targetDemand;
+
+    @Setup
+    public void setUp() {
+        marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 1);
+        bid = buildBid();
+        // A demand that lies somewhere on the sloped part of the curve, so that the search has to interpolate
+        targetDemand = 123.4;
+    }
+
+    private Bid buildBid() {
+        return new PointBidBuilder(marketBasis).add(0.1, 1000)
+                                               .add(0.4, 500)
+                                               .add(0.4, 250)
+                                               .add(0.9, -300)
+                                               .build();
+    }
+
+    @Benchmark
+    public Price calculateIntersection() {
+        return bid.calculateIntersection(targetDemand);
+    }
+
+    @Benchmark
+    public Bid pointBidBuild() {
+        return buildBid();
+    }
+
+    @Benchmark
+    public Bid flatDemand() {
+        return Bid.flatDemand(marketBasis, 100);
+    }
+}
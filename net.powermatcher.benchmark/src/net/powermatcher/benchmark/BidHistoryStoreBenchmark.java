@@ -0,0 +1,63 @@
+package net.powermatcher.benchmark;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.concentrator.BidHistoryStore;
+import net.powermatcher.core.concentrator.SentBidInformation;
+
+/**
+ * Benchmarks the {@link BidHistoryStore} as used by a Concentrator: a bid is saved every time one is sent, and a price
+ * update refers to a bid that has been sent a number of bids (the lag) ago.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BidHistoryStoreBenchmark {
+
+    @Param({ "1", "100", "800" })
+    private int lag;
+
+    private AggregatedBid aggregatedBid;
+    private Bid bid;
+    private BidHistoryStore store;
+    private int nextBidNumber;
+
+    @Setup
+    public void setUp() {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 100, 0, 1);
+        bid = Bid.flatDemand(marketBasis, 100);
+        aggregatedBid = new AggregatedBid(bid, new HashMap<String, Integer>());
+
+        store = new BidHistoryStore();
+        for (nextBidNumber = 1; nextBidNumber <= lag; nextBidNumber++) {
+            store.saveBid(aggregatedBid, new BidUpdate(bid, nextBidNumber));
+        }
+    }
+
+    @Benchmark
+    public SentBidInformation saveAndRetrieve() {
+        int bidNumber = nextBidNumber++;
+        store.saveBid(aggregatedBid, new BidUpdate(bid, bidNumber));
+        return store.retrieveAggregatedBid(bidNumber - lag + 1);
+    }
+}
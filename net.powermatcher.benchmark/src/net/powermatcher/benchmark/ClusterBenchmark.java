@@ -0,0 +1,119 @@
+package net.powermatcher.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.core.concentrator.Concentrator;
+import net.powermatcher.mock.MockContext;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+
+/**
+ * Benchmarks a full round trip through a small cluster: all agents send a new bid to a {@link Concentrator}, which
+ * sends its aggregated bid to the {@link Auctioneer}, whose price is sent back down to all the agents. The scheduling
+ * is driven by hand through {@link MockContext}s, so this measures the matching code and not the runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterBenchmark {
+    private static final String AUCTIONEER_ID = "auctioneer";
+    private static final String CONCENTRATOR_ID = "concentrator";
+
+    @Param({ "10", "100", "1000" })
+    private int priceSteps;
+
+    @Param({ "10", "1000", "10000" })
+    private int agentCount;
+
+    private final MockContext auctioneerContext = new MockContext(0);
+    private final MockContext concentratorContext = new MockContext(0);
+
+    private Auctioneer auctioneer;
+    private Concentrator concentrator;
+    private SimpleSession concentratorSession;
+    private SimpleSession[] agentSessions;
+    private MockDeviceAgent[] agents;
+    private Bid[][] bids;
+
+    private int nextBidNumber;
+
+    @Setup
+    public void setUp() {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 1);
+
+        auctioneer = new Auctioneer();
+        auctioneer.activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                   .clusterId("benchmark")
+                                                   .marketBasis(marketBasis)
+                                                   .minTimeBetweenPriceUpdates(0)
+                                                   .build());
+        auctioneer.setContext(auctioneerContext);
+
+        concentrator = new Concentrator();
+        concentrator.activate(new PropertiesBuilder().agentId(CONCENTRATOR_ID)
+                                                     .desiredParentId(AUCTIONEER_ID)
+                                                     .minTimeBetweenBidUpdates(0)
+                                                     .build());
+        concentrator.setContext(concentratorContext);
+        concentratorSession = new SimpleSession(concentrator, auctioneer);
+        concentratorSession.connect();
+
+        agents = new MockDeviceAgent[agentCount];
+        agentSessions = new SimpleSession[agentCount];
+        bids = new Bid[agentCount][2];
+        for (int ix = 0; ix < agentCount; ix++) {
+            agents[ix] = new MockDeviceAgent("agent" + ix, CONCENTRATOR_ID);
+            agentSessions[ix] = new SimpleSession(agents[ix], concentrator);
+            agentSessions[ix].connect();
+
+            double price = (double) ix / agentCount;
+            bids[ix][0] = Bid.create(marketBasis).add(price, 100).add(price, -100).build();
+            bids[ix][1] = bids[ix][0].transpose(1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (SimpleSession session : agentSessions) {
+            session.disconnect();
+        }
+        concentratorSession.disconnect();
+        auctioneer.deactivate();
+    }
+
+    @Benchmark
+    public PriceUpdate roundTrip() {
+        int bidNumber = ++nextBidNumber;
+        for (int ix = 0; ix < agentCount; ix++) {
+            agents[ix].sendBid(bids[ix][bidNumber % 2], bidNumber);
+        }
+
+        // Aggregate in the concentrator, which sends its bid to the auctioneer
+        concentratorContext.doTaskOnce();
+        // Determine the price in the auctioneer, which is sent down through the concentrator
+        auctioneerContext.doTaskOnce();
+
+        return agents[agentCount - 1].getLastPriceUpdate();
+    }
+}
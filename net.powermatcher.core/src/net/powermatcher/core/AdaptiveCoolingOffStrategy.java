@@ -0,0 +1,94 @@
+package net.powermatcher.core;
+
+/**
+ * A {@link CoolingOffStrategy} that adapts the cooling-off period to the load. It starts at the minimum period. The
+ * period is doubled (up to the maximum period) when more bid updates came in during a period than the storm threshold,
+ * or when publishing took more than half of the period. It is halved again (down to the minimum period) when no more
+ * than 1 bid update came in.
+ *
+ * This way a quiet cluster reacts quickly to a single change, while a storm of bid updates or a slow parent results in
+ * fewer aggregated bids being sent upwards.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class AdaptiveCoolingOffStrategy
+    implements CoolingOffStrategy {
+
+    /**
+     * The default number of bid updates in a single period above which the period is lengthened.
+     */
+    public static final int DEFAULT_STORM_THRESHOLD = 10;
+
+    private final long minPeriod;
+    private final long maxPeriod;
+    private final int stormThreshold;
+
+    /**
+     * Creates a new {@link AdaptiveCoolingOffStrategy} with the {@link #DEFAULT_STORM_THRESHOLD}.
+     *
+     * @param minPeriod
+     *            The shortest cooling-off period in milliseconds
+     * @param maxPeriod
+     *            The longest cooling-off period in milliseconds
+     */
+    public AdaptiveCoolingOffStrategy(long minPeriod, long maxPeriod) {
+        this(minPeriod, maxPeriod, DEFAULT_STORM_THRESHOLD);
+    }
+
+    /**
+     * Creates a new {@link AdaptiveCoolingOffStrategy}.
+     *
+     * @param minPeriod
+     *            The shortest cooling-off period in milliseconds
+     * @param maxPeriod
+     *            The longest cooling-off period in milliseconds
+     * @param stormThreshold
+     *            The number of bid updates in a single period above which the period is lengthened
+     * @throws IllegalArgumentException
+     *             when the minPeriod is negative, the maxPeriod is smaller than the minPeriod or the stormThreshold is
+     *             smaller than 1
+     */
+    public AdaptiveCoolingOffStrategy(long minPeriod, long maxPeriod, int stormThreshold) {
+        if (minPeriod < 0) {
+            throw new IllegalArgumentException("The minPeriod should not be negative");
+        } else if (maxPeriod < minPeriod) {
+            throw new IllegalArgumentException("The maxPeriod should not be smaller than the minPeriod");
+        } else if (stormThreshold < 1) {
+            throw new IllegalArgumentException("The stormThreshold should be at least 1");
+        }
+        this.minPeriod = minPeriod;
+        this.maxPeriod = maxPeriod;
+        this.stormThreshold = stormThreshold;
+    }
+
+    @Override
+    public long getInitialPeriod() {
+        return minPeriod;
+    }
+
+    @Override
+    public long nextPeriod(long currentPeriod, int receivedBidUpdates, long publishDuration) {
+        long nextPeriod;
+        if (receivedBidUpdates > stormThreshold || 2 * publishDuration > currentPeriod) {
+            // A storm of bid updates or a slow parent, back off
+            nextPeriod = Math.max(2 * currentPeriod, 1);
+        } else if (receivedBidUpdates <= 1) {
+            // Quiet, react faster
+            nextPeriod = currentPeriod / 2;
+        } else {
+            nextPeriod = currentPeriod;
+        }
+        return Math.min(maxPeriod, Math.max(minPeriod, nextPeriod));
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveCoolingOffStrategy [minPeriod=" + minPeriod
+               + ", maxPeriod="
+               + maxPeriod
+               + ", stormThreshold="
+               + stormThreshold
+               + "]";
+    }
+}
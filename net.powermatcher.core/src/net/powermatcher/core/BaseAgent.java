@@ -7,6 +7,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 
 import net.powermatcher.api.Agent;
 import net.powermatcher.api.monitoring.AgentObserver;
+import net.powermatcher.api.monitoring.FilteredAgentObserver;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.api.monitoring.events.AgentEvent;
 
@@ -71,7 +72,29 @@ public abstract class BaseAgent
     }
 
     /**
-     * Publish an {@link AgentEvent} to the attached {@link Observer} services.
+     * Checks whether any of the attached {@link Observer} services is interested in events of the given type. This
+     * should be used to avoid creating events that no one will receive.
+     *
+     * @param eventType
+     *            The type of the event that would be published.
+     * @return <code>true</code> when at least one observer wants to receive events of this type from this agent.
+     */
+    protected final boolean isObserved(Class<? extends AgentEvent> eventType) {
+        for (AgentObserver observer : observers) {
+            if (isInterested(observer, eventType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isInterested(AgentObserver observer, Class<? extends AgentEvent> eventType) {
+        return !(observer instanceof FilteredAgentObserver)
+               || ((FilteredAgentObserver) observer).isInterestedIn(eventType, getAgentId());
+    }
+
+    /**
+     * Publish an {@link AgentEvent} to the attached {@link Observer} services that are interested in it.
      *
      * @param event
      *            The event to publish.
@@ -79,7 +102,9 @@ public abstract class BaseAgent
     protected final void publishEvent(AgentEvent event) {
         for (AgentObserver observer : observers) {
             try {
-                observer.handleAgentEvent(event);
+                if (isInterested(observer, event.getClass())) {
+                    observer.handleAgentEvent(event);
+                }
             } catch (RuntimeException ex) {
                 LOGGER.warn("Could not publish an event to observer [{}]: {}", observer, ex.getMessage());
             }
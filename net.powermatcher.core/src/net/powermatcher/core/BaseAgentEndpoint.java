@@ -1,7 +1,11 @@
 package net.powermatcher.core;
 
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
 import net.powermatcher.api.Agent;
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.Session;
@@ -94,12 +98,37 @@ public abstract class BaseAgentEndpoint
 
     private volatile BidUpdate lastBidUpdate;
 
+    /**
+     * The time in milliseconds at which the lastBidUpdate has been sent
+     */
+    private volatile long lastBidUpdateTime;
+
+    private volatile BidChangeFilter bidChangeFilter;
+
+    /**
+     * Guards the sending and holding back of bids, which can happen both in {@link #publishBid(Bid)} and in the
+     * staleness flush
+     */
+    private final Object bidLock = new Object();
+
+    /**
+     * The last bid that the {@link BidChangeFilter} has held back, or <code>null</code> when the matcher knows the
+     * current bid. Guarded by the bidLock.
+     */
+    private Bid heldBackBid;
+
+    /**
+     * The task that sends the heldBackBid when it gets stale, or <code>null</code>. Guarded by the bidLock.
+     */
+    private Future<?> stalenessFlush;
+
     private String agentId, desiredParentId;
 
     public BaseAgentEndpoint() {
         bidNumberGenerator = new AtomicInteger();
         status = NOT_CONNECTED;
         lastBidUpdate = null;
+        bidChangeFilter = BidChangeFilter.EXACT;
         agentId = null;
         desiredParentId = null;
     }
@@ -153,7 +182,10 @@ public abstract class BaseAgentEndpoint
         }
 
         bidNumberGenerator.set(0);
-        lastBidUpdate = null;
+        synchronized (bidLock) {
+            lastBidUpdate = null;
+            clearHeldBackBid();
+        }
         status = new Connected(session);
     }
 
@@ -163,6 +195,9 @@ public abstract class BaseAgentEndpoint
     @Override
     public void matcherEndpointDisconnected(Session session) {
         status = NOT_CONNECTED;
+        synchronized (bidLock) {
+            clearHeldBackBid();
+        }
     }
 
     public void deactivate() {
@@ -172,6 +207,27 @@ public abstract class BaseAgentEndpoint
         }
     }
 
+    /**
+     * Sets the filter that decides whether a new bid is different enough from the last bid to be sent by
+     * {@link #publishBid(Bid)}. By default, every bid that is not equal to the last bid is sent.
+     *
+     * @param bidChangeFilter
+     *            The new {@link BidChangeFilter}
+     */
+    public void setBidChangeFilter(BidChangeFilter bidChangeFilter) {
+        if (bidChangeFilter == null) {
+            throw new NullPointerException("bidChangeFilter");
+        }
+        this.bidChangeFilter = bidChangeFilter;
+    }
+
+    /**
+     * @return the {@link BidChangeFilter} that is used by {@link #publishBid(Bid)}
+     */
+    public BidChangeFilter getBidChangeFilter() {
+        return bidChangeFilter;
+    }
+
     /**
      * @return the current value of lastBid.
      */
@@ -181,7 +237,10 @@ public abstract class BaseAgentEndpoint
 
     /**
      * Publishes a new bid to its matcher by creating a new {@link BidUpdate} using a generated bidnumber. The call will
-     * be ignored if the Agent is not connected.
+     * be ignored if the Agent is not connected. When the {@link BidChangeFilter} decides that the new bid does not
+     * differ enough from the last bid, the new bid is not sent and the last {@link BidUpdate} is returned. A bid that is
+     * held back is sent anyway when the filter has a maximum staleness and no other bid has been sent within that time,
+     * so the matcher also learns about small changes of an agent that stays quiet afterwards.
      *
      * @param newBid
      *            The new bid that is to be sent to the connected matcher
@@ -190,22 +249,101 @@ public abstract class BaseAgentEndpoint
     protected final BidUpdate publishBid(Bid newBid) {
         AgentEndpoint.Status currentStatus = getStatus();
         if (currentStatus.isConnected()) {
-            if (lastBidUpdate != null && newBid.equals(lastBidUpdate.getBid())) {
-                // This bid is equal to the previous bid, we should not send an update
-                return lastBidUpdate;
+            synchronized (bidLock) {
+                BidUpdate lastUpdate = lastBidUpdate;
+                long currentTime = context == null ? 0 : context.currentTimeMillis();
+                if (lastUpdate != null
+                    && !bidChangeFilter.shouldSend(lastUpdate.getBid(), lastBidUpdateTime, newBid, currentTime)) {
+                    // This bid is (almost) equal to the previous bid, we should not send an update
+                    holdBack(lastUpdate.getBid(), newBid, currentTime);
+                    return lastUpdate;
+                }
+                return sendBid(newBid, currentTime);
             }
-            BidUpdate update = new BidUpdate(newBid, bidNumberGenerator.incrementAndGet());
-            lastBidUpdate = update;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a bid to the matcher. The caller should hold the bidLock and should have checked that this agent is
+     * connected.
+     */
+    private BidUpdate sendBid(Bid newBid, long currentTime) {
+        clearHeldBackBid();
+        BidUpdate update = new BidUpdate(newBid, bidNumberGenerator.incrementAndGet());
+        lastBidUpdate = update;
+        lastBidUpdateTime = currentTime;
+        if (isObserved(OutgoingBidUpdateEvent.class)) {
             publishEvent(new OutgoingBidUpdateEvent(status.getClusterId(),
                                                     getAgentId(),
                                                     status.getSession().getSessionId(),
                                                     now(),
                                                     update));
-            LOGGER.debug("Sending bid [{}] to {}", update, status.getSession().getMatcherId());
-            status.getSession().updateBid(update);
-            return update;
-        } else {
-            return null;
+        }
+        LOGGER.debug("Sending bid [{}] to {}", update, status.getSession().getMatcherId());
+        status.getSession().updateBid(update);
+        return update;
+    }
+
+    /**
+     * Remembers a bid that has not been sent and schedules the flush that sends it when the last bid that has been sent
+     * gets stale. The caller should hold the bidLock.
+     */
+    private void holdBack(Bid lastBid, Bid newBid, long currentTime) {
+        if (newBid.equals(lastBid)) {
+            // The matcher already knows this bid
+            clearHeldBackBid();
+            return;
+        }
+        heldBackBid = newBid;
+        long maxStaleness = bidChangeFilter.getMaxStaleness();
+        if (maxStaleness > 0 && stalenessFlush == null && context != null) {
+            long delay = Math.max(0, lastBidUpdateTime + maxStaleness - currentTime);
+            stalenessFlush = context.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushHeldBackBid();
+                }
+            }, Measure.valueOf(delay, SI.MILLI(SI.SECOND)));
+        }
+    }
+
+    private void flushHeldBackBid() {
+        Bid bid;
+        synchronized (bidLock) {
+            stalenessFlush = null;
+            bid = heldBackBid;
+        }
+        // The hook is called without the bidLock, since a subclass may have to take its own locks before publishing
+        if (bid != null && getStatus().isConnected()) {
+            LOGGER.debug("Sending the held back bid of agent {} because the last bid is stale", getAgentId());
+            flushStaleBid(bid);
+        }
+    }
+
+    /**
+     * Called when a bid has been held back by the {@link BidChangeFilter} and the last bid that has been sent is now
+     * older than its maximum staleness. This base implementation publishes the held back bid again with
+     * {@link #publishBid(Bid)}, which sends it now that the last bid is stale. A subclass that has to do more when it
+     * sends a bid (e.g. remember which aggregated bid it belongs to) should override this method and send its current
+     * bid through that path instead.
+     *
+     * @param bid
+     *            The bid that has been held back
+     */
+    protected void flushStaleBid(Bid bid) {
+        publishBid(bid);
+    }
+
+    /**
+     * Forgets the held back bid and cancels its flush. The caller should hold the bidLock.
+     */
+    private void clearHeldBackBid() {
+        heldBackBid = null;
+        if (stalenessFlush != null) {
+            stalenessFlush.cancel(false);
+            stalenessFlush = null;
         }
     }
 
@@ -227,11 +365,13 @@ public abstract class BaseAgentEndpoint
         AgentEndpoint.Status currentStatus = getStatus();
         if (currentStatus.isConnected()) {
             LOGGER.debug("Received price update [{}]", priceUpdate);
-            publishEvent(new IncomingPriceUpdateEvent(status.getClusterId(),
-                                                      getAgentId(),
-                                                      status.getSession().getSessionId(),
-                                                      context.currentTime(),
-                                                      priceUpdate));
+            if (isObserved(IncomingPriceUpdateEvent.class)) {
+                publishEvent(new IncomingPriceUpdateEvent(status.getClusterId(),
+                                                          getAgentId(),
+                                                          status.getSession().getSessionId(),
+                                                          context.currentTime(),
+                                                          priceUpdate));
+            }
         }
     }
 }
@@ -1,14 +1,24 @@
 package net.powermatcher.core;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 import javax.measure.Measure;
 import javax.measure.unit.SI;
 
+import org.flexiblepower.context.FlexiblePowerContext;
+
 import net.powermatcher.api.Agent;
 import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.Session;
@@ -23,6 +33,7 @@ import net.powermatcher.core.auctioneer.Auctioneer;
 import net.powermatcher.core.bidcache.AggregatedBid;
 import net.powermatcher.core.bidcache.BidCache;
 import net.powermatcher.core.concentrator.Concentrator;
+import net.powermatcher.core.journal.MarketJournal;
 
 /**
  * This is an abstract class providing base functionality for a {@link MatcherEndpoint}. This class can be extended to
@@ -100,10 +111,16 @@ public abstract class BaseMatcherEndpoint
      * {@link AggregatedBid} will not be generated until the cooling-off period is finished. If multiple
      * {@link BidUpdate}s have been send in the cooling-off period, only one {@link AggregatedBid} will be generated
      * after the period.
+     *
+     * The length of the cooling-off period is determined by a {@link CoolingOffStrategy} after every publication, based
+     * on the number of {@link BidUpdate}s that came in and the time it took to publish the {@link AggregatedBid}.
      */
     public class RateLimitedBidPublisher
         implements Runnable {
-        private final long minTimeBetweenUpdates;
+        private final CoolingOffStrategy coolingOffStrategy;
+
+        // The current length of the cooling-off period in milliseconds
+        private volatile long coolingOffPeriod;
 
         // Timestamp at which the cool down period ends (and the Concentrator is allow to send a new BidUpdate again)
         private volatile long coolingOffEnds = 0;
@@ -111,39 +128,90 @@ public abstract class BaseMatcherEndpoint
         // Indicates if there is already a BidUpdate scheduled at the end of the cooldown period
         private volatile Future<?> bidUpdateSchedule = null;
 
+        // The number of times schedule() has been called since the last publication
+        private int receivedBidUpdates = 0;
+
         /**
-         * Create a new RateLimitedBidPublisher instance
+         * Create a new RateLimitedBidPublisher instance with a fixed cooling-off period
          *
          * @param minTimeBetweenUpdates
          *            The minimum time (expressed in milliseconds) between two {@link BidUpdate}s (typically 1000ms).
          */
         public RateLimitedBidPublisher(long minTimeBetweenUpdates) {
-            this.minTimeBetweenUpdates = minTimeBetweenUpdates;
+            this(new FixedCoolingOffStrategy(minTimeBetweenUpdates));
+        }
+
+        /**
+         * Create a new RateLimitedBidPublisher instance
+         *
+         * @param coolingOffStrategy
+         *            The {@link CoolingOffStrategy} that determines the time between two {@link BidUpdate}s
+         */
+        public RateLimitedBidPublisher(CoolingOffStrategy coolingOffStrategy) {
+            if (coolingOffStrategy == null) {
+                throw new NullPointerException("coolingOffStrategy");
+            }
+            this.coolingOffStrategy = coolingOffStrategy;
+            coolingOffPeriod = coolingOffStrategy.getInitialPeriod();
+        }
+
+        /**
+         * @return The {@link CoolingOffStrategy} that determines the time between two {@link BidUpdate}s
+         */
+        public CoolingOffStrategy getCoolingOffStrategy() {
+            return coolingOffStrategy;
+        }
+
+        /**
+         * @return The current length of the cooling-off period in milliseconds
+         */
+        public long getCoolingOffPeriod() {
+            return coolingOffPeriod;
         }
 
         @Override
         public void run() {
             final Agent.Status currentStatus = getStatus();
+            int bidUpdates;
+            synchronized (this) {
+                bidUpdates = receivedBidUpdates;
+                receivedBidUpdates = 0;
+            }
+            long publishStart = context.currentTimeMillis();
             try {
                 if (currentStatus.isConnected()) {
                     AggregatedBid aggregatedBid = bidCache.aggregate();
-                    publishEvent(new AggregatedBidEvent(currentStatus.getClusterId(),
-                                                        getAgentId(),
-                                                        now(),
-                                                        aggregatedBid));
+                    if (isObserved(AggregatedBidEvent.class)) {
+                        publishEvent(new AggregatedBidEvent(currentStatus.getClusterId(),
+                                                            getAgentId(),
+                                                            now(),
+                                                            aggregatedBid));
+                    }
                     performUpdate(aggregatedBid);
                 }
             } catch (RuntimeException e) {
                 LOGGER.error("doBidUpate failed for matcher " + getAgentId(), e);
             } finally {
                 synchronized (this) {
+                    long publishEnd = context.currentTimeMillis();
+                    long nextPeriod = coolingOffStrategy.nextPeriod(coolingOffPeriod,
+                                                                    bidUpdates,
+                                                                    publishEnd - publishStart);
+                    if (nextPeriod != coolingOffPeriod) {
+                        LOGGER.debug("Cooling-off period of matcher {} changed from {} ms to {} ms",
+                                     getAgentId(),
+                                     coolingOffPeriod,
+                                     nextPeriod);
+                        coolingOffPeriod = nextPeriod;
+                    }
                     bidUpdateSchedule = null;
-                    coolingOffEnds = context.currentTimeMillis() + minTimeBetweenUpdates;
+                    coolingOffEnds = publishEnd + nextPeriod;
                 }
             }
         }
 
         synchronized void schedule() {
+            receivedBidUpdates++;
             if (bidUpdateSchedule == null) {
                 // There is no aggregation scheduled yet
                 long waitTime = coolingOffEnds - context.currentTimeMillis();
@@ -166,11 +234,99 @@ public abstract class BaseMatcherEndpoint
         }
     }
 
+    /**
+     * A {@link RecursiveAction} that sends a price to a range of handles. It splits itself until the range contains at
+     * most {@link BaseMatcherEndpoint#parallelFanOutBatchSize} handles.
+     */
+    private class PriceFanOut
+        extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Session[] targets;
+        private final int from, to;
+        private final Price price;
+        private final AggregatedBid aggregatedBid;
+        private final String clusterId;
+        private final Date timestamp;
+        private final int batchSize;
+
+        PriceFanOut(Session[] targets,
+                    int from,
+                    int to,
+                    Price price,
+                    AggregatedBid aggregatedBid,
+                    String clusterId,
+                    Date timestamp,
+                    int batchSize) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.price = price;
+            this.aggregatedBid = aggregatedBid;
+            this.clusterId = clusterId;
+            this.timestamp = timestamp;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchSize) {
+                for (int handle = from; handle < to; handle++) {
+                    Session session = targets[handle];
+                    if (session != null) {
+                        publishPrice(session, handle, price, aggregatedBid, clusterId, timestamp);
+                    }
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PriceFanOut(targets, from, middle, price, aggregatedBid, clusterId, timestamp, batchSize),
+                          new PriceFanOut(targets, middle, to, price, aggregatedBid, clusterId, timestamp, batchSize));
+            }
+        }
+    }
+
     private volatile String agentId;
     private volatile Agent.Status status;
     private volatile BidCache bidCache;
     private volatile RateLimitedBidPublisher bidUpdater;
 
+    /**
+     * The maximum number of sessions to which a single task sends a price, or 0 when prices are sent on the calling
+     * thread.
+     */
+    private volatile int parallelFanOutBatchSize;
+
+    /**
+     * The number of incremental changes after which the {@link BidCache} recalculates the aggregated bid from scratch.
+     */
+    private volatile int fullAggregationInterval = BidCache.DEFAULT_FULL_AGGREGATION_INTERVAL;
+
+    /**
+     * The default time in milliseconds during which the bids that have been restored from the journal are kept for
+     * the agents that have not connected again.
+     */
+    public static final long DEFAULT_RESTORE_GRACE_PERIOD = 60000;
+
+    /**
+     * The default maximum age in milliseconds of a bid in the journal that is restored.
+     */
+    public static final long DEFAULT_MAX_RESTORE_AGE = 3600000;
+
+    /**
+     * The directory of the {@link MarketJournal}, or <code>null</code> when there is no journal
+     */
+    private volatile File journalDirectory;
+    private volatile long restoreGracePeriod = DEFAULT_RESTORE_GRACE_PERIOD;
+    private volatile long maxRestoreAge = DEFAULT_MAX_RESTORE_AGE;
+    private volatile MarketJournal journal;
+
+    /**
+     * The agents of which the bid has been restored from the journal and that have not connected yet. This set, and
+     * the restoreEviction, are only used while holding the lock on sessions.
+     */
+    private final Set<String> restoredAgents = new HashSet<String>();
+    private Future<?> restoreEviction;
+
     public BaseMatcherEndpoint() {
         status = NOT_CONNECTED;
         agentId = null;
@@ -206,18 +362,318 @@ public abstract class BaseMatcherEndpoint
         this.agentId = agentId;
     }
 
+    /**
+     * Enables or disables the parallel fan-out of prices. When enabled and there are more sessions than the batchSize,
+     * {@link #publishPrice(Price, AggregatedBid)} divides the sessions over tasks of at most batchSize sessions that
+     * run on the common {@link ForkJoinPool}. It still returns only when all the sessions have been sent the price, so a
+     * next price can never overtake it.
+     *
+     * @param batchSize
+     *            The maximum number of sessions that is handled by a single task, or 0 to disable the parallel fan-out
+     * @throws IllegalArgumentException
+     *             When the batchSize is negative
+     */
+    public void setParallelFanOutBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("The batchSize should not be negative");
+        }
+        parallelFanOutBatchSize = batchSize;
+    }
+
+    /**
+     * Sets the number of incremental changes after which the aggregated bid is recalculated from all the bids, which
+     * keeps the rounding errors of the incremental updates small. The {@link BidCache} is created when this matcher is
+     * configured, so this method should be called before {@link #configure(MarketBasis, String, CoolingOffStrategy)}.
+     *
+     * @param interval
+     *            The number of incremental changes, or 1 to sum up all the bids at every aggregation
+     * @throws IllegalArgumentException
+     *             When the interval is smaller than 1
+     */
+    public void setFullAggregationInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The fullAggregationInterval should be at least 1");
+        }
+        fullAggregationInterval = interval;
+    }
+
+    /**
+     * Enables or disables the {@link MarketJournal} of this matcher. The journal is opened when this matcher is
+     * configured, so this method should be called before {@link #configure(MarketBasis, String, CoolingOffStrategy)}.
+     *
+     * When the journal contains bids of an earlier run, they are put in the {@link BidCache} right away, so this
+     * matcher can send an aggregated bid (or determine a price) without waiting for all its agents to bid again. The
+     * restored bid of an agent that has not connected within the restore grace period is removed, and so are the bids
+     * that are older than the maximum restore age. The bid of an agent that disconnects is removed from the journal.
+     *
+     * @param directory
+     *            The directory of the journal, or <code>null</code> to disable the journal
+     */
+    public void setJournalDirectory(File directory) {
+        journalDirectory = directory;
+    }
+
+    /**
+     * @param restoreGracePeriod
+     *            The time in milliseconds during which the bids that have been restored from the journal are kept for
+     *            the agents that have not connected again
+     * @throws IllegalArgumentException
+     *             When the restoreGracePeriod is negative
+     */
+    public void setRestoreGracePeriod(long restoreGracePeriod) {
+        if (restoreGracePeriod < 0) {
+            throw new IllegalArgumentException("The restoreGracePeriod should not be negative");
+        }
+        this.restoreGracePeriod = restoreGracePeriod;
+    }
+
+    /**
+     * @param maxRestoreAge
+     *            The maximum age in milliseconds of a bid in the journal that is restored, or 0 to restore all the
+     *            bids. An older bid is removed when the context is known, so a journal of a matcher that has been down
+     *            for a long time does not determine the market with bids that are out of date.
+     * @throws IllegalArgumentException
+     *             When the maxRestoreAge is negative
+     */
+    public void setMaxRestoreAge(long maxRestoreAge) {
+        if (maxRestoreAge < 0) {
+            throw new IllegalArgumentException("The maxRestoreAge should not be negative");
+        }
+        this.maxRestoreAge = maxRestoreAge;
+    }
+
+    /**
+     * @return The open {@link MarketJournal} of this matcher, or <code>null</code> when this matcher has no journal or
+     *         is not configured
+     */
+    public MarketJournal getJournal() {
+        return journal;
+    }
+
     public void configure(MarketBasis marketBasis, String clusterId, long minTimeBetweenUpdates) {
-        bidCache = new BidCache(marketBasis);
+        configure(marketBasis, clusterId, new FixedCoolingOffStrategy(minTimeBetweenUpdates));
+    }
+
+    /**
+     * Configures this matcher for a cluster. When the maxTimeBetweenUpdates is larger than the minTimeBetweenUpdates,
+     * an {@link AdaptiveCoolingOffStrategy} is used between the 2, otherwise a {@link FixedCoolingOffStrategy} of the
+     * minTimeBetweenUpdates.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} of the cluster
+     * @param clusterId
+     *            The identifier of the cluster
+     * @param minTimeBetweenUpdates
+     *            The minimum time in milliseconds between two aggregated bids
+     * @param maxTimeBetweenUpdates
+     *            The maximum time in milliseconds between two aggregated bids when the cooling-off period adapts to
+     *            the load
+     */
+    public void configure(MarketBasis marketBasis,
+                          String clusterId,
+                          long minTimeBetweenUpdates,
+                          long maxTimeBetweenUpdates) {
+        if (maxTimeBetweenUpdates > minTimeBetweenUpdates) {
+            configure(marketBasis,
+                      clusterId,
+                      new AdaptiveCoolingOffStrategy(minTimeBetweenUpdates, maxTimeBetweenUpdates));
+        } else {
+            configure(marketBasis, clusterId, minTimeBetweenUpdates);
+        }
+    }
+
+    /**
+     * Configures this matcher for a cluster, with a {@link CoolingOffStrategy} that determines the time between two
+     * aggregated bids.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} of the cluster
+     * @param clusterId
+     *            The identifier of the cluster
+     * @param coolingOffStrategy
+     *            The {@link CoolingOffStrategy} of the {@link RateLimitedBidPublisher}
+     */
+    public void configure(MarketBasis marketBasis, String clusterId, CoolingOffStrategy coolingOffStrategy) {
+        bidCache = new BidCache(marketBasis, fullAggregationInterval);
         status = new Connected(clusterId, marketBasis);
-        bidUpdater = new RateLimitedBidPublisher(minTimeBetweenUpdates);
+        bidUpdater = new RateLimitedBidPublisher(coolingOffStrategy);
+        openJournal(marketBasis);
+    }
+
+    @Override
+    public void setContext(FlexiblePowerContext context) {
+        super.setContext(context);
+        if (context != null) {
+            startRestore();
+        }
+    }
+
+    /**
+     * Opens the journal, when there is a journal directory, and restores the latest bids from it.
+     */
+    private void openJournal(MarketBasis marketBasis) {
+        File directory = journalDirectory;
+        if (directory == null) {
+            return;
+        }
+        synchronized (sessions) {
+            try {
+                MarketJournal newJournal = new MarketJournal(directory, getAgentId(), marketBasis);
+                for (Map.Entry<String, BidUpdate> entry : newJournal.getLatestBids().entrySet()) {
+                    bidCache.updateAgentBid(entry.getKey(), entry.getValue());
+                    restoredAgents.add(entry.getKey());
+                }
+                addObserver(newJournal);
+                journal = newJournal;
+            } catch (IOException e) {
+                LOGGER.error("Could not open the journal of matcher " + getAgentId() + " in " + directory, e);
+                return;
+            }
+            if (!restoredAgents.isEmpty()) {
+                LOGGER.info("Restored the bids of {} agents from the journal of matcher {}",
+                            restoredAgents.size(),
+                            getAgentId());
+            }
+        }
+        if (context != null) {
+            startRestore();
+        }
+    }
+
+    /**
+     * Sends the restored bids on and schedules the removal of the restored bids of the agents that do not connect
+     * again. This needs the context, which may be set before or after this matcher is configured.
+     */
+    private void startRestore() {
+        synchronized (sessions) {
+            RateLimitedBidPublisher publisher = bidUpdater;
+            if (publisher != null && restoreEviction == null && !restoredAgents.isEmpty()) {
+                removeOutdatedRestoredBids();
+                publisher.schedule();
+                restoreEviction = context.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        evictRestoredAgents();
+                    }
+                }, Measure.valueOf(restoreGracePeriod, SI.MILLI(SI.SECOND)));
+            }
+        }
+    }
+
+    private void evictRestoredAgents() {
+        synchronized (sessions) {
+            restoreEviction = null;
+            BidCache cache = bidCache;
+            if (cache == null) {
+                return;
+            }
+            int evicted = 0;
+            for (String restoredAgentId : restoredAgents) {
+                if (removeRestoredBid(cache, restoredAgentId)) {
+                    evicted++;
+                }
+            }
+            restoredAgents.clear();
+            if (evicted > 0) {
+                LOGGER.info("Removed the restored bids of {} agents that did not connect to matcher {}",
+                            evicted,
+                            getAgentId());
+                bidUpdater.schedule();
+            }
+        }
+    }
+
+    /**
+     * Removes the restored bids that are older than the maxRestoreAge. The caller should hold the lock on sessions.
+     */
+    private void removeOutdatedRestoredBids() {
+        long age = maxRestoreAge;
+        MarketJournal currentJournal = journal;
+        if (age == 0 || currentJournal == null) {
+            return;
+        }
+        long oldest = context.currentTimeMillis() - age;
+        int removed = 0;
+        for (Iterator<String> it = restoredAgents.iterator(); it.hasNext();) {
+            String restoredAgentId = it.next();
+            if (currentJournal.getLatestBidTime(restoredAgentId) < oldest) {
+                removeRestoredBid(bidCache, restoredAgentId);
+                it.remove();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            LOGGER.info("Did not restore {} bids that are older than {} ms in the journal of matcher {}",
+                        removed,
+                        age,
+                        getAgentId());
+        }
+    }
+
+    /**
+     * Removes a restored bid from the {@link BidCache} and the journal. The caller should hold the lock on sessions.
+     *
+     * @return <code>true</code> when the bid was still in the cache
+     */
+    private boolean removeRestoredBid(BidCache cache, String restoredAgentId) {
+        boolean removed = false;
+        int handle = cache.getHandle(restoredAgentId);
+        if (handle != BidCache.NO_HANDLE) {
+            cache.removeAgent(handle);
+            removed = true;
+        }
+        removeFromJournal(restoredAgentId);
+        return removed;
+    }
+
+    private void removeFromJournal(String agentId) {
+        MarketJournal currentJournal = journal;
+        if (currentJournal != null) {
+            try {
+                currentJournal.removeBid(context.currentTimeMillis(), agentId);
+            } catch (IOException e) {
+                LOGGER.warn("Could not remove the bid of " + agentId + " from the journal", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the journal, if it is open. This happens before the sessions are disconnected, so the journal keeps the
+     * bids of the connected agents for the next run.
+     */
+    private void closeJournal() {
+        synchronized (sessions) {
+            if (restoreEviction != null) {
+                restoreEviction.cancel(false);
+                restoreEviction = null;
+            }
+            restoredAgents.clear();
+            MarketJournal currentJournal = journal;
+            if (currentJournal != null) {
+                removeObserver(currentJournal);
+                currentJournal.close();
+                journal = null;
+            }
+        }
+    }
+
+    /**
+     * @return The current cooling-off period of the {@link RateLimitedBidPublisher} in milliseconds, or -1 when this
+     *         matcher is not configured
+     */
+    public long getCoolingOffPeriod() {
+        RateLimitedBidPublisher publisher = bidUpdater;
+        return publisher == null ? -1 : publisher.getCoolingOffPeriod();
     }
 
     public void unconfigure() {
+        closeJournal();
         for (Iterator<Session> it = sessions.values().iterator(); it.hasNext();) {
             Session session = it.next();
             session.disconnect();
             it.remove();
         }
+        sessionsByHandle = new Session[0];
 
         bidUpdater.cancel();
         bidUpdater = null;
@@ -227,6 +683,12 @@ public abstract class BaseMatcherEndpoint
 
     private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
 
+    /**
+     * The connected sessions by the handle that the {@link BidCache} has given to their agent. This array is only
+     * changed while holding the lock on sessions; it is replaced when it has to grow.
+     */
+    private volatile Session[] sessionsByHandle = new Session[0];
+
     @Override
     public void connectToAgent(Session session) {
         synchronized (sessions) {
@@ -235,7 +697,16 @@ public abstract class BaseMatcherEndpoint
                 throw new IllegalStateException("This matcher is not yet connected to the cluster");
             } else if (!sessions.containsKey(session.getAgentId())) {
                 session.setMarketBasis(currentStatus.getMarketBasis());
+                int handle = bidCache.addAgent(session.getAgentId());
+                session.setAgentHandle(handle);
+                Session[] targets = sessionsByHandle;
+                if (handle >= targets.length) {
+                    targets = Arrays.copyOf(targets, Math.max(handle + 1, targets.length * 2));
+                }
+                targets[handle] = session;
+                sessionsByHandle = targets;
                 sessions.put(session.getAgentId(), session);
+                restoredAgents.remove(session.getAgentId());
                 LOGGER.info("Agent connected with session [{}]", session.getSessionId());
             } else {
                 throw new IllegalStateException("An agent with id [" + session.getAgentId()
@@ -250,7 +721,13 @@ public abstract class BaseMatcherEndpoint
             Session foundSession = sessions.get(session.getAgentId());
             if (session.equals(foundSession)) {
                 sessions.remove(session.getAgentId());
-                bidCache.removeBidOfAgent(session.getAgentId());
+                int handle = bidCache.getHandle(session.getAgentId());
+                if (handle != BidCache.NO_HANDLE) {
+                    sessionsByHandle[handle] = null;
+                    bidCache.removeAgent(handle);
+                }
+                // The journal is closed when the matcher is unconfigured, so it keeps the bids of those sessions
+                removeFromJournal(session.getAgentId());
                 bidUpdater.schedule();
                 LOGGER.info("Agent disconnected with session [{}]", session.getSessionId());
             }
@@ -258,24 +735,59 @@ public abstract class BaseMatcherEndpoint
     }
 
     public void publishPrice(Price price, AggregatedBid aggregatedBid) {
-        Map<String, Integer> references = aggregatedBid.getAgentBidReferences();
+        Agent.Status currentStatus = getStatus();
+        if (!currentStatus.isConnected()) {
+            LOGGER.debug("Not publishing price {}, the matcher is not connected to a cluster", price);
+            return;
+        }
 
-        for (Session session : sessions.values()) {
-            Integer bidNumber = references.get(session.getAgentId());
-            if (bidNumber != null) {
-                PriceUpdate priceUpdate = new PriceUpdate(price, bidNumber);
-                publishEvent(new OutgoingPriceUpdateEvent(status.getClusterId(),
+        // These are the same for all the sessions
+        String clusterId = currentStatus.getClusterId();
+        Date timestamp = context.currentTime();
+
+        Session[] targets = sessionsByHandle;
+        int batchSize = parallelFanOutBatchSize;
+        if (batchSize > 0 && targets.length > batchSize) {
+            ForkJoinPool.commonPool().invoke(new PriceFanOut(targets,
+                                                             0,
+                                                             targets.length,
+                                                             price,
+                                                             aggregatedBid,
+                                                             clusterId,
+                                                             timestamp,
+                                                             batchSize));
+        } else {
+            for (int handle = 0; handle < targets.length; handle++) {
+                Session session = targets[handle];
+                if (session != null) {
+                    publishPrice(session, handle, price, aggregatedBid, clusterId, timestamp);
+                }
+            }
+        }
+    }
+
+    private void publishPrice(Session session,
+                              int handle,
+                              Price price,
+                              AggregatedBid aggregatedBid,
+                              String clusterId,
+                              Date timestamp) {
+        int bidNumber = aggregatedBid.getAgentBidReference(handle, session.getAgentId());
+        if (bidNumber != AggregatedBid.NO_REFERENCE) {
+            PriceUpdate priceUpdate = new PriceUpdate(price, bidNumber);
+            if (isObserved(OutgoingPriceUpdateEvent.class)) {
+                publishEvent(new OutgoingPriceUpdateEvent(clusterId,
                                                           getAgentId(),
                                                           session.getSessionId(),
-                                                          context.currentTime(),
+                                                          timestamp,
                                                           priceUpdate));
-                LOGGER.debug("New price: {}, session {}", priceUpdate, session.getSessionId());
+            }
+            LOGGER.debug("New price: {}, session {}", priceUpdate, session.getSessionId());
 
-                try {
-                    session.updatePrice(priceUpdate);
-                } catch (RuntimeException ex) {
-                    LOGGER.warn("Unexpected exception while send priceupdate to " + session.getAgentId(), ex);
-                }
+            try {
+                session.updatePrice(priceUpdate);
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Unexpected exception while send priceupdate to " + session.getAgentId(), ex);
             }
         }
     }
@@ -294,7 +806,8 @@ public abstract class BaseMatcherEndpoint
             throw new IllegalStateException("Not connected to the cluster");
         }
 
-        if (session == null || !sessions.containsKey(session.getAgentId())) {
+        int handle = handleOf(session);
+        if (handle == BidCache.NO_HANDLE) {
             throw new IllegalStateException("No session found");
         }
 
@@ -302,18 +815,44 @@ public abstract class BaseMatcherEndpoint
             throw new InvalidParameterException("Marketbasis new bid differs from marketbasis auctioneer");
         }
 
-        // Update agent in aggregatedBids
-        bidCache.updateAgentBid(session.getAgentId(), bidUpdate);
+        // Update agent in aggregatedBids, unless the session has been disconnected and its handle reused meanwhile
+        if (!bidCache.updateAgentBid(handle, session.getAgentId(), bidUpdate)) {
+            LOGGER.debug("Ignored bid update [{}] from disconnected session [{}]", bidUpdate, session.getSessionId());
+            return;
+        }
 
         LOGGER.debug("Received from session [{}] bid update [{}] ", session.getSessionId(), bidUpdate);
 
-        publishEvent(new IncomingBidUpdateEvent(currentStatus.getClusterId(),
-                                                getAgentId(),
-                                                session.getSessionId(),
-                                                context.currentTime(),
-                                                session.getAgentId(),
-                                                bidUpdate));
+        if (isObserved(IncomingBidUpdateEvent.class)) {
+            publishEvent(new IncomingBidUpdateEvent(currentStatus.getClusterId(),
+                                                    getAgentId(),
+                                                    session.getSessionId(),
+                                                    context.currentTime(),
+                                                    session.getAgentId(),
+                                                    bidUpdate));
+        }
 
         bidUpdater.schedule();
     }
+
+    /**
+     * Finds the handle of the agent of a connected session. Normally the session knows its handle, otherwise it is
+     * looked up by the agentId.
+     *
+     * @return The handle of the agent, or {@link BidCache#NO_HANDLE} when the session is not connected to this matcher.
+     */
+    private int handleOf(Session session) {
+        if (session == null) {
+            return BidCache.NO_HANDLE;
+        }
+        int handle = session.getAgentHandle();
+        Session[] targets = sessionsByHandle;
+        if (handle >= 0 && handle < targets.length && targets[handle] == session) {
+            return handle;
+        } else if (sessions.containsKey(session.getAgentId())) {
+            return bidCache.getHandle(session.getAgentId());
+        } else {
+            return BidCache.NO_HANDLE;
+        }
+    }
 }
@@ -0,0 +1,185 @@
+package net.powermatcher.core;
+
+import java.util.Locale;
+
+import net.powermatcher.api.data.Bid;
+
+/**
+ * A {@link BidChangeFilter} decides whether a new bid differs enough from the last bid that has been sent to be worth
+ * sending. A {@link BaseAgentEndpoint} holds back the new bids that do not differ enough, unless the last bid that has
+ * been sent is older than the maximum staleness. In that case the new bid is sent anyway, which acts as a heartbeat.
+ * When no new bid comes in, the agent sends the bid that it held back once the maximum staleness has passed.
+ *
+ * Since the new bids are always compared with the last bid that has been sent (and not with the last bid that has
+ * been held back), the bid that the matcher knows never deviates more than the threshold from the actual bid.
+ *
+ * This class is immutable.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public final class BidChangeFilter {
+
+    /**
+     * The way in which the deviation between 2 bids is measured.
+     */
+    public enum Metric {
+        /**
+         * Every change is significant. This is the default behavior.
+         */
+        EXACT,
+        /**
+         * The largest absolute difference in demand at any price step, in Watt.
+         */
+        ABSOLUTE,
+        /**
+         * The largest absolute difference in demand at any price step, as a fraction of the largest absolute demand of
+         * the last bid that has been sent.
+         */
+        RELATIVE,
+        /**
+         * The sum of the absolute differences in demand over all price steps, in Watt.
+         */
+        L1
+    }
+
+    /**
+     * The filter that considers every change significant.
+     */
+    public static final BidChangeFilter EXACT = new BidChangeFilter(Metric.EXACT, 0, 0);
+
+    /**
+     * Creates a {@link BidChangeFilter} from configuration values.
+     *
+     * @param metric
+     *            The name of the {@link Metric}, in any case
+     * @param threshold
+     *            The deviation above which a change is significant
+     * @param maxStaleness
+     *            The maximum time in milliseconds that changes can be held back, or 0 for no limit
+     * @return The {@link BidChangeFilter}
+     * @throws IllegalArgumentException
+     *             when the metric is not known, or when the threshold or maxStaleness is negative
+     */
+    public static BidChangeFilter create(String metric, double threshold, long maxStaleness) {
+        if (metric == null || metric.isEmpty()) {
+            return EXACT;
+        }
+        return new BidChangeFilter(Metric.valueOf(metric.toUpperCase(Locale.ROOT)), threshold, maxStaleness);
+    }
+
+    private final Metric metric;
+    private final double threshold;
+    private final long maxStaleness;
+
+    /**
+     * Creates a new {@link BidChangeFilter}.
+     *
+     * @param metric
+     *            The way in which the deviation between 2 bids is measured
+     * @param threshold
+     *            The deviation above which a change is significant
+     * @param maxStaleness
+     *            The maximum time in milliseconds that changes can be held back, or 0 for no limit
+     * @throws IllegalArgumentException
+     *             when the threshold or maxStaleness is negative
+     */
+    public BidChangeFilter(Metric metric, double threshold, long maxStaleness) {
+        if (metric == null) {
+            throw new NullPointerException("metric");
+        } else if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("The threshold should be at least 0");
+        } else if (maxStaleness < 0) {
+            throw new IllegalArgumentException("The maxStaleness should be at least 0");
+        }
+        this.metric = metric;
+        this.threshold = threshold;
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * @return The way in which the deviation between 2 bids is measured
+     */
+    public Metric getMetric() {
+        return metric;
+    }
+
+    /**
+     * @return The deviation above which a change is significant
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return The maximum time in milliseconds that changes can be held back, or 0 for no limit
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Determines if a new bid should be sent.
+     *
+     * @param lastBid
+     *            The last bid that has been sent
+     * @param lastBidTime
+     *            The time in milliseconds at which the last bid has been sent
+     * @param newBid
+     *            The new bid
+     * @param now
+     *            The current time in milliseconds
+     * @return <code>true</code> when the new bid should be sent
+     */
+    public boolean shouldSend(Bid lastBid, long lastBidTime, Bid newBid, long now) {
+        if (newBid.equals(lastBid)) {
+            return false;
+        } else if (isSignificant(lastBid, newBid)) {
+            return true;
+        } else {
+            return maxStaleness > 0 && now - lastBidTime >= maxStaleness;
+        }
+    }
+
+    /**
+     * Determines if the change from one bid to another is significant. The bids are expected to be different.
+     *
+     * @param lastBid
+     *            The last bid that has been sent
+     * @param newBid
+     *            The new bid
+     * @return <code>true</code> when the deviation between the bids is larger than the threshold
+     */
+    public boolean isSignificant(Bid lastBid, Bid newBid) {
+        if (metric == Metric.EXACT || !lastBid.getMarketBasis().equals(newBid.getMarketBasis())) {
+            return true;
+        }
+
+        int priceSteps = newBid.getMarketBasis().getPriceSteps();
+        double largestDeviation = 0;
+        double totalDeviation = 0;
+        for (int ix = 0; ix < priceSteps; ix++) {
+            double deviation = Math.abs(newBid.getDemandAt(ix) - lastBid.getDemandAt(ix));
+            largestDeviation = Math.max(largestDeviation, deviation);
+            totalDeviation += deviation;
+        }
+
+        switch (metric) {
+        case ABSOLUTE:
+            return largestDeviation > threshold;
+        case RELATIVE:
+            // Since a bid is descending, the largest absolute demand is at one of the ends
+            double scale = Math.max(Math.abs(lastBid.getMaximumDemand()), Math.abs(lastBid.getMinimumDemand()));
+            return largestDeviation > threshold * scale;
+        case L1:
+        default:
+            return totalDeviation > threshold;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BidChangeFilter [metric=" + metric + ", threshold=" + threshold + ", maxStaleness=" + maxStaleness
+               + "]";
+    }
+}
@@ -0,0 +1,30 @@
+package net.powermatcher.core;
+
+/**
+ * A {@link CoolingOffStrategy} determines the cooling-off period of the {@link BaseMatcherEndpoint.RateLimitedBidPublisher}
+ * : the minimum time after an aggregated bid has been published before the next one is published.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public interface CoolingOffStrategy {
+    /**
+     * @return the cooling-off period in milliseconds that is used before the first aggregated bid has been published
+     */
+    long getInitialPeriod();
+
+    /**
+     * Determines the cooling-off period after an aggregated bid has been published. This is called from a single thread
+     * at a time, after every publication.
+     *
+     * @param currentPeriod
+     *            the cooling-off period in milliseconds that was used before this publication
+     * @param receivedBidUpdates
+     *            the number of bid updates that have been received since the previous publication
+     * @param publishDuration
+     *            the time in milliseconds it took to publish the aggregated bid. This grows when the matcher to which
+     *            the bid is sent can not keep up.
+     * @return the cooling-off period in milliseconds that should be used after this publication
+     */
+    long nextPeriod(long currentPeriod, int receivedBidUpdates, long publishDuration);
+}
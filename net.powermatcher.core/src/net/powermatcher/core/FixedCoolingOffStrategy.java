@@ -0,0 +1,41 @@
+package net.powermatcher.core;
+
+/**
+ * A {@link CoolingOffStrategy} that always uses the same cooling-off period.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class FixedCoolingOffStrategy
+    implements CoolingOffStrategy {
+
+    private final long period;
+
+    /**
+     * @param period
+     *            The cooling-off period in milliseconds
+     * @throws IllegalArgumentException
+     *             when the period is negative
+     */
+    public FixedCoolingOffStrategy(long period) {
+        if (period < 0) {
+            throw new IllegalArgumentException("The period should not be negative");
+        }
+        this.period = period;
+    }
+
+    @Override
+    public long getInitialPeriod() {
+        return period;
+    }
+
+    @Override
+    public long nextPeriod(long currentPeriod, int receivedBidUpdates, long publishDuration) {
+        return period;
+    }
+
+    @Override
+    public String toString() {
+        return "FixedCoolingOffStrategy [period=" + period + "]";
+    }
+}
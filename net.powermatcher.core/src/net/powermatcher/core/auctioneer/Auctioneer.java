@@ -1,5 +1,6 @@
 package net.powermatcher.core.auctioneer;
 
+import java.io.File;
 import java.util.Map;
 
 import org.osgi.service.component.annotations.Activate;
@@ -17,6 +18,7 @@ import net.powermatcher.api.data.Price;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.core.BaseMatcherEndpoint;
 import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.bidcache.BidCache;
 import net.powermatcher.core.concentrator.Concentrator;
 
 /**
@@ -68,6 +70,20 @@ public class Auctioneer
         @AttributeDefinition(type = AttributeType.LONG,
                              description = "Mimimum time between two PriceUpdates generated by the Auctioneer in milliseconds")
         long minTimeBetweenPriceUpdates() default 1000L;
+
+        @AttributeDefinition(type = AttributeType.INTEGER,
+                             description = "Maximum number of sessions to which one task sends a price; when there are more sessions, prices are sent in parallel (0 to disable)",
+                             required = false)
+        int parallelFanOutBatchSize() default 0;
+
+        @AttributeDefinition(type = AttributeType.INTEGER,
+                             description = "Number of bid changes after which the aggregated bid is summed up again from all bids instead of updated incrementally",
+                             required = false)
+        int fullAggregationInterval() default BidCache.DEFAULT_FULL_AGGREGATION_INTERVAL;
+
+        @AttributeDefinition(description = "Directory of the journal of bids and prices, from which the latest bids are restored at a restart (empty to disable)",
+                             required = false)
+        String journalLocation() default "";
     }
 
     /**
@@ -93,6 +109,14 @@ public class Auctioneer
                                                   minimumPrice,
                                                   maximumPrice);
 
+        if (properties.containsKey("parallelFanOutBatchSize")) {
+            setParallelFanOutBatchSize(((Number) properties.get("parallelFanOutBatchSize")).intValue());
+        }
+        if (properties.containsKey("fullAggregationInterval")) {
+            setFullAggregationInterval(((Number) properties.get("fullAggregationInterval")).intValue());
+        }
+        String journalLocation = (String) properties.get("journalLocation");
+        setJournalDirectory(journalLocation == null || journalLocation.isEmpty() ? null : new File(journalLocation));
         configure(marketBasis, clusterId, minTimeBetweenPriceUpdates);
     }
 
@@ -1,8 +1,12 @@
 package net.powermatcher.core.bidcache;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
@@ -11,6 +15,11 @@ import net.powermatcher.api.messages.BidUpdate;
 /**
  * An {@link AggregatedBid} is the combination of several {@link Bid} of agents (as identified by their agentId's) that
  * are aggregated into a single bid. This object is immutable and can only be created using the {@link Builder}.
+ *
+ * The bid number references are kept as an int array that is indexed by the handle of the agent in the
+ * {@link BidCache}. The agentIds of the handles are shared between the {@link AggregatedBid}s of a {@link BidCache}
+ * for as long as they do not change, so an aggregated bid only costs an int per agent and a reference can be looked up
+ * without creating any objects.
  */
 public final class AggregatedBid
     extends Bid {
@@ -32,7 +41,9 @@ public final class AggregatedBid
      */
     public static final class Builder {
         private final MarketBasis marketBasis;
-        private final Map<String, Integer> agentBidReferences;
+        private final Set<String> addedAgents;
+        private String[] agentIds;
+        private int[] agentBidReferences;
         private final double[] aggregatedBid;
 
         /**
@@ -43,7 +54,9 @@ public final class AggregatedBid
          */
         public Builder(MarketBasis marketBasis) {
             this.marketBasis = marketBasis;
-            agentBidReferences = new HashMap<String, Integer>();
+            addedAgents = new HashSet<String>();
+            agentIds = new String[16];
+            agentBidReferences = new int[16];
             aggregatedBid = new double[marketBasis.getPriceSteps()];
         }
 
@@ -61,8 +74,15 @@ public final class AggregatedBid
          * @return This {@link Builder}
          */
         public Builder addAgentBid(String agentId, BidUpdate bidUpdate) {
-            if (!agentBidReferences.containsKey(agentId) && bidUpdate.getBid().getMarketBasis().equals(marketBasis)) {
-                agentBidReferences.put(agentId, bidUpdate.getBidNumber());
+            if (!addedAgents.contains(agentId) && bidUpdate.getBid().getMarketBasis().equals(marketBasis)) {
+                int handle = addedAgents.size();
+                if (handle == agentIds.length) {
+                    agentIds = Arrays.copyOf(agentIds, handle * 2);
+                    agentBidReferences = Arrays.copyOf(agentBidReferences, handle * 2);
+                }
+                addedAgents.add(agentId);
+                agentIds[handle] = agentId;
+                agentBidReferences[handle] = bidUpdate.getBidNumber();
                 addBid(bidUpdate.getBid());
             }
 
@@ -71,10 +91,7 @@ public final class AggregatedBid
 
         public Builder addBid(Bid bid) {
             if (bid.getMarketBasis().equals(marketBasis)) {
-                double[] demand = bid.getDemand();
-                for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
-                    aggregatedBid[ix] += demand[ix];
-                }
+                bid.addDemandTo(aggregatedBid);
             }
             return this;
         }
@@ -84,32 +101,133 @@ public final class AggregatedBid
          *         called, the {@link Builder} should not be used any further.
          */
         public AggregatedBid build() {
-            return new AggregatedBid(marketBasis, aggregatedBid, agentBidReferences);
+            int count = addedAgents.size();
+            return new AggregatedBid(marketBasis,
+                                     aggregatedBid,
+                                     agentIds,
+                                     Arrays.copyOf(agentBidReferences, count),
+                                     count);
         }
     }
 
-    private final Map<String, Integer> agentBidReferences;
+    /**
+     * The value that is returned for an agent whose bid is not in this {@link AggregatedBid}.
+     */
+    public static final int NO_REFERENCE = Integer.MIN_VALUE;
+
+    /**
+     * The agentId of each handle. This array can be shared and may be longer than agentBidReferences, the elements
+     * after that should not be read.
+     */
+    private final String[] agentIds;
+
+    /**
+     * The bid number references by the handle of the agent, or {@link #NO_REFERENCE}.
+     */
+    private final int[] agentBidReferences;
 
-    AggregatedBid(MarketBasis marketBasis, double[] demand, Map<String, Integer> agentBidReferences) {
+    private final int referenceCount;
+
+    /**
+     * Creates a new {@link AggregatedBid}, taking ownership of the agentBidReferences array. The agentIds array is not
+     * changed after this, as far as it is used.
+     */
+    AggregatedBid(MarketBasis marketBasis,
+                  double[] demand,
+                  String[] agentIds,
+                  int[] agentBidReferences,
+                  int referenceCount) {
         super(marketBasis, demand);
-        this.agentBidReferences = Collections.unmodifiableMap(agentBidReferences);
+        this.agentIds = agentIds;
+        this.agentBidReferences = agentBidReferences;
+        this.referenceCount = referenceCount;
     }
 
     public AggregatedBid(Bid bid, Map<String, Integer> agentBidReferences) {
-        super(bid.getMarketBasis(), bid.getDemand());
-        this.agentBidReferences = Collections.unmodifiableMap(new HashMap<String, Integer>(agentBidReferences));
+        super(bid);
+        agentIds = new String[agentBidReferences.size()];
+        this.agentBidReferences = new int[agentBidReferences.size()];
+        int handle = 0;
+        for (Entry<String, Integer> entry : agentBidReferences.entrySet()) {
+            agentIds[handle] = entry.getKey();
+            this.agentBidReferences[handle] = entry.getValue();
+            handle++;
+        }
+        referenceCount = agentBidReferences.size();
     }
 
     /**
+     * Looks up the bid number of the bid of an agent by its handle in the {@link BidCache} that created this
+     * {@link AggregatedBid}. Since a handle can be given to another agent later, the agentId has to match as well.
+     *
+     * @param handle
+     *            The handle of the agent
+     * @param agentId
+     *            The agentId of the agent
+     * @return The bid number of the agent, or {@link #NO_REFERENCE} when the bid of the agent is not part of this
+     *         {@link AggregatedBid}.
+     */
+    public int getAgentBidReference(int handle, String agentId) {
+        if (handle >= 0 && handle < agentBidReferences.length) {
+            String handleAgentId = agentIds[handle];
+            if (handleAgentId == agentId || handleAgentId != null && handleAgentId.equals(agentId)) {
+                return agentBidReferences[handle];
+            }
+        }
+        return NO_REFERENCE;
+    }
+
+    /**
+     * Looks up the bid number of the bid of an agent that is part of this {@link AggregatedBid}. This has to search
+     * all the references, use {@link #getAgentBidReference(int, String)} when the handle of the agent is known.
+     *
+     * @param agentId
+     *            The agentId of the agent
+     * @return The bid number of the agent, or {@link #NO_REFERENCE} when the bid of the agent is not part of this
+     *         {@link AggregatedBid}.
+     */
+    public int getAgentBidReference(String agentId) {
+        for (int handle = 0; handle < agentBidReferences.length; handle++) {
+            if (agentBidReferences[handle] != NO_REFERENCE && agentIds[handle].equals(agentId)) {
+                return agentBidReferences[handle];
+            }
+        }
+        return NO_REFERENCE;
+    }
+
+    /**
+     * @return The number of agents whose bid is part of this {@link AggregatedBid}.
+     */
+    public int getAgentBidReferenceCount() {
+        return referenceCount;
+    }
+
+    /**
+     * Creates a {@link Map} with all the bid number references. Since this creates a new map on every call, use
+     * {@link #getAgentBidReference(int, String)} for looking up a single agent.
+     *
      * @return A {@link Map} of agentId to bid number reference.
      */
     public Map<String, Integer> getAgentBidReferences() {
-        return agentBidReferences;
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (int handle = 0; handle < agentBidReferences.length; handle++) {
+            if (agentBidReferences[handle] != NO_REFERENCE) {
+                result.put(agentIds[handle], agentBidReferences[handle]);
+            }
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     @Override
     public int hashCode() {
-        return 31 * agentBidReferences.hashCode() + 63 * super.hashCode();
+        // The same as the hashCode of the map of references
+        int referencesHashCode = 0;
+        for (int handle = 0; handle < agentBidReferences.length; handle++) {
+            if (agentBidReferences[handle] != NO_REFERENCE) {
+                referencesHashCode += agentIds[handle].hashCode() ^ agentBidReferences[handle];
+            }
+        }
+        return 31 * referencesHashCode + 63 * super.hashCode();
     }
 
     @Override
@@ -118,12 +236,16 @@ public final class AggregatedBid
             return false;
         } else {
             AggregatedBid other = (AggregatedBid) obj;
-            return other.agentBidReferences.equals(agentBidReferences);
+            return other.referenceCount == referenceCount
+                   && other.getAgentBidReferences().equals(getAgentBidReferences());
         }
     }
 
     @Override
     public String toString() {
-        return "AggregatedBid [agentBidReferences=" + agentBidReferences + ", aggregatedBid=" + super.toString() + "]";
+        return "AggregatedBid [agentBidReferences=" + getAgentBidReferences()
+               + ", aggregatedBid="
+               + super.toString()
+               + "]";
     }
 }
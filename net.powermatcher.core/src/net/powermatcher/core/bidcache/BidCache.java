@@ -1,10 +1,12 @@
 package net.powermatcher.core.bidcache;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 import net.powermatcher.api.Agent;
+import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.messages.BidUpdate;
 
@@ -13,34 +15,207 @@ import net.powermatcher.api.messages.BidUpdate;
  * {@link AggregatedBid}. This also stores all the generated {@link AggregatedBid}s such that they can easily be
  * recalled later.
  *
+ * The cache keeps a running sum of the demand of all the cached bids. When a bid of an agent is updated or removed,
+ * only the difference between the old and the new bid is applied to this sum, so the cost of an update does not
+ * depend on the number of agents in the cache. To correct for floating point drift, the sum is recalculated from
+ * scratch after a configurable number of incremental changes.
+ *
+ * Each agent that is added to the cache gets a handle: a small number that is unique within this cache. The handles
+ * of removed agents are given out again, so they stay dense. The bids and the bid number references of the
+ * {@link AggregatedBid}s are kept in arrays that are indexed by the handle, so an agent that knows its handle can be
+ * found without looking up its agentId.
+ *
  * This class is thread-safe.
  */
 public class BidCache {
+    /**
+     * The default number of incremental changes after which the aggregated demand is recalculated from scratch.
+     */
+    public static final int DEFAULT_FULL_AGGREGATION_INTERVAL = 1000;
+
+    /**
+     * The value that {@link #getHandle(String)} returns for an agent that is not in the cache.
+     */
+    public static final int NO_HANDLE = -1;
+
     private final MarketBasis marketBasis;
 
-    private final Map<String, BidUpdate> agentBids;
+    /**
+     * The handle of each agent in the cache by its agentId.
+     */
+    private final Map<String, Integer> handles;
 
-    private volatile boolean bidChanged;
-    private transient AggregatedBid lastBid;
+    /**
+     * The handles that are currently in use.
+     */
+    private final BitSet usedHandles;
 
     /**
-     * Creates a new {@link BidCache} based on the {@link MarketBasis}.
+     * The agentId of each agent by its handle. This array is shared with the {@link AggregatedBid}s that have been
+     * created, which only read the first sharedLength elements. When one of those has to change, the array is copied
+     * first.
+     */
+    private String[] agentIds;
+    private int sharedLength;
+
+    /**
+     * The cached bid of each agent by its handle, or <code>null</code> when the agent has not sent a bid.
+     */
+    private BidUpdate[] agentBids;
+    private int bidCount;
+
+    /**
+     * The running sum of the demand arrays of all the bids in agentBids.
+     */
+    private final double[] aggregatedDemand;
+
+    /**
+     * The number of incremental changes after which the aggregatedDemand is recalculated from scratch.
+     */
+    private final int fullAggregationInterval;
+
+    /**
+     * The number of incremental changes that have been applied since the last full aggregation.
+     */
+    private int incrementalChanges;
+
+    private boolean bidChanged;
+    private AggregatedBid lastBid;
+
+    /**
+     * Creates a new {@link BidCache} based on the {@link MarketBasis}, using the
+     * {@link #DEFAULT_FULL_AGGREGATION_INTERVAL}.
      *
      * @param marketBasis
      *            The {@link MarketBasis} that is used to match the bids.
      */
     public BidCache(MarketBasis marketBasis) {
+        this(marketBasis, DEFAULT_FULL_AGGREGATION_INTERVAL);
+    }
+
+    /**
+     * Creates a new {@link BidCache} based on the {@link MarketBasis}.
+     *
+     * @param marketBasis
+     *            The {@link MarketBasis} that is used to match the bids.
+     * @param fullAggregationInterval
+     *            The number of incremental changes after which the aggregated demand is recalculated from scratch.
+     *            When this is 1, every aggregation sums up all the bids in the cache.
+     * @throws IllegalArgumentException
+     *             When the fullAggregationInterval is smaller than 1
+     */
+    public BidCache(MarketBasis marketBasis, int fullAggregationInterval) {
         if (marketBasis == null) {
             throw new NullPointerException("marketBasis");
+        } else if (fullAggregationInterval < 1) {
+            throw new IllegalArgumentException("The fullAggregationInterval should be at least 1");
         }
         this.marketBasis = marketBasis;
-        agentBids = new ConcurrentHashMap<String, BidUpdate>();
+        this.fullAggregationInterval = fullAggregationInterval;
+        handles = new HashMap<String, Integer>();
+        usedHandles = new BitSet();
+        agentIds = new String[16];
+        sharedLength = 0;
+        agentBids = new BidUpdate[16];
+        bidCount = 0;
+        aggregatedDemand = new double[marketBasis.getPriceSteps()];
+        incrementalChanges = 0;
         bidChanged = true;
     }
 
+    /**
+     * Adds an agent to the cache, without a bid. When the agent was already added, its current handle is returned.
+     *
+     * @param agentId
+     *            The unique identifier of the agent. See {@link Agent#getAgentId()}.
+     * @return The handle of the agent in this cache
+     */
+    public synchronized int addAgent(String agentId) {
+        Integer handle = handles.get(agentId);
+        if (handle != null) {
+            return handle;
+        }
+
+        int newHandle = usedHandles.nextClearBit(0);
+        usedHandles.set(newHandle);
+        if (newHandle >= agentBids.length) {
+            agentBids = Arrays.copyOf(agentBids, Math.max(newHandle + 1, agentBids.length * 2));
+        }
+        setAgentId(newHandle, agentId);
+        handles.put(agentId, newHandle);
+        return newHandle;
+    }
+
+    /**
+     * Removes an agent and its bid from the cache. Its handle can be given to another agent after this.
+     *
+     * @param handle
+     *            The handle of the agent, as returned by {@link #addAgent(String)}
+     */
+    public synchronized void removeAgent(int handle) {
+        if (handle >= 0 && usedHandles.get(handle)) {
+            removeBid(handle);
+            handles.remove(agentIds[handle]);
+            setAgentId(handle, null);
+            usedHandles.clear(handle);
+        }
+    }
+
+    /**
+     * @param agentId
+     *            The unique identifier of the agent. See {@link Agent#getAgentId()}.
+     * @return The handle of the agent, or {@link #NO_HANDLE} when the agent is not in this cache
+     */
+    public synchronized int getHandle(String agentId) {
+        Integer handle = handles.get(agentId);
+        return handle == null ? NO_HANDLE : handle;
+    }
+
+    /**
+     * Updates the bid of an agent that has been added with {@link #addAgent(String)}. When a previous bid for the agent
+     * was available, the bid is overridden.
+     *
+     * @param handle
+     *            The handle of the agent, as returned by {@link #addAgent(String)}
+     * @param agentId
+     *            The unique identifier of the agent that was given the handle. When the handle has been removed or
+     *            given to another agent in the meantime, the bid is ignored.
+     * @param bid
+     *            The {@link BidUpdate} that the agent has sent and has to be cache here. When the bid is
+     *            <code>null</code>, the bid of the agent is removed, but the agent keeps its handle.
+     * @return <code>true</code> when the bid has been updated, <code>false</code> when the handle no longer belongs
+     *         to the agent
+     * @throws IllegalArgumentException
+     *             When the handle is negative or when the marketBasis of the bid does not match the marketBasis on
+     *             which this {@link BidCache} is based.
+     */
+    public synchronized boolean updateAgentBid(int handle, String agentId, BidUpdate bid) {
+        if (handle < 0) {
+            throw new IllegalArgumentException("No agent with handle " + handle + " is in this BidCache");
+        } else if (!usedHandles.get(handle) || !agentIds[handle].equals(agentId)) {
+            return false;
+        } else if (bid == null) {
+            removeBid(handle);
+        } else if (!bid.getBid().getMarketBasis().equals(marketBasis)) {
+            throw new IllegalArgumentException("The marketBasis of the bid does not match the marketBasis of this BidCache");
+        } else {
+            BidUpdate previousBid = agentBids[handle];
+            agentBids[handle] = bid;
+            if (previousBid != null) {
+                addDemand(previousBid.getBid(), -1);
+            } else {
+                bidCount++;
+            }
+            addDemand(bid.getBid(), 1);
+            incrementalChanges++;
+            bidChanged = true;
+        }
+        return true;
+    }
+
     /**
      * Updates the bid for a specific agent identifier. When a previous bid for the agent was available, the bid is
-     * overridden.
+     * overridden. When the agent was not in the cache yet, it is added.
      *
      * @param agentId
      *            The unique identifier of the agent. See {@link Agent#getAgentId()}.
@@ -52,49 +227,98 @@ public class BidCache {
      *             When the marketBasis of the bid does not match the marketBasis on which this {@link BidCache} is
      *             based.
      */
-    public void updateAgentBid(String agentId, BidUpdate bid) {
+    public synchronized void updateAgentBid(String agentId, BidUpdate bid) {
         if (bid == null) {
-            agentBids.remove(agentId);
-        } else if (!bid.getBid().getMarketBasis().equals(marketBasis)) {
-            throw new IllegalArgumentException("The marketBasis of the bid does not match the marketBasis of this BidCache");
+            removeBidOfAgent(agentId);
         } else {
-            bidChanged = true;
-            agentBids.put(agentId, bid);
+            updateAgentBid(addAgent(agentId), agentId, bid);
         }
     }
 
     /**
-     * Removed the bid of the agent from this cache. When it was already not available, this method does nothing.
+     * Removed the agent and its bid from this cache. When it was already not available, this method does nothing.
      *
      * @param agentId
      *            The unique identifier of the agent. See {@link Agent#getAgentId()}.
      */
-    public void removeBidOfAgent(String agentId) {
+    public synchronized void removeBidOfAgent(String agentId) {
+        Integer handle = handles.get(agentId);
+        if (handle != null) {
+            removeAgent(handle);
+        }
+        bidChanged = true;
+    }
+
+    private void removeBid(int handle) {
+        BidUpdate previousBid = agentBids[handle];
+        if (previousBid != null) {
+            agentBids[handle] = null;
+            bidCount--;
+            addDemand(previousBid.getBid(), -1);
+            incrementalChanges++;
+        }
         bidChanged = true;
-        agentBids.remove(agentId);
     }
 
     /**
-     * Creates a new {@link AggregatedBid} based on the current cache bids. This adds up all the bids and saves the
-     * references to the agent bids.
+     * Creates a new {@link AggregatedBid} based on the current cache bids. This uses the running sum of all the bids
+     * and saves the references to the agent bids.
      *
      * @return The new {@link AggregatedBid}.
      */
-    public AggregatedBid aggregate() {
+    public synchronized AggregatedBid aggregate() {
         if (!bidChanged && lastBid != null) {
             return lastBid;
         }
 
-        AggregatedBid.Builder builder = new AggregatedBid.Builder(marketBasis);
-        for (Entry<String, BidUpdate> entry : agentBids.entrySet()) {
-            builder.addAgentBid(entry.getKey(), entry.getValue());
+        // Drift in the running sum could make it (slightly) ascending, which is not a valid bid
+        if (incrementalChanges >= fullAggregationInterval || !Bid.isDescending(aggregatedDemand)) {
+            recalculateDemand();
         }
 
-        synchronized (this) {
-            lastBid = builder.build();
-            bidChanged = false;
+        int length = usedHandles.length();
+        int[] agentBidReferences = new int[length];
+        for (int handle = 0; handle < length; handle++) {
+            BidUpdate bidUpdate = agentBids[handle];
+            agentBidReferences[handle] = bidUpdate == null ? AggregatedBid.NO_REFERENCE : bidUpdate.getBidNumber();
+        }
 
-            return lastBid;
+        sharedLength = Math.max(sharedLength, length);
+        lastBid = new AggregatedBid(marketBasis, aggregatedDemand, agentIds, agentBidReferences, bidCount);
+        bidChanged = false;
+        return lastBid;
+    }
+
+    /**
+     * Changes the agentId of a handle, copying the agentIds first when the handle could be read by an
+     * {@link AggregatedBid}.
+     */
+    private void setAgentId(int handle, String agentId) {
+        if (handle < sharedLength || handle >= agentIds.length) {
+            agentIds = Arrays.copyOf(agentIds, Math.max(agentIds.length, 2 * (handle + 1)));
+            sharedLength = 0;
+        }
+        agentIds[handle] = agentId;
+    }
+
+    /**
+     * Recalculates the aggregated demand from scratch by summing up all the cached bids.
+     */
+    private void recalculateDemand() {
+        Arrays.fill(aggregatedDemand, 0);
+        for (BidUpdate bidUpdate : agentBids) {
+            if (bidUpdate != null) {
+                addDemand(bidUpdate.getBid(), 1);
+            }
+        }
+        incrementalChanges = 0;
+    }
+
+    private void addDemand(Bid bid, int sign) {
+        if (sign < 0) {
+            bid.subtractDemandFrom(aggregatedDemand);
+        } else {
+            bid.addDemandTo(aggregatedDemand);
         }
     }
 }
@@ -1,7 +1,6 @@
 package net.powermatcher.core.concentrator;
 
-import java.util.Deque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Arrays;
 
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.core.bidcache.AggregatedBid;
@@ -9,45 +8,153 @@ import net.powermatcher.core.bidcache.AggregatedBid;
 /**
  * This store keeps track of send bids to be able to retrieve them later
  *
+ * The bids are kept in a ring buffer that is indexed by the bid number. Since the bid numbers that an agent generates
+ * are increasing, a bid can be found without searching and dropping all the older bids is a single step. When the bid
+ * numbers start again from the beginning (e.g. after a reconnect), the old bids are forgotten.
+ *
  * @author FAN
  * @version 2.1
  *
  */
 public class BidHistoryStore {
-    private static final int MAX_BIDS = 900;
+    /**
+     * The default maximum number of bids that are remembered.
+     */
+    public static final int DEFAULT_CAPACITY = 900;
+
+    private final SentBidInformation[] sentBids;
+
+    /**
+     * The bid number of the oldest bid that is still available. When this is larger than lastBidNumber, the store is
+     * empty.
+     */
+    private long firstBidNumber;
+
+    /**
+     * The bid number of the newest bid that has been saved.
+     */
+    private long lastBidNumber;
+
+    /**
+     * Creates a new {@link BidHistoryStore} that remembers at most {@link #DEFAULT_CAPACITY} bids.
+     */
+    public BidHistoryStore() {
+        this(DEFAULT_CAPACITY);
+    }
 
-    private final Deque<SentBidInformation> sentBids = new LinkedBlockingDeque<SentBidInformation>();
+    /**
+     * Creates a new {@link BidHistoryStore}.
+     *
+     * @param capacity
+     *            The maximum number of bids that are remembered. When more bids are saved, the oldest are dropped.
+     * @throws IllegalArgumentException
+     *             When the capacity is smaller than 1
+     */
+    public BidHistoryStore(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity should be at least 1");
+        }
+        sentBids = new SentBidInformation[capacity];
+        firstBidNumber = 1;
+        lastBidNumber = 0;
+    }
+
+    /**
+     * Determines how many bids should be remembered, based on a memory and a time limit.
+     *
+     * @param maxBids
+     *            The maximum number of bids that may be remembered.
+     * @param maxAge
+     *            The maximum age in milliseconds of a bid that a price update can still refer to, or 0 when there is
+     *            no such limit.
+     * @param minTimeBetweenBids
+     *            The minimum time in milliseconds between two bids that are sent.
+     * @return The number of bids that have to be remembered, which is never more than maxBids.
+     * @throws IllegalArgumentException
+     *             When maxBids is smaller than 1, or maxAge or minTimeBetweenBids is negative
+     */
+    public static int capacityFor(int maxBids, long maxAge, long minTimeBetweenBids) {
+        if (maxBids < 1) {
+            throw new IllegalArgumentException("The maximum number of bids should be at least 1");
+        } else if (maxAge < 0 || minTimeBetweenBids < 0) {
+            throw new IllegalArgumentException("The maximum age and the time between bids should not be negative");
+        } else if (maxAge == 0 || minTimeBetweenBids == 0) {
+            // Without a time limit or rate limit, the number of bids that can be sent in time is unlimited
+            return maxBids;
+        } else {
+            // Within maxAge at most (maxAge / minTimeBetweenBids) new bids can be sent
+            return (int) Math.min(maxBids, maxAge / minTimeBetweenBids + 1);
+        }
+    }
+
+    /**
+     * @return The maximum number of bids that are remembered.
+     */
+    public int getCapacity() {
+        return sentBids.length;
+    }
 
     public synchronized void saveBid(final AggregatedBid aggregatedBid, final BidUpdate sentBidUpdate) {
         SentBidInformation info = new SentBidInformation(aggregatedBid, sentBidUpdate);
+        long bidNumber = info.getBidNumber();
 
-        sentBids.add(info);
-
-        while (sentBids.size() > MAX_BIDS) {
-            sentBids.removeFirst();
+        if (bidNumber < lastBidNumber) {
+            // The bid numbers have started from the beginning, so the old bids can not be referred to anymore
+            clear(firstBidNumber, lastBidNumber);
+            firstBidNumber = bidNumber;
+        } else if (firstBidNumber > lastBidNumber) {
+            // Empty store
+            firstBidNumber = bidNumber;
+        } else if (bidNumber > lastBidNumber + 1) {
+            // Forget the bids with the skipped numbers that could still be in the buffer
+            clear(lastBidNumber + 1, bidNumber - 1);
         }
+
+        sentBids[indexOf(bidNumber)] = info;
+        lastBidNumber = bidNumber;
+        firstBidNumber = Math.max(firstBidNumber, bidNumber - sentBids.length + 1);
     }
 
     public synchronized SentBidInformation retrieveAggregatedBid(int bidNumberReference) {
         // First check if we have actually sent a bid with that number
-        boolean found = false;
-        for (SentBidInformation info : sentBids) {
-            if (info.getBidNumber() == bidNumberReference) {
-                found = true;
-            }
+        SentBidInformation info = null;
+        if (bidNumberReference >= firstBidNumber && bidNumberReference <= lastBidNumber) {
+            info = sentBids[indexOf(bidNumberReference)];
         }
 
         // If we haven't, then throw an exception
-        if (!found) {
+        if (info == null || info.getBidNumber() != bidNumberReference) {
             throw new IllegalArgumentException("No bid with bidNumber " + bidNumberReference + " is available");
         }
 
         // If we have, drop all older bids and return the found info
-        SentBidInformation info = sentBids.peek();
-        while (info.getBidNumber() != bidNumberReference) {
-            sentBids.removeFirst();
-            info = sentBids.peek();
-        }
+        clear(firstBidNumber, bidNumberReference - 1L);
+        firstBidNumber = bidNumberReference;
         return info;
     }
+
+    private int indexOf(long bidNumber) {
+        return (int) Math.floorMod(bidNumber, (long) sentBids.length);
+    }
+
+    /**
+     * Removes the bids with the numbers from first up to and including last from the buffer.
+     */
+    private void clear(long first, long last) {
+        if (first > last) {
+            return;
+        } else if (last - first + 1 >= sentBids.length) {
+            Arrays.fill(sentBids, null);
+        } else {
+            int from = indexOf(first);
+            int to = indexOf(last) + 1;
+            if (from < to) {
+                Arrays.fill(sentBids, from, to, null);
+            } else {
+                // The range wraps around the end of the buffer
+                Arrays.fill(sentBids, from, sentBids.length, null);
+                Arrays.fill(sentBids, 0, to, null);
+            }
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package net.powermatcher.core.concentrator;
 
+import java.io.File;
 import java.lang.annotation.Annotation;
 import java.util.Map;
 
@@ -23,8 +24,10 @@ import net.powermatcher.api.monitoring.AgentObserver;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.core.BaseAgentEndpoint;
 import net.powermatcher.core.BaseMatcherEndpoint;
+import net.powermatcher.core.BidChangeFilter;
 import net.powermatcher.core.auctioneer.Auctioneer;
 import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.bidcache.BidCache;
 
 /**
  * <p>
@@ -46,7 +49,17 @@ public class Concentrator
     extends BaseAgentEndpoint
     implements MatcherEndpoint {
 
-    private final BidHistoryStore sentBids = new BidHistoryStore();
+    /**
+     * The bids that have been sent. The store is replaced when the concentrator is activated, because its capacity
+     * depends on the configuration.
+     */
+    private volatile BidHistoryStore sentBids = new BidHistoryStore();
+
+    /**
+     * Makes publishing a bid and saving it in {@link #sentBids} one step, such that the bids are saved in the order of
+     * their bid numbers. This is a separate lock because {@link #sentBids} is replaced on activation.
+     */
+    private final Object sendLock = new Object();
 
     private final class MatcherPart
         extends BaseMatcherEndpoint {
@@ -55,10 +68,16 @@ public class Concentrator
             super.init(agentId);
         }
 
+        /**
+         * The last aggregated bid that has been handed to {@link #performUpdate(AggregatedBid)}.
+         */
+        private volatile AggregatedBid lastAggregatedBid;
+
         @Override
         protected void performUpdate(AggregatedBid aggregatedBid) {
+            lastAggregatedBid = aggregatedBid;
             Bid bid = transformBid(aggregatedBid);
-            synchronized (sentBids) {
+            synchronized (sendLock) {
                 BidUpdate bidUpdate = publishBid(bid);
                 if (bidUpdate != null) {
                     sentBids.saveBid(aggregatedBid, bidUpdate);
@@ -67,6 +86,21 @@ public class Concentrator
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The held back bid is the transformation of the last aggregated bid. It is transformed and sent again through the
+     * same path as a regular update, so it is saved in the bid history and the price that refers to it can be passed on
+     * to the agents.
+     */
+    @Override
+    protected void flushStaleBid(Bid bid) {
+        AggregatedBid aggregatedBid = matcherPart.lastAggregatedBid;
+        if (aggregatedBid != null) {
+            matcherPart.performUpdate(aggregatedBid);
+        }
+    }
+
     @ObjectClassDefinition
     public @interface Config {
         @AttributeDefinition(defaultValue = "concentrator")
@@ -79,6 +113,58 @@ public class Concentrator
                              type = AttributeType.LONG,
                              description = "Mimimum time between two BidUpdates generated by the Concentratro in milliseconds")
         long minTimeBetweenBidUpdates();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.LONG,
+                             description = "Maximum time between two BidUpdates in milliseconds; when larger than the minimum, the time adapts to the load (0 for a fixed time)",
+                             required = false)
+        long maxTimeBetweenBidUpdates();
+
+        @AttributeDefinition(defaultValue = "900",
+                             type = AttributeType.INTEGER,
+                             description = "Maximum number of sent bids that are remembered to handle the price updates that refer to them",
+                             required = false)
+        int maxBidHistory();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.LONG,
+                             description = "Maximum age in milliseconds of a sent bid that a price update can refer to (0 for no limit)",
+                             required = false)
+        long maxBidHistoryAge();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.INTEGER,
+                             description = "Maximum number of sessions to which one task sends a price; when there are more sessions, prices are sent in parallel (0 to disable)",
+                             required = false)
+        int parallelFanOutBatchSize();
+
+        @AttributeDefinition(defaultValue = "1000",
+                             type = AttributeType.INTEGER,
+                             description = "Number of bid changes after which the aggregated bid is summed up again from all bids instead of updated incrementally",
+                             required = false)
+        int fullAggregationInterval();
+
+        @AttributeDefinition(defaultValue = "exact",
+                             description = "How the deviation of a new bid from the last sent bid is measured: exact, absolute, relative or l1",
+                             required = false)
+        String bidChangeMeasure();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.DOUBLE,
+                             description = "Deviation above which a new bid is sent (in Watt, or a fraction for relative)",
+                             required = false)
+        double bidChangeThreshold();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.LONG,
+                             description = "Maximum time in milliseconds that a changed bid is held back (0 for no limit)",
+                             required = false)
+        long maxBidStaleness();
+
+        @AttributeDefinition(defaultValue = "",
+                             description = "Directory of the journal of bids and prices, from which the latest bids are restored at a restart (empty to disable)",
+                             required = false)
+        String journalLocation();
     }
 
     private final MatcherPart matcherPart = new MatcherPart();
@@ -96,6 +182,33 @@ public class Concentrator
         final String agentId = (String) properties.get("agentId");
         final String desiredParentId = (String) properties.get("desiredParentId");
         final long minTimeBetweenBidUpdates = ((Number) properties.get("minTimeBetweenBidUpdates")).longValue();
+        final long maxTimeBetweenBidUpdates = properties.containsKey("maxTimeBetweenBidUpdates")
+                                              ? ((Number) properties.get("maxTimeBetweenBidUpdates")).longValue()
+                                              : 0;
+        final int maxBidHistory = properties.containsKey("maxBidHistory")
+                                  ? ((Number) properties.get("maxBidHistory")).intValue()
+                                  : BidHistoryStore.DEFAULT_CAPACITY;
+        final long maxBidHistoryAge = properties.containsKey("maxBidHistoryAge")
+                                     ? ((Number) properties.get("maxBidHistoryAge")).longValue()
+                                     : 0;
+        final int parallelFanOutBatchSize = properties.containsKey("parallelFanOutBatchSize")
+                                            ? ((Number) properties.get("parallelFanOutBatchSize")).intValue()
+                                            : 0;
+        final int fullAggregationInterval = properties.containsKey("fullAggregationInterval")
+                                            ? ((Number) properties.get("fullAggregationInterval")).intValue()
+                                            : BidCache.DEFAULT_FULL_AGGREGATION_INTERVAL;
+        final String bidChangeMeasure = properties.containsKey("bidChangeMeasure")
+                                        ? (String) properties.get("bidChangeMeasure")
+                                        : "exact";
+        final double bidChangeThreshold = properties.containsKey("bidChangeThreshold")
+                                          ? ((Number) properties.get("bidChangeThreshold")).doubleValue()
+                                          : 0;
+        final long maxBidStaleness = properties.containsKey("maxBidStaleness")
+                                     ? ((Number) properties.get("maxBidStaleness")).longValue()
+                                     : 0;
+        final String journalLocation = properties.containsKey("journalLocation")
+                                       ? (String) properties.get("journalLocation")
+                                       : "";
 
         activate(new Config() {
             @Override
@@ -113,6 +226,51 @@ public class Concentrator
                 return minTimeBetweenBidUpdates;
             }
 
+            @Override
+            public long maxTimeBetweenBidUpdates() {
+                return maxTimeBetweenBidUpdates;
+            }
+
+            @Override
+            public int maxBidHistory() {
+                return maxBidHistory;
+            }
+
+            @Override
+            public long maxBidHistoryAge() {
+                return maxBidHistoryAge;
+            }
+
+            @Override
+            public int parallelFanOutBatchSize() {
+                return parallelFanOutBatchSize;
+            }
+
+            @Override
+            public int fullAggregationInterval() {
+                return fullAggregationInterval;
+            }
+
+            @Override
+            public String bidChangeMeasure() {
+                return bidChangeMeasure;
+            }
+
+            @Override
+            public double bidChangeThreshold() {
+                return bidChangeThreshold;
+            }
+
+            @Override
+            public long maxBidStaleness() {
+                return maxBidStaleness;
+            }
+
+            @Override
+            public String journalLocation() {
+                return journalLocation;
+            }
+
             @Override
             public Class<? extends Annotation> annotationType() {
                 return Config.class;
@@ -128,7 +286,18 @@ public class Concentrator
      */
     public void activate(Config config) {
         this.config = config;
+        sentBids = new BidHistoryStore(BidHistoryStore.capacityFor(config.maxBidHistory(),
+                                                                   config.maxBidHistoryAge(),
+                                                                   config.minTimeBetweenBidUpdates()));
         matcherPart.init(config.agentId());
+        matcherPart.setParallelFanOutBatchSize(config.parallelFanOutBatchSize());
+        matcherPart.setFullAggregationInterval(config.fullAggregationInterval());
+        String journalLocation = config.journalLocation();
+        matcherPart.setJournalDirectory(journalLocation == null || journalLocation.isEmpty() ? null
+                                                                                             : new File(journalLocation));
+        setBidChangeFilter(BidChangeFilter.create(config.bidChangeMeasure(),
+                                                  config.bidChangeThreshold(),
+                                                  config.maxBidStaleness()));
         super.init(config.agentId(), config.desiredParentId());
         LOGGER.info("Concentrator [{}], activated", config.agentId());
     }
@@ -156,7 +325,18 @@ public class Concentrator
     @Override
     public void connectToMatcher(Session session) {
         super.connectToMatcher(session);
-        matcherPart.configure(session.getMarketBasis(), session.getClusterId(), config.minTimeBetweenBidUpdates());
+        matcherPart.configure(session.getMarketBasis(),
+                              session.getClusterId(),
+                              config.minTimeBetweenBidUpdates(),
+                              config.maxTimeBetweenBidUpdates());
+    }
+
+    /**
+     * @return The current time in milliseconds that this concentrator waits after sending a bid before it sends the
+     *         next one, or -1 when it is not connected
+     */
+    public long getCoolingOffPeriod() {
+        return matcherPart.getCoolingOffPeriod();
     }
 
     @Override
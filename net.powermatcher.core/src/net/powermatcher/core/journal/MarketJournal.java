@@ -0,0 +1,710 @@
+package net.powermatcher.core.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.api.monitoring.AgentObserver;
+import net.powermatcher.api.monitoring.FilteredAgentObserver;
+import net.powermatcher.api.monitoring.events.AgentEvent;
+import net.powermatcher.api.monitoring.events.IncomingBidUpdateEvent;
+import net.powermatcher.api.monitoring.events.OutgoingPriceUpdateEvent;
+
+/**
+ * {@link MarketJournal} is an append-only journal of the bids that a matcher receives and the prices that it sends.
+ * As an {@link AgentObserver} of the matcher it records each {@link IncomingBidUpdateEvent} and
+ * {@link OutgoingPriceUpdateEvent}, so the market can be replayed afterwards with
+ * {@link #replay(File, String, MarketBasis, RecordHandler)}, and the latest bid of each agent can be restored when
+ * the matcher restarts.
+ *
+ * The journal is written to segment files of a fixed size, named <code>&lt;name&gt;.&lt;sequence&gt;.journal</code>,
+ * which are mapped into memory. Appending a record is a copy into the mapped buffer, so it never blocks on the disk;
+ * the operating system writes the pages back. The segment is forced to the disk when it is full and when the journal
+ * is closed, so a crash of the process loses nothing, but a crash of the machine may lose the last records.
+ *
+ * Each segment starts with the {@link MarketBasis} of the journal and a snapshot of the latest bids, so the oldest
+ * segments can be removed without losing the state. At most maxSegments segments are kept. Each record carries a
+ * CRC32 checksum; reading a segment stops at the first torn record.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class MarketJournal
+    implements FilteredAgentObserver, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MarketJournal.class);
+
+    /**
+     * The extension of the segment files
+     */
+    public static final String EXTENSION = ".journal";
+
+    /**
+     * The default size in bytes of a segment
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The default number of segments that is kept
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+    /**
+     * The bytes "PMJN" at the start of a segment
+     */
+    static final int MAGIC = 0x504D4A4E;
+
+    static final int VERSION = 1;
+
+    private static final byte BID = 1;
+    private static final byte PRICE = 2;
+    private static final byte SNAPSHOT = 3;
+    private static final byte REMOVE = 4;
+
+    /**
+     * The length and the checksum of a record
+     */
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * Receives the records of a journal, see {@link MarketJournal#replay(File, String, MarketBasis, RecordHandler)}.
+     */
+    public interface RecordHandler {
+        /**
+         * Handles a bid that the matcher received.
+         *
+         * @param timestamp
+         *            the time of the bid in milliseconds
+         * @param agentId
+         *            the id of the agent that sent the bid
+         * @param bidUpdate
+         *            the bid
+         */
+        void handleBid(long timestamp, String agentId, BidUpdate bidUpdate);
+
+        /**
+         * Handles a price that the matcher sent.
+         *
+         * @param timestamp
+         *            the time of the price in milliseconds
+         * @param sessionId
+         *            the id of the session to which the price was sent
+         * @param priceUpdate
+         *            the price
+         */
+        void handlePrice(long timestamp, String sessionId, PriceUpdate priceUpdate);
+
+        /**
+         * Handles the removal of the bid of an agent.
+         *
+         * @param timestamp
+         *            the time of the removal in milliseconds
+         * @param agentId
+         *            the id of the agent of which the bid was removed
+         */
+        void handleRemove(long timestamp, String agentId);
+    }
+
+    /**
+     * The latest bid of an agent, with the time at which it was received
+     */
+    private static final class LatestBid {
+        final long timestamp;
+        final BidUpdate bidUpdate;
+
+        LatestBid(long timestamp, BidUpdate bidUpdate) {
+            this.timestamp = timestamp;
+            this.bidUpdate = bidUpdate;
+        }
+    }
+
+    /**
+     * Reads all the segments of a journal from old to new. The snapshot of the oldest segment is passed to the handler
+     * as bids, the snapshots of the later segments only repeat what the handler has already seen and are skipped.
+     * Segments of a different {@link MarketBasis} are skipped.
+     *
+     * @param directory
+     *            the directory of the journal
+     * @param name
+     *            the name of the journal
+     * @param marketBasis
+     *            the {@link MarketBasis} of the journal
+     * @param handler
+     *            receives the records
+     * @throws IOException
+     *             when a segment could not be read
+     */
+    public static void replay(File directory, String name, MarketBasis marketBasis, RecordHandler handler)
+            throws IOException {
+        boolean first = true;
+        for (File segment : findSegments(directory, name)) {
+            if (readSegment(segment, marketBasis, handler, first)) {
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Finds the segments of a journal.
+     *
+     * @param directory
+     *            the directory of the journal
+     * @param name
+     *            the name of the journal
+     * @return the segment files, sorted from old to new
+     */
+    public static List<File> findSegments(File directory, String name) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        final Pattern pattern = Pattern.compile(Pattern.quote(fileStem(name)) + "\\.(\\d+)"
+                                                + Pattern.quote(EXTENSION));
+        final Map<File, Long> sequences = new HashMap<File, Long>();
+        for (File file : files) {
+            Matcher matcher = pattern.matcher(file.getName());
+            if (file.isFile() && matcher.matches()) {
+                try {
+                    sequences.put(file, Long.parseLong(matcher.group(1)));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        List<File> segments = new ArrayList<File>(sequences.keySet());
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return sequences.get(f1).compareTo(sequences.get(f2));
+            }
+        });
+        return segments;
+    }
+
+    private static String fileStem(String name) {
+        return name.replaceAll("[^\\w.-]", "_");
+    }
+
+    private static long sequenceOf(File segment) {
+        String fileName = segment.getName();
+        String withoutExtension = fileName.substring(0, fileName.length() - EXTENSION.length());
+        return Long.parseLong(withoutExtension.substring(withoutExtension.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Reads a segment.
+     *
+     * @return <code>true</code> when the segment belongs to the marketBasis and has been read
+     */
+    private static boolean readSegment(File segment,
+                                       MarketBasis marketBasis,
+                                       RecordHandler handler,
+                                       boolean includeSnapshot) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    LOGGER.warn("Skipping journal segment {}, it is not a journal of version {}", segment, VERSION);
+                    return false;
+                }
+                MarketBasis segmentBasis = readMarketBasis(buffer);
+                if (!segmentBasis.equals(marketBasis)) {
+                    LOGGER.info("Skipping journal segment {}, it has market basis {} instead of {}",
+                                segment,
+                                segmentBasis,
+                                marketBasis);
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Skipping journal segment {}, its header could not be read", segment);
+                return false;
+            }
+
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int length = buffer.getInt();
+                if (length == 0) {
+                    // The unused part of the segment
+                    break;
+                }
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    LOGGER.warn("Journal segment {} ends with a torn record at position {}",
+                                segment,
+                                buffer.position() - RECORD_HEADER);
+                    break;
+                }
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.warn("Journal segment {} has a record with a wrong checksum at position {}",
+                                segment,
+                                buffer.position() - RECORD_HEADER);
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+                try {
+                    readRecord(record, marketBasis, handler, includeSnapshot);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Journal segment " + segment + " has a record that could not be read", e);
+                    break;
+                }
+            }
+            return true;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void readRecord(ByteBuffer record,
+                                   MarketBasis marketBasis,
+                                   RecordHandler handler,
+                                   boolean includeSnapshot) {
+        byte type = record.get();
+        long timestamp = record.getLong();
+        String key = readString(record);
+        int bidNumber = record.getInt();
+        double[] values = new double[record.getInt()];
+        for (int ix = 0; ix < values.length; ix++) {
+            values[ix] = record.getDouble();
+        }
+
+        switch (type) {
+        case SNAPSHOT:
+            // A snapshot is a bid that has been received before this segment
+            if (includeSnapshot) {
+                handler.handleBid(timestamp, key, new BidUpdate(new Bid(marketBasis, values), bidNumber));
+            }
+            break;
+        case BID:
+            handler.handleBid(timestamp, key, new BidUpdate(new Bid(marketBasis, values), bidNumber));
+            break;
+        case PRICE:
+            handler.handlePrice(timestamp, key, new PriceUpdate(new Price(marketBasis, values[0]), bidNumber));
+            break;
+        case REMOVE:
+            handler.handleRemove(timestamp, key);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    private static MarketBasis readMarketBasis(ByteBuffer buffer) {
+        String commodity = readString(buffer);
+        String currency = readString(buffer);
+        int priceSteps = buffer.getInt();
+        double minimumPrice = buffer.getDouble();
+        double maximumPrice = buffer.getDouble();
+        return new MarketBasis(commodity, currency, priceSteps, minimumPrice, maximumPrice);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("The string is too long for the journal: " + value);
+        }
+        return bytes;
+    }
+
+    private final File directory;
+    private final String name;
+    private final MarketBasis marketBasis;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    /**
+     * The latest bid of each agent, by agentId, in the order in which the agents were first seen
+     */
+    private final Map<String, LatestBid> latestBids = new LinkedHashMap<String, LatestBid>();
+
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    private long sequence;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private boolean writingSnapshot;
+    private boolean closed;
+
+    /**
+     * Opens a journal with the {@link #DEFAULT_SEGMENT_SIZE} and {@link #DEFAULT_MAX_SEGMENTS}, see
+     * {@link #MarketJournal(File, String, MarketBasis, int, int)}.
+     *
+     * @param directory
+     *            the directory of the journal
+     * @param name
+     *            the name of the journal, normally the id of the matcher
+     * @param marketBasis
+     *            the {@link MarketBasis} of the matcher
+     * @throws IOException
+     *             when the journal could not be opened
+     */
+    public MarketJournal(File directory, String name, MarketBasis marketBasis) throws IOException {
+        this(directory, name, marketBasis, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Opens a journal. The existing segments are read to restore the latest bids, after which a new segment is
+     * started.
+     *
+     * @param directory
+     *            the directory of the journal, which is created when it does not exist
+     * @param name
+     *            the name of the journal, normally the id of the matcher
+     * @param marketBasis
+     *            the {@link MarketBasis} of the matcher
+     * @param segmentSize
+     *            the size in bytes of a segment
+     * @param maxSegments
+     *            the number of segments that is kept
+     * @throws IOException
+     *             when the journal could not be opened
+     * @throws IllegalArgumentException
+     *             when the segmentSize is smaller than 1 kB or the maxSegments is smaller than 1
+     */
+    public MarketJournal(File directory, String name, MarketBasis marketBasis, int segmentSize, int maxSegments)
+            throws IOException {
+        if (directory == null) {
+            throw new NullPointerException("directory");
+        } else if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("The name may not be null or empty");
+        } else if (marketBasis == null) {
+            throw new NullPointerException("marketBasis");
+        } else if (segmentSize < 1024) {
+            throw new IllegalArgumentException("The segmentSize should be at least 1024 bytes");
+        } else if (maxSegments < 1) {
+            throw new IllegalArgumentException("The maxSegments should be at least 1");
+        }
+        this.directory = directory;
+        this.name = name;
+        this.marketBasis = marketBasis;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the journal directory " + directory);
+        }
+
+        RecordHandler restorer = new RecordHandler() {
+            @Override
+            public void handleBid(long timestamp, String agentId, BidUpdate bidUpdate) {
+                latestBids.put(agentId, new LatestBid(timestamp, bidUpdate));
+            }
+
+            @Override
+            public void handlePrice(long timestamp, String sessionId, PriceUpdate priceUpdate) {
+                // Prices are not restored, the matcher determines a new one
+            }
+
+            @Override
+            public void handleRemove(long timestamp, String agentId) {
+                latestBids.remove(agentId);
+            }
+        };
+        for (File file : findSegments(directory, name)) {
+            readSegment(file, marketBasis, restorer, true);
+            sequence = Math.max(sequence, sequenceOf(file));
+        }
+        roll();
+    }
+
+    /**
+     * @return the name of this journal
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the {@link MarketBasis} of this journal
+     */
+    public MarketBasis getMarketBasis() {
+        return marketBasis;
+    }
+
+    /**
+     * @return the latest bid of each agent, by agentId, as restored from the existing segments and updated with the
+     *         bids that have been appended since
+     */
+    public synchronized Map<String, BidUpdate> getLatestBids() {
+        Map<String, BidUpdate> result = new LinkedHashMap<String, BidUpdate>();
+        for (Map.Entry<String, LatestBid> entry : latestBids.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().bidUpdate);
+        }
+        return result;
+    }
+
+    /**
+     * @param agentId
+     *            the id of the agent
+     * @return the time in milliseconds at which the latest bid of the agent has been journaled, or
+     *         {@link Long#MIN_VALUE} when the journal has no bid of the agent
+     */
+    public synchronized long getLatestBidTime(String agentId) {
+        LatestBid latestBid = latestBids.get(agentId);
+        return latestBid == null ? Long.MIN_VALUE : latestBid.timestamp;
+    }
+
+    /**
+     * Appends a bid that the matcher received.
+     *
+     * @param timestamp
+     *            the time of the bid in milliseconds
+     * @param agentId
+     *            the id of the agent that sent the bid
+     * @param bidUpdate
+     *            the bid
+     * @throws IOException
+     *             when a new segment had to be started, but could not be
+     * @throws IllegalArgumentException
+     *             when the bid has a different {@link MarketBasis} than this journal
+     * @throws IllegalStateException
+     *             when the journal has been closed
+     */
+    public synchronized void appendBid(long timestamp, String agentId, BidUpdate bidUpdate) throws IOException {
+        Bid bid = bidUpdate.getBid();
+        if (!bid.getMarketBasis().equals(marketBasis)) {
+            throw new IllegalArgumentException("The market basis of the bid differs from the market basis of journal "
+                                               + name);
+        }
+        append(BID, timestamp, agentId, bidUpdate.getBidNumber(), bid.getDemand());
+        latestBids.put(agentId, new LatestBid(timestamp, bidUpdate));
+    }
+
+    /**
+     * Appends a price that the matcher sent.
+     *
+     * @param timestamp
+     *            the time of the price in milliseconds
+     * @param sessionId
+     *            the id of the session to which the price was sent
+     * @param priceUpdate
+     *            the price
+     * @throws IOException
+     *             when a new segment had to be started, but could not be
+     * @throws IllegalStateException
+     *             when the journal has been closed
+     */
+    public synchronized void appendPrice(long timestamp, String sessionId, PriceUpdate priceUpdate) throws IOException {
+        append(PRICE,
+               timestamp,
+               sessionId,
+               priceUpdate.getBidNumber(),
+               new double[] { priceUpdate.getPrice().getPriceValue() });
+    }
+
+    /**
+     * Removes the bid of an agent, so it will not be restored anymore.
+     *
+     * @param timestamp
+     *            the time of the removal in milliseconds
+     * @param agentId
+     *            the id of the agent
+     * @throws IOException
+     *             when a new segment had to be started, but could not be
+     * @throws IllegalStateException
+     *             when the journal has been closed
+     */
+    public synchronized void removeBid(long timestamp, String agentId) throws IOException {
+        if (latestBids.remove(agentId) != null) {
+            append(REMOVE, timestamp, agentId, 0, new double[0]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This journal is only interested in the {@link IncomingBidUpdateEvent} and the {@link OutgoingPriceUpdateEvent}.
+     */
+    @Override
+    public boolean isInterestedIn(Class<? extends AgentEvent> eventType, String agentId) {
+        return IncomingBidUpdateEvent.class.isAssignableFrom(eventType)
+               || OutgoingPriceUpdateEvent.class.isAssignableFrom(eventType);
+    }
+
+    @Override
+    public synchronized void handleAgentEvent(AgentEvent event) {
+        if (closed) {
+            // The matcher may still publish an event while it is being unconfigured
+            return;
+        }
+        try {
+            if (event instanceof IncomingBidUpdateEvent) {
+                IncomingBidUpdateEvent bidEvent = (IncomingBidUpdateEvent) event;
+                appendBid(bidEvent.getTimestamp().getTime(), bidEvent.getFromAgentId(), bidEvent.getBidUpdate());
+            } else if (event instanceof OutgoingPriceUpdateEvent) {
+                OutgoingPriceUpdateEvent priceEvent = (OutgoingPriceUpdateEvent) event;
+                appendPrice(priceEvent.getTimestamp().getTime(),
+                            priceEvent.getSessionId(),
+                            priceEvent.getPriceUpdate());
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not append " + event + " to the journal " + name, e);
+        }
+    }
+
+    /**
+     * Forces the current segment to the disk and closes it. The journal can not be appended to afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closeSegment();
+            closed = true;
+        }
+    }
+
+    private void append(byte type, long timestamp, String key, int bidNumber, double[] values) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The journal " + name + " has been closed");
+        }
+        byte[] keyBytes = encodeString(key);
+        int length = 1 + 8 + 2 + keyBytes.length + 4 + 4 + 8 * values.length;
+        if (segment.remaining() < RECORD_HEADER + length) {
+            if (writingSnapshot) {
+                throw new IOException("The snapshot of the journal " + name + " does not fit in a segment of "
+                                      + segmentSize + " bytes");
+            }
+            roll();
+            if (segment.remaining() < RECORD_HEADER + length) {
+                throw new IOException("A record of " + length + " bytes does not fit in a segment of " + segmentSize
+                                      + " bytes");
+            }
+        }
+
+        // Encoded after the roll, which uses the scratch buffer for the snapshot
+        ByteBuffer record = encode(type, timestamp, keyBytes, bidNumber, values, length);
+        crc.reset();
+        crc.update(record.duplicate());
+        // The length is written last, so a reader never sees a length without the record
+        int position = segment.position();
+        segment.position(position + RECORD_HEADER);
+        segment.put(record);
+        segment.putInt(position + 4, (int) crc.getValue());
+        segment.putInt(position, length);
+    }
+
+    private ByteBuffer encode(byte type, long timestamp, byte[] keyBytes, int bidNumber, double[] values, int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.put(type).putLong(timestamp).putShort((short) keyBytes.length).put(keyBytes).putInt(bidNumber);
+        scratch.putInt(values.length);
+        for (double value : values) {
+            scratch.putDouble(value);
+        }
+        scratch.flip();
+        return scratch;
+    }
+
+    /**
+     * Closes the current segment, if any, and starts a new one with a snapshot of the latest bids. The oldest segments
+     * are removed when there are more than maxSegments.
+     */
+    private void roll() throws IOException {
+        closeSegment();
+        sequence++;
+        File file = new File(directory, String.format("%s.%08d%s", fileStem(name), sequence, EXTENSION));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(segmentSize);
+            channel = randomAccessFile.getChannel();
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            channel = null;
+            segment = null;
+            throw e;
+        }
+
+        segment.putInt(MAGIC).putInt(VERSION);
+        writeMarketBasis(segment);
+        writingSnapshot = true;
+        try {
+            for (Map.Entry<String, LatestBid> entry : latestBids.entrySet()) {
+                LatestBid latestBid = entry.getValue();
+                append(SNAPSHOT,
+                       latestBid.timestamp,
+                       entry.getKey(),
+                       latestBid.bidUpdate.getBidNumber(),
+                       latestBid.bidUpdate.getBid().getDemand());
+            }
+        } finally {
+            writingSnapshot = false;
+        }
+        LOGGER.debug("Started journal segment {} with {} bids", file, latestBids.size());
+
+        List<File> segments = findSegments(directory, name);
+        for (int ix = 0; ix < segments.size() - maxSegments; ix++) {
+            if (!segments.get(ix).delete()) {
+                LOGGER.warn("Could not remove journal segment {}", segments.get(ix));
+            }
+        }
+    }
+
+    private void writeMarketBasis(ByteBuffer buffer) {
+        byte[] commodity = encodeString(marketBasis.getCommodity());
+        byte[] currency = encodeString(marketBasis.getCurrency());
+        buffer.putShort((short) commodity.length).put(commodity);
+        buffer.putShort((short) currency.length).put(currency);
+        buffer.putInt(marketBasis.getPriceSteps());
+        buffer.putDouble(marketBasis.getMinimumPrice());
+        buffer.putDouble(marketBasis.getMaximumPrice());
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warn("Could not close journal segment of " + name, e);
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MarketJournal [directory=" + directory + ", name=" + name + ", marketBasis=" + marketBasis
+               + ", segmentSize=" + segmentSize + ", maxSegments=" + maxSegments + "]";
+    }
+}
@@ -0,0 +1,2 @@
+@org.osgi.annotation.versioning.Version("1.0.0.${tstamp}")
+package net.powermatcher.core.journal;
@@ -8,6 +8,9 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -16,6 +19,7 @@ import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.monitoring.AgentObserver;
+import net.powermatcher.api.monitoring.FilteredAgentObserver;
 import net.powermatcher.api.monitoring.events.AgentEvent;
 import net.powermatcher.api.monitoring.events.AggregatedBidEvent;
 import net.powermatcher.api.monitoring.events.IncomingBidUpdateEvent;
@@ -183,4 +187,89 @@ public class AuctioneerTest {
         assertThat(mockAgent.getLastPriceUpdate(), is(notNullValue()));
         assertThat(observer.outgoingPriceEvent.getPriceUpdate(), is(equalTo(mockAgent.getLastPriceUpdate())));
     }
+
+    @Test
+    public void testParallelPublishPriceUpdate() {
+        auctioneer.setParallelFanOutBatchSize(3);
+
+        MockDeviceAgent[] agents = new MockDeviceAgent[20];
+        for (int ix = 0; ix < agents.length; ix++) {
+            agents[ix] = new MockDeviceAgent("agent" + ix, AUCTIONEER_ID);
+            new SimpleSession(agents[ix], auctioneer).connect();
+            agents[ix].sendBid(Bid.flatDemand(marketBasis, ix - 10), ix + 1);
+        }
+        mockContext.doTaskOnce();
+
+        for (int ix = 0; ix < agents.length; ix++) {
+            assertThat(agents[ix].getLastPriceUpdate().getBidNumber(), is(equalTo(ix + 1)));
+            assertThat(agents[ix].getLastPriceUpdate().getPrice(),
+                       is(equalTo(agents[0].getLastPriceUpdate().getPrice())));
+        }
+    }
+
+    @Test
+    public void testFilteredObserver() {
+        final List<AgentEvent> events = new ArrayList<AgentEvent>();
+        auctioneer.addObserver(new FilteredAgentObserver() {
+            @Override
+            public boolean isInterestedIn(Class<? extends AgentEvent> eventType, String agentId) {
+                return AggregatedBidEvent.class.isAssignableFrom(eventType) && AUCTIONEER_ID.equals(agentId);
+            }
+
+            @Override
+            public void handleAgentEvent(AgentEvent event) {
+                events.add(event);
+            }
+        });
+
+        MockDeviceAgent mockAgent = new MockDeviceAgent("mockAgent", AUCTIONEER_ID);
+        new SimpleSession(mockAgent, auctioneer).connect();
+        mockAgent.sendBid(Bid.flatDemand(marketBasis, 10), 1);
+        mockContext.doTaskOnce();
+
+        // The incoming bid and outgoing price events are not published to this observer
+        assertThat(mockAgent.getLastPriceUpdate(), is(notNullValue()));
+        assertThat(events.size(), is(equalTo(1)));
+        assertThat(events.get(0) instanceof AggregatedBidEvent, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidParallelFanOutBatchSize() {
+        auctioneer.setParallelFanOutBatchSize(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFullAggregationInterval() {
+        new Auctioneer().activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                         .clusterId(CLUSTER_ID)
+                                                         .marketBasis(marketBasis)
+                                                         .minTimeBetweenPriceUpdates(1000)
+                                                         .add("fullAggregationInterval", 0)
+                                                         .build());
+    }
+
+    @Test
+    public void testFullAggregationEveryTime() {
+        Auctioneer fullAggregation = new Auctioneer();
+        fullAggregation.activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                        .clusterId(CLUSTER_ID)
+                                                        .marketBasis(marketBasis)
+                                                        .minTimeBetweenPriceUpdates(1000)
+                                                        .add("fullAggregationInterval", 1)
+                                                        .build());
+        fullAggregation.setContext(mockContext);
+
+        MockDeviceAgent agent1 = new MockDeviceAgent("agent1", AUCTIONEER_ID);
+        MockDeviceAgent agent2 = new MockDeviceAgent("agent2", AUCTIONEER_ID);
+        new SimpleSession(agent1, fullAggregation).connect();
+        new SimpleSession(agent2, fullAggregation).connect();
+        agent1.sendBid(new Bid(marketBasis, 2, 1, 0, -1, -2), 1);
+        agent2.sendBid(new Bid(marketBasis, 1, 1, 1, 1, 1), 1);
+        agent1.sendBid(new Bid(marketBasis, 4, 4, 0, 0, 0), 2);
+
+        mockContext.doTaskOnce();
+        // The aggregated demand {5, 5, 1, 1, 1} is positive everywhere, so the price is the maximum price
+        assertThat(agent1.getLastPriceUpdate(), is(notNullValue()));
+        assertThat(agent1.getLastPriceUpdate().getPrice().getPriceValue(), is(equalTo(10.0)));
+    }
 }
@@ -6,6 +6,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Random;
+
 import org.junit.Test;
 
 import net.powermatcher.api.data.Bid;
@@ -50,4 +52,100 @@ public class BidCacheTest {
 
         assertSame(aggregatedBid, bidCache.aggregate());
     }
+
+    @Test
+    public void testIncrementalUpdates() {
+        Random random = new Random(42);
+        BidCache bidCache = new BidCache(MB, 50);
+        Bid[] bids = new Bid[20];
+
+        for (int i = 0; i < 500; i++) {
+            int agent = random.nextInt(bids.length);
+            if (random.nextInt(5) == 0) {
+                bids[agent] = null;
+                bidCache.removeBidOfAgent("agent" + agent);
+            } else {
+                double demand = random.nextDouble() * 1000;
+                bids[agent] = Bid.create(MB).add(0, demand).add(1, demand - random.nextDouble() * 1000).build();
+                bidCache.updateAgentBid("agent" + agent, new BidUpdate(bids[agent], i));
+            }
+
+            AggregatedBid.Builder expected = new AggregatedBid.Builder(MB);
+            int agents = 0;
+            for (Bid bid : bids) {
+                if (bid != null) {
+                    expected.addBid(bid);
+                    agents++;
+                }
+            }
+
+            AggregatedBid aggregatedBid = bidCache.aggregate();
+            assertEquals(agents, aggregatedBid.getAgentBidReferences().size());
+            assertArrayEquals(expected.build().getDemand(), aggregatedBid.getDemand(), 1e-6);
+        }
+    }
+
+    @Test
+    public void testAgentHandles() {
+        BidCache bidCache = new BidCache(MB);
+        int handle1 = bidCache.addAgent("agent1");
+        int handle2 = bidCache.addAgent("agent2");
+        assertEquals(0, handle1);
+        assertEquals(1, handle2);
+        assertEquals(handle1, bidCache.addAgent("agent1"));
+        assertEquals(BidCache.NO_HANDLE, bidCache.getHandle("unknown"));
+
+        bidCache.updateAgentBid(handle1, "agent1", new BidUpdate(Bid.flatDemand(MB, 10), 5));
+        AggregatedBid before = bidCache.aggregate();
+        // An agent without a bid is not part of the aggregated bid
+        assertEquals(1, before.getAgentBidReferenceCount());
+        assertEquals(5, before.getAgentBidReference(handle1, "agent1"));
+        assertEquals(AggregatedBid.NO_REFERENCE, before.getAgentBidReference(handle2, "agent2"));
+
+        // The handle of a removed agent is given to the next agent
+        bidCache.removeAgent(handle1);
+        int handle3 = bidCache.addAgent("agent3");
+        assertEquals(handle1, handle3);
+        bidCache.updateAgentBid(handle3, "agent3", new BidUpdate(Bid.flatDemand(MB, 20), 7));
+        AggregatedBid after = bidCache.aggregate();
+        assertArrayEquals(Bid.flatDemand(MB, 20).getDemand(), after.getDemand(), 0);
+
+        // The earlier aggregated bid is not affected
+        assertEquals(5, before.getAgentBidReference(handle1, "agent1"));
+        assertEquals(AggregatedBid.NO_REFERENCE, before.getAgentBidReference(handle3, "agent3"));
+        assertEquals(7, after.getAgentBidReference(handle3, "agent3"));
+        assertEquals(AggregatedBid.NO_REFERENCE, after.getAgentBidReference(handle1, "agent1"));
+        assertEquals(7, after.getAgentBidReference("agent3"));
+        assertEquals(1, after.getAgentBidReferences().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownHandle() {
+        new BidCache(MB).updateAgentBid(-1, "agent1", new BidUpdate(Bid.flatDemand(MB, 10), 1));
+    }
+
+    @Test
+    public void testBidOfRemovedHandleIsIgnored() {
+        BidCache bidCache = new BidCache(MB);
+        assertFalse(bidCache.updateAgentBid(3, "agent1", new BidUpdate(Bid.flatDemand(MB, 10), 1)));
+
+        int handle1 = bidCache.addAgent("agent1");
+        bidCache.removeAgent(handle1);
+        int handle2 = bidCache.addAgent("agent2");
+        assertEquals(handle1, handle2);
+
+        // A late bid of agent1 must not be stored under agent2, which now owns the handle
+        assertFalse(bidCache.updateAgentBid(handle1, "agent1", new BidUpdate(Bid.flatDemand(MB, 10), 1)));
+        AggregatedBid aggregatedBid = bidCache.aggregate();
+        assertEquals(0, aggregatedBid.getAgentBidReferenceCount());
+        assertEquals(AggregatedBid.NO_REFERENCE, aggregatedBid.getAgentBidReference(handle2, "agent2"));
+
+        assertTrue(bidCache.updateAgentBid(handle2, "agent2", new BidUpdate(Bid.flatDemand(MB, 20), 2)));
+        assertEquals(2, bidCache.aggregate().getAgentBidReference(handle2, "agent2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFullAggregationInterval() {
+        new BidCache(MB, 0);
+    }
 }
@@ -0,0 +1,118 @@
+package net.powermatcher.core.concentrator.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.core.bidcache.AggregatedBid;
+import net.powermatcher.core.concentrator.BidHistoryStore;
+
+/**
+ * JUnit test for the {@link BidHistoryStore} class.
+ */
+public class BidHistoryStoreTest {
+    private static final MarketBasis MB = new MarketBasis("electricity", "EUR", 5, 0, 10);
+    private static final AggregatedBid AGGREGATED_BID = new AggregatedBid(Bid.flatDemand(MB, 10),
+                                                                          new HashMap<String, Integer>());
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private static void save(BidHistoryStore store, int bidNumber) {
+        store.saveBid(AGGREGATED_BID, new BidUpdate(Bid.flatDemand(MB, bidNumber), bidNumber));
+    }
+
+    private static void assertRetrieve(BidHistoryStore store, int bidNumber) {
+        assertThat(store.retrieveAggregatedBid(bidNumber).getBidNumber(), is(equalTo(bidNumber)));
+        assertThat(store.retrieveAggregatedBid(bidNumber).getSentBid(), is(equalTo(Bid.flatDemand(MB, bidNumber))));
+    }
+
+    @Test
+    public void testRetrieveDropsOlderBids() {
+        BidHistoryStore store = new BidHistoryStore(10);
+        for (int bidNumber = 1; bidNumber <= 5; bidNumber++) {
+            save(store, bidNumber);
+        }
+        assertRetrieve(store, 3);
+        assertRetrieve(store, 5);
+
+        exception.expect(IllegalArgumentException.class);
+        store.retrieveAggregatedBid(4);
+    }
+
+    @Test
+    public void testCapacity() {
+        BidHistoryStore store = new BidHistoryStore(10);
+        for (int bidNumber = 1; bidNumber <= 25; bidNumber++) {
+            save(store, bidNumber);
+        }
+        assertRetrieve(store, 16);
+        assertRetrieve(store, 25);
+    }
+
+    @Test
+    public void testDroppedByCapacity() {
+        BidHistoryStore store = new BidHistoryStore(10);
+        for (int bidNumber = 1; bidNumber <= 25; bidNumber++) {
+            save(store, bidNumber);
+        }
+
+        exception.expect(IllegalArgumentException.class);
+        store.retrieveAggregatedBid(15);
+    }
+
+    @Test
+    public void testSkippedBidNumbers() {
+        BidHistoryStore store = new BidHistoryStore(10);
+        save(store, 1);
+        save(store, 2);
+        save(store, 12);
+        assertRetrieve(store, 12);
+
+        store = new BidHistoryStore(10);
+        save(store, 1);
+        save(store, 5);
+
+        exception.expect(IllegalArgumentException.class);
+        store.retrieveAggregatedBid(3);
+    }
+
+    @Test
+    public void testRestartedBidNumbers() {
+        BidHistoryStore store = new BidHistoryStore(10);
+        for (int bidNumber = 1; bidNumber <= 8; bidNumber++) {
+            save(store, bidNumber);
+        }
+        // After a reconnect the bid numbers start from the beginning
+        save(store, 1);
+        save(store, 2);
+        assertRetrieve(store, 1);
+        assertRetrieve(store, 2);
+
+        exception.expect(IllegalArgumentException.class);
+        store.retrieveAggregatedBid(8);
+    }
+
+    @Test
+    public void testCapacityFor() {
+        assertThat(BidHistoryStore.capacityFor(900, 0, 1000), is(equalTo(900)));
+        assertThat(BidHistoryStore.capacityFor(900, 60000, 0), is(equalTo(900)));
+        assertThat(BidHistoryStore.capacityFor(900, 60000, 1000), is(equalTo(61)));
+        assertThat(BidHistoryStore.capacityFor(50, 60000, 1000), is(equalTo(50)));
+    }
+
+    @Test
+    public void testInvalidCapacity() {
+        exception.expect(IllegalArgumentException.class);
+        new BidHistoryStore(0);
+    }
+}
@@ -18,11 +18,13 @@ import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.data.Price;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.auctioneer.Auctioneer;
 import net.powermatcher.core.concentrator.Concentrator;
 import net.powermatcher.mock.MockContext;
 import net.powermatcher.mock.MockDeviceAgent;
 import net.powermatcher.mock.MockMatcherAgent;
 import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.mock.VirtualTimeContext;
 import net.powermatcher.test.helpers.PropertiesBuilder;
 
 /**
@@ -136,6 +138,85 @@ public class ConcentratorTest {
                    is(equalTo(expectedBid.getDemand())));
     }
 
+    @Test
+    public void testInsignificantBidChangesAreHeldBack() {
+        concentrator.activate(new PropertiesBuilder().agentId(CONCENTRATOR_ID)
+                                                     .desiredParentId(AUCTIONEER_ID)
+                                                     .minTimeBetweenBidUpdates(MIN_TIME_BETWEEN_BIDS)
+                                                     .add("bidChangeMeasure", "absolute")
+                                                     .add("bidChangeThreshold", 10.0)
+                                                     .add("maxBidStaleness", 60000L)
+                                                     .build());
+        MockMatcherAgent mockMatcherAgent = new MockMatcherAgent(AUCTIONEER_ID, CLUSTER_ID, marketBasis);
+        MockDeviceAgent mockAgent = new MockDeviceAgent("testAgent", CONCENTRATOR_ID);
+        new SimpleSession(concentrator, mockMatcherAgent).connect();
+        new SimpleSession(mockAgent, concentrator).connect();
+
+        mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 100), 1));
+        context.doTaskOnce();
+        BidUpdate sentBid = mockMatcherAgent.getLastReceivedBid();
+        assertThat(sentBid.getBid().getMaximumDemand(), is(equalTo(100.0)));
+
+        // A change of 5 Watt is not sent
+        context.jump(MIN_TIME_BETWEEN_BIDS);
+        mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 105), 2));
+        context.doTaskOnce();
+        assertThat(mockMatcherAgent.getLastReceivedBid(), is(equalTo(sentBid)));
+
+        // A change of 20 Watt is
+        context.jump(MIN_TIME_BETWEEN_BIDS);
+        mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 120), 3));
+        context.doTaskOnce();
+        sentBid = mockMatcherAgent.getLastReceivedBid();
+        assertThat(sentBid.getBid().getMaximumDemand(), is(equalTo(120.0)));
+
+        // After the maximum staleness, a small change is sent anyway
+        context.jump(60000);
+        mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 121), 4));
+        context.doTaskOnce();
+        assertThat(mockMatcherAgent.getLastReceivedBid().getBid().getMaximumDemand(), is(equalTo(121.0)));
+    }
+
+    /**
+     * A small change is held back and sent when the last bid gets stale. The price for that bid has to reach the agent,
+     * so the flushed bid must have been saved in the bid history of the concentrator.
+     */
+    @Test
+    public void testHeldBackBidIsFlushedAndPriced() {
+        VirtualTimeContext virtualContext = new VirtualTimeContext(0);
+        Auctioneer auctioneer = new Auctioneer();
+        auctioneer.activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                   .clusterId(CLUSTER_ID)
+                                                   .marketBasis(marketBasis)
+                                                   .minTimeBetweenPriceUpdates(MIN_TIME_BETWEEN_BIDS)
+                                                   .build());
+        auctioneer.setContext(virtualContext);
+        Concentrator filtering = new Concentrator();
+        filtering.activate(new PropertiesBuilder().agentId(CONCENTRATOR_ID)
+                                                  .desiredParentId(AUCTIONEER_ID)
+                                                  .minTimeBetweenBidUpdates(MIN_TIME_BETWEEN_BIDS)
+                                                  .add("bidChangeMeasure", "absolute")
+                                                  .add("bidChangeThreshold", 10.0)
+                                                  .add("maxBidStaleness", 5000L)
+                                                  .build());
+        filtering.setContext(virtualContext);
+        MockDeviceAgent mockAgent = new MockDeviceAgent("testAgent", CONCENTRATOR_ID);
+        new SimpleSession(filtering, auctioneer).connect();
+        new SimpleSession(mockAgent, filtering).connect();
+
+        mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 100), 1));
+        virtualContext.runFor(2 * MIN_TIME_BETWEEN_BIDS);
+        assertThat(mockAgent.getLastPriceUpdate().getBidNumber(), is(equalTo(1)));
+
+        // A change of 5 Watt is held back, until the bid of 100 Watt is 5 seconds old
+        mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 105), 2));
+        virtualContext.runFor(2 * MIN_TIME_BETWEEN_BIDS);
+        assertThat(mockAgent.getLastPriceUpdate().getBidNumber(), is(equalTo(1)));
+
+        virtualContext.runFor(5000);
+        assertThat(mockAgent.getLastPriceUpdate().getBidNumber(), is(equalTo(2)));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testUpdatePriceNull() {
         concentrator.handlePriceUpdate(null);
@@ -195,4 +276,38 @@ public class ConcentratorTest {
         context.doTaskIfTimeIsRight();
         assertNotNull(mockMatcherAgent.getLastReceivedBid());
     }
+
+    @Test
+    public void testAdaptiveCoolingOffPeriod() {
+        concentrator.activate(new PropertiesBuilder().agentId(CONCENTRATOR_ID)
+                                                     .desiredParentId(AUCTIONEER_ID)
+                                                     .minTimeBetweenBidUpdates(MIN_TIME_BETWEEN_BIDS)
+                                                     .add("maxTimeBetweenBidUpdates", 4L * MIN_TIME_BETWEEN_BIDS)
+                                                     .build());
+        MockMatcherAgent mockMatcherAgent = new MockMatcherAgent(AUCTIONEER_ID, CLUSTER_ID, marketBasis);
+        MockDeviceAgent mockAgent = new MockDeviceAgent("testAgent", CONCENTRATOR_ID);
+        assertThat(concentrator.getCoolingOffPeriod(), is(equalTo(-1L)));
+
+        new SimpleSession(concentrator, mockMatcherAgent).connect();
+        new SimpleSession(mockAgent, concentrator).connect();
+        assertThat(concentrator.getCoolingOffPeriod(), is(equalTo((long) MIN_TIME_BETWEEN_BIDS)));
+
+        // A storm of bid updates doubles the period
+        for (int bidNumber = 1; bidNumber <= 20; bidNumber++) {
+            mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, bidNumber), bidNumber));
+        }
+        context.doTaskIfTimeIsRight();
+        assertThat(mockMatcherAgent.getLastReceivedBid().getBid().getMaximumDemand(), is(equalTo(20.0)));
+        assertThat(concentrator.getCoolingOffPeriod(), is(equalTo(2L * MIN_TIME_BETWEEN_BIDS)));
+
+        // Which is used for the next bid update
+        mockAgent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 21), 21));
+        assertThat(context.getScheduleTime(), is(equalTo(context.currentTimeMillis() + 2 * MIN_TIME_BETWEEN_BIDS)));
+
+        // A single bid update halves it again
+        context.jump(2 * MIN_TIME_BETWEEN_BIDS);
+        context.doTaskIfTimeIsRight();
+        assertThat(mockMatcherAgent.getLastReceivedBid().getBid().getMaximumDemand(), is(equalTo(21.0)));
+        assertThat(concentrator.getCoolingOffPeriod(), is(equalTo((long) MIN_TIME_BETWEEN_BIDS)));
+    }
 }
@@ -0,0 +1,232 @@
+package net.powermatcher.core.journal.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.BaseMatcherEndpoint;
+import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.core.journal.MarketJournal;
+import net.powermatcher.mock.MockContext;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+
+/**
+ * JUnit tests for the {@link MarketJournal} class.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class MarketJournalTest {
+
+    private static final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 5, 0, 10);
+    private static final String AUCTIONEER_ID = "auctioneer";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BidUpdate bidUpdate(double demand, int bidNumber) {
+        return new BidUpdate(Bid.flatDemand(marketBasis, demand), bidNumber);
+    }
+
+    private static class RecordingHandler
+        implements MarketJournal.RecordHandler {
+        private final List<String> records = new ArrayList<String>();
+
+        @Override
+        public void handleBid(long timestamp, String agentId, BidUpdate bidUpdate) {
+            records.add("bid " + timestamp + " " + agentId + " " + bidUpdate.getBidNumber() + " "
+                        + bidUpdate.getBid().getMaximumDemand());
+        }
+
+        @Override
+        public void handlePrice(long timestamp, String sessionId, PriceUpdate priceUpdate) {
+            records.add("price " + timestamp + " " + sessionId + " " + priceUpdate.getBidNumber() + " "
+                        + priceUpdate.getPrice().getPriceValue());
+        }
+
+        @Override
+        public void handleRemove(long timestamp, String agentId) {
+            records.add("remove " + timestamp + " " + agentId);
+        }
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        MarketJournal journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis);
+        journal.appendBid(1000, "agent1", bidUpdate(100, 1));
+        journal.appendBid(2000, "agent2", bidUpdate(-50, 1));
+        journal.appendPrice(3000, "session1", new PriceUpdate(new Price(marketBasis, 2.5), 1));
+        journal.removeBid(4000, "agent2");
+        journal.close();
+
+        RecordingHandler handler = new RecordingHandler();
+        MarketJournal.replay(folder.getRoot(), AUCTIONEER_ID, marketBasis, handler);
+        assertThat(handler.records.size(), is(equalTo(4)));
+        assertThat(handler.records.get(0), is(equalTo("bid 1000 agent1 1 100.0")));
+        assertThat(handler.records.get(1), is(equalTo("bid 2000 agent2 1 -50.0")));
+        assertThat(handler.records.get(2), is(equalTo("price 3000 session1 1 2.5")));
+        assertThat(handler.records.get(3), is(equalTo("remove 4000 agent2")));
+    }
+
+    @Test
+    public void testLatestBidsAreRestored() throws IOException {
+        MarketJournal journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis);
+        journal.appendBid(1000, "agent1", bidUpdate(100, 1));
+        journal.appendBid(2000, "agent2", bidUpdate(200, 1));
+        journal.appendBid(3000, "agent1", bidUpdate(150, 2));
+        journal.removeBid(4000, "agent2");
+        journal.close();
+
+        journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis);
+        Map<String, BidUpdate> latestBids = journal.getLatestBids();
+        journal.close();
+        assertThat(latestBids.size(), is(equalTo(1)));
+        assertThat(latestBids.get("agent1"), is(equalTo(bidUpdate(150, 2))));
+
+        // A journal of another market basis is not restored
+        MarketBasis otherBasis = new MarketBasis("electricity", "EUR", 10, 0, 10);
+        journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, otherBasis);
+        assertThat(journal.getLatestBids().isEmpty(), is(true));
+        journal.close();
+    }
+
+    @Test
+    public void testOldSegmentsAreRemoved() throws IOException {
+        // Each bid takes about 80 bytes, so a segment holds about 12 of them
+        MarketJournal journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis, 1024, 2);
+        for (int ix = 0; ix < 100; ix++) {
+            journal.appendBid(ix, "agent" + (ix % 5), bidUpdate(ix, ix));
+        }
+        journal.close();
+        assertThat(MarketJournal.findSegments(folder.getRoot(), AUCTIONEER_ID).size(), is(equalTo(2)));
+
+        // The snapshots at the start of the segments keep the latest bids of all the agents
+        journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis, 1024, 2);
+        Map<String, BidUpdate> latestBids = journal.getLatestBids();
+        journal.close();
+        assertThat(latestBids.size(), is(equalTo(5)));
+        for (int ix = 95; ix < 100; ix++) {
+            assertThat(latestBids.get("agent" + (ix % 5)), is(equalTo(bidUpdate(ix, ix))));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws IOException {
+        MarketJournal journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis);
+        journal.appendBid(1000, "agent1", bidUpdate(100, 1));
+        journal.appendBid(2000, "agent1", bidUpdate(200, 2));
+        journal.close();
+
+        // Damage the last record, as if the machine crashed while it was written
+        File segment = MarketJournal.findSegments(folder.getRoot(), AUCTIONEER_ID).get(0);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            long position = file.length() - 1;
+            file.seek(position);
+            while (file.readByte() == 0) {
+                file.seek(--position);
+            }
+            file.seek(position);
+            file.writeByte(0x55);
+        } finally {
+            file.close();
+        }
+
+        journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis);
+        Map<String, BidUpdate> latestBids = journal.getLatestBids();
+        journal.close();
+        assertThat(latestBids.get("agent1"), is(equalTo(bidUpdate(100, 1))));
+    }
+
+    private Auctioneer createAuctioneer(MockContext context) {
+        Auctioneer auctioneer = new Auctioneer();
+        auctioneer.activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                   .clusterId("testCluster")
+                                                   .marketBasis(marketBasis)
+                                                   .minTimeBetweenPriceUpdates(1000)
+                                                   .add("journalLocation", folder.getRoot().getAbsolutePath())
+                                                   .build());
+        auctioneer.setContext(context);
+        return auctioneer;
+    }
+
+    @Test
+    public void testAuctioneerRestoresBidsAtRestart() {
+        MockContext context = new MockContext(0);
+        Auctioneer auctioneer = createAuctioneer(context);
+        MockDeviceAgent agent1 = new MockDeviceAgent("agent1", AUCTIONEER_ID);
+        MockDeviceAgent agent2 = new MockDeviceAgent("agent2", AUCTIONEER_ID);
+        new SimpleSession(agent1, auctioneer).connect();
+        new SimpleSession(agent2, auctioneer).connect();
+        agent1.sendBid(bidUpdate(100, 1));
+        agent2.sendBid(bidUpdate(200, 1));
+        auctioneer.deactivate();
+
+        // The restored bids are aggregated before any agent has connected again
+        auctioneer = createAuctioneer(context);
+        assertThat(auctioneer.aggregate().getMaximumDemand(), is(equalTo(300d)));
+
+        // Only agent1 comes back, the restored bid of agent2 is removed after the grace period
+        new SimpleSession(agent1, auctioneer).connect();
+        context.doTaskOnce();
+        assertThat(auctioneer.aggregate().getMaximumDemand(), is(equalTo(100d)));
+        assertThat(auctioneer.aggregate().getAgentBidReference("agent1"), is(equalTo(1)));
+        assertThat(auctioneer.getJournal().getLatestBids().keySet().contains("agent2"), is(false));
+        auctioneer.deactivate();
+    }
+
+    @Test
+    public void testDisconnectRemovesBidFromJournal() throws IOException {
+        MockContext context = new MockContext(0);
+        Auctioneer auctioneer = createAuctioneer(context);
+        MockDeviceAgent agent1 = new MockDeviceAgent("agent1", AUCTIONEER_ID);
+        MockDeviceAgent agent2 = new MockDeviceAgent("agent2", AUCTIONEER_ID);
+        SimpleSession session1 = new SimpleSession(agent1, auctioneer);
+        session1.connect();
+        new SimpleSession(agent2, auctioneer).connect();
+        agent1.sendBid(bidUpdate(100, 1));
+        agent2.sendBid(bidUpdate(200, 1));
+        session1.disconnect();
+        assertThat(auctioneer.getJournal().getLatestBids().keySet().contains("agent1"), is(false));
+        auctioneer.deactivate();
+
+        // The bid of the connected agent is kept at deactivation, the departed agent does not come back
+        MarketJournal journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis);
+        Map<String, BidUpdate> latestBids = journal.getLatestBids();
+        journal.close();
+        assertThat(latestBids.size(), is(equalTo(1)));
+        assertThat(latestBids.get("agent2"), is(equalTo(bidUpdate(200, 1))));
+    }
+
+    @Test
+    public void testOutdatedBidsAreNotRestored() throws IOException {
+        MarketJournal journal = new MarketJournal(folder.getRoot(), AUCTIONEER_ID, marketBasis);
+        journal.appendBid(0, "agent1", bidUpdate(100, 1));
+        journal.appendBid(BaseMatcherEndpoint.DEFAULT_MAX_RESTORE_AGE, "agent2", bidUpdate(200, 1));
+        journal.close();
+
+        MockContext context = new MockContext(BaseMatcherEndpoint.DEFAULT_MAX_RESTORE_AGE + 1);
+        Auctioneer auctioneer = createAuctioneer(context);
+        assertThat(auctioneer.aggregate().getMaximumDemand(), is(equalTo(200d)));
+        assertThat(auctioneer.getJournal().getLatestBids().keySet().contains("agent1"), is(false));
+        auctioneer.deactivate();
+    }
+}
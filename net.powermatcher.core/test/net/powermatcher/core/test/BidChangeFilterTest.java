@@ -0,0 +1,155 @@
+package net.powermatcher.core.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.core.BaseAgentEndpoint;
+import net.powermatcher.core.BidChangeFilter;
+import net.powermatcher.core.BidChangeFilter.Metric;
+import net.powermatcher.mock.MockMatcherAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.mock.VirtualTimeContext;
+
+/**
+ * JUnit tests for the {@link BidChangeFilter} class.
+ */
+public class BidChangeFilterTest {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("electricity", "EUR", 5, 0, 10);
+
+    /**
+     * An agent that only sends a bid when the test tells it to.
+     */
+    private static class QuietAgent
+        extends BaseAgentEndpoint {
+        QuietAgent() {
+            init("quietAgent", "matcher");
+        }
+
+        void send(Bid bid) {
+            publishBid(bid);
+        }
+    }
+
+    private final Bid lastBid = new Bid(MARKET_BASIS, 100, 50, 0, -50, -100);
+    private final Bid smallChange = new Bid(MARKET_BASIS, 101, 51, 1, -49, -99);
+    private final Bid largeChange = new Bid(MARKET_BASIS, 100, 50, 0, -50, -110);
+
+    @Test
+    public void testExact() {
+        BidChangeFilter filter = BidChangeFilter.EXACT;
+        assertThat(filter.shouldSend(lastBid, 0, lastBid, 0), is(false));
+        assertThat(filter.shouldSend(lastBid, 0, new Bid(MARKET_BASIS, lastBid.getDemand()), 0), is(false));
+        assertThat(filter.shouldSend(lastBid, 0, smallChange, 0), is(true));
+    }
+
+    @Test
+    public void testAbsolute() {
+        BidChangeFilter filter = new BidChangeFilter(Metric.ABSOLUTE, 5, 0);
+        assertThat(filter.shouldSend(lastBid, 0, smallChange, 0), is(false));
+        assertThat(filter.shouldSend(lastBid, 0, largeChange, 0), is(true));
+    }
+
+    @Test
+    public void testRelative() {
+        // 5% of the largest demand of 100
+        BidChangeFilter filter = new BidChangeFilter(Metric.RELATIVE, 0.05, 0);
+        assertThat(filter.shouldSend(lastBid, 0, smallChange, 0), is(false));
+        assertThat(filter.shouldSend(lastBid, 0, largeChange, 0), is(true));
+
+        // Any change from a bid without demand is significant
+        Bid noDemand = Bid.flatDemand(MARKET_BASIS, 0);
+        assertThat(filter.shouldSend(noDemand, 0, Bid.flatDemand(MARKET_BASIS, 0.001), 0), is(true));
+    }
+
+    @Test
+    public void testL1() {
+        // The small change deviates 5 in total, the large change 10
+        BidChangeFilter filter = new BidChangeFilter(Metric.L1, 7, 0);
+        assertThat(filter.shouldSend(lastBid, 0, smallChange, 0), is(false));
+        assertThat(filter.shouldSend(lastBid, 0, largeChange, 0), is(true));
+    }
+
+    @Test
+    public void testMaxStaleness() {
+        BidChangeFilter filter = new BidChangeFilter(Metric.ABSOLUTE, 5, 1000);
+        assertThat(filter.shouldSend(lastBid, 5000, smallChange, 5999), is(false));
+        assertThat(filter.shouldSend(lastBid, 5000, smallChange, 6000), is(true));
+        // An equal bid is never sent
+        assertThat(filter.shouldSend(lastBid, 5000, lastBid, 6000), is(false));
+    }
+
+    @Test
+    public void testHeldBackBidIsSentWhenStale() {
+        VirtualTimeContext context = new VirtualTimeContext(0);
+        QuietAgent agent = new QuietAgent();
+        agent.setContext(context);
+        agent.setBidChangeFilter(new BidChangeFilter(Metric.ABSOLUTE, 5, 1000));
+        MockMatcherAgent matcher = new MockMatcherAgent("matcher", "cluster", MARKET_BASIS);
+        new SimpleSession(agent, matcher).connect();
+
+        agent.send(lastBid);
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(1)));
+        context.runFor(300);
+        agent.send(smallChange);
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(1)));
+
+        // The agent stays quiet, the small change is sent when the first bid gets stale
+        context.runUntil(999);
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(1)));
+        context.runUntil(1000);
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(2)));
+        assertThat(matcher.getLastReceivedBid().getBid(), is(equalTo(smallChange)));
+        assertThat(context.getNextEventTime(), is(equalTo(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testFlushIsCancelledWhenBidIsSent() {
+        VirtualTimeContext context = new VirtualTimeContext(0);
+        QuietAgent agent = new QuietAgent();
+        agent.setContext(context);
+        agent.setBidChangeFilter(new BidChangeFilter(Metric.ABSOLUTE, 5, 1000));
+        MockMatcherAgent matcher = new MockMatcherAgent("matcher", "cluster", MARKET_BASIS);
+        new SimpleSession(agent, matcher).connect();
+
+        agent.send(lastBid);
+        agent.send(smallChange);
+        // Going back to the bid that has been sent leaves nothing to flush
+        agent.send(lastBid);
+        context.runFor(5000);
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(1)));
+
+        agent.send(largeChange);
+        agent.send(new Bid(MARKET_BASIS, 100, 50, 0, -50, -109));
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(2)));
+        assertThat(context.getNextEventTime(), is(equalTo(6000L)));
+
+        // A significant change is sent right away and cancels the flush
+        agent.send(smallChange);
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(3)));
+        assertThat(context.getNextEventTime(), is(equalTo(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testCreate() {
+        BidChangeFilter filter = BidChangeFilter.create("relative", 0.1, 60000);
+        assertThat(filter.getMetric(), is(equalTo(Metric.RELATIVE)));
+        assertThat(filter.getThreshold(), is(equalTo(0.1)));
+        assertThat(filter.getMaxStaleness(), is(equalTo(60000L)));
+        assertThat(BidChangeFilter.create("", 0, 0), is(equalTo(BidChangeFilter.EXACT)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownMetric() {
+        BidChangeFilter.create("average", 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeThreshold() {
+        new BidChangeFilter(Metric.ABSOLUTE, -1, 0);
+    }
+}
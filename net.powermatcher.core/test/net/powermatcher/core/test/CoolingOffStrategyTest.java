@@ -0,0 +1,65 @@
+package net.powermatcher.core.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import net.powermatcher.core.AdaptiveCoolingOffStrategy;
+import net.powermatcher.core.CoolingOffStrategy;
+import net.powermatcher.core.FixedCoolingOffStrategy;
+
+/**
+ * JUnit tests for the {@link FixedCoolingOffStrategy} and {@link AdaptiveCoolingOffStrategy} classes.
+ */
+public class CoolingOffStrategyTest {
+
+    @Test
+    public void testFixed() {
+        CoolingOffStrategy strategy = new FixedCoolingOffStrategy(1000);
+        assertThat(strategy.getInitialPeriod(), is(equalTo(1000L)));
+        assertThat(strategy.nextPeriod(1000, 0, 0), is(equalTo(1000L)));
+        assertThat(strategy.nextPeriod(1000, 1000, 5000), is(equalTo(1000L)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedNegative() {
+        new FixedCoolingOffStrategy(-1);
+    }
+
+    @Test
+    public void testAdaptiveBacksOffOnStorm() {
+        CoolingOffStrategy strategy = new AdaptiveCoolingOffStrategy(100, 1000, 10);
+        assertThat(strategy.getInitialPeriod(), is(equalTo(100L)));
+        assertThat(strategy.nextPeriod(100, 10, 0), is(equalTo(100L)));
+        assertThat(strategy.nextPeriod(100, 11, 0), is(equalTo(200L)));
+        assertThat(strategy.nextPeriod(800, 11, 0), is(equalTo(1000L)));
+    }
+
+    @Test
+    public void testAdaptiveBacksOffOnSlowPublish() {
+        CoolingOffStrategy strategy = new AdaptiveCoolingOffStrategy(100, 1000, 10);
+        assertThat(strategy.nextPeriod(400, 5, 200), is(equalTo(400L)));
+        assertThat(strategy.nextPeriod(400, 5, 201), is(equalTo(800L)));
+    }
+
+    @Test
+    public void testAdaptiveRecoversWhenQuiet() {
+        CoolingOffStrategy strategy = new AdaptiveCoolingOffStrategy(100, 1000, 10);
+        assertThat(strategy.nextPeriod(1000, 1, 0), is(equalTo(500L)));
+        assertThat(strategy.nextPeriod(150, 0, 0), is(equalTo(100L)));
+    }
+
+    @Test
+    public void testAdaptiveFromZero() {
+        CoolingOffStrategy strategy = new AdaptiveCoolingOffStrategy(0, 1000, 10);
+        assertThat(strategy.nextPeriod(0, 20, 0), is(equalTo(1L)));
+        assertThat(strategy.nextPeriod(1, 1, 0), is(equalTo(0L)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAdaptiveMaxBelowMin() {
+        new AdaptiveCoolingOffStrategy(1000, 100);
+    }
+}
@@ -17,7 +17,7 @@ import org.slf4j.LoggerFactory;
 
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.data.Bid;
-import net.powermatcher.api.monitoring.AgentObserver;
+import net.powermatcher.api.monitoring.FilteredAgentObserver;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.api.monitoring.events.AgentEvent;
 import net.powermatcher.api.monitoring.events.AggregatedBidEvent;
@@ -50,7 +50,7 @@ import net.powermatcher.core.BaseAgentEndpoint;
 @Designate(ocd = ObjectiveAgent.Config.class, factory = true)
 public class ObjectiveAgent
     extends BaseAgentEndpoint
-    implements AgentObserver {
+    implements FilteredAgentObserver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ObjectiveAgent.class);
 
@@ -161,9 +161,14 @@ public class ObjectiveAgent
         }
     }
 
+    @Override
+    public boolean isInterestedIn(Class<? extends AgentEvent> eventType, String agentId) {
+        // We are only interested in AggregatedBidEvents, so the Auctioneer does not have to create any other events
+        return AggregatedBidEvent.class.isAssignableFrom(eventType);
+    }
+
     @Override
     public void handleAgentEvent(AgentEvent event) {
-        // We are only interested in AggregatedBidEvents
         if (event instanceof AggregatedBidEvent) {
             handleAggregatedBid(((AggregatedBidEvent) event).getAggregatedBid());
         }
@@ -24,6 +24,7 @@ import net.powermatcher.api.data.PricePoint;
 import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.core.BaseAgentEndpoint;
+import net.powermatcher.core.BidChangeFilter;
 
 /**
  * {@link PVPanelAgent} is a implementation of a {@link BaseAgentEndpoint}. It represents a dummy freezer.
@@ -60,6 +61,17 @@ public class PVPanelAgent
 
         @AttributeDefinition(type = AttributeType.DOUBLE, description = "The maximum value the random demand.")
         double maximumDemand() default -600d;
+
+        @AttributeDefinition(description = "How the deviation of a new bid from the last sent bid is measured: exact, absolute, relative or l1")
+        String bidChangeMeasure() default "exact";
+
+        @AttributeDefinition(type = AttributeType.DOUBLE,
+                             description = "Deviation above which a new bid is sent (in Watt, or a fraction for relative)")
+        double bidChangeThreshold() default 0d;
+
+        @AttributeDefinition(type = AttributeType.LONG,
+                             description = "Maximum time in milliseconds that a changed bid is held back (0 for no limit)")
+        long maxBidStaleness() default 0L;
     }
 
     /**
@@ -88,6 +100,9 @@ public class PVPanelAgent
     @Activate
     public void activate(final Config config) {
         init(config.agentId(), config.desiredParentId());
+        setBidChangeFilter(BidChangeFilter.create(config.bidChangeMeasure(),
+                                                  config.bidChangeThreshold(),
+                                                  config.maxBidStaleness()));
 
         this.config = config;
         minimumDemand = config.minimumDemand();
@@ -1,17 +1,30 @@
 package net.powermatcher.monitoring.csv;
 
 import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.powermatcher.api.monitoring.FilteredAgentObserver;
+import net.powermatcher.api.monitoring.QueuedAgentObserver;
+import net.powermatcher.api.monitoring.QueuedAgentObserver.OverflowPolicy;
 import net.powermatcher.api.monitoring.events.AgentEvent;
 import net.powermatcher.api.monitoring.events.BidUpdateEvent;
 import net.powermatcher.api.monitoring.events.PriceUpdateEvent;
@@ -20,24 +33,40 @@ import net.powermatcher.api.monitoring.events.PriceUpdateEvent;
  * This is the basic class to store incoming {@link AgentEvent}s. Subclasses of this abstract class implements their
  * specific logging method in the dumpLogs() method.
  *
+ * By default the events are handled on the thread of the agent that sends them. When the <code>capacity</code>
+ * property is larger than 0, the events are put in a {@link QueuedAgentObserver} of that capacity and are handled on a
+ * thread of this logger instead, so the agents do not wait for the logger. The <code>overflowPolicy</code> property
+ * determines what happens when that queue is full.
+ *
  * @author FAN
  * @version 2.1
  */
 public abstract class AgentEventLogger
-    extends BaseObserver {
+    extends BaseObserver
+    implements FilteredAgentObserver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AgentEventLogger.class);
 
+    /**
+     * The date format strings in a log file name pattern, which are placed between the delimiter '::'
+     */
+    private static final Pattern FILENAME_DATE_PATTERN = Pattern.compile("::(\\w*)::");
+
     /**
      * The id of this {@link AgentEventLogger} instance
      */
     private String loggerId;
 
     /**
-     * The {@link DateFormat} used to format the dates in a {@link LogRecord}
+     * The {@link DateFormat} that is stored in a {@link LogRecord}
      */
     private DateFormat dateFormat;
 
+    /**
+     * The thread-safe formatter that is used to format the dates when writing the logs
+     */
+    private volatile DateTimeFormatter dateTimeFormatter;
+
     /**
      * A set containing all {@link PriceLogRecord} instances that haven't been written to file yet.
      */
@@ -64,6 +93,13 @@ public abstract class AgentEventLogger
      */
     private AgentEventType eventType;
 
+    /**
+     * The queue between the observed agents and this logger, or <code>null</code> when the events are handled on the
+     * threads of the agents. The eventExecutor delivers the events from the queue.
+     */
+    private QueuedAgentObserver queuedObserver;
+    private ExecutorService eventExecutor;
+
     /**
      * This method will be called by the annotated Activate() method of the subclasses.
      *
@@ -72,9 +108,49 @@ public abstract class AgentEventLogger
      */
     public synchronized void baseActivate(Map<String, Object> properties) {
         processConfig(properties);
+        configureQueue(properties);
         createScheduledFuture();
     }
 
+    /**
+     * Puts a {@link QueuedAgentObserver} between the observed agents and this logger, or removes it, according to the
+     * <code>capacity</code> and <code>overflowPolicy</code> properties. A queue that is replaced keeps delivering the
+     * events that it holds.
+     *
+     * @param properties
+     *            the configuration properties
+     */
+    private void configureQueue(Map<String, Object> properties) {
+        int capacity = properties.containsKey("capacity") ? ((Number) properties.get("capacity")).intValue() : 0;
+        Object policy = properties.get("overflowPolicy");
+        OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        if (policy != null && !policy.toString().isEmpty()) {
+            overflowPolicy = OverflowPolicy.valueOf(policy.toString().toUpperCase(Locale.ROOT));
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity should be at least 0");
+        }
+
+        if (capacity == 0) {
+            queuedObserver = null;
+            setAgentObserver(this);
+            return;
+        } else if (queuedObserver != null && queuedObserver.getCapacity() == capacity
+                   && queuedObserver.getOverflowPolicy() == overflowPolicy) {
+            return;
+        }
+        if (eventExecutor == null) {
+            // A thread of its own, since the threads of the agents may wait for it when the policy is BLOCK
+            eventExecutor = Executors.newSingleThreadExecutor();
+        }
+        queuedObserver = new QueuedAgentObserver(this,
+                                                 eventExecutor,
+                                                 capacity,
+                                                 overflowPolicy,
+                                                 QueuedAgentObserver.DEFAULT_SAMPLE_INTERVAL);
+        setAgentObserver(queuedObserver);
+    }
+
     /**
      * Sets the scheduledFuture
      */
@@ -99,6 +175,22 @@ public abstract class AgentEventLogger
         }, 0, logUpdateRate, TimeUnit.SECONDS);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Only the events of the configured {@link AgentEventType} are of interest, so the observed agents do not have to
+     * create the other events.
+     */
+    @Override
+    public boolean isInterestedIn(Class<? extends AgentEvent> type, String agentId) {
+        AgentEventType currentEventType = eventType;
+        if (currentEventType == null || !currentEventType.getClassType().isAssignableFrom(type)) {
+            return false;
+        }
+        List<String> filter = getFilter();
+        return filter == null || filter.isEmpty() || filter.contains(agentId);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -118,7 +210,7 @@ public abstract class AgentEventLogger
             }
 
             addLogRecord(logRecord);
-            getLogger().info("AgentEventLogger [{}] received event: {}", getLoggerId(), event);
+            getLogger().debug("AgentEventLogger [{}] received event: {}", getLoggerId(), event);
         }
     }
 
@@ -126,9 +218,36 @@ public abstract class AgentEventLogger
      * This method will be called by the annotated Deactivate() method of the subclasses.
      */
     public void baseDeactivate() {
-        scheduledFuture.cancel(false);
-        scheduler.shutdownNow();
-        scheduler = null;
+        // The scheduler does not exist yet when the activation has failed on the configuration
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+            scheduledFuture = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+
+        ExecutorService executor;
+        synchronized (this) {
+            executor = eventExecutor;
+            eventExecutor = null;
+            if (queuedObserver != null) {
+                queuedObserver = null;
+                setAgentObserver(this);
+            }
+        }
+        if (executor != null) {
+            // Let the queue deliver the events that it holds, so the subclass can still write them
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    LOGGER.warn("AgentEventLogger [{}] did not handle all the queued events", loggerId);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
@@ -139,6 +258,7 @@ public abstract class AgentEventLogger
      */
     public synchronized void baseModified(Map<String, Object> properties) {
         processConfig(properties);
+        configureQueue(properties);
         createScheduledFuture();
     }
 
@@ -178,6 +298,47 @@ public abstract class AgentEventLogger
         this.dateFormat = dateFormat;
     }
 
+    /**
+     * Fills in the date in a log file name pattern. The date format strings in the pattern are placed between the
+     * delimiter '::', for example <code>event_log_::yyyyMMdd::.csv</code>.
+     *
+     * @param filenamePattern
+     *            the pattern of the file name
+     * @param date
+     *            the date that is filled in
+     * @return the file name
+     */
+    protected static String resolveFilename(String filenamePattern, Date date) {
+        Matcher matcher = FILENAME_DATE_PATTERN.matcher(filenamePattern);
+        StringBuffer fileName = new StringBuffer();
+        while (matcher.find()) {
+            String formattedDate = new SimpleDateFormat(matcher.group(1)).format(date);
+            matcher.appendReplacement(fileName, Matcher.quoteReplacement(formattedDate));
+        }
+        matcher.appendTail(fileName);
+        return fileName.toString();
+    }
+
+    /**
+     * @param pattern
+     *            the pattern of the {@link DateTimeFormatter} that is used by {@link #formatDate(Date)}, which formats in
+     *            the default time zone
+     */
+    protected void setDateTimeFormatter(String pattern) {
+        dateTimeFormatter = DateTimeFormatter.ofPattern(pattern).withZone(ZoneId.systemDefault());
+    }
+
+    /**
+     * Formats a date with the configured pattern. Unlike a {@link DateFormat}, this can be called from any thread.
+     *
+     * @param date
+     *            the date that has to be formatted
+     * @return the formatted date
+     */
+    protected String formatDate(Date date) {
+        return dateTimeFormatter.format(date.toInstant());
+    }
+
     /**
      * @return the current value of loggerId.
      */
@@ -224,6 +385,20 @@ public abstract class AgentEventLogger
         logRecords.remove(logRecord);
     }
 
+    /**
+     * Moves the {@link LogRecord}s that have not been written yet to a collection, in the order in which they were
+     * added. This takes the records in a single batch, instead of removing them one by one.
+     *
+     * @param target
+     *            the collection to which the {@link LogRecord}s are added
+     * @param maxRecords
+     *            the maximum number of {@link LogRecord}s that are moved
+     * @return the number of {@link LogRecord}s that have been moved
+     */
+    protected int drainLogRecords(Collection<? super LogRecord> target, int maxRecords) {
+        return logRecords.drainTo(target, maxRecords);
+    }
+
     /**
      * Adds the given {@link LogRecord} from logRecords.
      *
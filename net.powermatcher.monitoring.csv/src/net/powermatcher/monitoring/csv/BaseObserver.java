@@ -36,11 +36,47 @@ public abstract class BaseObserver implements AgentObserver {
      */
     private ConcurrentMap<String, ObservableAgent> observing = new ConcurrentHashMap<String, ObservableAgent>();
 
+    /**
+     * The {@link AgentObserver} that is added to the {@link ObservableAgent}s, which is this observer itself unless it
+     * has been replaced by a wrapper such as a {@link net.powermatcher.api.monitoring.QueuedAgentObserver}.
+     */
+    private volatile AgentObserver agentObserver = this;
+
     /**
      * Filter containing all observableId's which must be observed.
      */
     protected abstract List<String> getFilter();
 
+    /**
+     * @return the {@link AgentObserver} that is added to the observed {@link ObservableAgent}s
+     */
+    protected AgentObserver getAgentObserver() {
+        return agentObserver;
+    }
+
+    /**
+     * Replaces the {@link AgentObserver} that is added to the {@link ObservableAgent}s, for example by a wrapper that
+     * delivers the events to this observer on another thread. The observed {@link ObservableAgent}s are switched over
+     * right away.
+     *
+     * @param agentObserver
+     *            the new {@link AgentObserver}
+     */
+    protected synchronized void setAgentObserver(AgentObserver agentObserver) {
+        if (agentObserver == null) {
+            throw new NullPointerException("agentObserver");
+        }
+        AgentObserver previous = this.agentObserver;
+        if (previous == agentObserver) {
+            return;
+        }
+        this.agentObserver = agentObserver;
+        for (ObservableAgent observable : observing.values()) {
+            observable.addObserver(agentObserver);
+            observable.removeObserver(previous);
+        }
+    }
+
     /**
      * Add an {@link ObservableAgent} to the list of available {@link ObservableAgent} services
      * 
@@ -71,7 +107,7 @@ public abstract class BaseObserver implements AgentObserver {
 
         // Check whether actually observing and remove
         if (observing.get(agentId) == observable) {
-            observable.removeObserver(this);
+            observable.removeObserver(agentObserver);
         }
     }
 
@@ -91,7 +127,7 @@ public abstract class BaseObserver implements AgentObserver {
                 // Remove observer when still observing
                 if (this.observing.containsKey(observableId)) {
                     ObservableAgent toRemove = this.observing.remove(observableId);
-                    toRemove.removeObserver(this);
+                    toRemove.removeObserver(agentObserver);
                     LOGGER.info("Detached from observable [{}]", observableId);
                 }
 
@@ -112,7 +148,7 @@ public abstract class BaseObserver implements AgentObserver {
         // Only attach to new observers
         if (!this.observing.containsKey(observableId)) {
             ObservableAgent observable = this.observables.get(observableId);
-            observable.addObserver(this);
+            observable.addObserver(agentObserver);
             observing.put(observableId, observable);
             LOGGER.info("Attached to observable [{}]", observableId);
         }
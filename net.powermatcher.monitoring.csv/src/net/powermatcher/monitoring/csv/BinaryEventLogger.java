@@ -0,0 +1,503 @@
+package net.powermatcher.monitoring.csv;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.AttributeType;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.monitoring.ObservableAgent;
+import net.powermatcher.api.monitoring.events.AgentEvent;
+import net.powermatcher.monitoring.csv.BinaryLogFormat.Column;
+
+/**
+ * {@link BinaryEventLogger} is an implementation of {@link AgentEventLogger} where the {@link AgentEvent}s are logged
+ * in the columnar binary format that is described in {@link BinaryLogFormat}. The log files are much smaller than the
+ * files of the {@link CSVLogger} and can be read back with the {@link BinaryLogReader}.
+ *
+ * Each dump writes the waiting {@link LogRecord}s in blocks of at most {@link #BLOCK_SIZE} records and flushes the file
+ * once at the end. Like the {@link CSVLogger}, a new file is started when the date in the logFilenamePattern changes.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+@Component(immediate = true)
+@Designate(ocd = BinaryEventLogger.Config.class, factory = true)
+public class BinaryEventLogger
+    extends AgentEventLogger {
+
+    /**
+     * The maximum number of {@link LogRecord}s in a block
+     */
+    public static final int BLOCK_SIZE = 1024;
+
+    /**
+     * OSGI configuration of the {@link BinaryEventLogger}
+     */
+    @ObjectClassDefinition
+    public @interface Config {
+        @AttributeDefinition(required = false,
+                             description = "Filter for specific agentId's. When no filters are supplied, it will log everything.")
+        String[] filter();
+
+        @AttributeDefinition(name = "eventType", description = "The AgentEventType this logger has to log.")
+        AgentEventType eventType();
+
+        @AttributeDefinition(description = "The pattern for the file name of the log file. "
+                                           + "Dataformat strings are placed between the delimeter '::'")
+        String logFilenamePattern() default "event_log_::yyyyMMdd::.pmlog";
+
+        @AttributeDefinition(required = true, description = "The location of the log files.")
+        String logLocation();
+
+        @AttributeDefinition(type = AttributeType.LONG, description = "Time in seconds between file dumps.")
+        long logUpdateRate() default 30L;
+
+        @AttributeDefinition
+        String loggerId() default "binaryLogger";
+
+        @AttributeDefinition(required = false,
+                             description = "The maximum number of events that wait to be logged, or 0 to log the "
+                                           + "events on the thread of the agent that sends them.")
+        int capacity() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "What happens with a new event when the queue is full: DROP_OLDEST, BLOCK "
+                                           + "or SAMPLE.")
+        String overflowPolicy() default "DROP_OLDEST";
+    }
+
+    /**
+     * The filter containing the {@link ObservableAgent}s that have to be monitored
+     */
+    private List<String> filter;
+
+    /**
+     * The pattern and the location of the log files
+     */
+    private String logFilenamePattern;
+    private String logLocation;
+
+    /**
+     * The file that is written to and its output, which stays open between dumps. The output is <code>null</code>
+     * when the file is closed.
+     */
+    private File logFile;
+    private DataOutputStream output;
+
+    /**
+     * The dictionary of the strings and the market bases that have been written since the file has been opened
+     */
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final Map<MarketBasis, Integer> marketBases = new HashMap<MarketBasis, Integer>();
+
+    /**
+     * The buffers of a block, which are reused between blocks
+     */
+    private final ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+    private final DataOutputStream dictionaryOutput = new DataOutputStream(dictionaryBytes);
+    private final List<String> newStrings = new ArrayList<String>();
+    private final List<MarketBasis> newMarketBases = new ArrayList<MarketBasis>();
+    private final ByteArrayOutputStream[] columnBytes = new ByteArrayOutputStream[Column.values().length];
+    private final DataOutputStream[] columnOutputs = new DataOutputStream[Column.values().length];
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    private final DataOutputStream blockOutput = new DataOutputStream(blockBytes);
+    private final List<LogRecord> batch = new ArrayList<LogRecord>();
+    private final CRC32 checksum = new CRC32();
+
+    /**
+     * Creates a new {@link BinaryEventLogger}.
+     */
+    public BinaryEventLogger() {
+        for (int ix = 0; ix < columnBytes.length; ix++) {
+            columnBytes[ix] = new ByteArrayOutputStream();
+            columnOutputs[ix] = new DataOutputStream(columnBytes[ix]);
+        }
+    }
+
+    /**
+     * OSGi calls this method to activate a managed service.
+     *
+     * @param properties
+     *            the configuration properties
+     */
+    @Activate
+    public synchronized void activate(Map<String, Object> properties) {
+        super.baseActivate(properties);
+        getLogger().info("BinaryEventLogger [{}], activated", getLoggerId());
+    }
+
+    /**
+     * OSGi calls this method to deactivate a managed service.
+     */
+    @Deactivate
+    public void deactivate() {
+        super.baseDeactivate();
+        synchronized (this) {
+            // Write what is left before the file is closed
+            dumpLogs();
+            closeLogFile();
+        }
+        getLogger().info("BinaryEventLogger [{}], deactivated", getLoggerId());
+    }
+
+    /**
+     * OSGi calls this method to modify a managed service.
+     *
+     * @param properties
+     *            the configuration properties
+     */
+    @Modified
+    public synchronized void modified(Map<String, Object> properties) {
+        super.baseModified(properties);
+        getLogger().info("BinaryEventLogger [{}], modified", getLoggerId());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Reference(policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.MULTIPLE)
+    public void addObservable(ObservableAgent observable, Map<String, Object> properties) {
+        super.addObservable(observable, properties);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeObservable(ObservableAgent observable, Map<String, Object> properties) {
+        super.removeObservable(observable, properties);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void processConfig(Map<String, Object> properties) {
+        String[] filterArray = (String[]) properties.get("filter");
+        filter = filterArray == null ? new ArrayList<String>() : Arrays.asList(filterArray);
+
+        // ConfigAdmin will sometimes generate a filter with 1 empty element.
+        // Ignore it.
+        if (!filter.isEmpty() && filter.get(0).isEmpty()) {
+            filter = new ArrayList<String>();
+        }
+
+        setEventType((AgentEventType) properties.get("eventType"));
+        setLogUpdateRate((Long) properties.get("logUpdateRate"));
+        setLoggerId((String) properties.get("loggerId"));
+        // The records keep a date format, although it is not used for the binary format
+        setDateFormat(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+
+        synchronized (this) {
+            // The records of the old configuration still go to the old file
+            dumpLogs();
+            closeLogFile();
+            logFilenamePattern = (String) properties.get("logFilenamePattern");
+            logLocation = (String) properties.get("logLocation");
+            logFile = createLogFile(new Date());
+            openLogFile();
+        }
+        updateObservables();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected List<String> getFilter() {
+        return filter;
+    }
+
+    private File createLogFile(Date date) {
+        return new File(logLocation + File.separator + resolveFilename(logFilenamePattern, date));
+    }
+
+    /**
+     * Opens the logFile for appending. A new file starts with the magic bytes, and every session starts with a header
+     * frame that resets the dictionary. An incomplete frame at the end of an existing file is cut off first.
+     *
+     * @return <code>true</code> when the file has been opened
+     */
+    private boolean openLogFile() {
+        try {
+            boolean newFile = !logFile.exists() || truncateIncompleteFrame() == 0;
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true), 64 * 1024));
+            if (newFile) {
+                output.write(BinaryLogFormat.MAGIC);
+            }
+            output.writeByte(BinaryLogFormat.HEADER_FRAME);
+            BinaryLogFormat.writeVarLong(output, BinaryLogFormat.VERSION);
+            BinaryLogFormat.writeVarLong(output, getEventType().ordinal());
+        } catch (IOException e) {
+            getLogger().error("Could not open binary log file " + logFile, e);
+            closeLogFile();
+            return false;
+        }
+        strings.clear();
+        marketBases.clear();
+        return true;
+    }
+
+    /**
+     * Finds the end of the last complete frame of the logFile and cuts off what follows, which is what is left of a
+     * frame that was being written when the process stopped. Without this, a reader would take the frames of the next
+     * session for the rest of that frame.
+     *
+     * @return the length of the file after the truncation, which is 0 when it did not even hold the magic bytes
+     * @throws IOException
+     *             when the file could not be read or is not a binary log
+     */
+    private long truncateIncompleteFrame() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            long length = file.length();
+            byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+            if (length < magic.length) {
+                file.setLength(0);
+                return 0;
+            }
+            file.readFully(magic);
+            if (!Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+                throw new IOException(logFile + " is not a binary log");
+            }
+
+            long complete = file.getFilePointer();
+            int version = 0;
+            try {
+                while (complete < length) {
+                    int type = file.readUnsignedByte();
+                    if (type == BinaryLogFormat.HEADER_FRAME) {
+                        version = (int) BinaryLogFormat.readVarLong(file);
+                        BinaryLogFormat.readVarLong(file);
+                    } else if (type == BinaryLogFormat.BLOCK_FRAME && version > 0) {
+                        long blockLength = BinaryLogFormat.readVarLong(file);
+                        if (blockLength < 0 || blockLength > length) {
+                            break;
+                        }
+                        long end = file.getFilePointer() + blockLength
+                                   + (version >= BinaryLogFormat.CHECKSUM_VERSION ? 4 : 0);
+                        if (end > length) {
+                            break;
+                        }
+                        file.seek(end);
+                    } else {
+                        break;
+                    }
+                    complete = file.getFilePointer();
+                }
+            } catch (EOFException e) {
+                // The last frame is incomplete
+            }
+
+            if (complete < length) {
+                getLogger().warn("Cutting off {} bytes of an incomplete frame at the end of {}",
+                                 length - complete,
+                                 logFile);
+                file.setLength(complete);
+            }
+            return complete;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Closes the logFile, if it is open.
+     */
+    private void closeLogFile() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                getLogger().error("Error while closing binary log file", e);
+            }
+            output = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void dumpLogs() {
+        if (logFile == null) {
+            return;
+        }
+        File currentLogFile = createLogFile(new Date());
+        if (!currentLogFile.equals(logFile)) {
+            closeLogFile();
+            logFile = currentLogFile;
+        }
+        if (output == null && !openLogFile()) {
+            // The records stay in the queue until the file can be opened
+            return;
+        }
+
+        int written = 0;
+        try {
+            while (drainLogRecords(batch, BLOCK_SIZE) > 0) {
+                written += writeBlock(batch);
+                batch.clear();
+            }
+            output.flush();
+        } catch (IOException e) {
+            // The records of the failed block are lost, the file is opened again at the next dump
+            getLogger().error("Error while writing to binary log file", e);
+            batch.clear();
+            closeLogFile();
+            return;
+        }
+        if (written > 0) {
+            getLogger().debug("BinaryEventLogger [{}] wrote {} records to {}", getLoggerId(), written, logFile);
+        }
+    }
+
+    /**
+     * Encodes the records in the columns of a block and writes the block frame.
+     *
+     * @return the number of records that have been written
+     */
+    private int writeBlock(List<LogRecord> records) throws IOException {
+        dictionaryBytes.reset();
+        newStrings.clear();
+        newMarketBases.clear();
+        for (ByteArrayOutputStream bytes : columnBytes) {
+            bytes.reset();
+        }
+
+        long previousTimestamp = 0;
+        long previousValue = 0;
+        int count = 0;
+        for (LogRecord record : records) {
+            int bidNumber;
+            MarketBasis marketBasis;
+            Bid bid = null;
+            Price price = null;
+            if (getEventType() == AgentEventType.BID_EVENT && record instanceof BidUpdateLogRecord) {
+                bidNumber = ((BidUpdateLogRecord) record).getBidUpdate().getBidNumber();
+                bid = ((BidUpdateLogRecord) record).getBidUpdate().getBid();
+                marketBasis = bid.getMarketBasis();
+            } else if (getEventType() == AgentEventType.PRICE_EVENT && record instanceof PriceUpdateLogRecord) {
+                bidNumber = ((PriceUpdateLogRecord) record).getPriceUpdate().getBidNumber();
+                price = ((PriceUpdateLogRecord) record).getPriceUpdate().getPrice();
+                marketBasis = price.getMarketBasis();
+            } else {
+                continue;
+            }
+
+            long timestamp = record.getEventTimestamp().getTime();
+            BinaryLogFormat.writeSignedVarLong(columnOutputs[Column.TIMESTAMP.ordinal()],
+                                               timestamp - previousTimestamp);
+            previousTimestamp = timestamp;
+            BinaryLogFormat.writeSignedVarLong(columnOutputs[Column.LOG_TIME.ordinal()],
+                                               record.getLogTime().getTime() - timestamp);
+            BinaryLogFormat.writeVarLong(columnOutputs[Column.CLUSTER_ID.ordinal()],
+                                         stringIndex(record.getClusterId()));
+            BinaryLogFormat.writeVarLong(columnOutputs[Column.AGENT_ID.ordinal()], stringIndex(record.getAgentId()));
+            BinaryLogFormat.writeSignedVarLong(columnOutputs[Column.BID_NUMBER.ordinal()], bidNumber);
+            BinaryLogFormat.writeVarLong(columnOutputs[Column.MARKET_BASIS.ordinal()], marketBasisIndex(marketBasis));
+
+            DataOutputStream values = columnOutputs[Column.VALUES.ordinal()];
+            if (bid != null) {
+                for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+                    previousValue = BinaryLogFormat.writeXorDouble(values, previousValue, bid.getDemandAt(ix));
+                }
+            } else {
+                previousValue = BinaryLogFormat.writeXorDouble(values, previousValue, price.getPriceValue());
+            }
+            count++;
+        }
+
+        BinaryLogFormat.writeVarLong(dictionaryOutput, newStrings.size());
+        for (String string : newStrings) {
+            dictionaryOutput.writeUTF(string);
+        }
+        BinaryLogFormat.writeVarLong(dictionaryOutput, newMarketBases.size());
+        for (MarketBasis marketBasis : newMarketBases) {
+            BinaryLogFormat.writeVarLong(dictionaryOutput, strings.get(marketBasis.getCommodity()));
+            BinaryLogFormat.writeVarLong(dictionaryOutput, strings.get(marketBasis.getCurrency()));
+            BinaryLogFormat.writeVarLong(dictionaryOutput, marketBasis.getPriceSteps());
+            dictionaryOutput.writeDouble(marketBasis.getMinimumPrice());
+            dictionaryOutput.writeDouble(marketBasis.getMaximumPrice());
+        }
+
+        blockBytes.reset();
+        BinaryLogFormat.writeVarLong(blockOutput, count);
+        BinaryLogFormat.writeVarLong(blockOutput, dictionaryBytes.size());
+        dictionaryBytes.writeTo(blockOutput);
+        for (ByteArrayOutputStream bytes : columnBytes) {
+            BinaryLogFormat.writeVarLong(blockOutput, bytes.size());
+            bytes.writeTo(blockOutput);
+        }
+
+        byte[] block = blockBytes.toByteArray();
+        checksum.reset();
+        checksum.update(block);
+        output.writeByte(BinaryLogFormat.BLOCK_FRAME);
+        BinaryLogFormat.writeVarLong(output, block.length);
+        output.write(block);
+        output.writeInt((int) checksum.getValue());
+        return count;
+    }
+
+    /**
+     * @return the index of the string in the dictionary plus 1, or 0 for <code>null</code>. A string that is not in
+     *         the dictionary yet is added to the new strings of the block.
+     */
+    private int stringIndex(String string) {
+        if (string == null) {
+            return 0;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size() + 1;
+            strings.put(string, index);
+            newStrings.add(string);
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the market basis in the dictionary. A market basis that is not in the dictionary yet is
+     *         added to the new market bases of the block.
+     */
+    private int marketBasisIndex(MarketBasis marketBasis) {
+        Integer index = marketBases.get(marketBasis);
+        if (index == null) {
+            stringIndex(marketBasis.getCommodity());
+            stringIndex(marketBasis.getCurrency());
+            index = marketBases.size();
+            marketBases.put(marketBasis, index);
+            newMarketBases.add(marketBasis);
+        }
+        return index;
+    }
+}
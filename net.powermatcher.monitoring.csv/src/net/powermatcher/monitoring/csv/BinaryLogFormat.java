@@ -0,0 +1,229 @@
+package net.powermatcher.monitoring.csv;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The constants and the encodings of the columnar binary event log that is written by the {@link BinaryEventLogger}
+ * and read by the {@link BinaryLogReader}.
+ *
+ * A log file starts with the {@link #MAGIC} bytes, followed by frames. Each frame starts with a type byte:
+ * <ul>
+ * <li>{@link #HEADER_FRAME}: the format version and the ordinal of the {@link AgentEventType}. A header frame is
+ * written each time the file is opened and resets the dictionary, so a new session can append to a file.</li>
+ * <li>{@link #BLOCK_FRAME}: the length of the block, the number of records, the dictionary entries that are new in
+ * this block and then each {@link Column}, prefixed by its length in bytes, followed by the CRC-32 of the block. A
+ * reader skips the columns it does not need. The blocks of version 1 have no checksum.</li>
+ * </ul>
+ *
+ * A frame that has not been written completely, because the process stopped while writing it, is cut off by the
+ * {@link BinaryEventLogger} before it appends a new session, so the frames of that session can be found again.
+ *
+ * The columns are encoded as follows:
+ * <ul>
+ * <li>Timestamps are delta-encoded against the previous record in the block (the first against 0), as zigzag
+ * varints.</li>
+ * <li>Cluster and agent ids refer to the strings in the dictionary, which is shared by all the blocks after a header
+ * frame. The market bases are kept in the dictionary as well.</li>
+ * <li>The demand of the bids (or the price of the price updates) is XOR-ed against the previous value in the block.
+ * Equal values, which are common in the flat parts of a bid and in repeated bids, cost a single byte.</li>
+ * </ul>
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public final class BinaryLogFormat {
+
+    /**
+     * The bytes at the start of a log file
+     */
+    public static final byte[] MAGIC = { 'P', 'M', 'E', 'L' };
+
+    /**
+     * The version of the format
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The first version of which the blocks end with a checksum
+     */
+    public static final int CHECKSUM_VERSION = 2;
+
+    /**
+     * The type byte of a header frame
+     */
+    public static final int HEADER_FRAME = 1;
+
+    /**
+     * The type byte of a block frame
+     */
+    public static final int BLOCK_FRAME = 2;
+
+    /**
+     * The columns of a block, in the order in which they are stored.
+     */
+    public enum Column {
+        /**
+         * The timestamps of the events
+         */
+        TIMESTAMP,
+        /**
+         * The difference between the log time and the timestamp of the events
+         */
+        LOG_TIME,
+        /**
+         * The dictionary indices of the cluster ids
+         */
+        CLUSTER_ID,
+        /**
+         * The dictionary indices of the agent ids
+         */
+        AGENT_ID,
+        /**
+         * The bid numbers
+         */
+        BID_NUMBER,
+        /**
+         * The dictionary indices of the market bases
+         */
+        MARKET_BASIS,
+        /**
+         * The demand arrays of the bids, or the price values of the price updates
+         */
+        VALUES
+    }
+
+    private BinaryLogFormat() {
+    }
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte.
+     *
+     * @param out
+     *            the output
+     * @param value
+     *            the value, which is treated as unsigned
+     * @throws IOException
+     *             when the value could not be written
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.writeByte((int) (remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    /**
+     * Reads an unsigned variable length integer that has been written by {@link #writeVarLong(DataOutput, long)}.
+     *
+     * @param in
+     *            the input
+     * @return the value
+     * @throws IOException
+     *             when the value could not be read
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Writes a signed integer as a zigzag encoded varint, so small negative values take few bytes as well.
+     *
+     * @param out
+     *            the output
+     * @param value
+     *            the value
+     * @throws IOException
+     *             when the value could not be written
+     */
+    public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads a signed integer that has been written by {@link #writeSignedVarLong(DataOutput, long)}.
+     *
+     * @param in
+     *            the input
+     * @return the value
+     * @throws IOException
+     *             when the value could not be read
+     */
+    public static long readSignedVarLong(DataInput in) throws IOException {
+        long encoded = readVarLong(in);
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+
+    /**
+     * Writes a double as the XOR with the previous value. The control byte holds the number of leading zero bytes of
+     * the XOR in its high nibble and the number of significant bytes in its low nibble, followed by the significant
+     * bytes. A control byte of 0 means that the value is equal to the previous value.
+     *
+     * @param out
+     *            the output
+     * @param previous
+     *            the raw bits of the previous value
+     * @param value
+     *            the value
+     * @return the raw bits of the value, to be passed as the previous value of the next call
+     * @throws IOException
+     *             when the value could not be written
+     */
+    public static long writeXorDouble(DataOutput out, long previous, double value) throws IOException {
+        long bits = Double.doubleToRawLongBits(value);
+        long xor = bits ^ previous;
+        if (xor == 0) {
+            out.writeByte(0);
+            return bits;
+        }
+        int leading = Long.numberOfLeadingZeros(xor) / 8;
+        int trailing = Long.numberOfTrailingZeros(xor) / 8;
+        int length = 8 - leading - trailing;
+        out.writeByte(leading << 4 | length);
+        long significant = xor >>> (trailing * 8);
+        for (int ix = length - 1; ix >= 0; ix--) {
+            out.writeByte((int) (significant >>> (ix * 8)));
+        }
+        return bits;
+    }
+
+    /**
+     * Reads a double that has been written by {@link #writeXorDouble(DataOutput, long, double)}.
+     *
+     * @param in
+     *            the input
+     * @param previous
+     *            the raw bits of the previous value
+     * @return the raw bits of the value
+     * @throws IOException
+     *             when the value could not be read
+     */
+    public static long readXorDouble(DataInput in, long previous) throws IOException {
+        int control = in.readUnsignedByte();
+        if (control == 0) {
+            return previous;
+        }
+        int leading = control >>> 4;
+        int length = control & 0x0F;
+        if (length < 1 || leading + length > 8) {
+            throw new IOException("Malformed XOR control byte " + control);
+        }
+        long significant = 0;
+        for (int ix = 0; ix < length; ix++) {
+            significant = significant << 8 | in.readUnsignedByte();
+        }
+        int trailing = 8 - leading - length;
+        return previous ^ (significant << (trailing * 8));
+    }
+}
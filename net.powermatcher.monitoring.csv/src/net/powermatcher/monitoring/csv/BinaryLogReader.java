@@ -0,0 +1,448 @@
+package net.powermatcher.monitoring.csv;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.monitoring.csv.BinaryLogFormat.Column;
+
+/**
+ * {@link BinaryLogReader} reads a log file that has been written by the {@link BinaryEventLogger}, one
+ * {@link Entry} at a time. Only the {@link Column}s that are asked for are decoded, the others are skipped, so reading
+ * only the agent ids of a log costs a fraction of reading the bids.
+ *
+ * A block that has been cut off, for example because the logger was stopped while writing it, ends the log. A block
+ * of which the checksum does not match is corrupt and makes {@link #next()} throw an {@link IOException}.
+ *
+ * This class is not thread-safe.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class BinaryLogReader
+    implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BinaryLogReader.class);
+
+    /**
+     * A record of the log. The values of the columns that have not been read are <code>null</code>.
+     */
+    public static final class Entry {
+        private final Date timestamp;
+        private final Date logTime;
+        private final String clusterId;
+        private final String agentId;
+        private final Integer bidNumber;
+        private final MarketBasis marketBasis;
+        private final Bid bid;
+        private final Price price;
+
+        Entry(Date timestamp,
+              Date logTime,
+              String clusterId,
+              String agentId,
+              Integer bidNumber,
+              MarketBasis marketBasis,
+              Bid bid,
+              Price price) {
+            this.timestamp = timestamp;
+            this.logTime = logTime;
+            this.clusterId = clusterId;
+            this.agentId = agentId;
+            this.bidNumber = bidNumber;
+            this.marketBasis = marketBasis;
+            this.bid = bid;
+            this.price = price;
+        }
+
+        /**
+         * @return the timestamp of the event, from the {@link Column#TIMESTAMP} column
+         */
+        public Date getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the time at which the event has been logged, which needs the {@link Column#TIMESTAMP} and
+         *         {@link Column#LOG_TIME} columns
+         */
+        public Date getLogTime() {
+            return logTime;
+        }
+
+        /**
+         * @return the cluster id, from the {@link Column#CLUSTER_ID} column
+         */
+        public String getClusterId() {
+            return clusterId;
+        }
+
+        /**
+         * @return the agent id, from the {@link Column#AGENT_ID} column
+         */
+        public String getAgentId() {
+            return agentId;
+        }
+
+        /**
+         * @return the bid number of the bid or the price update, from the {@link Column#BID_NUMBER} column
+         */
+        public Integer getBidNumber() {
+            return bidNumber;
+        }
+
+        /**
+         * @return the market basis, from the {@link Column#MARKET_BASIS} column
+         */
+        public MarketBasis getMarketBasis() {
+            return marketBasis;
+        }
+
+        /**
+         * @return the bid of a bid event, from the {@link Column#VALUES} column
+         */
+        public Bid getBid() {
+            return bid;
+        }
+
+        /**
+         * @return the price of a price event, from the {@link Column#VALUES} column
+         */
+        public Price getPrice() {
+            return price;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [timestamp=" + timestamp + ", clusterId=" + clusterId + ", agentId=" + agentId
+                   + ", bidNumber=" + bidNumber + ", bid=" + bid + ", price=" + price + "]";
+        }
+    }
+
+    private final DataInputStream input;
+    private final Set<Column> columns;
+
+    /**
+     * The dictionary since the last header frame
+     */
+    private final List<String> strings = new ArrayList<String>();
+    private final List<MarketBasis> marketBases = new ArrayList<MarketBasis>();
+    private AgentEventType eventType;
+    private int version;
+    private final CRC32 checksum = new CRC32();
+
+    /**
+     * The decoded columns of the current block
+     */
+    private int blockSize;
+    private int position;
+    private long[] timestamps = new long[0];
+    private long[] logTimes = new long[0];
+    private int[] clusterIds = new int[0];
+    private int[] agentIds = new int[0];
+    private int[] bidNumbers = new int[0];
+    private int[] marketBasisIndices = new int[0];
+    private double[][] values = new double[0][];
+
+    /**
+     * Creates a new {@link BinaryLogReader} that reads all the columns of a file.
+     *
+     * @param file
+     *            the log file
+     * @throws IOException
+     *             when the file could not be opened or is not a binary log
+     */
+    public BinaryLogReader(File file) throws IOException {
+        this(new FileInputStream(file), EnumSet.allOf(Column.class));
+    }
+
+    /**
+     * Creates a new {@link BinaryLogReader} that reads some of the columns of a file.
+     *
+     * @param file
+     *            the log file
+     * @param columns
+     *            the columns that have to be read
+     * @throws IOException
+     *             when the file could not be opened or is not a binary log
+     */
+    public BinaryLogReader(File file, Set<Column> columns) throws IOException {
+        this(new FileInputStream(file), columns);
+    }
+
+    /**
+     * Creates a new {@link BinaryLogReader}. The {@link Column#VALUES} need the {@link Column#MARKET_BASIS} and the
+     * {@link Column#LOG_TIME} needs the {@link Column#TIMESTAMP}, so those are read when needed.
+     *
+     * @param in
+     *            the stream of the log, which is closed by {@link #close()}
+     * @param columns
+     *            the columns that have to be read
+     * @throws IOException
+     *             when the stream could not be read or is not a binary log
+     */
+    public BinaryLogReader(InputStream in, Set<Column> columns) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        this.columns = columns.isEmpty() ? EnumSet.noneOf(Column.class) : EnumSet.copyOf(columns);
+        if (this.columns.contains(Column.VALUES)) {
+            this.columns.add(Column.MARKET_BASIS);
+        }
+        if (this.columns.contains(Column.LOG_TIME)) {
+            this.columns.add(Column.TIMESTAMP);
+        }
+
+        byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+        try {
+            input.readFully(magic);
+        } catch (EOFException e) {
+            input.close();
+            throw new IOException("The log is too short to be a binary log");
+        }
+        if (!Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+            input.close();
+            throw new IOException("The log is not a binary log");
+        }
+    }
+
+    /**
+     * @return the type of the events in the log, which is known after the first call of {@link #next()}
+     */
+    public AgentEventType getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Reads the next record of the log.
+     *
+     * @return the next {@link Entry}, or <code>null</code> at the end of the log
+     * @throws IOException
+     *             when the log could not be read or is corrupt
+     */
+    public Entry next() throws IOException {
+        while (position >= blockSize) {
+            if (!readFrame()) {
+                return null;
+            }
+        }
+
+        int ix = position++;
+        boolean hasTimestamp = columns.contains(Column.TIMESTAMP);
+        MarketBasis marketBasis = columns.contains(Column.MARKET_BASIS) ? marketBases.get(marketBasisIndices[ix])
+                                                                        : null;
+        Bid bid = null;
+        Price price = null;
+        if (columns.contains(Column.VALUES)) {
+            if (eventType == AgentEventType.BID_EVENT) {
+                bid = new Bid(marketBasis, values[ix]);
+            } else {
+                price = new Price(marketBasis, values[ix][0]);
+            }
+        }
+        return new Entry(hasTimestamp ? new Date(timestamps[ix]) : null,
+                         columns.contains(Column.LOG_TIME) ? new Date(timestamps[ix] + logTimes[ix]) : null,
+                         columns.contains(Column.CLUSTER_ID) ? string(clusterIds[ix]) : null,
+                         columns.contains(Column.AGENT_ID) ? string(agentIds[ix]) : null,
+                         columns.contains(Column.BID_NUMBER) ? Integer.valueOf(bidNumbers[ix]) : null,
+                         marketBasis,
+                         bid,
+                         price);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private String string(int index) throws IOException {
+        if (index == 0) {
+            return null;
+        } else if (index > strings.size()) {
+            throw new IOException("Unknown string " + index + " in the binary log");
+        }
+        return strings.get(index - 1);
+    }
+
+    /**
+     * Reads the next frame. A header frame resets the dictionary, a block frame is decoded.
+     *
+     * @return <code>false</code> at the end of the log
+     */
+    private boolean readFrame() throws IOException {
+        int type = input.read();
+        if (type < 0) {
+            return false;
+        }
+        byte[] block;
+        try {
+            if (type == BinaryLogFormat.HEADER_FRAME) {
+                readHeader();
+                return true;
+            } else if (type != BinaryLogFormat.BLOCK_FRAME) {
+                throw new IOException("Unknown frame type " + type + " in the binary log");
+            } else if (eventType == null) {
+                throw new IOException("The binary log has a block before the first header");
+            }
+            long length = BinaryLogFormat.readVarLong(input);
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("A block of the binary log is corrupt, it has length " + length);
+            }
+            block = new byte[(int) length];
+            input.readFully(block);
+            if (version >= BinaryLogFormat.CHECKSUM_VERSION) {
+                int expected = input.readInt();
+                checksum.reset();
+                checksum.update(block);
+                if ((int) checksum.getValue() != expected) {
+                    throw new IOException("A block of the binary log is corrupt, its checksum does not match");
+                }
+            }
+        } catch (EOFException e) {
+            LOGGER.warn("The binary log ends with an incomplete frame, which is ignored");
+            return false;
+        }
+
+        try {
+            readBlock(new DataInputStream(new ByteArrayInputStream(block)));
+        } catch (EOFException e) {
+            // The block has been read completely, so its contents are wrong
+            throw new IOException("A block of the binary log is corrupt, it is shorter than its contents", e);
+        }
+        return true;
+    }
+
+    private void readHeader() throws IOException {
+        int headerVersion = (int) BinaryLogFormat.readVarLong(input);
+        if (headerVersion < 1 || headerVersion > BinaryLogFormat.VERSION) {
+            throw new IOException("Unsupported binary log version " + headerVersion);
+        }
+        int eventTypeIndex = (int) BinaryLogFormat.readVarLong(input);
+        if (eventTypeIndex < 0 || eventTypeIndex >= AgentEventType.values().length) {
+            throw new IOException("Unknown event type " + eventTypeIndex + " in the binary log");
+        }
+        version = headerVersion;
+        eventType = AgentEventType.values()[eventTypeIndex];
+        strings.clear();
+        marketBases.clear();
+        blockSize = 0;
+        position = 0;
+    }
+
+    private void readBlock(DataInputStream block) throws IOException {
+        int count = (int) BinaryLogFormat.readVarLong(block);
+        ensureCapacity(count);
+
+        // The dictionary is always read, since later blocks refer to it. Its length is not needed.
+        BinaryLogFormat.readVarLong(block);
+        int newStrings = (int) BinaryLogFormat.readVarLong(block);
+        for (int ix = 0; ix < newStrings; ix++) {
+            strings.add(block.readUTF());
+        }
+        int newMarketBases = (int) BinaryLogFormat.readVarLong(block);
+        for (int ix = 0; ix < newMarketBases; ix++) {
+            String commodity = string((int) BinaryLogFormat.readVarLong(block));
+            String currency = string((int) BinaryLogFormat.readVarLong(block));
+            int priceSteps = (int) BinaryLogFormat.readVarLong(block);
+            double minimumPrice = block.readDouble();
+            double maximumPrice = block.readDouble();
+            marketBases.add(new MarketBasis(commodity, currency, priceSteps, minimumPrice, maximumPrice));
+        }
+
+        for (Column column : Column.values()) {
+            int length = (int) BinaryLogFormat.readVarLong(block);
+            if (!columns.contains(column)) {
+                if (block.skipBytes(length) < length) {
+                    throw new EOFException();
+                }
+                continue;
+            }
+            switch (column) {
+            case TIMESTAMP:
+                long timestamp = 0;
+                for (int ix = 0; ix < count; ix++) {
+                    timestamp += BinaryLogFormat.readSignedVarLong(block);
+                    timestamps[ix] = timestamp;
+                }
+                break;
+            case LOG_TIME:
+                for (int ix = 0; ix < count; ix++) {
+                    logTimes[ix] = BinaryLogFormat.readSignedVarLong(block);
+                }
+                break;
+            case CLUSTER_ID:
+                for (int ix = 0; ix < count; ix++) {
+                    clusterIds[ix] = (int) BinaryLogFormat.readVarLong(block);
+                }
+                break;
+            case AGENT_ID:
+                for (int ix = 0; ix < count; ix++) {
+                    agentIds[ix] = (int) BinaryLogFormat.readVarLong(block);
+                }
+                break;
+            case BID_NUMBER:
+                for (int ix = 0; ix < count; ix++) {
+                    bidNumbers[ix] = (int) BinaryLogFormat.readSignedVarLong(block);
+                }
+                break;
+            case MARKET_BASIS:
+                for (int ix = 0; ix < count; ix++) {
+                    int index = (int) BinaryLogFormat.readVarLong(block);
+                    if (index >= marketBases.size()) {
+                        throw new IOException("Unknown market basis " + index + " in the binary log");
+                    }
+                    marketBasisIndices[ix] = index;
+                }
+                break;
+            case VALUES:
+            default:
+                // The market bases come before the values, so they have been read already
+                long previous = 0;
+                for (int ix = 0; ix < count; ix++) {
+                    int steps = 1;
+                    if (eventType == AgentEventType.BID_EVENT) {
+                        steps = marketBases.get(marketBasisIndices[ix]).getPriceSteps();
+                    }
+                    double[] recordValues = new double[steps];
+                    for (int step = 0; step < recordValues.length; step++) {
+                        previous = BinaryLogFormat.readXorDouble(block, previous);
+                        recordValues[step] = Double.longBitsToDouble(previous);
+                    }
+                    values[ix] = recordValues;
+                }
+                break;
+            }
+        }
+        blockSize = count;
+        position = 0;
+    }
+
+    private void ensureCapacity(int count) {
+        if (timestamps.length < count) {
+            timestamps = new long[count];
+            logTimes = new long[count];
+            clusterIds = new int[count];
+            agentIds = new int[count];
+            bidNumbers = new int[count];
+            marketBasisIndices = new int[count];
+            values = new double[count][];
+        }
+    }
+}
@@ -2,17 +2,24 @@ package net.powermatcher.monitoring.csv;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
+import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -36,6 +43,15 @@ import net.powermatcher.api.monitoring.events.AgentEvent;
  * {@link CSVLogger} is an implementation of {@link AgentEventLogger} where the {@link AgentEvent}s are logged to a
  * comma separated file.
  *
+ * The log file is kept open while the logger is active. Each dump takes the waiting {@link LogRecord}s in batches,
+ * writes them through a buffer and flushes the file once at the end.
+ *
+ * Before each dump the logger checks whether the log file has to be rotated: when the date in the
+ * logFilenamePattern has changed, when the file is older than the rotationInterval or when it has grown beyond the
+ * maxFileSize. The closed file is renamed to a segment (see {@link LogArchiver}), which is compressed and cleaned up on
+ * a background thread, so a dump never waits for the compression. Since the size is checked between dumps, a file can
+ * grow beyond the maxFileSize by the records of one dump.
+ *
  * @author FAN
  * @version 2.1
  */
@@ -76,6 +92,16 @@ public class CSVLogger
                                                                     "priceValue",
                                                                     "lastUpdateTime" };
 
+    /**
+     * The maximum number of {@link LogRecord}s that are taken from the queue at once
+     */
+    private static final int DRAIN_BATCH_SIZE = 1024;
+
+    /**
+     * The size of the buffer of the log file in characters
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * OSGI configuration of the {@link CSVLogger}
      */
@@ -106,6 +132,40 @@ public class CSVLogger
 
         @AttributeDefinition
         String loggerId() default "csvLogger";
+
+        @AttributeDefinition(type = AttributeType.LONG,
+                             required = false,
+                             description = "The size in bytes at which the log file is rotated, or 0 for no limit.")
+        long maxFileSize() default 0L;
+
+        @AttributeDefinition(type = AttributeType.LONG,
+                             required = false,
+                             description = "The time in seconds after which the log file is rotated, or 0 to only "
+                                           + "rotate when the date in the logFilenamePattern changes.")
+        long rotationInterval() default 0L;
+
+        @AttributeDefinition(required = false, description = "Compress the rotated log files with gzip.")
+        boolean compressRotatedFiles() default true;
+
+        @AttributeDefinition(required = false,
+                             description = "The number of rotated log files that are kept, or 0 to keep all of them.")
+        int maxRotatedFiles() default 0;
+
+        @AttributeDefinition(type = AttributeType.LONG,
+                             required = false,
+                             description = "The time in seconds that rotated log files are kept, or 0 to keep them "
+                                           + "forever.")
+        long maxRotatedFileAge() default 0L;
+
+        @AttributeDefinition(required = false,
+                             description = "The maximum number of events that wait to be logged, or 0 to log the "
+                                           + "events on the thread of the agent that sends them.")
+        int capacity() default 0;
+
+        @AttributeDefinition(required = false,
+                             description = "What happens with a new event when the queue is full: DROP_OLDEST, BLOCK "
+                                           + "or SAMPLE.")
+        String overflowPolicy() default "DROP_OLDEST";
     }
 
     /**
@@ -123,6 +183,46 @@ public class CSVLogger
      */
     private String separator;
 
+    /**
+     * The pattern and the location of the log files, from which a new logFile is created after a rotation.
+     */
+    private String logFilenamePattern;
+    private String logLocation;
+
+    /**
+     * The size in bytes and the age in milliseconds at which the logFile is rotated, or 0 for no limit
+     */
+    private long maxFileSize;
+    private long rotationInterval;
+
+    /**
+     * The time at which the logFile has been opened
+     */
+    private long logFileOpened;
+
+    /**
+     * The {@link LogArchiver} of the rotated files and the thread that runs it
+     */
+    private LogArchiver archiver;
+    private ExecutorService archiverExecutor;
+
+    /**
+     * The writer of the logFile, which stays open between dumps. It is <code>null</code> when the file is closed.
+     */
+    private Writer writer;
+
+    /**
+     * The formats of the prices and demands. These are copies, since a {@link DecimalFormat} can not be shared between
+     * threads.
+     */
+    private final DecimalFormat priceFormat = (DecimalFormat) MarketBasis.PRICE_FORMAT.clone();
+    private final DecimalFormat demandFormat = (DecimalFormat) MarketBasis.DEMAND_FORMAT.clone();
+
+    /**
+     * The {@link LogRecord}s of the current dump. This is reused between dumps.
+     */
+    private final List<LogRecord> batch = new ArrayList<LogRecord>();
+
     /**
      * OSGi calls this method to activate a managed service.
      *
@@ -141,6 +241,16 @@ public class CSVLogger
     @Deactivate
     public void deactivate() {
         super.baseDeactivate();
+        synchronized (this) {
+            // Write what is left before the file is closed
+            dumpLogs();
+            closeLogFile();
+            // The archiver finishes the work that has been handed to it
+            if (archiverExecutor != null) {
+                archiverExecutor.shutdown();
+                archiverExecutor = null;
+            }
+        }
         getLogger().info("CSVLogger [{}], deactivated", getLoggerId());
     }
 
@@ -189,14 +299,127 @@ public class CSVLogger
         setEventType((AgentEventType) properties.get("eventType"));
         setLogUpdateRate((Long) properties.get("logUpdateRate"));
         setLoggerId((String) properties.get("loggerId"));
-        setDateFormat(new SimpleDateFormat((String) properties.get("dateFormat")));
+        String dateFormat = (String) properties.get("dateFormat");
+        setDateFormat(new SimpleDateFormat(dateFormat));
+        setDateTimeFormatter(dateFormat);
         separator = (String) properties.get("separator");
 
-        String logFilenamePattern = (String) properties.get("logFilenamePattern");
-        String logLocation = (String) properties.get("logLocation");
+        String newLogFilenamePattern = (String) properties.get("logFilenamePattern");
+        String newLogLocation = (String) properties.get("logLocation");
+        long newMaxFileSize = properties.containsKey("maxFileSize")
+                              ? ((Number) properties.get("maxFileSize")).longValue()
+                              : 0;
+        long newRotationInterval = properties.containsKey("rotationInterval")
+                                   ? ((Number) properties.get("rotationInterval")).longValue()
+                                   : 0;
+        boolean compressRotatedFiles = properties.containsKey("compressRotatedFiles")
+                                       ? (Boolean) properties.get("compressRotatedFiles")
+                                       : true;
+        int maxRotatedFiles = properties.containsKey("maxRotatedFiles")
+                              ? ((Number) properties.get("maxRotatedFiles")).intValue()
+                              : 0;
+        long maxRotatedFileAge = properties.containsKey("maxRotatedFileAge")
+                                 ? ((Number) properties.get("maxRotatedFileAge")).longValue()
+                                 : 0;
+        if (newMaxFileSize < 0) {
+            throw new IllegalArgumentException("The maxFileSize should be at least 0");
+        } else if (newRotationInterval < 0) {
+            throw new IllegalArgumentException("The rotationInterval should be at least 0");
+        }
+        LogArchiver newArchiver = new LogArchiver(new File(newLogLocation),
+                                                  LogArchiver.segmentPattern(newLogFilenamePattern),
+                                                  compressRotatedFiles,
+                                                  maxRotatedFiles,
+                                                  TimeUnit.SECONDS.toMillis(maxRotatedFileAge));
+
+        synchronized (this) {
+            // The records of the old configuration still go to the old file
+            dumpLogs();
+            closeLogFile();
+            logFilenamePattern = newLogFilenamePattern;
+            logLocation = newLogLocation;
+            maxFileSize = newMaxFileSize;
+            rotationInterval = TimeUnit.SECONDS.toMillis(newRotationInterval);
+            archiver = newArchiver;
+            if (archiverExecutor == null) {
+                archiverExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CSVLogger-archiver-" + getLoggerId());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            logFile = createLogFile(logFilenamePattern, logLocation, new Date());
+            openLogFile();
+            // Picks up the segments that have not been compressed or removed in a previous session
+            runArchiver();
+        }
+        updateObservables();
+    }
+
+    /**
+     * Rotates the logFile when its date has changed, or when it is too old or too large. The closed file is renamed to
+     * a segment and handed to the {@link LogArchiver}. The new logFile is opened by the next dump.
+     */
+    private void rotateIfNeeded() {
+        long now = System.currentTimeMillis();
+        File currentLogFile = createLogFile(logFilenamePattern, logLocation, new Date(now));
+        boolean dateChanged = !currentLogFile.equals(logFile);
+        boolean expired = rotationInterval > 0 && writer != null && now - logFileOpened >= rotationInterval;
+        boolean full = maxFileSize > 0 && logFile.length() >= maxFileSize;
+        if (!dateChanged && !expired && !full) {
+            return;
+        }
+
+        closeLogFile();
+        if (logFile.exists()) {
+            File segment = new File(logFile.getParentFile(),
+                                    LogArchiver.segmentName(logFile.getName(),
+                                                            archiver.nextSegmentIndex(logFile.getName())));
+            if (logFile.renameTo(segment)) {
+                getLogger().info("CSVLogger [{}] rotated {} to {}", getLoggerId(), logFile, segment);
+                runArchiver();
+            } else {
+                getLogger().error("CSVLogger [{}] could not rotate {} to {}", getLoggerId(), logFile, segment);
+            }
+        }
+        logFile = currentLogFile;
+    }
+
+    /**
+     * Hands the compression and clean up of the rotated files to the background thread.
+     */
+    private void runArchiver() {
+        if (archiverExecutor == null) {
+            return;
+        }
+        try {
+            archiverExecutor.execute(archiver);
+        } catch (RejectedExecutionException e) {
+            getLogger().warn("CSVLogger [{}] could not start the archiver", getLoggerId());
+        }
+    }
+
+    /**
+     * Opens the logFile for appending and writes the header when the file is new.
+     *
+     * @return <code>true</code> when the file has been opened
+     */
+    private boolean openLogFile() {
+        boolean newFile = !logFile.exists() || logFile.length() == 0;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true),
+                                                               StandardCharsets.UTF_8),
+                                        BUFFER_SIZE);
+        } catch (IOException e) {
+            getLogger().error("Could not open CSV file " + logFile, e);
+            return false;
+        }
+        logFileOpened = System.currentTimeMillis();
 
-        logFile = createLogFile(logFilenamePattern, logLocation);
-        if (!logFile.exists()) {
+        if (newFile) {
             String[] header = null;
 
             switch (getEventType()) {
@@ -210,10 +433,30 @@ public class CSVLogger
                 break;
             }
             if (header != null) {
-                writeLineToCSV(header, logFile);
+                try {
+                    writeLineToCSV(header);
+                } catch (IOException e) {
+                    getLogger().error("Error while writing to CSV file", e);
+                    closeLogFile();
+                    return false;
+                }
             }
         }
-        updateObservables();
+        return true;
+    }
+
+    /**
+     * Closes the logFile, if it is open.
+     */
+    private void closeLogFile() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                getLogger().error("Error while closing CSV file", e);
+            }
+            writer = null;
+        }
     }
 
     /**
@@ -224,81 +467,80 @@ public class CSVLogger
      *            the name of the {@link File} that has to be created
      * @param logLocation
      *            the location of the {@link File} that has to be created
+     * @param date
+     *            the date that is filled in the fileName
      * @return The {@link File} with the fileName name and the logLocation as location
      */
-    private File createLogFile(String fileName, String logLocation) {
-        String newFileName = fileName;
+    private File createLogFile(String fileName, String logLocation, Date date) {
+        String newFileName = resolveFilename(fileName, date);
 
         // in case somebody forgets the extention
-        if (!fileName.endsWith(".csv")) {
+        if (!newFileName.endsWith(".csv")) {
             newFileName = newFileName.concat(".csv");
         }
 
-        if (fileName.matches("\\S*::\\w*::*.csv")) {
-
-            String logDateFormat = fileName.substring(fileName.indexOf("::") + 2, fileName.lastIndexOf("::"));
-            String date = new SimpleDateFormat(logDateFormat).format(new Date());
-
-            Pattern pattern = Pattern.compile("::\\w*::");
-            Matcher matcher = pattern.matcher(fileName);
-            newFileName = matcher.replaceAll(date);
-        }
-
         return new File(logLocation + File.separator + newFileName);
     }
 
     /**
-     * Write a comma separated line to a specified file
+     * Write a comma separated line to the buffer of the log file. The line is not flushed.
      *
      * @param line
-     *            the comma separated line that has to be written to the outputFile
-     * @param outputFile
-     *            the csv log file where to line has to be written to
+     *            the comma separated line that has to be written to the logFile
+     * @throws IOException
+     *             when the line could not be written
      */
-    private void writeLineToCSV(String[] line, File outputFile) {
-        BufferedWriter w = null;
-        try {
-            w = new BufferedWriter(new FileWriter(outputFile, true));
-
-            for (String s : line) {
-                w.write(s);
-                w.write(separator);
-            }
-            w.newLine();
-        } catch (IOException e) {
-            getLogger().error("Error while writing to CSV file", e);
-        } finally {
-            if (w != null) {
-                try {
-                    w.close();
-                } catch (IOException e) {
-                    getLogger().error("Error while writing to CSV file", e);
-                }
-            }
+    private void writeLineToCSV(String[] line) throws IOException {
+        for (String s : line) {
+            writer.write(s);
+            writer.write(separator);
         }
+        writer.write(System.lineSeparator());
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected void dumpLogs() {
-        for (LogRecord logRecord : getLogRecords().toArray(new LogRecord[getLogRecords().size()])) {
-
-            String[] output = null;
-
-            if (logRecord instanceof BidUpdateLogRecord) {
-                output = createLineForBidLogRecord((BidUpdateLogRecord) logRecord);
-            } else if (logRecord instanceof PriceUpdateLogRecord) {
-                output = createLineForPriceUpdateLog((PriceUpdateLogRecord) logRecord);
-            }
+    protected synchronized void dumpLogs() {
+        if (logFile != null) {
+            rotateIfNeeded();
+        }
+        if (writer == null && (logFile == null || !openLogFile())) {
+            // The records stay in the queue until the file can be opened
+            return;
+        }
 
-            if (output != null) {
-                writeLineToCSV(output, logFile);
+        int written = 0;
+        try {
+            while (drainLogRecords(batch, DRAIN_BATCH_SIZE) > 0) {
+                for (LogRecord logRecord : batch) {
+                    String[] output = null;
+
+                    if (logRecord instanceof BidUpdateLogRecord) {
+                        output = createLineForBidLogRecord((BidUpdateLogRecord) logRecord);
+                    } else if (logRecord instanceof PriceUpdateLogRecord) {
+                        output = createLineForPriceUpdateLog((PriceUpdateLogRecord) logRecord);
+                    }
+
+                    if (output != null) {
+                        writeLineToCSV(output);
+                        written++;
+                    }
+                }
+                batch.clear();
             }
-            removeLogRecord(logRecord);
+            writer.flush();
+        } catch (IOException e) {
+            // The records of the failed batch are lost, the file is opened again at the next dump
+            getLogger().error("Error while writing to CSV file", e);
+            batch.clear();
+            closeLogFile();
+            return;
+        }
+        if (written > 0) {
+            getLogger().debug("CSVLogger [{}] wrote {} records to {}", getLoggerId(), written, logFile);
         }
-        getLogger().info("CSVLogger [{}] wrote to {}", getLoggerId(), logFile);
     }
 
     /**
@@ -311,7 +553,7 @@ public class CSVLogger
 
     /**
      * Creates a <code>String[]</code> out of a {@link BidUpdateLogRecord} to be used in
-     * {@link CSVLogger#writeLineToCSV(String[], File)}
+     * {@link CSVLogger#writeLineToCSV(String[])}
      *
      * @param logRecord
      *            the {@link BidUpdateLogRecord} that has to be transformed
@@ -327,29 +569,27 @@ public class CSVLogger
         StringBuilder demandBuilder = new StringBuilder();
         StringBuilder pricePointBuiler = new StringBuilder();
 
-        Bid temp = bid;
-
-        for (Double d : temp.getDemand()) {
-            if (demandBuilder.length() > 0) {
+        for (int ix = 0; ix < marketBasis.getPriceSteps(); ix++) {
+            if (ix > 0) {
                 demandBuilder.append("#");
             }
-            demandBuilder.append(d);
+            demandBuilder.append(bid.getDemandAt(ix));
         }
 
-        return new String[] { getDateFormat().format(logRecord.getLogTime()),
+        return new String[] { formatDate(logRecord.getLogTime()),
                               logRecord.getClusterId(),
                               logRecord.getAgentId(),
                               marketBasis.getCommodity(),
                               marketBasis.getCurrency(),
-                              MarketBasis.PRICE_FORMAT.format(marketBasis.getMinimumPrice()),
-                              MarketBasis.PRICE_FORMAT.format(marketBasis.getMaximumPrice()),
-                              MarketBasis.DEMAND_FORMAT.format(bid.getMinimumDemand()),
-                              MarketBasis.DEMAND_FORMAT.format(bid.getMaximumDemand()),
+                              priceFormat.format(marketBasis.getMinimumPrice()),
+                              priceFormat.format(marketBasis.getMaximumPrice()),
+                              demandFormat.format(bid.getMinimumDemand()),
+                              demandFormat.format(bid.getMaximumDemand()),
                               // TODO where/what is the "effective demand"?
-                              MarketBasis.DEMAND_FORMAT.format(0),
+                              demandFormat.format(0),
                               // TODO where/what is the "effective price"?
-                              MarketBasis.PRICE_FORMAT.format(0),
-                              getDateFormat().format(logRecord.getEventTimestamp()),
+                              priceFormat.format(0),
+                              formatDate(logRecord.getEventTimestamp()),
                               String.valueOf(bidUpdate.getBidNumber()),
                               demandBuilder.toString(),
                               pricePointBuiler.toString() };
@@ -357,7 +597,7 @@ public class CSVLogger
 
     /**
      * Creates a <code>String[]</code> out of a {@link PriceUpdateLogRecord} to be used in
-     * {@link CSVLogger#writeLineToCSV(String[], File)}
+     * {@link CSVLogger#writeLineToCSV(String[])}
      *
      * @param logRecord
      *            the {@link PriceUpdateLogRecord} that has to be transformed
@@ -366,14 +606,14 @@ public class CSVLogger
     private String[] createLineForPriceUpdateLog(PriceUpdateLogRecord logRecord) {
         MarketBasis marketbasis = logRecord.getPriceUpdate().getPrice().getMarketBasis();
 
-        return new String[] { getDateFormat().format(logRecord.getLogTime()),
+        return new String[] { formatDate(logRecord.getLogTime()),
                               logRecord.getClusterId(),
                               logRecord.getAgentId(),
                               marketbasis.getCommodity(),
                               marketbasis.getCurrency(),
-                              MarketBasis.PRICE_FORMAT.format(marketbasis.getMinimumPrice()),
-                              MarketBasis.PRICE_FORMAT.format(marketbasis.getMaximumPrice()),
-                              MarketBasis.PRICE_FORMAT.format(logRecord.getPriceUpdate().getPrice().getPriceValue()),
-                              getDateFormat().format(logRecord.getEventTimestamp()) };
+                              priceFormat.format(marketbasis.getMinimumPrice()),
+                              priceFormat.format(marketbasis.getMaximumPrice()),
+                              priceFormat.format(logRecord.getPriceUpdate().getPrice().getPriceValue()),
+                              formatDate(logRecord.getEventTimestamp()) };
     }
 }
@@ -0,0 +1,261 @@
+package net.powermatcher.monitoring.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link LogArchiver} maintains the closed segments of a log file. A closed segment is a log file that has been renamed
+ * to <code>&lt;name&gt;.part&lt;n&gt;.csv</code> by the {@link CSVLogger} when it rotated the log. The archiver
+ * compresses the closed segments with gzip and removes the oldest ones when there are too many or when they are too
+ * old.
+ *
+ * The archiver is meant to run on a background thread. Each run looks at all the closed segments in the directory, so
+ * a run also picks up the segments that a previous run (or a previous session) did not finish.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class LogArchiver
+    implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogArchiver.class);
+
+    /**
+     * The extension of a compressed segment
+     */
+    public static final String GZIP_EXTENSION = ".gz";
+
+    private static final Pattern DATE_PATTERN = Pattern.compile("::\\w*::");
+
+    /**
+     * Creates the name of a closed segment.
+     *
+     * @param fileName
+     *            the name of the log file, ending with <code>.csv</code>
+     * @param index
+     *            the index of the segment
+     * @return the name of the closed segment
+     */
+    public static String segmentName(String fileName, int index) {
+        return stripExtension(fileName) + ".part" + index + ".csv";
+    }
+
+    private static String stripExtension(String fileName) {
+        return fileName.endsWith(".csv") ? fileName.substring(0, fileName.length() - ".csv".length()) : fileName;
+    }
+
+    /**
+     * Creates the {@link Pattern} that matches the closed segments, compressed or not, of the log files with a certain
+     * file name pattern. The index of the segment is captured in group 1.
+     *
+     * @param logFilenamePattern
+     *            the pattern of the log file name, in which the date format is placed between the delimiter '::'
+     * @return the {@link Pattern} of the names of the closed segments
+     */
+    public static Pattern segmentPattern(String logFilenamePattern) {
+        String stem = stripExtension(logFilenamePattern);
+        StringBuilder regex = new StringBuilder();
+        Matcher matcher = DATE_PATTERN.matcher(stem);
+        int start = 0;
+        while (matcher.find()) {
+            regex.append(Pattern.quote(stem.substring(start, matcher.start()))).append(".+?");
+            start = matcher.end();
+        }
+        regex.append(Pattern.quote(stem.substring(start)));
+        regex.append("\\.part(\\d+)\\.csv(?:").append(Pattern.quote(GZIP_EXTENSION)).append(")?");
+        return Pattern.compile(regex.toString());
+    }
+
+    private final File directory;
+    private final Pattern segmentPattern;
+    private final boolean compress;
+    private final int maxFiles;
+    private final long maxAge;
+
+    /**
+     * Creates a new {@link LogArchiver}.
+     *
+     * @param directory
+     *            the directory of the log files
+     * @param segmentPattern
+     *            the {@link Pattern} of the names of the closed segments, see {@link #segmentPattern(String)}
+     * @param compress
+     *            <code>true</code> when the closed segments should be compressed
+     * @param maxFiles
+     *            the maximum number of closed segments that are kept, or 0 for no limit
+     * @param maxAge
+     *            the maximum age in milliseconds of the closed segments that are kept, or 0 for no limit
+     * @throws IllegalArgumentException
+     *             when maxFiles or maxAge is negative
+     */
+    public LogArchiver(File directory, Pattern segmentPattern, boolean compress, int maxFiles, long maxAge) {
+        if (directory == null) {
+            throw new NullPointerException("directory");
+        } else if (segmentPattern == null) {
+            throw new NullPointerException("segmentPattern");
+        } else if (maxFiles < 0) {
+            throw new IllegalArgumentException("The maxFiles should be at least 0");
+        } else if (maxAge < 0) {
+            throw new IllegalArgumentException("The maxAge should be at least 0");
+        }
+        this.directory = directory;
+        this.segmentPattern = segmentPattern;
+        this.compress = compress;
+        this.maxFiles = maxFiles;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Finds the closed segments in the directory.
+     *
+     * @return the closed segments, compressed or not, sorted from new to old
+     */
+    public List<File> findSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> segments = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isFile() && segmentPattern.matcher(file.getName()).matches()) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long diff = f2.lastModified() - f1.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : f2.getName().compareTo(f1.getName());
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * Finds the index of the next closed segment of a log file.
+     *
+     * @param fileName
+     *            the name of the log file
+     * @return an index that has not been used by a closed segment of the log file
+     */
+    public int nextSegmentIndex(String fileName) {
+        String prefix = segmentName(fileName, 0);
+        prefix = prefix.substring(0, prefix.length() - "0.csv".length());
+        int next = 1;
+        for (File segment : findSegments()) {
+            String name = segment.getName();
+            if (name.startsWith(prefix)) {
+                Matcher matcher = segmentPattern.matcher(name);
+                if (matcher.matches()) {
+                    try {
+                        next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Compresses the closed segments that are not compressed yet, then removes the segments that fall outside the
+     * retention policy.
+     */
+    @Override
+    public void run() {
+        List<File> segments = findSegments();
+        if (compress) {
+            for (int ix = 0; ix < segments.size(); ix++) {
+                File segment = segments.get(ix);
+                if (!segment.getName().endsWith(GZIP_EXTENSION)) {
+                    File compressed = compress(segment);
+                    if (compressed != null) {
+                        segments.set(ix, compressed);
+                    }
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (int ix = 0; ix < segments.size(); ix++) {
+            File segment = segments.get(ix);
+            boolean tooMany = maxFiles > 0 && ix >= maxFiles;
+            boolean tooOld = maxAge > 0 && now - segment.lastModified() > maxAge;
+            if (tooMany || tooOld) {
+                if (segment.delete()) {
+                    LOGGER.debug("Removed log segment {}", segment);
+                } else {
+                    LOGGER.warn("Could not remove log segment {}", segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses a segment into a new file and removes the original. The compressed file keeps the modification time
+     * of the original, so the retention policy sees the time at which the segment was closed.
+     *
+     * @param segment
+     *            the segment that has to be compressed
+     * @return the compressed file, or <code>null</code> when the segment could not be compressed
+     */
+    private File compress(File segment) {
+        File target = new File(segment.getParentFile(), segment.getName() + GZIP_EXTENSION);
+        File temp = new File(segment.getParentFile(), target.getName() + ".tmp");
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            InputStream in = new FileInputStream(segment);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), buffer.length);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not compress log segment " + segment, e);
+            temp.delete();
+            return null;
+        }
+
+        long lastModified = segment.lastModified();
+        if (!temp.renameTo(target)) {
+            LOGGER.error("Could not rename {} to {}", temp, target);
+            temp.delete();
+            return null;
+        }
+        target.setLastModified(lastModified);
+        if (!segment.delete()) {
+            LOGGER.warn("Could not remove log segment {} after compressing it", segment);
+        }
+        LOGGER.debug("Compressed log segment {}", segment);
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return "LogArchiver [directory=" + directory + ", segmentPattern=" + segmentPattern + ", compress=" + compress
+               + ", maxFiles=" + maxFiles + ", maxAge=" + maxAge + "]";
+    }
+}
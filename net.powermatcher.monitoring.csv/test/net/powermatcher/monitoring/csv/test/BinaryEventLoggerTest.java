@@ -0,0 +1,272 @@
+package net.powermatcher.monitoring.csv.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.api.monitoring.events.IncomingBidUpdateEvent;
+import net.powermatcher.api.monitoring.events.OutgoingPriceUpdateEvent;
+import net.powermatcher.monitoring.csv.AgentEventLogger;
+import net.powermatcher.monitoring.csv.AgentEventType;
+import net.powermatcher.monitoring.csv.BinaryEventLogger;
+import net.powermatcher.monitoring.csv.BinaryLogFormat.Column;
+import net.powermatcher.monitoring.csv.BinaryLogReader;
+import net.powermatcher.monitoring.csv.BinaryLogReader.Entry;
+import net.powermatcher.monitoring.csv.CSVLogger;
+
+/**
+ * JUnit tests for the {@link BinaryEventLogger} and {@link BinaryLogReader} classes.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class BinaryEventLoggerTest {
+
+    private static final int AGENTS = 20;
+    private static final long START = 1420070400000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 11, 0, 10);
+
+    private Map<String, Object> properties;
+
+    @Before
+    public void setUp() {
+        properties = new HashMap<String, Object>();
+        properties.put("filter", new String[0]);
+        properties.put("logFilenamePattern", "test_log.pmlog");
+        properties.put("logLocation", folder.getRoot().getAbsolutePath());
+        // Long enough that only the explicit dumps write to the file
+        properties.put("logUpdateRate", 3600L);
+        properties.put("loggerId", "binaryLogger");
+    }
+
+    private Bid bid(int agent, int round) {
+        double demand = 100 * (agent + round % 3);
+        return new Bid(marketBasis, demand, demand, demand, demand, demand / 2, demand / 2, 0, 0, 0, 0, 0);
+    }
+
+    private void sendBids(AgentEventLogger logger, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            for (int agent = 0; agent < AGENTS; agent++) {
+                logger.handleAgentEvent(new IncomingBidUpdateEvent("cluster",
+                                                                   "concentrator",
+                                                                   "session",
+                                                                   new Date(START + round * 1000L + agent),
+                                                                   "agent" + agent,
+                                                                   new BidUpdate(bid(agent, round), round)));
+            }
+        }
+    }
+
+    @Test
+    public void testBidsRoundTrip() throws IOException {
+        properties.put("eventType", AgentEventType.BID_EVENT);
+        BinaryEventLogger logger = new BinaryEventLogger();
+        logger.activate(properties);
+        int rounds = 100;
+        sendBids(logger, rounds);
+        logger.deactivate();
+
+        BinaryLogReader reader = new BinaryLogReader(new File(folder.getRoot(), "test_log.pmlog"));
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (int agent = 0; agent < AGENTS; agent++) {
+                    Entry entry = reader.next();
+                    assertThat(entry.getTimestamp(), is(equalTo(new Date(START + round * 1000L + agent))));
+                    assertThat(entry.getLogTime(), is(equalTo(entry.getTimestamp())));
+                    assertThat(entry.getClusterId(), is(equalTo("cluster")));
+                    assertThat(entry.getAgentId(), is(equalTo("concentrator")));
+                    assertThat(entry.getBidNumber(), is(equalTo(round)));
+                    assertThat(entry.getMarketBasis(), is(equalTo(marketBasis)));
+                    assertThat(Arrays.equals(entry.getBid().getDemand(), bid(agent, round).getDemand()), is(true));
+                    assertThat(entry.getPrice(), is(nullValue()));
+                }
+            }
+            assertThat(reader.next(), is(nullValue()));
+            assertThat(reader.getEventType(), is(equalTo(AgentEventType.BID_EVENT)));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testReadSomeColumns() throws IOException {
+        properties.put("eventType", AgentEventType.BID_EVENT);
+        BinaryEventLogger logger = new BinaryEventLogger();
+        logger.activate(properties);
+        sendBids(logger, 3);
+        logger.deactivate();
+
+        BinaryLogReader reader = new BinaryLogReader(new File(folder.getRoot(), "test_log.pmlog"),
+                                                     EnumSet.of(Column.BID_NUMBER));
+        try {
+            int count = 0;
+            Entry entry;
+            while ((entry = reader.next()) != null) {
+                assertThat(entry.getBidNumber(), is(equalTo(count / AGENTS)));
+                assertThat(entry.getTimestamp(), is(nullValue()));
+                assertThat(entry.getAgentId(), is(nullValue()));
+                assertThat(entry.getBid(), is(nullValue()));
+                count++;
+            }
+            assertThat(count, is(equalTo(3 * AGENTS)));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testAppendingSessions() throws IOException {
+        properties.put("eventType", AgentEventType.PRICE_EVENT);
+        for (int session = 0; session < 2; session++) {
+            BinaryEventLogger logger = new BinaryEventLogger();
+            logger.activate(properties);
+            logger.handleAgentEvent(new OutgoingPriceUpdateEvent("cluster" + session,
+                                                                 "auctioneer",
+                                                                 "session",
+                                                                 new Date(START),
+                                                                 new PriceUpdate(new Price(marketBasis, session + 2.5),
+                                                                                 session)));
+            logger.deactivate();
+        }
+
+        BinaryLogReader reader = new BinaryLogReader(new File(folder.getRoot(), "test_log.pmlog"));
+        try {
+            for (int session = 0; session < 2; session++) {
+                Entry entry = reader.next();
+                assertThat(entry.getClusterId(), is(equalTo("cluster" + session)));
+                assertThat(entry.getPrice().getPriceValue(), is(equalTo(session + 2.5)));
+                assertThat(entry.getBidNumber(), is(equalTo(session)));
+            }
+            assertThat(reader.next(), is(nullValue()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testSmallerThanCsv() {
+        properties.put("eventType", AgentEventType.BID_EVENT);
+        BinaryEventLogger binaryLogger = new BinaryEventLogger();
+        binaryLogger.activate(properties);
+        sendBids(binaryLogger, 50);
+        binaryLogger.deactivate();
+
+        properties.put("logFilenamePattern", "test_log.csv");
+        properties.put("dateFormat", "yyyy-MM-dd HH:mm:ss");
+        properties.put("separator", ";");
+        CSVLogger csvLogger = new CSVLogger();
+        csvLogger.activate(properties);
+        sendBids(csvLogger, 50);
+        csvLogger.deactivate();
+
+        long binarySize = new File(folder.getRoot(), "test_log.pmlog").length();
+        long csvSize = new File(folder.getRoot(), "test_log.csv").length();
+        assertThat(binarySize * 5 < csvSize, is(true));
+    }
+
+    /**
+     * Cuts off the last block of a session, like a crash while writing it, and appends a new session. The reader finds
+     * the complete blocks of the first session and the new session.
+     */
+    @Test
+    public void testTruncateThenAppend() throws IOException {
+        properties.put("eventType", AgentEventType.BID_EVENT);
+        BinaryEventLogger logger = new BinaryEventLogger();
+        logger.activate(properties);
+        // 2000 records, which take at least 2 blocks
+        sendBids(logger, 100);
+        logger.deactivate();
+
+        File file = new File(folder.getRoot(), "test_log.pmlog");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+
+        logger = new BinaryEventLogger();
+        logger.activate(properties);
+        logger.handleAgentEvent(new IncomingBidUpdateEvent("restarted",
+                                                           "concentrator",
+                                                           "session",
+                                                           new Date(START),
+                                                           "agent0",
+                                                           new BidUpdate(bid(0, 0), 0)));
+        logger.deactivate();
+
+        BinaryLogReader reader = new BinaryLogReader(file);
+        try {
+            int count = 0;
+            Entry entry = reader.next();
+            while (entry.getClusterId().equals("cluster")) {
+                assertThat(entry.getBidNumber(), is(equalTo(count / AGENTS)));
+                count++;
+                entry = reader.next();
+            }
+            assertThat(count > 0 && count < 100 * AGENTS, is(true));
+            assertThat(entry.getClusterId(), is(equalTo("restarted")));
+            assertThat(Arrays.equals(entry.getBid().getDemand(), bid(0, 0).getDemand()), is(true));
+            assertThat(reader.next(), is(nullValue()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testCorruptBlock() throws IOException {
+        properties.put("eventType", AgentEventType.BID_EVENT);
+        BinaryEventLogger logger = new BinaryEventLogger();
+        logger.activate(properties);
+        sendBids(logger, 1);
+        logger.deactivate();
+
+        File file = new File(folder.getRoot(), "test_log.pmlog");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Flip a byte in the middle of the block
+            long position = raf.length() / 2;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0x55);
+        } finally {
+            raf.close();
+        }
+
+        BinaryLogReader reader = new BinaryLogReader(file);
+        try {
+            reader.next();
+            fail("The corrupt block should have been detected");
+        } catch (IOException e) {
+            assertThat(e.getMessage().contains("checksum"), is(true));
+        } finally {
+            reader.close();
+        }
+    }
+}
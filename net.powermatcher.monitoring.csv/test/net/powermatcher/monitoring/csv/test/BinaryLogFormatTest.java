@@ -0,0 +1,71 @@
+package net.powermatcher.monitoring.csv.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import net.powermatcher.monitoring.csv.BinaryLogFormat;
+
+/**
+ * JUnit tests for the {@link BinaryLogFormat} class.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class BinaryLogFormatTest {
+
+    @Test
+    public void testSignedVarLong() throws IOException {
+        long[] values = { 0, 1, -1, 63, -64, 64, 1420070400000L, Long.MAX_VALUE, Long.MIN_VALUE };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : values) {
+            BinaryLogFormat.writeSignedVarLong(out, value);
+        }
+        // The first 5 values fit in a single byte
+        assertThat(bytes.size() < values.length * 8, is(true));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : values) {
+            assertThat(BinaryLogFormat.readSignedVarLong(in), is(equalTo(value)));
+        }
+    }
+
+    @Test
+    public void testXorDouble() throws IOException {
+        double[] values = { 0, 0, 100.5, 100.5, 100.25, -100.25, Double.NaN, Double.NEGATIVE_INFINITY, -0.0, 1e-300 };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long previous = 0;
+        for (double value : values) {
+            previous = BinaryLogFormat.writeXorDouble(out, previous, value);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        previous = 0;
+        for (double value : values) {
+            previous = BinaryLogFormat.readXorDouble(in, previous);
+            assertThat(Double.doubleToRawLongBits(Double.longBitsToDouble(previous)),
+                       is(equalTo(Double.doubleToRawLongBits(value))));
+        }
+        assertThat(in.read(), is(equalTo(-1)));
+    }
+
+    @Test
+    public void testRepeatedValueTakesOneByte() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long previous = BinaryLogFormat.writeXorDouble(out, 0, 1234.5678);
+        int size = bytes.size();
+        BinaryLogFormat.writeXorDouble(out, previous, 1234.5678);
+        assertThat(bytes.size() - size, is(equalTo(1)));
+    }
+}
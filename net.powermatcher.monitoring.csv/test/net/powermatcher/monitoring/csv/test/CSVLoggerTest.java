@@ -0,0 +1,297 @@
+package net.powermatcher.monitoring.csv.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+
+import net.powermatcher.api.Agent;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.api.monitoring.AgentObserver;
+import net.powermatcher.api.monitoring.ObservableAgent;
+import net.powermatcher.api.monitoring.QueuedAgentObserver;
+import net.powermatcher.api.monitoring.events.IncomingBidUpdateEvent;
+import net.powermatcher.api.monitoring.events.OutgoingPriceUpdateEvent;
+import net.powermatcher.monitoring.csv.AgentEventType;
+import net.powermatcher.monitoring.csv.CSVLogger;
+
+/**
+ * JUnit tests for the {@link CSVLogger} class.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class CSVLoggerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 5, 0, 10);
+    private final Date timestamp = new Date(1420070400000L);
+
+    private Map<String, Object> properties;
+
+    @Before
+    public void setUp() {
+        properties = new HashMap<String, Object>();
+        properties.put("filter", new String[0]);
+        properties.put("logFilenamePattern", "test_log.csv");
+        properties.put("dateFormat", "yyyy-MM-dd HH:mm:ss");
+        properties.put("separator", ";");
+        properties.put("logLocation", folder.getRoot().getAbsolutePath());
+        // Long enough that only the explicit dumps write to the file
+        properties.put("logUpdateRate", 3600L);
+        properties.put("loggerId", "csvLogger");
+    }
+
+    /**
+     * An {@link ObservableAgent} that keeps the observers that have been added to it.
+     */
+    private static class ObservedAgent
+        implements ObservableAgent {
+        private final List<AgentObserver> observers = new CopyOnWriteArrayList<AgentObserver>();
+        private final String agentId;
+
+        ObservedAgent(String agentId) {
+            this.agentId = agentId;
+        }
+
+        @Override
+        public String getAgentId() {
+            return agentId;
+        }
+
+        @Override
+        public Agent.Status getStatus() {
+            return null;
+        }
+
+        @Override
+        public void setContext(FlexiblePowerContext context) {
+        }
+
+        @Override
+        public void addObserver(AgentObserver observer) {
+            observers.add(observer);
+        }
+
+        @Override
+        public void removeObserver(AgentObserver observer) {
+            observers.remove(observer);
+        }
+
+        void publishPriceUpdate(Price price, int bidNumber) {
+            for (AgentObserver observer : observers) {
+                observer.handleAgentEvent(new OutgoingPriceUpdateEvent("cluster",
+                                                                       agentId,
+                                                                       "session",
+                                                                       new Date(),
+                                                                       new PriceUpdate(price, bidNumber)));
+            }
+        }
+    }
+
+    private List<String> readLog() throws IOException {
+        return Files.readAllLines(new File(folder.getRoot(), "test_log.csv").toPath(), StandardCharsets.UTF_8);
+    }
+
+    private List<String> readCompressedLog(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),
+                                                                         StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void sendPriceUpdates(CSVLogger logger, int count) {
+        for (int ix = 0; ix < count; ix++) {
+            logger.handleAgentEvent(new OutgoingPriceUpdateEvent("cluster",
+                                                                 "auctioneer",
+                                                                 "session",
+                                                                 timestamp,
+                                                                 new PriceUpdate(new Price(marketBasis, 5), ix)));
+        }
+    }
+
+    @Test
+    public void testBidEventsAreWrittenOnDeactivate() throws IOException {
+        properties.put("eventType", AgentEventType.BID_EVENT);
+        CSVLogger logger = new CSVLogger();
+        logger.activate(properties);
+
+        int events = 5000;
+        for (int ix = 0; ix < events; ix++) {
+            BidUpdate bidUpdate = new BidUpdate(new Bid(marketBasis, new double[] { 4, 3, 2, 1, 0 }), ix);
+            logger.handleAgentEvent(new IncomingBidUpdateEvent("cluster",
+                                                               "concentrator",
+                                                               "session",
+                                                               timestamp,
+                                                               "agent" + ix,
+                                                               bidUpdate));
+        }
+        logger.deactivate();
+
+        List<String> lines = readLog();
+        assertThat(lines.size(), is(equalTo(events + 1)));
+        assertThat(lines.get(0).startsWith("logTime;clusterId;agentId;"), is(true));
+        String[] fields = lines.get(events).split(";");
+        assertThat(fields[1], is(equalTo("cluster")));
+        assertThat(fields[2], is(equalTo("concentrator")));
+        assertThat(fields[12], is(equalTo(String.valueOf(events - 1))));
+        assertThat(fields[13], is(equalTo("4.0#3.0#2.0#1.0#0.0")));
+    }
+
+    @Test
+    public void testHeaderIsWrittenOnce() throws IOException {
+        properties.put("eventType", AgentEventType.PRICE_EVENT);
+        CSVLogger logger = new CSVLogger();
+        logger.activate(properties);
+        logger.handleAgentEvent(new OutgoingPriceUpdateEvent("cluster",
+                                                             "auctioneer",
+                                                             "session",
+                                                             timestamp,
+                                                             new PriceUpdate(new Price(marketBasis, 5), 1)));
+        logger.deactivate();
+
+        // Appending to the existing file
+        logger = new CSVLogger();
+        logger.activate(properties);
+        logger.handleAgentEvent(new OutgoingPriceUpdateEvent("cluster",
+                                                             "auctioneer",
+                                                             "session",
+                                                             timestamp,
+                                                             new PriceUpdate(new Price(marketBasis, 7.5), 2)));
+        logger.deactivate();
+
+        List<String> lines = readLog();
+        assertThat(lines.size(), is(equalTo(3)));
+        assertThat(lines.get(0).startsWith("logTime;clusterId;id;"), is(true));
+        assertThat(lines.get(1).split(";")[7], is(equalTo("5")));
+        assertThat(lines.get(2).split(";")[7], is(equalTo("7.5")));
+    }
+
+    @Test
+    public void testRotationBySize() throws Exception {
+        properties.put("eventType", AgentEventType.PRICE_EVENT);
+        properties.put("maxFileSize", 1000L);
+        CSVLogger logger = new CSVLogger();
+        logger.activate(properties);
+
+        // Each line is about 70 bytes, so the file is over the limit after this dump
+        sendPriceUpdates(logger, 20);
+        logger.modified(properties);
+        // This dump rotates the file first
+        sendPriceUpdates(logger, 5);
+        logger.deactivate();
+
+        // The segment is compressed in the background
+        File segment = new File(folder.getRoot(), "test_log.part1.csv.gz");
+        File uncompressed = new File(folder.getRoot(), "test_log.part1.csv");
+        for (int ix = 0; ix < 50 && (!segment.exists() || uncompressed.exists()); ix++) {
+            Thread.sleep(100);
+        }
+        assertThat(segment.exists(), is(true));
+        assertThat(uncompressed.exists(), is(false));
+        assertThat(readCompressedLog(segment).size(), is(equalTo(21)));
+        assertThat(readLog().size(), is(equalTo(6)));
+    }
+
+    @Test
+    public void testEventsAreQueued() throws IOException {
+        properties.put("eventType", AgentEventType.PRICE_EVENT);
+        properties.put("capacity", 10);
+        properties.put("overflowPolicy", "block");
+        CSVLogger logger = new CSVLogger();
+        logger.activate(properties);
+        ObservedAgent auctioneer = new ObservedAgent("auctioneer");
+        logger.addObservable(auctioneer, null);
+        assertThat(auctioneer.observers.size(), is(equalTo(1)));
+        assertThat(auctioneer.observers.get(0) instanceof QueuedAgentObserver, is(true));
+
+        int events = 1000;
+        for (int ix = 0; ix < events; ix++) {
+            auctioneer.publishPriceUpdate(new Price(marketBasis, 5), ix);
+        }
+        logger.deactivate();
+
+        // Blocking loses no events, and the queued events are written at deactivation
+        List<String> lines = readLog();
+        assertThat(lines.size(), is(equalTo(events + 1)));
+        assertThat(auctioneer.observers.get(0), is(equalTo((AgentObserver) logger)));
+    }
+
+    @Test
+    public void testQueueIsRemovedByModified() {
+        properties.put("eventType", AgentEventType.PRICE_EVENT);
+        properties.put("capacity", 10);
+        CSVLogger logger = new CSVLogger();
+        logger.activate(properties);
+        ObservedAgent auctioneer = new ObservedAgent("auctioneer");
+        logger.addObservable(auctioneer, null);
+
+        properties.put("capacity", 0);
+        logger.modified(properties);
+        assertThat(auctioneer.observers.size(), is(equalTo(1)));
+        assertThat(auctioneer.observers.get(0), is(equalTo((AgentObserver) logger)));
+        logger.deactivate();
+    }
+
+    @Test
+    public void testInterestRespectsFilter() {
+        properties.put("eventType", AgentEventType.PRICE_EVENT);
+        properties.put("filter", new String[] { "auctioneer" });
+        CSVLogger logger = new CSVLogger();
+        logger.activate(properties);
+        assertThat(logger.isInterestedIn(OutgoingPriceUpdateEvent.class, "auctioneer"), is(true));
+        assertThat(logger.isInterestedIn(OutgoingPriceUpdateEvent.class, "concentrator"), is(false));
+        assertThat(logger.isInterestedIn(IncomingBidUpdateEvent.class, "auctioneer"), is(false));
+        logger.deactivate();
+    }
+
+    @Test
+    public void testDeactivateAfterFailedActivate() {
+        properties.put("maxFileSize", -1L);
+        CSVLogger logger = new CSVLogger();
+        try {
+            logger.activate(properties);
+            fail("A negative maxFileSize should not be accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // OSGi may still deactivate the component, which should not fail on the parts that were never created
+        logger.deactivate();
+    }
+}
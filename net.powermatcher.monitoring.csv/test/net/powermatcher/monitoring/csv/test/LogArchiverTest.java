@@ -0,0 +1,91 @@
+package net.powermatcher.monitoring.csv.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.powermatcher.monitoring.csv.LogArchiver;
+
+/**
+ * JUnit tests for the {@link LogArchiver} class.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class LogArchiverTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createSegment(String name, long age) throws IOException {
+        File file = folder.newFile(name);
+        file.setLastModified(System.currentTimeMillis() - age);
+        return file;
+    }
+
+    @Test
+    public void testSegmentPattern() {
+        Pattern pattern = LogArchiver.segmentPattern("event_log_::yyyyMMdd::.csv");
+        assertThat(pattern.matcher("event_log_20150101.part3.csv").matches(), is(true));
+        assertThat(pattern.matcher("event_log_20150101.part12.csv.gz").matches(), is(true));
+        // The active log file is not a segment
+        assertThat(pattern.matcher("event_log_20150101.csv").matches(), is(false));
+        assertThat(pattern.matcher("other_log_20150101.part3.csv").matches(), is(false));
+        assertThat(LogArchiver.segmentName("event_log_20150101.csv", 3), is(equalTo("event_log_20150101.part3.csv")));
+    }
+
+    @Test
+    public void testNextSegmentIndex() throws IOException {
+        createSegment("log_a.part1.csv.gz", 0);
+        createSegment("log_a.part4.csv", 0);
+        createSegment("log_b.part7.csv", 0);
+        LogArchiver archiver = new LogArchiver(folder.getRoot(),
+                                               LogArchiver.segmentPattern("log_::X::.csv"),
+                                               true,
+                                               0,
+                                               0);
+        assertThat(archiver.nextSegmentIndex("log_a.csv"), is(equalTo(5)));
+        assertThat(archiver.nextSegmentIndex("log_c.csv"), is(equalTo(1)));
+    }
+
+    @Test
+    public void testRetentionByCount() throws IOException {
+        createSegment("log.part1.csv", 3 * HOUR);
+        createSegment("log.part2.csv", 2 * HOUR);
+        createSegment("log.part3.csv", HOUR);
+        File active = createSegment("log.csv", 4 * HOUR);
+        LogArchiver archiver = new LogArchiver(folder.getRoot(), LogArchiver.segmentPattern("log.csv"), true, 2, 0);
+        archiver.run();
+
+        assertThat(archiver.findSegments().size(), is(equalTo(2)));
+        assertThat(new File(folder.getRoot(), "log.part1.csv").exists(), is(false));
+        assertThat(new File(folder.getRoot(), "log.part2.csv.gz").exists(), is(true));
+        assertThat(new File(folder.getRoot(), "log.part3.csv.gz").exists(), is(true));
+        assertThat(active.exists(), is(true));
+    }
+
+    @Test
+    public void testRetentionByAge() throws IOException {
+        createSegment("log.part1.csv.gz", 3 * HOUR);
+        createSegment("log.part2.csv", HOUR);
+        LogArchiver archiver = new LogArchiver(folder.getRoot(),
+                                               LogArchiver.segmentPattern("log.csv"),
+                                               false,
+                                               0,
+                                               2 * HOUR);
+        archiver.run();
+
+        assertThat(new File(folder.getRoot(), "log.part1.csv.gz").exists(), is(false));
+        assertThat(new File(folder.getRoot(), "log.part2.csv").exists(), is(true));
+    }
+}
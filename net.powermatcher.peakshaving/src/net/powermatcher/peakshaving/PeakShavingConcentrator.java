@@ -23,6 +23,8 @@ import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.data.Price;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.core.bidcache.BidCache;
+import net.powermatcher.core.concentrator.BidHistoryStore;
 import net.powermatcher.core.concentrator.Concentrator;
 import net.powermatcher.core.concentrator.SentBidInformation;
 import net.powermatcher.core.concentrator.TransformingConcentrator;
@@ -62,6 +64,12 @@ public class PeakShavingConcentrator
                              description = "Mimimum time between two BidUpdates generated by the Concentratro in milliseconds")
         long minTimeBetweenBidUpdates();
 
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.LONG,
+                             description = "Maximum time between two BidUpdates in milliseconds; when larger than the minimum, the time adapts to the load (0 for a fixed time)",
+                             required = false)
+        long maxTimeBetweenBidUpdates();
+
         @AttributeDefinition(defaultValue = "peakshavingconcentrator")
         String agentId();
 
@@ -76,6 +84,52 @@ public class PeakShavingConcentrator
                              description = "The ceiling constraint in Watt",
                              required = false)
         double ceiling();
+
+        @AttributeDefinition(defaultValue = "900",
+                             type = AttributeType.INTEGER,
+                             description = "Maximum number of sent bids that are remembered to handle the price updates that refer to them",
+                             required = false)
+        int maxBidHistory();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.LONG,
+                             description = "Maximum age in milliseconds of a sent bid that a price update can refer to (0 for no limit)",
+                             required = false)
+        long maxBidHistoryAge();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.INTEGER,
+                             description = "Maximum number of sessions to which one task sends a price; when there are more sessions, prices are sent in parallel (0 to disable)",
+                             required = false)
+        int parallelFanOutBatchSize();
+
+        @AttributeDefinition(defaultValue = "1000",
+                             type = AttributeType.INTEGER,
+                             description = "Number of bid changes after which the aggregated bid is summed up again from all bids instead of updated incrementally",
+                             required = false)
+        int fullAggregationInterval();
+
+        @AttributeDefinition(defaultValue = "exact",
+                             description = "How the deviation of a new bid from the last sent bid is measured: exact, absolute, relative or l1",
+                             required = false)
+        String bidChangeMeasure();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.DOUBLE,
+                             description = "Deviation above which a new bid is sent (in Watt, or a fraction for relative)",
+                             required = false)
+        double bidChangeThreshold();
+
+        @AttributeDefinition(defaultValue = "0",
+                             type = AttributeType.LONG,
+                             description = "Maximum time in milliseconds that a changed bid is held back (0 for no limit)",
+                             required = false)
+        long maxBidStaleness();
+
+        @AttributeDefinition(defaultValue = "",
+                             description = "Directory of the journal of bids and prices, from which the latest bids are restored at a restart (empty to disable)",
+                             required = false)
+        String journalLocation();
     }
 
     /**
@@ -112,6 +166,33 @@ public class PeakShavingConcentrator
         final long minTimeBetweenBidUpdates = ((Number) properties.get("minTimeBetweenBidUpdates")).longValue();
         final double floor = ((Number) properties.get("floor")).doubleValue();
         final double ceiling = ((Number) properties.get("ceiling")).doubleValue();
+        final long maxTimeBetweenBidUpdates = properties.containsKey("maxTimeBetweenBidUpdates")
+                                              ? ((Number) properties.get("maxTimeBetweenBidUpdates")).longValue()
+                                              : 0;
+        final int maxBidHistory = properties.containsKey("maxBidHistory")
+                                  ? ((Number) properties.get("maxBidHistory")).intValue()
+                                  : BidHistoryStore.DEFAULT_CAPACITY;
+        final long maxBidHistoryAge = properties.containsKey("maxBidHistoryAge")
+                                     ? ((Number) properties.get("maxBidHistoryAge")).longValue()
+                                     : 0;
+        final int parallelFanOutBatchSize = properties.containsKey("parallelFanOutBatchSize")
+                                            ? ((Number) properties.get("parallelFanOutBatchSize")).intValue()
+                                            : 0;
+        final int fullAggregationInterval = properties.containsKey("fullAggregationInterval")
+                                            ? ((Number) properties.get("fullAggregationInterval")).intValue()
+                                            : BidCache.DEFAULT_FULL_AGGREGATION_INTERVAL;
+        final String bidChangeMeasure = properties.containsKey("bidChangeMeasure")
+                                        ? (String) properties.get("bidChangeMeasure")
+                                        : "exact";
+        final double bidChangeThreshold = properties.containsKey("bidChangeThreshold")
+                                          ? ((Number) properties.get("bidChangeThreshold")).doubleValue()
+                                          : 0;
+        final long maxBidStaleness = properties.containsKey("maxBidStaleness")
+                                     ? ((Number) properties.get("maxBidStaleness")).longValue()
+                                     : 0;
+        final String journalLocation = properties.containsKey("journalLocation")
+                                       ? (String) properties.get("journalLocation")
+                                       : "";
 
         activate(new Config() {
             @Override
@@ -124,6 +205,11 @@ public class PeakShavingConcentrator
                 return minTimeBetweenBidUpdates;
             }
 
+            @Override
+            public long maxTimeBetweenBidUpdates() {
+                return maxTimeBetweenBidUpdates;
+            }
+
             @Override
             public String agentId() {
                 return agentId;
@@ -139,6 +225,46 @@ public class PeakShavingConcentrator
                 return ceiling;
             }
 
+            @Override
+            public int maxBidHistory() {
+                return maxBidHistory;
+            }
+
+            @Override
+            public long maxBidHistoryAge() {
+                return maxBidHistoryAge;
+            }
+
+            @Override
+            public int parallelFanOutBatchSize() {
+                return parallelFanOutBatchSize;
+            }
+
+            @Override
+            public int fullAggregationInterval() {
+                return fullAggregationInterval;
+            }
+
+            @Override
+            public String bidChangeMeasure() {
+                return bidChangeMeasure;
+            }
+
+            @Override
+            public double bidChangeThreshold() {
+                return bidChangeThreshold;
+            }
+
+            @Override
+            public long maxBidStaleness() {
+                return maxBidStaleness;
+            }
+
+            @Override
+            public String journalLocation() {
+                return journalLocation;
+            }
+
             @Override
             public Class<? extends Annotation> annotationType() {
                 return Config.class;
@@ -181,6 +307,51 @@ public class PeakShavingConcentrator
             public long minTimeBetweenBidUpdates() {
                 return config.minTimeBetweenBidUpdates();
             }
+
+            @Override
+            public long maxTimeBetweenBidUpdates() {
+                return config.maxTimeBetweenBidUpdates();
+            }
+
+            @Override
+            public int maxBidHistory() {
+                return config.maxBidHistory();
+            }
+
+            @Override
+            public long maxBidHistoryAge() {
+                return config.maxBidHistoryAge();
+            }
+
+            @Override
+            public int parallelFanOutBatchSize() {
+                return config.parallelFanOutBatchSize();
+            }
+
+            @Override
+            public int fullAggregationInterval() {
+                return config.fullAggregationInterval();
+            }
+
+            @Override
+            public String bidChangeMeasure() {
+                return config.bidChangeMeasure();
+            }
+
+            @Override
+            public double bidChangeThreshold() {
+                return config.bidChangeThreshold();
+            }
+
+            @Override
+            public long maxBidStaleness() {
+                return config.maxBidStaleness();
+            }
+
+            @Override
+            public String journalLocation() {
+                return config.journalLocation();
+            }
         });
     }
 
@@ -223,15 +394,15 @@ public class PeakShavingConcentrator
 
         if (transformedDemand < realDemand) {
             // Increase the price step until this is no longer true
-            while (transformedDemand < realDemand && priceIndex < marketBasis.getPriceSteps()) {
+            while (transformedDemand < realDemand && priceIndex < marketBasis.getPriceSteps() - 1) {
                 priceIndex += 1;
-                realDemand = originalBid.getDemandAt(Price.fromPriceIndex(marketBasis, priceIndex));
+                realDemand = originalBid.getDemandAt(priceIndex);
             }
         } else if (transformedDemand > realDemand) {
             // Decrease the price step until this is no longer true
-            while (transformedDemand > realDemand && priceIndex >= 0) {
+            while (transformedDemand > realDemand && priceIndex > 0) {
                 priceIndex -= 1;
-                realDemand = originalBid.getDemandAt(Price.fromPriceIndex(marketBasis, priceIndex));
+                realDemand = originalBid.getDemandAt(priceIndex);
             }
         }
 
@@ -269,10 +440,7 @@ public class PeakShavingConcentrator
             Arrays.fill(demand, demand[demand.length - 1]);
         } else {
             // replace part above ceiling with first point in unclipped region
-            double firstUnclippedPoint = demand[start];
-            for (int i = 0; i < start; i++) {
-                demand[i] = firstUnclippedPoint;
-            }
+            Arrays.fill(demand, 0, start, demand[start]);
 
             int end = findLastIndexOfUnclippedRegion(demand, floor);
 
@@ -281,10 +449,7 @@ public class PeakShavingConcentrator
                 Arrays.fill(demand, demand[0]);
             } else {
                 // replace part below floor with last point in unclipped region
-                double lastUnclippedPoint = demand[end];
-                for (int i = end + 1; i < demand.length; i++) {
-                    demand[i] = lastUnclippedPoint;
-                }
+                Arrays.fill(demand, end + 1, demand.length, demand[end]);
             }
         }
 
@@ -294,7 +459,8 @@ public class PeakShavingConcentrator
     /**
      * Finds the first index in a demand function for which the allocation doesn't exceed the given ceiling. Starting at
      * the lowest price (index), the first index of the region which won't be clipped is the first value in the demand
-     * function which is lower than or equal to the ceiling.
+     * function which is lower than or equal to the ceiling. Since the demand function is descending, this is found with
+     * a binary search.
      *
      * @param demandFunction
      *            The demand function as an array of power flow values, where positive flow is demand.
@@ -304,19 +470,23 @@ public class PeakShavingConcentrator
      */
     private int findFirstIndexOfUnclippedRegion(final double[] demandFunction,
                                                 final double ceiling) {
-        for (int i = 0; i < demandFunction.length; i++) {
-            if (demandFunction[i] <= ceiling) {
-                return i;
+        int low = 0, high = demandFunction.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (demandFunction[middle] <= ceiling) {
+                high = middle;
+            } else {
+                low = middle + 1;
             }
         }
 
-        return -1;
+        return low == demandFunction.length ? -1 : low;
     }
 
     /**
      * Finds the first index in a demand function for which the allocation doesn't exceed the given floor; the last
      * index of the region which won't be clipped is the last value in the demand function which is greater than or
-     * equal to the ceiling.
+     * equal to the ceiling. Since the demand function is descending, this is found with a binary search.
      *
      * @param demandFunction
      *            The demand function as an array of power flow values, where positive flow is demand.
@@ -326,13 +496,17 @@ public class PeakShavingConcentrator
      */
     private int findLastIndexOfUnclippedRegion(final double[] demandFunction,
                                                final double floor) {
-        for (int i = demandFunction.length - 1; i >= 0; i--) {
-            if (demandFunction[i] >= floor) {
-                return i;
+        int low = 0, high = demandFunction.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (demandFunction[middle] >= floor) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
         }
 
-        return -1;
+        return low - 1;
     }
 
     @Override
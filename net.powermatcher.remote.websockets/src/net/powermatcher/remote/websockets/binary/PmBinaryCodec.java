@@ -0,0 +1,251 @@
+package net.powermatcher.remote.websockets.binary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.remote.websockets.data.ClusterInfoModel;
+
+/**
+ * Implements the compact binary encoding of {@link BidUpdate}s and {@link PriceUpdate}s that is used on the websocket
+ * connection when both sides support it. The {@link MarketBasis} is not part of these messages, it is sent once in the
+ * JSON {@link ClusterInfoModel} together with an identifier that is repeated in every binary frame.
+ *
+ * Each frame has the following layout (integers are unsigned variable length, 7 bits per byte, least significant
+ * first; floating point numbers are big-endian):
+ *
+ * <pre>
+ * frame       := type:byte marketBasisId:varint bidNumber:varint body
+ * bid body    := flags:byte runCount:varint (runLength:varint demand:(float|double))*
+ * price body  := priceValue:double
+ * </pre>
+ *
+ * The demand array of a bid is sent as runs of equal values, so the flat parts of a bid (between the steps) only cost
+ * a couple of bytes. When all demand values can be represented as a float without loss of precision they are packed
+ * as floats, otherwise as doubles. The decoded bid is always exactly equal to the encoded bid.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class PmBinaryCodec {
+
+    /**
+     * The name of the query parameter with which the client requests an encoding.
+     */
+    public static final String ENCODING_PARAMETER = "encoding";
+
+    /**
+     * The value of the {@link #ENCODING_PARAMETER} with which the client requests the binary encoding.
+     */
+    public static final String ENCODING_BINARY = "binary";
+
+    /**
+     * Frame type indicator of a {@link BidUpdate}.
+     */
+    public static final byte TYPE_BID = 1;
+
+    /**
+     * Frame type indicator of a {@link PriceUpdate}.
+     */
+    public static final byte TYPE_PRICE_UPDATE = 2;
+
+    /**
+     * Flag that indicates that the demand values of a bid are packed as floats instead of doubles.
+     */
+    private static final byte FLAG_FLOAT = 1;
+
+    /**
+     * Encode a {@link BidUpdate} to a binary frame.
+     *
+     * @param marketBasisId
+     *            the identifier of the market basis as sent in the cluster information
+     * @param bidUpdate
+     *            the bid update to encode
+     * @return a buffer containing the frame, ready to be sent.
+     */
+    public ByteBuffer encodeBidUpdate(int marketBasisId, BidUpdate bidUpdate) {
+        Bid bid = bidUpdate.getBid();
+        int length = bid.getMarketBasis().getPriceSteps();
+
+        boolean packFloats = true;
+        int runCount = 0;
+        for (int ix = 0; ix < length; ix++) {
+            double demand = bid.getDemandAt(ix);
+            if (packFloats && (float) demand != demand) {
+                packFloats = false;
+            }
+            if (ix == 0 || !sameValue(demand, bid.getDemandAt(ix - 1))) {
+                runCount++;
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + runCount * 10);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, TYPE_BID, marketBasisId, bidUpdate.getBidNumber());
+            out.writeByte(packFloats ? FLAG_FLOAT : 0);
+            writeVarint(out, runCount);
+
+            int runStart = 0;
+            for (int ix = 1; ix <= length; ix++) {
+                if (ix == length || !sameValue(bid.getDemandAt(ix), bid.getDemandAt(runStart))) {
+                    writeVarint(out, ix - runStart);
+                    if (packFloats) {
+                        out.writeFloat((float) bid.getDemandAt(runStart));
+                    } else {
+                        out.writeDouble(bid.getDemandAt(runStart));
+                    }
+                    runStart = ix;
+                }
+            }
+        } catch (IOException e) {
+            // Can not happen while writing to a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Encode a {@link PriceUpdate} to a binary frame.
+     *
+     * @param marketBasisId
+     *            the identifier of the market basis as sent in the cluster information
+     * @param priceUpdate
+     *            the price update to encode
+     * @return a buffer containing the frame, ready to be sent.
+     */
+    public ByteBuffer encodePriceUpdate(int marketBasisId, PriceUpdate priceUpdate) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, TYPE_PRICE_UPDATE, marketBasisId, priceUpdate.getBidNumber());
+            out.writeDouble(priceUpdate.getPrice().getPriceValue());
+        } catch (IOException e) {
+            // Can not happen while writing to a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Decode a binary frame to a {@link BidUpdate}.
+     *
+     * @param frame
+     *            the received frame
+     * @param marketBasisId
+     *            the identifier of the market basis that is expected in the frame
+     * @param marketBasis
+     *            the market basis that belongs to the marketBasisId
+     * @return the decoded {@link BidUpdate}
+     * @throws IllegalArgumentException
+     *             when the frame is not a valid bid frame for the given market basis
+     */
+    public BidUpdate decodeBidUpdate(ByteBuffer frame, int marketBasisId, MarketBasis marketBasis) {
+        try {
+            int bidNumber = readHeader(frame, TYPE_BID, marketBasisId);
+            boolean packFloats = (frame.get() & FLAG_FLOAT) != 0;
+            int runCount = readVarint(frame);
+
+            double[] demand = new double[marketBasis.getPriceSteps()];
+            int ix = 0;
+            for (int run = 0; run < runCount; run++) {
+                int runLength = readVarint(frame);
+                if (runLength <= 0 || runLength > demand.length - ix) {
+                    throw new IllegalArgumentException("Invalid run length " + runLength + " in bid frame");
+                }
+                double value = packFloats ? frame.getFloat() : frame.getDouble();
+                for (int end = ix + runLength; ix < end; ix++) {
+                    demand[ix] = value;
+                }
+            }
+            if (ix != demand.length) {
+                throw new IllegalArgumentException("Bid frame contains " + ix
+                                                   + " demand values, expected "
+                                                   + demand.length);
+            }
+            return new BidUpdate(new Bid(marketBasis, demand), bidNumber);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Bid frame is truncated", e);
+        }
+    }
+
+    /**
+     * Decode a binary frame to a {@link PriceUpdate}.
+     *
+     * @param frame
+     *            the received frame
+     * @param marketBasisId
+     *            the identifier of the market basis that is expected in the frame
+     * @param marketBasis
+     *            the market basis that belongs to the marketBasisId
+     * @return the decoded {@link PriceUpdate}
+     * @throws IllegalArgumentException
+     *             when the frame is not a valid price update frame for the given market basis
+     */
+    public PriceUpdate decodePriceUpdate(ByteBuffer frame, int marketBasisId, MarketBasis marketBasis) {
+        try {
+            int bidNumber = readHeader(frame, TYPE_PRICE_UPDATE, marketBasisId);
+            return new PriceUpdate(new Price(marketBasis, frame.getDouble()), bidNumber);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Price update frame is truncated", e);
+        }
+    }
+
+    private static boolean sameValue(double a, double b) {
+        // Compares the bits, such that -0.0 and 0.0 end up in different runs and the decoded bid is exactly equal
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    private static void writeHeader(DataOutputStream out, byte type, int marketBasisId, int bidNumber)
+                                                                                                       throws IOException {
+        out.writeByte(type);
+        writeVarint(out, marketBasisId);
+        writeVarint(out, bidNumber);
+    }
+
+    /**
+     * Reads the header of a frame and checks the type and market basis identifier.
+     *
+     * @return the bid number of the frame
+     */
+    private static int readHeader(ByteBuffer frame, byte expectedType, int expectedMarketBasisId) {
+        byte type = frame.get();
+        if (type != expectedType) {
+            throw new IllegalArgumentException("Unexpected frame type " + type + ", expected " + expectedType);
+        }
+        int marketBasisId = readVarint(frame);
+        if (marketBasisId != expectedMarketBasisId) {
+            throw new IllegalArgumentException("Frame refers to market basis " + marketBasisId
+                                               + ", expected "
+                                               + expectedMarketBasisId);
+        }
+        return readVarint(frame);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer frame) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = frame.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length integer");
+    }
+}
@@ -3,6 +3,7 @@ package net.powermatcher.remote.websockets.client;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -32,6 +33,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonSyntaxException;
 
+import net.powermatcher.api.Agent;
 import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
@@ -40,6 +42,7 @@ import net.powermatcher.core.BaseMatcherEndpoint;
 import net.powermatcher.core.bidcache.AggregatedBid;
 import net.powermatcher.core.concentrator.BidHistoryStore;
 import net.powermatcher.core.concentrator.SentBidInformation;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
 import net.powermatcher.remote.websockets.data.ClusterInfoModel;
 import net.powermatcher.remote.websockets.data.PmMessage;
 import net.powermatcher.remote.websockets.data.PmMessage.PayloadType;
@@ -49,7 +52,8 @@ import net.powermatcher.remote.websockets.json.PmJsonSerializer;
 
 /**
  * WebSocket implementation of an {@link MatcherEndpoint}. Enabled two agents to communicate via WebSockets and JSON
- * over a TCP connection.
+ * over a TCP connection. When configured, the client asks the server to exchange bids and price updates in the binary
+ * format of {@link PmBinaryCodec}. JSON is still used when the server does not support this.
  *
  * @author FAN
  * @version 2.1
@@ -85,6 +89,13 @@ public class WebsocketClient
         @AttributeDefinition(type = AttributeType.LONG,
                              description = "Mimimum time between two BidUpdates generated by the Concentratro in milliseconds")
         long minTimeBetweenBidUpdates() default 1000L;
+
+        @AttributeDefinition(type = AttributeType.LONG,
+                             description = "Maximum time between two BidUpdates in milliseconds; when larger than the minimum, the time adapts to the load (0 for a fixed time)")
+        long maxTimeBetweenBidUpdates() default 0L;
+
+        @AttributeDefinition(description = "Use the compact binary messages for bids and price updates when the server supports them")
+        boolean binaryProtocol() default true;
     }
 
     private URI powermatcherUrl;
@@ -95,7 +106,7 @@ public class WebsocketClient
 
     private int reconnectDelay, connectTimeout;
 
-    private long minTimeBetweenBidUpdates;
+    private long minTimeBetweenBidUpdates, maxTimeBetweenBidUpdates;
 
     private BundleContext bundleContext;
 
@@ -109,6 +120,14 @@ public class WebsocketClient
 
     private final BidHistoryStore sentBids = new BidHistoryStore();
 
+    private final PmBinaryCodec binaryCodec = new PmBinaryCodec();
+
+    /**
+     * The identifier of the market basis in binary messages, as received in the cluster information. When this is 0,
+     * JSON messages are used.
+     */
+    private volatile int marketBasisId;
+
     /**
      * OSGi calls this method to activate a managed service.
      *
@@ -125,7 +144,11 @@ public class WebsocketClient
             powermatcherUrl = new URI(config.powermatcherUrl() + "?agentId="
                                       + getAgentId()
                                       + "&connectionId="
-                                      + config.connectionId());
+                                      + config.connectionId()
+                                      + (config.binaryProtocol() ? "&" + PmBinaryCodec.ENCODING_PARAMETER
+                                                                   + "="
+                                                                   + PmBinaryCodec.ENCODING_BINARY
+                                                                 : ""));
         } catch (URISyntaxException e) {
             LOGGER.error("Malformed URL for powermatcher websocket endpoint. Reason {}", e);
             return;
@@ -134,6 +157,7 @@ public class WebsocketClient
         reconnectDelay = config.reconnectTimeout();
         connectTimeout = config.connectTimeout();
         minTimeBetweenBidUpdates = config.minTimeBetweenBidUpdates();
+        maxTimeBetweenBidUpdates = config.maxTimeBetweenBidUpdates();
 
         this.bundleContext = bundleContext;
 
@@ -225,6 +249,7 @@ public class WebsocketClient
     public void onDisconnect(int statusCode, String reason) {
         LOGGER.info("Connection closed: {} - {}", statusCode, reason);
         remoteSession = null;
+        marketBasisId = 0;
         unconfigure();
         unregisterMatcherEndpoint();
     }
@@ -249,9 +274,11 @@ public class WebsocketClient
                     // Sync marketbasis and clusterid with local session, for new
                     // connections
                     ClusterInfoModel clusterInfo = (ClusterInfoModel) pmMessage.getPayload();
+                    marketBasisId = clusterInfo.getMarketBasisId();
                     configure(ModelMapper.convertMarketBasis(clusterInfo.getMarketBasis()),
                               clusterInfo.getClusterId(),
-                              minTimeBetweenBidUpdates);
+                              minTimeBetweenBidUpdates,
+                              maxTimeBetweenBidUpdates);
 
                     // Register the MatcherEndpoint with the OSGI runtime, to make it available for connections
                     registerMatcherEndpoint();
@@ -262,10 +289,7 @@ public class WebsocketClient
                 // Handle specific message
                 if (pmMessage.getPayloadType() == PayloadType.PRICE_UPDATE) {
                     // Relay price update to local agents
-                    PriceUpdate priceUpdate = ModelMapper.mapPriceUpdate((PriceUpdateModel) pmMessage.getPayload());
-
-                    SentBidInformation info = sentBids.retrieveAggregatedBid(priceUpdate.getBidNumber());
-                    publishPrice(priceUpdate.getPrice(), info.getOriginalBid());
+                    relayPrice(ModelMapper.mapPriceUpdate((PriceUpdateModel) pmMessage.getPayload()));
                 } else {
                     LOGGER.warn("Got unexpected message type [{}], expected PRICE_UPDATE", pmMessage.getPayloadType());
                 }
@@ -275,6 +299,44 @@ public class WebsocketClient
         }
     }
 
+    /**
+     * Handle Websocket receive binary message
+     *
+     * @param buffer
+     *            the buffer that contains the message received via Websockets
+     * @param offset
+     *            the offset of the message in the buffer
+     * @param length
+     *            the length of the message
+     */
+    @OnWebSocketMessage
+    public void onMessage(byte[] buffer, int offset, int length) {
+        Agent.Status currentStatus = getStatus();
+        if (!currentStatus.isConnected() || marketBasisId == 0) {
+            LOGGER.warn("Got a binary message, while no binary market basis has been received");
+            return;
+        }
+
+        try {
+            relayPrice(binaryCodec.decodePriceUpdate(ByteBuffer.wrap(buffer, offset, length),
+                                                     marketBasisId,
+                                                     currentStatus.getMarketBasis()));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to understand binary message from remote agent: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Relay a price update that has been received from the remote agent to the local agents.
+     *
+     * @param priceUpdate
+     *            the received price update
+     */
+    private void relayPrice(PriceUpdate priceUpdate) {
+        SentBidInformation info = sentBids.retrieveAggregatedBid(priceUpdate.getBidNumber());
+        publishPrice(priceUpdate.getPrice(), info.getOriginalBid());
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -297,12 +359,16 @@ public class WebsocketClient
      */
     private BidUpdate publishBid(AggregatedBid newBid) {
         BidUpdate update = new BidUpdate(newBid, bidNumberGenerator.incrementAndGet());
-        PmJsonSerializer serializer = new PmJsonSerializer();
-        String message = serializer.serializeBidUpdate(update);
 
         if (isRemoteConnected()) {
             try {
-                remoteSession.getRemote().sendString(message);
+                int currentMarketBasisId = marketBasisId;
+                if (currentMarketBasisId != 0) {
+                    remoteSession.getRemote().sendBytes(binaryCodec.encodeBidUpdate(currentMarketBasisId, update));
+                } else {
+                    PmJsonSerializer serializer = new PmJsonSerializer();
+                    remoteSession.getRemote().sendString(serializer.serializeBidUpdate(update));
+                }
                 LOGGER.debug("Sent bid update to server {}", update);
                 return update;
             } catch (IOException | WebSocketException | NullPointerException e) {
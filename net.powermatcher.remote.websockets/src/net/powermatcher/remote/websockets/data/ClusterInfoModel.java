@@ -13,6 +13,12 @@ public class ClusterInfoModel {
 
     private String clusterId;
 
+    /**
+     * The identifier under which the marketBasis is referred to in binary messages. When this is 0, the binary
+     * messages are not supported and JSON should be used.
+     */
+    private int marketBasisId;
+
     /**
      * @return the current value of marketBasis.
      */
@@ -34,4 +40,15 @@ public class ClusterInfoModel {
     public void setClusterId(String clusterId) {
         this.clusterId = clusterId;
     }
+
+    /**
+     * @return the current value of marketBasisId.
+     */
+    public int getMarketBasisId() {
+        return marketBasisId;
+    }
+
+    public void setMarketBasisId(int marketBasisId) {
+        this.marketBasisId = marketBasisId;
+    }
 }
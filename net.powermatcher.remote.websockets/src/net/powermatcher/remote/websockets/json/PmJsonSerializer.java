@@ -80,9 +80,26 @@ public class PmJsonSerializer {
      * @return a JSON string with clusterId and {@link MarketBasis} wrapped in {@link PmMessage}.
      */
     public String serializeClusterInfo(final String clusterId, final MarketBasis marketBasis) {
+        return serializeClusterInfo(clusterId, marketBasis, 0);
+    }
+
+    /**
+     * Serialize a clusterId and {@link MarketBasis} to JSON, including the identifier of the market basis that is used
+     * in binary messages.
+     *
+     * @param clusterId
+     *            the id of the cluster
+     * @param marketBasis
+     *            the market basis of the cluster
+     * @param marketBasisId
+     *            the identifier of the market basis in binary messages, or 0 when binary messages are not used
+     * @return a JSON string with clusterId and {@link MarketBasis} wrapped in {@link PmMessage}.
+     */
+    public String serializeClusterInfo(final String clusterId, final MarketBasis marketBasis, final int marketBasisId) {
         ClusterInfoModel customerModel = new ClusterInfoModel();
         customerModel.setClusterId(clusterId);
         customerModel.setMarketBasis(ModelMapper.convertMarketBasis(marketBasis));
+        customerModel.setMarketBasisId(marketBasisId);
 
         PmMessage message = new PmMessage();
         message.setPayloadType(PmMessage.PayloadType.CLUSTERINFO);
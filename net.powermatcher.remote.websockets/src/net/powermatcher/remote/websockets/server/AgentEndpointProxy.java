@@ -4,10 +4,12 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketException;
@@ -21,6 +23,7 @@ import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.api.monitoring.ObservableAgent;
 import net.powermatcher.api.monitoring.events.OutgoingBidUpdateEvent;
 import net.powermatcher.core.BaseAgentEndpoint;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
 import net.powermatcher.remote.websockets.data.BidModel;
 import net.powermatcher.remote.websockets.data.PmMessage;
 import net.powermatcher.remote.websockets.json.ModelMapper;
@@ -28,7 +31,8 @@ import net.powermatcher.remote.websockets.json.PmJsonSerializer;
 
 /**
  * WebSocket implementation of an {@link AgentEndpoint}. Enabled two agents to communicate via WebSockets and JSON over
- * a TCP connection.
+ * a TCP connection. When the remote agent asks for it in the query of the URL, bids and price updates are exchanged in
+ * the binary format of {@link PmBinaryCodec} instead of JSON.
  *
  * @author FAN
  * @version 2.1
@@ -42,6 +46,15 @@ public class AgentEndpointProxy
     protected ServiceRegistration<?> serviceRegistration;
     protected Session remoteSession;
 
+    private final PmBinaryCodec binaryCodec = new PmBinaryCodec();
+    private final AtomicInteger marketBasisIdGenerator = new AtomicInteger();
+    private volatile boolean binaryRequested;
+
+    /**
+     * The identifier of the market basis in binary messages, or 0 when JSON messages are used.
+     */
+    private volatile int marketBasisId;
+
     public AgentEndpointProxy(BundleContext bundleContext, String desiredParentId) {
         this.bundleContext = bundleContext;
         this.desiredParentId = desiredParentId;
@@ -54,6 +67,7 @@ public class AgentEndpointProxy
         Map<String, String> query = splitQuery(remoteSession.getUpgradeRequest().getRequestURI());
         String remoteAgentId = query.get("agentId");
         String connectionId = query.get("connectionId");
+        binaryRequested = PmBinaryCodec.ENCODING_BINARY.equals(query.get(PmBinaryCodec.ENCODING_PARAMETER));
         if (remoteAgentId == null || remoteAgentId.isEmpty()) {
             remoteSession.close();
             LOGGER.warn("Rejecting connection from remote agent from [{}], missing the agentId",
@@ -108,7 +122,19 @@ public class AgentEndpointProxy
 
     @Override
     public void onWebSocketBinary(byte[] buffer, int offset, int length) {
-        // Do nothing, we ignore all binary messages
+        AgentEndpoint.Status currentStatus = getStatus();
+        if (!currentStatus.isConnected() || marketBasisId == 0) {
+            LOGGER.warn("Got a binary message, while no binary market basis has been sent");
+            return;
+        }
+
+        try {
+            relayBid(binaryCodec.decodeBidUpdate(ByteBuffer.wrap(buffer, offset, length),
+                                                 marketBasisId,
+                                                 currentStatus.getMarketBasis()));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to understand binary message from remote agent: {}", e.getMessage());
+        }
     }
 
     @Override
@@ -127,16 +153,26 @@ public class AgentEndpointProxy
         // Decode the JSON data
         PmJsonSerializer serializer = new PmJsonSerializer();
         PmMessage pmMessage = serializer.deserialize(message);
-        BidUpdate newBid = ModelMapper.mapBidUpdate((BidModel) pmMessage.getPayload());
+        relayBid(ModelMapper.mapBidUpdate((BidModel) pmMessage.getPayload()));
+    }
 
+    /**
+     * Send a bid that has been received from the remote agent to the local matcher.
+     *
+     * @param newBid
+     *            the received bid
+     */
+    private void relayBid(BidUpdate newBid) {
         AgentEndpoint.Status currentStatus = getStatus();
         if (currentStatus.isConnected()) {
             net.powermatcher.api.Session session = currentStatus.getSession();
-            publishEvent(new OutgoingBidUpdateEvent(currentStatus.getClusterId(),
-                                                    getAgentId(),
-                                                    session.getSessionId(),
-                                                    now(),
-                                                    newBid));
+            if (isObserved(OutgoingBidUpdateEvent.class)) {
+                publishEvent(new OutgoingBidUpdateEvent(currentStatus.getClusterId(),
+                                                        getAgentId(),
+                                                        session.getSessionId(),
+                                                        now(),
+                                                        newBid));
+            }
             LOGGER.debug("Sending bid [{}] to {}", newBid, session.getAgentId());
             currentStatus.getSession().updateBid(newBid);
         } else {
@@ -165,12 +201,15 @@ public class AgentEndpointProxy
     public void handlePriceUpdate(PriceUpdate priceUpdate) {
         super.handlePriceUpdate(priceUpdate);
 
-        // Create price update message
-        PmJsonSerializer serializer = new PmJsonSerializer();
-        String message = serializer.serializePriceUpdate(priceUpdate);
-
         try {
-            remoteSession.getRemote().sendString(message);
+            int currentMarketBasisId = marketBasisId;
+            if (currentMarketBasisId != 0) {
+                remoteSession.getRemote().sendBytes(binaryCodec.encodePriceUpdate(currentMarketBasisId, priceUpdate));
+            } else {
+                // Create price update message
+                PmJsonSerializer serializer = new PmJsonSerializer();
+                remoteSession.getRemote().sendString(serializer.serializePriceUpdate(priceUpdate));
+            }
         } catch (IOException | WebSocketException | NullPointerException e) {
             LOGGER.warn("Unable to send price update to remote agent, reason {}", e);
         }
@@ -184,9 +223,14 @@ public class AgentEndpointProxy
         super.connectToMatcher(session);
 
         // Local matcher is connected, provide cluster information to remote // agent.
+        // A new market basis identifier is used for every connection, such that binary messages that refer to an old
+        // market basis are not accepted.
+        marketBasisId = binaryRequested ? marketBasisIdGenerator.incrementAndGet() : 0;
         PmJsonSerializer serializer = new PmJsonSerializer();
         AgentEndpoint.Status currentStatus = getStatus();
-        String message = serializer.serializeClusterInfo(currentStatus.getClusterId(), currentStatus.getMarketBasis());
+        String message = serializer.serializeClusterInfo(currentStatus.getClusterId(),
+                                                         currentStatus.getMarketBasis(),
+                                                         marketBasisId);
         try {
             remoteSession.getRemote().sendString(message);
         } catch (IOException | WebSocketException | NullPointerException e) {
@@ -196,6 +240,7 @@ public class AgentEndpointProxy
 
     @Override
     public synchronized void matcherEndpointDisconnected(net.powermatcher.api.Session session) {
+        marketBasisId = 0;
         super.matcherEndpointDisconnected(session);
         deactivate();
     }
@@ -0,0 +1,235 @@
+package net.powermatcher.remote.websockets.binary.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.remote.websockets.binary.PmBinaryCodec;
+
+/**
+ * JUnit tests for the {@link PmBinaryCodec} class.
+ */
+public class PmBinaryCodecTest {
+    private static final int MARKET_BASIS_ID = 3;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 10, 0, 9);
+    private final PmBinaryCodec codec = new PmBinaryCodec();
+
+    private BidUpdate roundTrip(double... demand) {
+        BidUpdate bidUpdate = new BidUpdate(new Bid(marketBasis, demand), 42);
+        ByteBuffer frame = codec.encodeBidUpdate(MARKET_BASIS_ID, bidUpdate);
+        BidUpdate decoded = codec.decodeBidUpdate(frame, MARKET_BASIS_ID, marketBasis);
+        assertThat(decoded.getBidNumber(), is(equalTo(42)));
+        assertThat(frame.remaining(), is(equalTo(0)));
+        return decoded;
+    }
+
+    private static void assertSameBits(double[] expected, double[] actual) {
+        assertThat(actual.length, is(equalTo(expected.length)));
+        for (int ix = 0; ix < expected.length; ix++) {
+            assertThat(Double.doubleToRawLongBits(actual[ix]), is(equalTo(Double.doubleToRawLongBits(expected[ix]))));
+        }
+    }
+
+    private double[] demandOf(BidUpdate bidUpdate) {
+        double[] demand = new double[marketBasis.getPriceSteps()];
+        for (int ix = 0; ix < demand.length; ix++) {
+            demand[ix] = bidUpdate.getBid().getDemandAt(ix);
+        }
+        return demand;
+    }
+
+    /**
+     * Builds a bid frame by hand, with the runs given as pairs of run length and float demand.
+     */
+    private static ByteBuffer bidFrame(int marketBasisId, int runCount, int... runs) {
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        frame.put(PmBinaryCodec.TYPE_BID);
+        frame.put((byte) marketBasisId);
+        frame.put((byte) 1);
+        frame.put((byte) 1);
+        frame.put((byte) runCount);
+        for (int ix = 0; ix < runs.length; ix += 2) {
+            frame.put((byte) runs[ix]);
+            frame.putFloat(runs[ix + 1]);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    @Test
+    public void testFloatRoundTrip() {
+        double[] demand = { 10, 10, 10, 5.5, 5.5, 0, 0, -2.25, -2.25, -100 };
+        assertSameBits(demand, demandOf(roundTrip(demand)));
+    }
+
+    @Test
+    public void testDoubleRoundTrip() {
+        double[] demand = { 1.0 / 3, 1.0 / 3, 1.0 / 3, 1.0 / 3, 0.1, 0.1, 0, 0, -0.7, -0.7 };
+        assertSameBits(demand, demandOf(roundTrip(demand)));
+    }
+
+    @Test
+    public void testDoublesAreLargerThanFloats() {
+        double[] floats = { 4, 3, 2, 1, 0, -1, -2, -3, -4, -5 };
+        double[] doubles = { 0.4, 0.3, 0.2, 0.1, 0, -0.1, -0.2, -0.3, -0.4, -0.5 };
+        int floatSize = codec.encodeBidUpdate(MARKET_BASIS_ID, new BidUpdate(new Bid(marketBasis, floats), 1))
+                             .remaining();
+        int doubleSize = codec.encodeBidUpdate(MARKET_BASIS_ID, new BidUpdate(new Bid(marketBasis, doubles), 1))
+                              .remaining();
+        assertThat(doubleSize - floatSize, is(equalTo(10 * 4)));
+    }
+
+    @Test
+    public void testNegativeZeroIsKept() {
+        double[] demand = { 1, 1, 0.0, -0.0, -0.0, 0.0, -0.0, -1, -1, -1 };
+        double[] decoded = demandOf(roundTrip(demand));
+        assertSameBits(demand, decoded);
+    }
+
+    @Test
+    public void testNaNIsKept() {
+        // NaN can not be packed as a float without loss, so the whole bid is sent as doubles
+        double[] demand = { 10, 10, Double.NaN, Double.NaN, Double.NaN, 5, 5, Double.NaN, 0, 0 };
+        assertSameBits(demand, demandOf(roundTrip(demand)));
+    }
+
+    @Test
+    public void testRunLengthBoundaries() {
+        // A single run over the whole array
+        double[] flat = new double[marketBasis.getPriceSteps()];
+        Arrays.fill(flat, 7);
+        int flatSize = codec.encodeBidUpdate(MARKET_BASIS_ID, new BidUpdate(new Bid(marketBasis, flat), 1))
+                            .remaining();
+        assertSameBits(flat, demandOf(roundTrip(flat)));
+
+        // Only the last value differs, which makes a run of length 1 at the end
+        double[] lastDiffers = flat.clone();
+        lastDiffers[lastDiffers.length - 1] = 6;
+        assertSameBits(lastDiffers, demandOf(roundTrip(lastDiffers)));
+
+        // Only the first value differs, which makes a run of length 1 at the start
+        double[] firstDiffers = flat.clone();
+        firstDiffers[0] = 8;
+        assertSameBits(firstDiffers, demandOf(roundTrip(firstDiffers)));
+
+        // Every value differs, so every run has length 1
+        double[] steps = { 9, 8, 7, 6, 5, 4, 3, 2, 1, 0 };
+        int stepsSize = codec.encodeBidUpdate(MARKET_BASIS_ID, new BidUpdate(new Bid(marketBasis, steps), 1))
+                             .remaining();
+        assertSameBits(steps, demandOf(roundTrip(steps)));
+        assertThat(stepsSize - flatSize, is(equalTo(9 * (1 + 4))));
+    }
+
+    @Test
+    public void testLongRunUsesMultiByteVarint() {
+        MarketBasis wide = new MarketBasis("electricity", "EUR", 300, 0, 299);
+        double[] demand = new double[300];
+        Arrays.fill(demand, 0, 200, 5);
+        BidUpdate bidUpdate = new BidUpdate(new Bid(wide, demand), 1000);
+        ByteBuffer frame = codec.encodeBidUpdate(MARKET_BASIS_ID, bidUpdate);
+        BidUpdate decoded = codec.decodeBidUpdate(frame, MARKET_BASIS_ID, wide);
+        assertThat(decoded.getBidNumber(), is(equalTo(1000)));
+        assertThat(decoded.getBid(), is(equalTo(bidUpdate.getBid())));
+    }
+
+    @Test
+    public void testPriceUpdateRoundTrip() {
+        PriceUpdate priceUpdate = new PriceUpdate(new Price(marketBasis, 1.0 / 3), 7);
+        ByteBuffer frame = codec.encodePriceUpdate(MARKET_BASIS_ID, priceUpdate);
+        PriceUpdate decoded = codec.decodePriceUpdate(frame, MARKET_BASIS_ID, marketBasis);
+        assertThat(decoded.getBidNumber(), is(equalTo(7)));
+        assertThat(decoded.getPrice().getPriceValue(), is(equalTo(1.0 / 3)));
+    }
+
+    @Test
+    public void testTruncatedBidFrame() {
+        double[] demand = { 9, 8, 7, 6, 5, 4, 3, 2, 1, 0 };
+        ByteBuffer frame = codec.encodeBidUpdate(MARKET_BASIS_ID, new BidUpdate(new Bid(marketBasis, demand), 1));
+        frame.limit(frame.limit() - 1);
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("truncated");
+        codec.decodeBidUpdate(frame, MARKET_BASIS_ID, marketBasis);
+    }
+
+    @Test
+    public void testTruncatedPriceUpdateFrame() {
+        ByteBuffer frame = codec.encodePriceUpdate(MARKET_BASIS_ID, new PriceUpdate(new Price(marketBasis, 3), 1));
+        frame.limit(frame.limit() - 3);
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("truncated");
+        codec.decodePriceUpdate(frame, MARKET_BASIS_ID, marketBasis);
+    }
+
+    @Test
+    public void testUnknownType() {
+        ByteBuffer frame = codec.encodePriceUpdate(MARKET_BASIS_ID, new PriceUpdate(new Price(marketBasis, 3), 1));
+        frame.put(0, (byte) 99);
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Unexpected frame type 99");
+        codec.decodePriceUpdate(frame, MARKET_BASIS_ID, marketBasis);
+    }
+
+    @Test
+    public void testPriceUpdateIsNotABid() {
+        ByteBuffer frame = codec.encodePriceUpdate(MARKET_BASIS_ID, new PriceUpdate(new Price(marketBasis, 3), 1));
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Unexpected frame type " + PmBinaryCodec.TYPE_PRICE_UPDATE);
+        codec.decodeBidUpdate(frame, MARKET_BASIS_ID, marketBasis);
+    }
+
+    @Test
+    public void testMismatchedMarketBasisId() {
+        double[] demand = { 9, 8, 7, 6, 5, 4, 3, 2, 1, 0 };
+        ByteBuffer frame = codec.encodeBidUpdate(MARKET_BASIS_ID, new BidUpdate(new Bid(marketBasis, demand), 1));
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Frame refers to market basis " + MARKET_BASIS_ID + ", expected 4");
+        codec.decodeBidUpdate(frame, MARKET_BASIS_ID + 1, marketBasis);
+    }
+
+    @Test
+    public void testOversizedRunLength() {
+        ByteBuffer frame = bidFrame(MARKET_BASIS_ID, 2, 5, 1, 6, 0);
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Invalid run length 6");
+        codec.decodeBidUpdate(frame, MARKET_BASIS_ID, marketBasis);
+    }
+
+    @Test
+    public void testZeroRunLength() {
+        ByteBuffer frame = bidFrame(MARKET_BASIS_ID, 2, 0, 1, 10, 0);
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Invalid run length 0");
+        codec.decodeBidUpdate(frame, MARKET_BASIS_ID, marketBasis);
+    }
+
+    @Test
+    public void testMissingDemand() {
+        ByteBuffer frame = bidFrame(MARKET_BASIS_ID, 1, 9, 1);
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("contains 9 demand values, expected 10");
+        codec.decodeBidUpdate(frame, MARKET_BASIS_ID, marketBasis);
+    }
+
+    @Test
+    public void testHandBuiltFrameDecodes() {
+        BidUpdate decoded = codec.decodeBidUpdate(bidFrame(MARKET_BASIS_ID, 2, 4, 3, 6, -1), MARKET_BASIS_ID,
+                                                  marketBasis);
+        assertSameBits(new double[] { 3, 3, 3, 3, -1, -1, -1, -1, -1, -1 }, demandOf(decoded));
+    }
+}
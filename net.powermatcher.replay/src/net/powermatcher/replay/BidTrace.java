@@ -0,0 +1,25 @@
+package net.powermatcher.replay;
+
+import java.io.IOException;
+
+import net.powermatcher.core.journal.MarketJournal;
+
+/**
+ * A recorded sequence of bids that can be replayed by the {@link ReplayEngine}.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public interface BidTrace {
+    /**
+     * Streams the records of this trace to a handler, in the order in which they have been recorded. The timestamps of
+     * the records should not decrease, a record that is older than its predecessor is replayed at the time of its
+     * predecessor.
+     *
+     * @param handler
+     *            receives the records, in the same way as the records of a {@link MarketJournal}
+     * @throws IOException
+     *             when the trace could not be read
+     */
+    void replay(MarketJournal.RecordHandler handler) throws IOException;
+}
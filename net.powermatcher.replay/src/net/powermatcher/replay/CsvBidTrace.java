@@ -0,0 +1,170 @@
+package net.powermatcher.replay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.core.journal.MarketJournal;
+
+/**
+ * A {@link BidTrace} that reads a bid log of the CSVLogger. The file is read as a stream, so it can be larger than the
+ * memory; a file that ends with <code>.gz</code>, like a rotated log segment, is decompressed on the fly.
+ *
+ * The columns are found by the names in the header: the agentId, the bidNumber, the demand (the demand per price
+ * step, separated by '#') and the lastUpdateTime (the time of the bid) or, when that is missing, the logTime. The
+ * agentId is used as the id of the bidding agent, so the log should contain the outgoing bids of the device agents.
+ * Lines of which the bid does not fit the {@link MarketBasis} are skipped.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class CsvBidTrace
+    implements BidTrace {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CsvBidTrace.class);
+
+    /**
+     * The default field separator of the CSVLogger
+     */
+    public static final String DEFAULT_SEPARATOR = ";";
+
+    /**
+     * The default date format of the CSVLogger
+     */
+    public static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    private final File file;
+    private final MarketBasis marketBasis;
+    private final String separator;
+    private final String dateFormat;
+
+    /**
+     * Creates a new {@link CsvBidTrace} for a log with the {@link #DEFAULT_SEPARATOR} and the
+     * {@link #DEFAULT_DATE_FORMAT}.
+     *
+     * @param file
+     *            the bid log
+     * @param marketBasis
+     *            the {@link MarketBasis} of the bids
+     */
+    public CsvBidTrace(File file, MarketBasis marketBasis) {
+        this(file, marketBasis, DEFAULT_SEPARATOR, DEFAULT_DATE_FORMAT);
+    }
+
+    /**
+     * Creates a new {@link CsvBidTrace}.
+     *
+     * @param file
+     *            the bid log
+     * @param marketBasis
+     *            the {@link MarketBasis} of the bids
+     * @param separator
+     *            the field separator of the log
+     * @param dateFormat
+     *            the {@link SimpleDateFormat} pattern of the times in the log
+     */
+    public CsvBidTrace(File file, MarketBasis marketBasis, String separator, String dateFormat) {
+        if (file == null) {
+            throw new NullPointerException("file");
+        } else if (marketBasis == null) {
+            throw new NullPointerException("marketBasis");
+        } else if (separator == null || separator.isEmpty()) {
+            throw new IllegalArgumentException("The separator may not be null or empty");
+        } else if (dateFormat == null) {
+            throw new NullPointerException("dateFormat");
+        }
+        this.file = file;
+        this.marketBasis = marketBasis;
+        this.separator = separator;
+        this.dateFormat = dateFormat;
+    }
+
+    @Override
+    public void replay(MarketJournal.RecordHandler handler) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 64 * 1024);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+        try {
+            Pattern fieldSeparator = Pattern.compile(Pattern.quote(separator));
+            String line = reader.readLine();
+            if (line == null) {
+                return;
+            }
+            List<String> header = Arrays.asList(fieldSeparator.split(line, -1));
+            int agentIdColumn = column(header, "agentId");
+            int bidNumberColumn = column(header, "bidNumber");
+            int demandColumn = column(header, "demand");
+            int timeColumn = header.contains("lastUpdateTime") ? column(header, "lastUpdateTime")
+                                                                 : column(header, "logTime");
+
+            SimpleDateFormat format = new SimpleDateFormat(dateFormat);
+            format.setLenient(false);
+            int lineNumber = 1;
+            int skipped = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = fieldSeparator.split(line, -1);
+                long timestamp;
+                BidUpdate bidUpdate;
+                try {
+                    timestamp = format.parse(fields[timeColumn]).getTime();
+                    bidUpdate = new BidUpdate(new Bid(marketBasis, parseDemand(fields[demandColumn])),
+                                              Integer.parseInt(fields[bidNumberColumn]));
+                } catch (ParseException | RuntimeException e) {
+                    LOGGER.debug("Skipping line {} of {}: {}", lineNumber, file, e.getMessage());
+                    skipped++;
+                    continue;
+                }
+                handler.handleBid(timestamp, fields[agentIdColumn], bidUpdate);
+            }
+            if (skipped > 0) {
+                LOGGER.warn("Skipped {} lines of {} that did not contain a valid bid", skipped, file);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int column(List<String> header, String name) throws IOException {
+        int column = header.indexOf(name);
+        if (column < 0) {
+            throw new IOException(file + " is not a bid log, it has no " + name + " column");
+        }
+        return column;
+    }
+
+    private static double[] parseDemand(String value) {
+        String[] parts = value.split("#");
+        double[] demand = new double[parts.length];
+        for (int ix = 0; ix < parts.length; ix++) {
+            demand[ix] = Double.parseDouble(parts[ix]);
+        }
+        return demand;
+    }
+
+    @Override
+    public String toString() {
+        return "CsvBidTrace [file=" + file + ", separator=" + separator + ", dateFormat=" + dateFormat + "]";
+    }
+}
@@ -0,0 +1,56 @@
+package net.powermatcher.replay;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.core.journal.MarketJournal;
+
+/**
+ * A {@link BidTrace} that reads the bids from a {@link MarketJournal}. The journal of a matcher contains the bids of
+ * its direct children, so a journal of an auctioneer above concentrators replays the aggregated bids of those
+ * concentrators.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class JournalBidTrace
+    implements BidTrace {
+
+    private final File directory;
+    private final String name;
+    private final MarketBasis marketBasis;
+
+    /**
+     * Creates a new {@link JournalBidTrace}.
+     *
+     * @param directory
+     *            the directory of the journal
+     * @param name
+     *            the name of the journal, which is the id of the matcher that wrote it
+     * @param marketBasis
+     *            the {@link MarketBasis} of the journal
+     */
+    public JournalBidTrace(File directory, String name, MarketBasis marketBasis) {
+        if (directory == null) {
+            throw new NullPointerException("directory");
+        } else if (name == null) {
+            throw new NullPointerException("name");
+        } else if (marketBasis == null) {
+            throw new NullPointerException("marketBasis");
+        }
+        this.directory = directory;
+        this.name = name;
+        this.marketBasis = marketBasis;
+    }
+
+    @Override
+    public void replay(MarketJournal.RecordHandler handler) throws IOException {
+        MarketJournal.replay(directory, name, marketBasis, handler);
+    }
+
+    @Override
+    public String toString() {
+        return "JournalBidTrace [directory=" + directory + ", name=" + name + "]";
+    }
+}
@@ -0,0 +1,418 @@
+package net.powermatcher.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.powermatcher.api.MatcherEndpoint;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.api.monitoring.FilteredAgentObserver;
+import net.powermatcher.api.monitoring.events.AgentEvent;
+import net.powermatcher.api.monitoring.events.OutgoingPriceUpdateEvent;
+import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.core.concentrator.Concentrator;
+import net.powermatcher.core.journal.MarketJournal;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.mock.VirtualTimeContext;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+
+/**
+ * {@link ReplayEngine} replays a {@link BidTrace} into a real cluster of an {@link Auctioneer} and, optionally, a
+ * layer of {@link Concentrator}s. Each agent in the trace becomes a device agent that is connected to the auctioneer,
+ * or to one of the concentrators based on the hash of its id, when it sends its first bid.
+ *
+ * The cluster runs on a {@link VirtualTimeContext} that follows the timestamps of the trace, so the cooling-off
+ * periods of the matchers behave as they did when the trace was recorded. By default the trace is replayed as fast as
+ * possible; with a speed-up the replay is paced against the wall clock, e.g. a speed-up of 60 replays an hour in a
+ * minute. The {@link ReplayResult} contains the prices of the auctioneer and the throughput and latency statistics of
+ * the run.
+ *
+ * A {@link ReplayEngine} can run one replay at a time.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class ReplayEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayEngine.class);
+
+    private static final String AUCTIONEER_ID = "auctioneer";
+    private static final String CLUSTER_ID = "replay";
+
+    private final MarketBasis marketBasis;
+    private double speedUp = 0;
+    private int concentratorCount = 0;
+    private long minTimeBetweenPriceUpdates = 1000;
+    private long minTimeBetweenBidUpdates = 1000;
+
+    /**
+     * Creates a new {@link ReplayEngine}.
+     *
+     * @param marketBasis
+     *            the {@link MarketBasis} of the cluster
+     */
+    public ReplayEngine(MarketBasis marketBasis) {
+        if (marketBasis == null) {
+            throw new NullPointerException("marketBasis");
+        }
+        this.marketBasis = marketBasis;
+    }
+
+    /**
+     * @param speedUp
+     *            the factor by which the replay is faster than the trace, or 0 to replay as fast as possible
+     * @throws IllegalArgumentException
+     *             when the speedUp is negative
+     */
+    public void setSpeedUp(double speedUp) {
+        if (!(speedUp >= 0)) {
+            throw new IllegalArgumentException("The speedUp should not be negative");
+        }
+        this.speedUp = speedUp;
+    }
+
+    /**
+     * @param concentratorCount
+     *            the number of concentrators between the agents and the auctioneer, or 0 to connect the agents to the
+     *            auctioneer directly
+     * @throws IllegalArgumentException
+     *             when the concentratorCount is negative
+     */
+    public void setConcentratorCount(int concentratorCount) {
+        if (concentratorCount < 0) {
+            throw new IllegalArgumentException("The concentratorCount should not be negative");
+        }
+        this.concentratorCount = concentratorCount;
+    }
+
+    /**
+     * @param minTimeBetweenPriceUpdates
+     *            the minimum time in milliseconds between two prices of the auctioneer
+     * @throws IllegalArgumentException
+     *             when the minTimeBetweenPriceUpdates is negative
+     */
+    public void setMinTimeBetweenPriceUpdates(long minTimeBetweenPriceUpdates) {
+        if (minTimeBetweenPriceUpdates < 0) {
+            throw new IllegalArgumentException("The minTimeBetweenPriceUpdates should not be negative");
+        }
+        this.minTimeBetweenPriceUpdates = minTimeBetweenPriceUpdates;
+    }
+
+    /**
+     * @param minTimeBetweenBidUpdates
+     *            the minimum time in milliseconds between two aggregated bids of a concentrator
+     * @throws IllegalArgumentException
+     *             when the minTimeBetweenBidUpdates is negative
+     */
+    public void setMinTimeBetweenBidUpdates(long minTimeBetweenBidUpdates) {
+        if (minTimeBetweenBidUpdates < 0) {
+            throw new IllegalArgumentException("The minTimeBetweenBidUpdates should not be negative");
+        }
+        this.minTimeBetweenBidUpdates = minTimeBetweenBidUpdates;
+    }
+
+    /**
+     * Replays a trace into a new cluster. After the last record the cluster runs until the final price has been sent.
+     *
+     * @param trace
+     *            the trace that is replayed
+     * @return the prices and the statistics of the replay
+     * @throws IOException
+     *             when the trace could not be read
+     */
+    public ReplayResult replay(BidTrace trace) throws IOException {
+        Run run = new Run();
+        try {
+            trace.replay(run);
+            run.finish();
+        } finally {
+            run.close();
+        }
+        return run.result();
+    }
+
+    /**
+     * Collects measurements without creating an object per measurement.
+     */
+    private static final class Samples {
+        private long[] values = new long[1024];
+        private int count;
+
+        void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        ReplayResult.Statistics toStatistics() {
+            return new ReplayResult.Statistics(values, count);
+        }
+    }
+
+    /**
+     * The cluster and the measurements of a single replay.
+     */
+    private final class Run
+        implements MarketJournal.RecordHandler {
+
+        /**
+         * A device agent that measures the time between its latest bid and the first price that refers to it.
+         */
+        private final class ReplayAgent
+            extends MockDeviceAgent {
+            private int pendingBidNumber;
+            private long pendingSince = -1;
+
+            ReplayAgent(String agentId, String desiredParentId) {
+                super(agentId, desiredParentId);
+            }
+
+            @Override
+            public void sendBid(BidUpdate bidUpdate) {
+                // The price may arrive before sendBid returns
+                pendingBidNumber = bidUpdate.getBidNumber();
+                pendingSince = context.currentTimeMillis();
+                super.sendBid(bidUpdate);
+            }
+
+            @Override
+            public void handlePriceUpdate(PriceUpdate priceUpdate) {
+                super.handlePriceUpdate(priceUpdate);
+                if (pendingSince >= 0 && priceUpdate.getBidNumber() == pendingBidNumber) {
+                    priceLatency.add(context.currentTimeMillis() - pendingSince);
+                    pendingSince = -1;
+                }
+            }
+        }
+
+        private VirtualTimeContext context;
+        private Auctioneer auctioneer;
+        private final List<Concentrator> concentrators = new ArrayList<Concentrator>();
+        private final Map<String, ReplayAgent> agents = new HashMap<String, ReplayAgent>();
+        private final Map<String, SimpleSession> sessions = new HashMap<String, SimpleSession>();
+        private int agentCount;
+
+        private final TreeMap<Long, Price> prices = new TreeMap<Long, Price>();
+        private final Samples processingTime = new Samples();
+        private final Samples priceLatency = new Samples();
+        private int bids;
+        private int rejectedBids;
+        private long maximumLag;
+
+        private long traceStart;
+        private long wallStart;
+        private long wallEnd;
+
+        /**
+         * Creates the cluster at the time of the first record.
+         */
+        private void start(long timestamp) {
+            traceStart = timestamp;
+            wallStart = System.nanoTime();
+            context = new VirtualTimeContext(timestamp);
+
+            auctioneer = new Auctioneer();
+            auctioneer.activate(new PropertiesBuilder().agentId(AUCTIONEER_ID)
+                                                       .clusterId(CLUSTER_ID)
+                                                       .marketBasis(marketBasis)
+                                                       .add("minTimeBetweenPriceUpdates", minTimeBetweenPriceUpdates)
+                                                       .build());
+            auctioneer.setContext(context);
+            auctioneer.addObserver(new FilteredAgentObserver() {
+                @Override
+                public boolean isInterestedIn(Class<? extends AgentEvent> eventType, String agentId) {
+                    return OutgoingPriceUpdateEvent.class.isAssignableFrom(eventType);
+                }
+
+                @Override
+                public void handleAgentEvent(AgentEvent event) {
+                    Price price = ((OutgoingPriceUpdateEvent) event).getPriceUpdate().getPrice();
+                    prices.put(event.getTimestamp().getTime(), price);
+                }
+            });
+
+            for (int ix = 0; ix < concentratorCount; ix++) {
+                Concentrator concentrator = new Concentrator();
+                concentrator.activate(new PropertiesBuilder().agentId("concentrator" + ix)
+                                                             .desiredParentId(AUCTIONEER_ID)
+                                                             .add("minTimeBetweenBidUpdates", minTimeBetweenBidUpdates)
+                                                             .build());
+                concentrator.setContext(context);
+                new SimpleSession(concentrator, auctioneer).connect();
+                concentrators.add(concentrator);
+            }
+        }
+
+        /**
+         * Moves the virtual time forward to the time of a record, running the tasks that are due on the way. With a
+         * speed-up each task, and the record itself, waits for its wall time.
+         */
+        private void advanceTo(long timestamp) {
+            if (context == null) {
+                start(timestamp);
+            }
+            if (timestamp <= context.currentTimeMillis()) {
+                return;
+            }
+            if (speedUp > 0) {
+                long next;
+                while ((next = context.getNextEventTime()) <= timestamp) {
+                    waitFor(next);
+                    context.runUntil(next);
+                }
+                waitFor(timestamp);
+            }
+            context.runUntil(timestamp);
+        }
+
+        private void waitFor(long timestamp) {
+            long due = wallStart + (long) ((timestamp - traceStart) * 1000000d / speedUp);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("The replay has been interrupted", e);
+                }
+            } else {
+                maximumLag = Math.max(maximumLag, -wait);
+            }
+        }
+
+        private ReplayAgent agentFor(String agentId) {
+            ReplayAgent agent = agents.get(agentId);
+            if (agent == null) {
+                MatcherEndpoint parent = auctioneer;
+                if (!concentrators.isEmpty()) {
+                    parent = concentrators.get(Math.floorMod(agentId.hashCode(), concentrators.size()));
+                }
+                agent = new ReplayAgent(agentId, parent.getAgentId());
+                agent.setContext(context);
+                SimpleSession session = new SimpleSession(agent, parent);
+                session.connect();
+                agents.put(agentId, agent);
+                sessions.put(agentId, session);
+                agentCount++;
+            }
+            return agent;
+        }
+
+        @Override
+        public void handleBid(long timestamp, String agentId, BidUpdate bidUpdate) {
+            advanceTo(timestamp);
+            ReplayAgent agent = agentFor(agentId);
+            long start = System.nanoTime();
+            try {
+                agent.sendBid(bidUpdate);
+                // Run what the bid caused at the same time, like an aggregation without a cooling-off period
+                context.runUntil(context.currentTimeMillis());
+                bids++;
+            } catch (RuntimeException e) {
+                LOGGER.debug("The bid {} of {} was rejected: {}", bidUpdate, agentId, e.getMessage());
+                rejectedBids++;
+            }
+            processingTime.add((System.nanoTime() - start) / 1000);
+        }
+
+        @Override
+        public void handlePrice(long timestamp, String sessionId, PriceUpdate priceUpdate) {
+            // The prices of a journal are what the replay determines again
+        }
+
+        @Override
+        public void handleRemove(long timestamp, String agentId) {
+            advanceTo(timestamp);
+            SimpleSession session = sessions.remove(agentId);
+            if (session != null) {
+                session.disconnect();
+                agents.remove(agentId);
+            }
+        }
+
+        /**
+         * Runs the cluster until the bids of the last records have reached the auctioneer and its price has been
+         * sent, without waiting for the wall clock.
+         */
+        void finish() {
+            if (context != null) {
+                context.runFor(2 * (minTimeBetweenBidUpdates + minTimeBetweenPriceUpdates));
+            }
+            wallEnd = System.nanoTime();
+        }
+
+        void close() {
+            // This disconnects the concentrators, which disconnect their agents
+            if (auctioneer != null) {
+                auctioneer.deactivate();
+            }
+        }
+
+        ReplayResult result() {
+            return new ReplayResult(bids,
+                                    rejectedBids,
+                                    agentCount,
+                                    context == null ? 0 : context.currentTimeMillis() - traceStart,
+                                    TimeUnit.NANOSECONDS.toMillis(wallEnd - wallStart),
+                                    TimeUnit.NANOSECONDS.toMillis(maximumLag),
+                                    prices,
+                                    processingTime.toStatistics(),
+                                    priceLatency.toStatistics());
+        }
+    }
+
+    /**
+     * Replays a trace from the command line and prints the result.
+     *
+     * @param args
+     *            the trace (a bid log of the CSVLogger, or <code>&lt;directory&gt;/&lt;name&gt;</code> of a
+     *            {@link MarketJournal}), the number of price steps, the minimum and the maximum price of the market
+     *            basis and, optionally, the speed-up and the number of concentrators
+     * @throws IOException
+     *             when the trace could not be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: ReplayEngine <bid log | journal directory/name> <priceSteps> <minimumPrice> "
+                               + "<maximumPrice> [speedUp] [concentrators]");
+            System.exit(1);
+        }
+        MarketBasis marketBasis = new MarketBasis("electricity",
+                                                  "EUR",
+                                                  Integer.parseInt(args[1]),
+                                                  Double.parseDouble(args[2]),
+                                                  Double.parseDouble(args[3]));
+        File file = new File(args[0]);
+        BidTrace trace = file.isFile() ? new CsvBidTrace(file, marketBasis)
+                                       : new JournalBidTrace(file.getAbsoluteFile().getParentFile(),
+                                                             file.getName(),
+                                                             marketBasis);
+
+        ReplayEngine engine = new ReplayEngine(marketBasis);
+        if (args.length > 4) {
+            engine.setSpeedUp(Double.parseDouble(args[4]));
+        }
+        if (args.length > 5) {
+            engine.setConcentratorCount(Integer.parseInt(args[5]));
+        }
+        ReplayResult result = engine.replay(trace);
+        for (Map.Entry<Long, Price> entry : result.getPrices().entrySet()) {
+            System.out.println(entry.getKey() + ";" + entry.getValue().getPriceValue());
+        }
+        System.out.println(result);
+    }
+}
@@ -0,0 +1,239 @@
+package net.powermatcher.replay;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.powermatcher.api.data.Price;
+
+/**
+ * The outcome of a replay by the {@link ReplayEngine}: the prices that the auctioneer determined and the statistics
+ * of the run.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class ReplayResult {
+
+    /**
+     * A summary of a series of measurements.
+     */
+    public static final class Statistics {
+        private final int count;
+        private final double mean;
+        private final long minimum, median, percentile90, percentile99, maximum;
+
+        /**
+         * Summarizes measurements.
+         *
+         * @param values
+         *            the measurements, which will be sorted
+         * @param count
+         *            the number of measurements in values that are used
+         */
+        Statistics(long[] values, int count) {
+            Arrays.sort(values, 0, count);
+            this.count = count;
+            long sum = 0;
+            for (int ix = 0; ix < count; ix++) {
+                sum += values[ix];
+            }
+            mean = count == 0 ? 0 : (double) sum / count;
+            minimum = count == 0 ? 0 : values[0];
+            median = percentile(values, count, 0.5);
+            percentile90 = percentile(values, count, 0.9);
+            percentile99 = percentile(values, count, 0.99);
+            maximum = count == 0 ? 0 : values[count - 1];
+        }
+
+        private static long percentile(long[] sorted, int count, double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            return sorted[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+        }
+
+        /**
+         * @return the number of measurements
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean of the measurements
+         */
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return the smallest measurement
+         */
+        public long getMinimum() {
+            return minimum;
+        }
+
+        /**
+         * @return the median of the measurements
+         */
+        public long getMedian() {
+            return median;
+        }
+
+        /**
+         * @return the 90th percentile of the measurements
+         */
+        public long getPercentile90() {
+            return percentile90;
+        }
+
+        /**
+         * @return the 99th percentile of the measurements
+         */
+        public long getPercentile99() {
+            return percentile99;
+        }
+
+        /**
+         * @return the largest measurement
+         */
+        public long getMaximum() {
+            return maximum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.1f, min=%d, p50=%d, p90=%d, p99=%d, max=%d",
+                                 count,
+                                 mean,
+                                 minimum,
+                                 median,
+                                 percentile90,
+                                 percentile99,
+                                 maximum);
+        }
+    }
+
+    private final int bids;
+    private final int rejectedBids;
+    private final int agents;
+    private final long traceDuration;
+    private final long wallTime;
+    private final long maximumLag;
+    private final NavigableMap<Long, Price> prices;
+    private final Statistics processingTime;
+    private final Statistics priceLatency;
+
+    ReplayResult(int bids,
+                 int rejectedBids,
+                 int agents,
+                 long traceDuration,
+                 long wallTime,
+                 long maximumLag,
+                 TreeMap<Long, Price> prices,
+                 Statistics processingTime,
+                 Statistics priceLatency) {
+        this.bids = bids;
+        this.rejectedBids = rejectedBids;
+        this.agents = agents;
+        this.traceDuration = traceDuration;
+        this.wallTime = wallTime;
+        this.maximumLag = maximumLag;
+        this.prices = Collections.unmodifiableNavigableMap(prices);
+        this.processingTime = processingTime;
+        this.priceLatency = priceLatency;
+    }
+
+    /**
+     * @return the number of bids that have been replayed
+     */
+    public int getBids() {
+        return bids;
+    }
+
+    /**
+     * @return the number of bids that the cluster did not accept
+     */
+    public int getRejectedBids() {
+        return rejectedBids;
+    }
+
+    /**
+     * @return the number of different agents in the trace
+     */
+    public int getAgents() {
+        return agents;
+    }
+
+    /**
+     * @return the time in milliseconds between the first and the last record of the trace
+     */
+    public long getTraceDuration() {
+        return traceDuration;
+    }
+
+    /**
+     * @return the time in milliseconds that the replay took
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * @return the number of bids per second of wall time
+     */
+    public double getThroughput() {
+        return wallTime == 0 ? bids * 1000.0 : bids * 1000.0 / wallTime;
+    }
+
+    /**
+     * @return the largest delay in milliseconds of a record behind its scheduled wall time, which is 0 when the replay
+     *         ran as fast as possible. A growing lag means that the cluster can not keep up with the speed-up.
+     */
+    public long getMaximumLag() {
+        return maximumLag;
+    }
+
+    /**
+     * @return the prices of the auctioneer by their time in milliseconds. When the auctioneer sent more than one price
+     *         at the same time, the last one is kept.
+     */
+    public NavigableMap<Long, Price> getPrices() {
+        return prices;
+    }
+
+    /**
+     * @return the wall time in microseconds that it took to send a bid and to run the tasks that it caused at the
+     *         same time, like the aggregation and the price when there is no cooling-off period
+     */
+    public Statistics getProcessingTime() {
+        return processingTime;
+    }
+
+    /**
+     * @return the time in milliseconds, in the time of the trace, between the sending of a bid and the first price that
+     *         refers to it. This includes the cooling-off periods of the matchers.
+     */
+    public Statistics getPriceLatency() {
+        return priceLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReplayResult [bids=%d, rejectedBids=%d, agents=%d, traceDuration=%d ms, wallTime=%d ms, "
+                             + "throughput=%.0f bids/s, maximumLag=%d ms, prices=%d,%n"
+                             + "  processingTime (us): %s,%n  priceLatency (ms): %s]",
+                             bids,
+                             rejectedBids,
+                             agents,
+                             traceDuration,
+                             wallTime,
+                             getThroughput(),
+                             maximumLag,
+                             prices.size(),
+                             processingTime,
+                             priceLatency);
+    }
+}
@@ -0,0 +1,118 @@
+package net.powermatcher.replay.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.core.journal.MarketJournal;
+import net.powermatcher.replay.CsvBidTrace;
+import net.powermatcher.replay.JournalBidTrace;
+import net.powermatcher.replay.ReplayEngine;
+import net.powermatcher.replay.ReplayResult;
+
+/**
+ * JUnit tests for the {@link ReplayEngine} class.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class ReplayEngineTest {
+
+    private static final MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 5, 0, 10);
+    private static final long START = 1420070400000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeBidLog(String... lines) throws IOException {
+        File file = folder.newFile("bid_log.csv");
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        try {
+            writer.println("logTime;clusterId;agentId;commodity;currency;minimumPrice;maximumPrice;minimumDemand;"
+                           + "maximumDemand;effectiveDemand;effectivePrice;lastUpdateTime;bidNumber;demand;pricePoints");
+            for (String line : lines) {
+                writer.println(line);
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private String bidLine(long time, String agentId, int bidNumber, String demand) {
+        String date = new SimpleDateFormat(CsvBidTrace.DEFAULT_DATE_FORMAT).format(new Date(time));
+        return date + ";cluster;" + agentId + ";electricity;EUR;0;10;0;0;0;0;" + date + ";" + bidNumber + ";"
+               + demand + ";";
+    }
+
+    @Test
+    public void testCsvReplay() throws IOException {
+        File log = writeBidLog(bidLine(START, "agent1", 1, "100.0#100.0#0.0#0.0#0.0"),
+                               bidLine(START + 1000, "agent2", 1, "0.0#0.0#-50.0#-50.0#-50.0"),
+                               "not a bid",
+                               bidLine(START + 2000, "agent1", 2, "100.0#100.0#100.0#-100.0#-100.0"));
+
+        ReplayEngine engine = new ReplayEngine(marketBasis);
+        engine.setMinTimeBetweenPriceUpdates(0);
+        ReplayResult result = engine.replay(new CsvBidTrace(log, marketBasis));
+
+        assertThat(result.getBids(), is(equalTo(3)));
+        assertThat(result.getAgents(), is(equalTo(2)));
+        assertThat(result.getTraceDuration() >= 2000, is(true));
+        // Without a cooling-off period each bid is answered right away
+        assertThat(result.getPriceLatency().getCount(), is(equalTo(3)));
+        assertThat(result.getPriceLatency().getMaximum(), is(equalTo(0L)));
+
+        Bid aggregate = new Bid(marketBasis, 100, 100, 50, -150, -150);
+        assertThat(result.getPrices().lastEntry().getValue(), is(equalTo(aggregate.calculateIntersection(0))));
+    }
+
+    @Test
+    public void testJournalReplayWithConcentrators() throws IOException {
+        MarketJournal journal = new MarketJournal(folder.getRoot(), "auctioneer", marketBasis);
+        for (int ix = 0; ix < 100; ix++) {
+            journal.appendBid(START + ix * 100, "agent" + (ix % 10), new BidUpdate(Bid.flatDemand(marketBasis, ix), ix));
+        }
+        journal.close();
+
+        ReplayEngine engine = new ReplayEngine(marketBasis);
+        engine.setConcentratorCount(3);
+        ReplayResult result = engine.replay(new JournalBidTrace(folder.getRoot(), "auctioneer", marketBasis));
+
+        assertThat(result.getBids(), is(equalTo(100)));
+        assertThat(result.getRejectedBids(), is(equalTo(0)));
+        assertThat(result.getAgents(), is(equalTo(10)));
+        assertThat(result.getPrices().isEmpty(), is(false));
+        // The bids wait for the cooling-off periods of the concentrators and the auctioneer
+        ReplayResult.Statistics latency = result.getPriceLatency();
+        assertThat(latency.getCount() > 0, is(true));
+        assertThat(latency.getMaximum() <= 2000, is(true));
+    }
+
+    @Test
+    public void testSpeedUp() throws IOException {
+        File log = writeBidLog(bidLine(START, "agent1", 1, "10.0#10.0#10.0#10.0#10.0"),
+                               bidLine(START + 2000, "agent1", 2, "20.0#20.0#20.0#20.0#20.0"));
+
+        ReplayEngine engine = new ReplayEngine(marketBasis);
+        engine.setSpeedUp(10);
+        ReplayResult result = engine.replay(new CsvBidTrace(log, marketBasis));
+
+        // 2 seconds of trace take at least 200 ms
+        assertThat(result.getBids(), is(equalTo(2)));
+        assertThat(result.getWallTime() >= 190, is(true));
+    }
+}
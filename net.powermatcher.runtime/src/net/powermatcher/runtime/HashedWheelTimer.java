@@ -0,0 +1,419 @@
+package net.powermatcher.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A timer for large numbers of coarse-grained tasks. The timeouts are kept in a wheel of buckets, each bucket holding
+ * the timeouts that expire in one tick. Scheduling and cancelling a timeout only links it into or out of a bucket, so
+ * both take constant time, no matter how many timeouts are pending. A single thread advances the wheel once per tick
+ * and hands the expired tasks to an {@link Executor}, so tasks never run on the timer thread.
+ *
+ * A task runs at the first tick at or after its deadline, so it is never early, but it can be up to one tick late.
+ *
+ * This class is thread-safe.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * A task in the wheel. A periodic task is put back in the wheel after each execution.
+     */
+    public class Timeout<V>
+        extends FutureTask<V>
+        implements RunnableScheduledFuture<V> {
+        /**
+         * The time between 2 executions in nanoseconds: positive for a fixed rate, negative for a fixed delay and 0 for
+         * a task that is executed once
+         */
+        private final long period;
+
+        /**
+         * The deadline in nanoseconds relative to the start of the timer
+         */
+        private volatile long deadline;
+
+        // These are guarded by the lock on the timer
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout<?> previous, next;
+
+        // Set when the timer has been stopped and this timeout has been moved to its successor
+        private volatile boolean transferred;
+        private volatile Future<?> successorFuture;
+
+        Timeout(Callable<V> callable, long deadline, long period) {
+            super(callable);
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - elapsed(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                if (!transferred) {
+                    deadline = period > 0 ? deadline + period : elapsed() - period;
+                    add(this);
+                }
+            } else if (transferred) {
+                // The task has failed or has been cancelled, so the successor should stop repeating it
+                cancelSuccessorFuture();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                remove(this);
+                cancelSuccessorFuture();
+            }
+            return cancelled;
+        }
+
+        /**
+         * Schedules this timeout on the successor of the stopped timer, with its remaining delay and its period. The
+         * timeout stays the {@link ScheduledFuture} of the task, so cancelling it cancels the task on the successor.
+         */
+        void transferTo(ScheduledExecutorService successor) {
+            transferred = true;
+            long delay = Math.max(0, getDelay(TimeUnit.NANOSECONDS));
+            if (period == 0) {
+                successorFuture = successor.schedule(this, delay, TimeUnit.NANOSECONDS);
+            } else if (period > 0) {
+                successorFuture = successor.scheduleAtFixedRate(this, delay, period, TimeUnit.NANOSECONDS);
+            } else {
+                successorFuture = successor.scheduleWithFixedDelay(this, delay, -period, TimeUnit.NANOSECONDS);
+            }
+            if (isCancelled()) {
+                // Cancelled while it was being transferred
+                cancelSuccessorFuture();
+            }
+        }
+
+        private void cancelSuccessorFuture() {
+            Future<?> future = successorFuture;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            LOGGER.error("An scheduled execution has thrown an exception: " + t.getMessage(), t);
+            super.setException(t);
+        }
+    }
+
+    /**
+     * A doubly linked list of the timeouts that expire in the same tick (in some round of the wheel).
+     */
+    private static class Bucket {
+        Timeout<?> head;
+    }
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final long startTime;
+    private final Thread workerThread;
+
+    // These are guarded by the lock on this timer
+    private long tick;
+    private int pendingTimeouts;
+
+    private volatile boolean stopped;
+    private volatile ScheduledExecutorService successor;
+
+    /**
+     * Creates a new {@link HashedWheelTimer} and starts its thread.
+     *
+     * @param tickDuration
+     *            the duration of a tick in milliseconds
+     * @param ticksPerWheel
+     *            the number of buckets in the wheel, which is rounded up to a power of 2
+     * @param executor
+     *            the {@link Executor} that runs the expired tasks
+     * @param threadFactory
+     *            the {@link ThreadFactory} that creates the thread that advances the wheel
+     * @throws IllegalArgumentException
+     *             when the tickDuration or ticksPerWheel is smaller than 1
+     */
+    public HashedWheelTimer(long tickDuration, int ticksPerWheel, Executor executor, ThreadFactory threadFactory) {
+        if (tickDuration < 1) {
+            throw new IllegalArgumentException("The tickDuration should be at least 1");
+        } else if (ticksPerWheel < 1 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("The ticksPerWheel should be between 1 and 2^30");
+        } else if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int ix = 0; ix < size; ix++) {
+            wheel[ix] = new Bucket();
+        }
+        mask = size - 1;
+        this.executor = executor;
+        startTime = System.nanoTime();
+        tick = 0;
+        pendingTimeouts = 0;
+
+        workerThread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                advance();
+            }
+        });
+        workerThread.start();
+    }
+
+    /**
+     * Schedules a task that is executed once.
+     *
+     * @param callable
+     *            the task
+     * @param delay
+     *            the delay in milliseconds
+     * @return the {@link ScheduledFuture} of the task
+     */
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay) {
+        return add(new Timeout<V>(callable, deadline(delay), 0));
+    }
+
+    /**
+     * Schedules a task that is executed at a fixed rate. An execution that is late does not move the later ones.
+     *
+     * @param command
+     *            the task
+     * @param initialDelay
+     *            the delay before the first execution in milliseconds
+     * @param period
+     *            the time between the start of 2 executions in milliseconds
+     * @return the {@link ScheduledFuture} of the task
+     * @throws IllegalArgumentException
+     *             when the period is not positive
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("The period should be positive");
+        }
+        return add(new Timeout<Object>(Executors.callable(command),
+                                       deadline(initialDelay),
+                                       TimeUnit.MILLISECONDS.toNanos(period)));
+    }
+
+    /**
+     * Schedules a task that is executed with a fixed delay between the end of an execution and the start of the next.
+     *
+     * @param command
+     *            the task
+     * @param initialDelay
+     *            the delay before the first execution in milliseconds
+     * @param delay
+     *            the delay between 2 executions in milliseconds
+     * @return the {@link ScheduledFuture} of the task
+     * @throws IllegalArgumentException
+     *             when the delay is not positive
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("The delay should be positive");
+        }
+        return add(new Timeout<Object>(Executors.callable(command),
+                                       deadline(initialDelay),
+                                       -TimeUnit.MILLISECONDS.toNanos(delay)));
+    }
+
+    /**
+     * @return the number of timeouts that are waiting in the wheel
+     */
+    public synchronized int getPendingTimeouts() {
+        return pendingTimeouts;
+    }
+
+    /**
+     * Stops the thread of this timer. The pending timeouts are cancelled and new ones are not accepted.
+     */
+    public void stop() {
+        stop(null);
+    }
+
+    /**
+     * Stops the thread of this timer and moves the pending timeouts to a successor, which executes them with their
+     * remaining delay and their period. Periodic timeouts that are running while the timer stops, and timeouts that are
+     * added after it stopped, go to the successor as well. The {@link Timeout}s remain the futures of their tasks.
+     *
+     * @param successor
+     *            the {@link ScheduledExecutorService} that takes over the pending timeouts, or <code>null</code> to
+     *            cancel them
+     * @return the number of pending timeouts that have been moved or cancelled
+     */
+    public int stop(ScheduledExecutorService successor) {
+        List<Timeout<?>> pending = new ArrayList<Timeout<?>>();
+        synchronized (this) {
+            this.successor = successor;
+            stopped = true;
+            for (Bucket bucket : wheel) {
+                while (bucket.head != null) {
+                    Timeout<?> timeout = bucket.head;
+                    remove(timeout);
+                    pending.add(timeout);
+                }
+            }
+        }
+        workerThread.interrupt();
+
+        for (Timeout<?> timeout : pending) {
+            if (successor == null) {
+                timeout.cancel(false);
+            } else {
+                try {
+                    timeout.transferTo(successor);
+                } catch (RejectedExecutionException ex) {
+                    LOGGER.warn("Could not move a pending task, the successor has been shut down");
+                    timeout.cancel(false);
+                }
+            }
+        }
+        return pending.size();
+    }
+
+    private long elapsed() {
+        return System.nanoTime() - startTime;
+    }
+
+    private long deadline(long delay) {
+        return elapsed() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+    }
+
+    private synchronized <V> Timeout<V> add(Timeout<V> timeout) {
+        if (stopped) {
+            if (successor == null) {
+                throw new RejectedExecutionException("The timer has been stopped");
+            }
+            timeout.transferTo(successor);
+            return timeout;
+        }
+        // Timeouts that are already due go in the bucket of the next tick
+        long calculated = timeout.deadline / tickDuration;
+        timeout.remainingRounds = (calculated - tick) / wheel.length;
+        Bucket bucket = wheel[(int) (Math.max(calculated, tick) & mask)];
+
+        timeout.bucket = bucket;
+        timeout.previous = null;
+        timeout.next = bucket.head;
+        if (bucket.head != null) {
+            bucket.head.previous = timeout;
+        }
+        bucket.head = timeout;
+        pendingTimeouts++;
+        return timeout;
+    }
+
+    private synchronized void remove(Timeout<?> timeout) {
+        Bucket bucket = timeout.bucket;
+        if (bucket == null) {
+            // Already expired
+            return;
+        }
+        if (timeout.previous == null) {
+            bucket.head = timeout.next;
+        } else {
+            timeout.previous.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.bucket = null;
+        timeout.previous = null;
+        timeout.next = null;
+        pendingTimeouts--;
+    }
+
+    /**
+     * The loop of the timer thread: wait for the end of the tick, then expire the timeouts in its bucket.
+     */
+    private void advance() {
+        List<Timeout<?>> expired = new ArrayList<Timeout<?>>();
+        while (!stopped) {
+            long tickEnd;
+            synchronized (this) {
+                tickEnd = (tick + 1) * tickDuration;
+            }
+            long sleepTime = tickEnd - elapsed();
+            if (sleepTime > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            synchronized (this) {
+                Timeout<?> timeout = wheel[(int) (tick & mask)].head;
+                while (timeout != null) {
+                    Timeout<?> next = timeout.next;
+                    if (timeout.remainingRounds <= 0) {
+                        remove(timeout);
+                        expired.add(timeout);
+                    } else {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+
+            for (Timeout<?> timeout : expired) {
+                try {
+                    executor.execute(timeout);
+                } catch (RejectedExecutionException ex) {
+                    LOGGER.warn("Could not execute an expired task, the executor has been shut down");
+                }
+            }
+            expired.clear();
+        }
+    }
+}
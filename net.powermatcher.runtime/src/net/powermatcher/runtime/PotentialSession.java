@@ -1,6 +1,5 @@
 package net.powermatcher.runtime;
 
-import org.flexiblepower.context.FlexiblePowerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,16 +18,16 @@ public class PotentialSession {
 
     private final AgentEndpoint agentEndpoint;
     private MatcherEndpoint matcherEndpoint;
-    private final FlexiblePowerContext context;
+    private final SessionDispatcher dispatcher;
 
     private volatile SessionImpl session;
 
-    public PotentialSession(AgentEndpoint agentEndpoint, FlexiblePowerContext context) {
+    public PotentialSession(AgentEndpoint agentEndpoint, SessionDispatcher dispatcher) {
         if (agentEndpoint == null) {
             throw new NullPointerException("Agent can not be null");
         }
         this.agentEndpoint = agentEndpoint;
-        this.context = context;
+        this.dispatcher = dispatcher;
     }
 
     public AgentEndpoint getAgentEndpoint() {
@@ -68,11 +67,11 @@ public class PotentialSession {
             Status matcherStatus = matcherEndpoint.getStatus();
             Status agentStatus = agentEndpoint.getStatus();
             if (matcherStatus.isConnected() && !agentStatus.isConnected()) {
-                session = new SessionImpl(agentEndpoint, matcherEndpoint, this, context);
+                session = new SessionImpl(agentEndpoint, matcherEndpoint, this, dispatcher);
                 synchronized (session) {
                     try {
                         // This synchronized block makes sure the whole connection is made before updates can be sent
-                        // Also see that in the SessionImpl the update*() methods are synchronized
+                        // Also see that in the SessionImpl the update*() methods wait for this
                         matcherEndpoint.connectToAgent(session);
                         agentEndpoint.connectToMatcher(session);
                         LOGGER.debug("Connected MatcherEndpoint '{}' with AgentEndpoint '{}' with Session {}",
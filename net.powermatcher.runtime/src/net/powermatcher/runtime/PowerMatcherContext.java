@@ -1,14 +1,21 @@
 package net.powermatcher.runtime;
 
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableScheduledFuture;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -26,6 +33,18 @@ import org.slf4j.LoggerFactory;
  * The runtime implementation of {@link FlexiblePowerContext}. This implementation uses a
  * {@link ScheduledThreadPoolExecutor} in order to execute tasks. You would typically use a different implementation in
  * a simulated environment.
+ *
+ * In the {@link ExecutionMode#ELASTIC} mode, submitted tasks and delayed tasks run on a thread pool that grows when
+ * all its threads are busy, so a task that blocks on I/O can not starve the other tasks. The scheduler then only keeps
+ * a few threads that fire the timers and run the periodic tasks. The pool grows up to
+ * {@link #setElasticMaxThreads(int) a maximum number of threads} and then queues up to
+ * {@link #ELASTIC_QUEUE_CAPACITY} tasks. Tasks that do not fit in the queue either run on the threads of the scheduler
+ * instead, so a burst of blocking tasks can not exhaust the threads of the JVM.
+ *
+ * When the timer wheel is enabled, tasks with a delay or period of at least {@link #TIMER_WHEEL_TICK} milliseconds
+ * are kept in a {@link HashedWheelTimer} instead of the delay queue of the executor. Scheduling and cancelling those
+ * costs constant time, which matters with many agents that each have their own timers. Tasks with a shorter delay
+ * stay on the executor, which is more precise.
  */
 public class PowerMatcherContext
     extends ScheduledThreadPoolExecutor
@@ -33,6 +52,52 @@ public class PowerMatcherContext
 
     static final Unit<Duration> MS = SI.MILLI(SI.SECOND);
 
+    /**
+     * The way in which the tasks of the context are executed.
+     */
+    public enum ExecutionMode {
+        /**
+         * All tasks run on a fixed number of threads, one more than there are processors. This is the default.
+         */
+        POOLED,
+        /**
+         * Submitted and delayed tasks run on a thread pool that starts a new thread when all its threads are busy, up to
+         * a maximum. The periodic tasks run on {@link PowerMatcherContext#ELASTIC_TIMER_THREADS} threads.
+         */
+        ELASTIC
+    }
+
+    /**
+     * The number of threads of the scheduler in the {@link ExecutionMode#ELASTIC} mode.
+     */
+    public static final int ELASTIC_TIMER_THREADS = 2;
+
+    /**
+     * The default maximum number of threads of the pool in the {@link ExecutionMode#ELASTIC} mode.
+     */
+    public static final int DEFAULT_ELASTIC_MAX_THREADS = 64;
+
+    /**
+     * The number of tasks that can wait for a thread of the pool in the {@link ExecutionMode#ELASTIC} mode when all
+     * its threads are busy.
+     */
+    public static final int ELASTIC_QUEUE_CAPACITY = 1000;
+
+    /**
+     * The time in seconds after which an idle thread of the pool in the {@link ExecutionMode#ELASTIC} mode stops.
+     */
+    static final long ELASTIC_KEEP_ALIVE = 60;
+
+    /**
+     * The duration of a tick of the timer wheel in milliseconds. Tasks with a shorter delay are not put on the wheel.
+     */
+    public static final long TIMER_WHEEL_TICK = 10;
+
+    /**
+     * The number of buckets of the timer wheel, which covers about 5 seconds per round.
+     */
+    static final int TIMER_WHEEL_SIZE = 512;
+
     private static final Logger logger = LoggerFactory.getLogger(PowerMatcherContext.class);
 
     /**
@@ -99,6 +164,95 @@ public class PowerMatcherContext
         }
     }
 
+    /**
+     * A delayed task in the {@link ExecutionMode#ELASTIC} mode. When its timer fires on the scheduler, the task is
+     * handed off to the elastic pool. The future completes when the task itself has run.
+     */
+    class HandOffTask<V>
+        extends FutureTask<V>
+        implements ScheduledFuture<V> {
+        private final ExecutorService executor;
+        private volatile ScheduledFuture<?> timer;
+
+        HandOffTask(Callable<V> callable, ExecutorService executor) {
+            super(callable);
+            this.executor = executor;
+        }
+
+        void start(long delay) {
+            timer = PowerMatcherContext.this.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        executor.execute(HandOffTask.this);
+                    } catch (RejectedExecutionException ex) {
+                        // The mode has been switched back in the meantime, or the elastic pool is full
+                        HandOffTask.this.run();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return timer.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return timer.compareTo(o);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            timer.cancel(false);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            logger.error("An scheduled execution has thrown an exception: " + t.getMessage(), t);
+            super.setException(t);
+        }
+    }
+
+    private final int pooledThreads;
+
+    /**
+     * The maximum number of threads of the pool in the {@link ExecutionMode#ELASTIC} mode.
+     */
+    private int elasticMaxThreads = DEFAULT_ELASTIC_MAX_THREADS;
+
+    /**
+     * The pool that runs the submitted and delayed tasks in the {@link ExecutionMode#ELASTIC} mode, or
+     * <code>null</code> in the {@link ExecutionMode#POOLED} mode.
+     */
+    private volatile ThreadPoolExecutor elasticExecutor;
+
+    /**
+     * The timer wheel for the coarse-grained tasks, or <code>null</code> when it is not enabled.
+     */
+    private volatile HashedWheelTimer timerWheel;
+
+    /**
+     * Runs the expired tasks of the timer wheel: on the elastic pool when that is in use, otherwise on this executor.
+     */
+    private final Executor timerWheelExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            ExecutorService executor = elasticExecutor;
+            if (executor != null) {
+                try {
+                    executor.execute(command);
+                    return;
+                } catch (RejectedExecutionException ex) {
+                    // The mode has been switched back in the meantime, or the elastic pool is full
+                }
+            }
+            PowerMatcherContext.this.execute(command);
+        }
+    };
+
     public PowerMatcherContext() {
         // We provide a ThreadFactor so we can name the Threads, which makes debugging easier
         super(Runtime.getRuntime().availableProcessors() + 1, new ThreadFactory() {
@@ -113,6 +267,144 @@ public class PowerMatcherContext
             }
         });
         setKeepAliveTime(5, TimeUnit.MINUTES);
+        pooledThreads = getCorePoolSize();
+    }
+
+    /**
+     * Switches the way in which tasks are executed. Tasks that have already been submitted or scheduled keep running in
+     * the mode in which they were started.
+     *
+     * @param mode
+     *            the new {@link ExecutionMode}
+     */
+    public synchronized void setExecutionMode(ExecutionMode mode) {
+        if (mode == null) {
+            throw new NullPointerException("mode");
+        } else if (mode == getExecutionMode()) {
+            return;
+        }
+
+        if (mode == ExecutionMode.ELASTIC) {
+            // Every thread is a core thread that times out, so the pool first grows to its maximum and only then queues
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(elasticMaxThreads,
+                                                                 elasticMaxThreads,
+                                                                 ELASTIC_KEEP_ALIVE,
+                                                                 TimeUnit.SECONDS,
+                                                                 new ArrayBlockingQueue<Runnable>(ELASTIC_QUEUE_CAPACITY),
+                                                                 new ThreadFactory() {
+                                                                     private final AtomicInteger cnt = new AtomicInteger(0);
+
+                                                                     @Override
+                                                                     public Thread newThread(Runnable r) {
+                                                                         Thread newThread = Executors.defaultThreadFactory()
+                                                                                                     .newThread(r);
+                                                                         newThread.setName("PowerMatcherElastic-"
+                                                                                           + cnt.getAndIncrement());
+                                                                         return newThread;
+                                                                     }
+                                                                 });
+            executor.allowCoreThreadTimeOut(true);
+            elasticExecutor = executor;
+            setCorePoolSize(ELASTIC_TIMER_THREADS);
+        } else {
+            setCorePoolSize(pooledThreads);
+            elasticExecutor.shutdown();
+            elasticExecutor = null;
+        }
+        logger.info("The PowerMatcherContext now runs in the {} mode", mode);
+    }
+
+    /**
+     * Sets the maximum number of threads of the pool in the {@link ExecutionMode#ELASTIC} mode. This also applies to
+     * the current pool when the context is already in that mode.
+     *
+     * @param maxThreads
+     *            the maximum number of threads, at least 1
+     */
+    public synchronized void setElasticMaxThreads(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1");
+        }
+        ThreadPoolExecutor executor = elasticExecutor;
+        if (executor != null) {
+            // Keep the core size <= the maximum size while changing both
+            if (maxThreads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxThreads);
+                executor.setCorePoolSize(maxThreads);
+            } else {
+                executor.setCorePoolSize(maxThreads);
+                executor.setMaximumPoolSize(maxThreads);
+            }
+        }
+        elasticMaxThreads = maxThreads;
+    }
+
+    /**
+     * @return the maximum number of threads of the pool in the {@link ExecutionMode#ELASTIC} mode
+     */
+    public synchronized int getElasticMaxThreads() {
+        return elasticMaxThreads;
+    }
+
+    /**
+     * @return the current {@link ExecutionMode}
+     */
+    public ExecutionMode getExecutionMode() {
+        return elasticExecutor == null ? ExecutionMode.POOLED : ExecutionMode.ELASTIC;
+    }
+
+    /**
+     * Enables or disables the timer wheel for the coarse-grained tasks. Tasks that have already been scheduled stay
+     * where they are, except that disabling the wheel moves the tasks that were waiting on it to this executor. Their
+     * futures stay valid, so they can still be cancelled by the code that scheduled them.
+     *
+     * @param enabled
+     *            <code>true</code> to put the tasks with a delay of at least {@link #TIMER_WHEEL_TICK} milliseconds on
+     *            the timer wheel
+     */
+    public synchronized void setTimerWheelEnabled(boolean enabled) {
+        if (enabled == isTimerWheelEnabled()) {
+            return;
+        }
+
+        if (enabled) {
+            ThreadFactory threadFactory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread newThread = Executors.defaultThreadFactory().newThread(r);
+                    newThread.setName("PowerMatcherTimerWheel");
+                    newThread.setDaemon(true);
+                    return newThread;
+                }
+            };
+            timerWheel = new HashedWheelTimer(TIMER_WHEEL_TICK, TIMER_WHEEL_SIZE, timerWheelExecutor, threadFactory);
+        } else {
+            HashedWheelTimer wheel = timerWheel;
+            timerWheel = null;
+            int moved = wheel.stop(this);
+            logger.debug("Moved {} pending tasks from the timer wheel to the executor", moved);
+        }
+        logger.info("The timer wheel of the PowerMatcherContext is now {}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * @return <code>true</code> when the coarse-grained tasks are put on the timer wheel
+     */
+    public boolean isTimerWheelEnabled() {
+        return timerWheel != null;
+    }
+
+    @Override
+    public void shutdown() {
+        HashedWheelTimer wheel = timerWheel;
+        if (wheel != null) {
+            wheel.stop();
+        }
+        ExecutorService executor = elasticExecutor;
+        if (executor != null) {
+            executor.shutdown();
+        }
+        super.shutdown();
     }
 
     @Override
@@ -139,18 +431,44 @@ public class PowerMatcherContext
 
     @Override
     public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        HashedWheelTimer wheel = timerWheel;
+        if (wheel != null && delay.longValue(MS) >= TIMER_WHEEL_TICK) {
+            return wheel.schedule(Executors.callable(command), delay.longValue(MS));
+        }
+        ExecutorService executor = elasticExecutor;
+        if (executor != null) {
+            return handOff(Executors.callable(command), delay.longValue(MS), executor);
+        }
         return schedule(command, delay.longValue(MS), TimeUnit.MILLISECONDS);
     }
 
     @Override
     public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        HashedWheelTimer wheel = timerWheel;
+        if (wheel != null && delay.longValue(MS) >= TIMER_WHEEL_TICK) {
+            return wheel.schedule(callable, delay.longValue(MS));
+        }
+        ExecutorService executor = elasticExecutor;
+        if (executor != null) {
+            return handOff(callable, delay.longValue(MS), executor);
+        }
         return schedule(callable, delay.longValue(MS), TimeUnit.MILLISECONDS);
     }
 
+    private <V> ScheduledFuture<V> handOff(Callable<V> callable, long delay, ExecutorService executor) {
+        HandOffTask<V> task = new HandOffTask<V>(callable, executor);
+        task.start(delay);
+        return task;
+    }
+
     @Override
     public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
                                                   Measurable<Duration> initialDelay,
                                                   Measurable<Duration> period) {
+        HashedWheelTimer wheel = timerWheel;
+        if (wheel != null && period.longValue(MS) >= TIMER_WHEEL_TICK) {
+            return wheel.scheduleAtFixedRate(command, initialDelay.longValue(MS), period.longValue(MS));
+        }
         return scheduleAtFixedRate(command,
                                    initialDelay.longValue(MS),
                                    period.longValue(MS),
@@ -161,9 +479,44 @@ public class PowerMatcherContext
     public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
                                                      Measurable<Duration> initialDelay,
                                                      Measurable<Duration> delay) {
+        HashedWheelTimer wheel = timerWheel;
+        if (wheel != null && delay.longValue(MS) >= TIMER_WHEEL_TICK) {
+            return wheel.scheduleWithFixedDelay(command, initialDelay.longValue(MS), delay.longValue(MS));
+        }
         return scheduleWithFixedDelay(command,
                                       initialDelay.longValue(MS),
                                       delay.longValue(MS),
                                       TimeUnit.MILLISECONDS);
     }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        ExecutorService executor = elasticExecutor;
+        if (executor != null) {
+            try {
+                return executor.submit(task);
+            } catch (RejectedExecutionException ex) {
+                // The mode has been switched back in the meantime, or the elastic pool is full
+            }
+        }
+        return super.submit(task);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        ExecutorService executor = elasticExecutor;
+        if (executor != null) {
+            try {
+                return executor.submit(task, result);
+            } catch (RejectedExecutionException ex) {
+                // The mode has been switched back in the meantime, or the elastic pool is full
+            }
+        }
+        return super.submit(task, result);
+    }
 }
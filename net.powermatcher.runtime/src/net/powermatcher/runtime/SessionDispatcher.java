@@ -0,0 +1,109 @@
+package net.powermatcher.runtime;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+
+/**
+ * The {@link SessionDispatcher} delivers the pending updates of {@link SessionImpl}s. A session that has received a new
+ * update is put in a queue once, no matter how many updates it receives before it is delivered. The queue is drained
+ * in batches by a bounded number of workers that run on the {@link FlexiblePowerContext}. This keeps the number of
+ * tasks on the context small when many sessions get an update at the same time (e.g. when a price is published).
+ */
+public class SessionDispatcher {
+    /**
+     * The default maximum number of sessions that a worker delivers before it gives its thread back to the context.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final FlexiblePowerContext context;
+    private final int maxWorkers;
+    private final int batchSize;
+
+    private final Queue<SessionImpl> readySessions = new ConcurrentLinkedQueue<SessionImpl>();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Creates a new {@link SessionDispatcher} that uses as many workers as there are processors.
+     *
+     * @param context
+     *            The context on which the workers are submitted
+     */
+    public SessionDispatcher(FlexiblePowerContext context) {
+        this(context, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a new {@link SessionDispatcher}.
+     *
+     * @param context
+     *            The context on which the workers are submitted
+     * @param maxWorkers
+     *            The maximum number of workers that deliver updates at the same time
+     * @param batchSize
+     *            The maximum number of sessions that a worker delivers before it is submitted again
+     * @throws IllegalArgumentException
+     *             When the maxWorkers or batchSize is smaller than 1
+     */
+    public SessionDispatcher(FlexiblePowerContext context, int maxWorkers, int batchSize) {
+        if (context == null) {
+            throw new NullPointerException("context");
+        } else if (maxWorkers < 1) {
+            throw new IllegalArgumentException("The maxWorkers should be at least 1");
+        } else if (batchSize < 1) {
+            throw new IllegalArgumentException("The batchSize should be at least 1");
+        }
+        this.context = context;
+        this.maxWorkers = maxWorkers;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Queues the session for delivery. The session makes sure that it is not queued twice.
+     *
+     * @param session
+     *            The session that has pending updates
+     */
+    void schedule(SessionImpl session) {
+        readySessions.add(session);
+        startWorker();
+    }
+
+    private void startWorker() {
+        int workers = activeWorkers.get();
+        while (workers < maxWorkers) {
+            if (activeWorkers.compareAndSet(workers, workers + 1)) {
+                context.submit(worker);
+                return;
+            }
+            workers = activeWorkers.get();
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int ix = 0; ix < batchSize; ix++) {
+                SessionImpl session = readySessions.poll();
+                if (session == null) {
+                    break;
+                }
+                session.deliver();
+            }
+        } finally {
+            activeWorkers.decrementAndGet();
+            // Sessions that are left (or have been added in the meantime) need a new worker
+            if (!readySessions.isEmpty()) {
+                startWorker();
+            }
+        }
+    }
+}
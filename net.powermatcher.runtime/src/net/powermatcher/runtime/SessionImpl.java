@@ -1,8 +1,9 @@
 package net.powermatcher.runtime;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.flexiblepower.context.FlexiblePowerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,6 +14,12 @@ import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
 
+/**
+ * The runtime implementation of a {@link Session}. Updates are not handled directly, but put in a mailbox that only
+ * keeps the latest {@link PriceUpdate} and {@link BidUpdate}, since an update supersedes the previous one. The mailbox
+ * is delivered by the {@link SessionDispatcher}, which makes sure that the updates of a session are handled one at a
+ * time and in order.
+ */
 public class SessionImpl
     implements Session {
     private static final Logger LOGGER = LoggerFactory.getLogger(SessionImpl.class);
@@ -23,19 +30,28 @@ public class SessionImpl
     private final PotentialSession potentialSession;
     private final String agentId, matcherId, clusterId;
     private MarketBasis marketBasis;
-    private final FlexiblePowerContext context;
+    private volatile int agentHandle = NO_AGENT_HANDLE;
+    private final SessionDispatcher dispatcher;
 
     private volatile boolean connected;
 
+    private final AtomicReference<PriceUpdate> pendingPriceUpdate = new AtomicReference<PriceUpdate>();
+    private final AtomicReference<BidUpdate> pendingBidUpdate = new AtomicReference<BidUpdate>();
+
+    /**
+     * Is true while this session is queued in or being delivered by the dispatcher.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
     public SessionImpl(AgentEndpoint agentEndpoint,
                        MatcherEndpoint matcherEndpoint,
                        PotentialSession potentialSession,
-                       FlexiblePowerContext context) {
+                       SessionDispatcher dispatcher) {
         sessionId = UUID.randomUUID().toString();
         this.agentEndpoint = agentEndpoint;
         this.matcherEndpoint = matcherEndpoint;
         this.potentialSession = potentialSession;
-        this.context = context;
+        this.dispatcher = dispatcher;
 
         agentId = agentEndpoint.getAgentId();
         matcherId = matcherEndpoint.getAgentId();
@@ -78,6 +94,16 @@ public class SessionImpl
         }
     }
 
+    @Override
+    public int getAgentHandle() {
+        return agentHandle;
+    }
+
+    @Override
+    public void setAgentHandle(int agentHandle) {
+        this.agentHandle = agentHandle;
+    }
+
     void setConnected() {
         if (marketBasis == null) {
             throw new IllegalStateException("No MarketBasis has been set by the matcher [" + matcherId + "]");
@@ -85,36 +111,81 @@ public class SessionImpl
         connected = true;
     }
 
-    @Override
-    public synchronized void updatePrice(final PriceUpdate priceUpdate) {
+    /**
+     * @return true when the session is connected. While the session is being connected, this waits until that is done.
+     */
+    private boolean isConnected() {
         if (connected) {
-            // PriceUpdate is handled in a separate runnable to avoid deadlocks
-            context.submit(new Runnable() {
-                @Override
-                public void run() {
-                    agentEndpoint.handlePriceUpdate(priceUpdate);
-                }
-            });
+            return true;
+        }
+        // The PotentialSession holds the lock on this session while the connection is made
+        synchronized (this) {
+            return connected;
+        }
+    }
+
+    @Override
+    public void updatePrice(final PriceUpdate priceUpdate) {
+        if (isConnected()) {
+            // PriceUpdate is handled by the dispatcher to avoid deadlocks
+            pendingPriceUpdate.set(priceUpdate);
+            scheduleDelivery();
         } else {
             LOGGER.debug("Sending a price update while not connected from agent [" + agentId + "]");
         }
     }
 
     @Override
-    public synchronized void updateBid(final BidUpdate bidUpdate) {
-        if (connected) {
-            // BidUpdate is handled in a separate runnable to avoid deadlocks
-            context.submit(new Runnable() {
-                @Override
-                public void run() {
-                    matcherEndpoint.handleBidUpdate(SessionImpl.this, bidUpdate);
-                }
-            });
+    public void updateBid(final BidUpdate bidUpdate) {
+        if (isConnected()) {
+            // BidUpdate is handled by the dispatcher to avoid deadlocks
+            pendingBidUpdate.set(bidUpdate);
+            scheduleDelivery();
         } else {
             LOGGER.debug("Sending a bid update while not connected from agent [" + agentId + "]");
         }
     }
 
+    private void scheduleDelivery() {
+        if (scheduled.compareAndSet(false, true)) {
+            dispatcher.schedule(this);
+        }
+    }
+
+    /**
+     * Hands the pending updates to the endpoints. This is called by the {@link SessionDispatcher}, never for the same
+     * session at the same time.
+     */
+    void deliver() {
+        try {
+            BidUpdate bidUpdate = pendingBidUpdate.getAndSet(null);
+            if (bidUpdate != null && connected) {
+                try {
+                    matcherEndpoint.handleBidUpdate(this, bidUpdate);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Handling a bid update from agent [" + agentId + "] has thrown an exception: "
+                                 + ex.getMessage(), ex);
+                }
+            }
+
+            PriceUpdate priceUpdate = pendingPriceUpdate.getAndSet(null);
+            if (priceUpdate != null && connected) {
+                try {
+                    agentEndpoint.handlePriceUpdate(priceUpdate);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Handling a price update for agent [" + agentId + "] has thrown an exception: "
+                                 + ex.getMessage(), ex);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Updates that came in during the delivery are delivered in a next round
+            if (pendingBidUpdate.get() != null || pendingPriceUpdate.get() != null) {
+                scheduleDelivery();
+            }
+        }
+    }
+
     @Override
     public synchronized void disconnect() {
         connected = false;
@@ -1,18 +1,24 @@
 package net.powermatcher.runtime;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 
-import org.flexiblepower.context.FlexiblePowerContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +26,7 @@ import net.powermatcher.api.Agent;
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.Session;
+import net.powermatcher.runtime.PowerMatcherContext.ExecutionMode;
 
 /**
  * The {@link SessionManager} is an OSGi Component which is responsible for connecting PowerMatcher Agents. To be
@@ -31,14 +38,45 @@ import net.powermatcher.api.Session;
  * @version 2.1
  */
 @Component(immediate = true)
+@Designate(ocd = SessionManager.Config.class)
 public class SessionManager {
 
+    @ObjectClassDefinition
+    public @interface Config {
+        @AttributeDefinition(description = "How the tasks of the agents are executed: pooled (a fixed number of threads) or elastic (a growing pool for submitted and delayed tasks, so blocking I/O does not starve the runtime)")
+        String executionMode() default "pooled";
+
+        @AttributeDefinition(description = "The maximum number of threads of the pool in the elastic mode; tasks that do not fit run on the scheduler threads instead")
+        int elasticMaxThreads() default PowerMatcherContext.DEFAULT_ELASTIC_MAX_THREADS;
+
+        @AttributeDefinition(description = "Keep the timers with a delay of at least 10 ms in a timer wheel, which makes scheduling and cancelling them cheap with many agents")
+        boolean timerWheel() default false;
+    }
+
     private static final Logger LOGGER = LoggerFactory.getLogger(SessionManager.class);
 
     // This part is for giving each agent an instance of the PowerMatcherContext without setting it twice
-    private final FlexiblePowerContext runtimeContext = new PowerMatcherContext();
+    private final PowerMatcherContext runtimeContext = new PowerMatcherContext();
     private final Set<String> agents = new ConcurrentSkipListSet<String>();
 
+    // All sessions share the workers that deliver their updates
+    private final SessionDispatcher sessionDispatcher = new SessionDispatcher(runtimeContext);
+
+    /**
+     * OSGi calls this method to activate the component, or when its configuration changes. The references to the
+     * agents may already have been bound, so the existing context is reconfigured.
+     *
+     * @param config
+     *            the configuration of the {@link SessionManager}
+     */
+    @Activate
+    @Modified
+    public void activate(Config config) {
+        runtimeContext.setElasticMaxThreads(config.elasticMaxThreads());
+        runtimeContext.setExecutionMode(ExecutionMode.valueOf(config.executionMode().toUpperCase(Locale.ROOT)));
+        runtimeContext.setTimerWheelEnabled(config.timerWheel());
+    }
+
     private void addAgent(Agent agent) {
         if (agents.add(agent.getAgentId())) {
             agent.setContext(runtimeContext);
@@ -50,10 +88,11 @@ public class SessionManager {
     }
 
     /**
-     * Data structure with all the {@link PotentialSession}s. Key of the map is the agentId, the value is a list with
-     * all the {@link PotentialSession}s with that agent.
+     * Data structure with all the {@link PotentialSession}s. Key of the map is the agentId of the matcher, the value
+     * holds all the {@link PotentialSession}s of the agents that want that matcher as their parent, by their agentId.
+     * This makes it possible to only look at the children of a matcher when something changes for that matcher.
      */
-    private final Map<String, List<PotentialSession>> potentialSessions = new HashMap<String, List<PotentialSession>>();
+    private final Map<String, Map<String, PotentialSession>> potentialSessions = new HashMap<String, Map<String, PotentialSession>>();
 
     /**
      * Map with references to all the known {@link MatcherEndpoint}s. Key of the map is the agentId.
@@ -79,19 +118,16 @@ public class SessionManager {
                 return;
             }
 
-            if (!potentialSessions.containsKey(agentId)) {
-                potentialSessions.put(agentId, new ArrayList<PotentialSession>());
-            }
             matcherEndpoints.put(agentId, matcherEndpoint);
 
-            for (PotentialSession ps : potentialSessions.get(agentId)) {
+            for (PotentialSession ps : getChildren(agentId).values()) {
                 ps.setMatcherEndpoint(matcherEndpoint);
             }
 
             LOGGER.debug("MatcherEndpoint with id [{}] added", agentId);
-        }
 
-        tryConnect();
+            tryConnectChildren(agentId);
+        }
     }
 
     /**
@@ -107,7 +143,7 @@ public class SessionManager {
         String agentId = matcherEndpoint.getAgentId();
 
         synchronized (potentialSessions) {
-            for (PotentialSession ps : potentialSessions.get(agentId)) {
+            for (PotentialSession ps : getChildren(agentId).values()) {
                 // PotentialSessions are disconnected, but are not removed
                 ps.disconnect();
                 ps.setMatcherEndpoint(null);
@@ -129,25 +165,24 @@ public class SessionManager {
         String agentId = agentEndpoint.getAgentId();
         String matcherId = agentEndpoint.getDesiredParentId();
         synchronized (potentialSessions) {
-            if (!potentialSessions.containsKey(matcherId)) {
-                potentialSessions.put(matcherId, new ArrayList<PotentialSession>());
-            }
+            Map<String, PotentialSession> siblings = getOrCreateChildren(matcherId);
             // Check if it already exists
-            for (PotentialSession ps : potentialSessions.get(matcherId)) {
-                if (agentId.equals(ps.getAgentId())) {
-                    LOGGER.warn("AgentEndpoint added with agentId {}, but it already exists. Ignoring the new one...",
-                                agentId);
-                    return;
-                }
+            if (siblings.containsKey(agentId)) {
+                LOGGER.warn("AgentEndpoint added with agentId {}, but it already exists. Ignoring the new one...",
+                            agentId);
+                return;
             }
 
-            PotentialSession ps = new PotentialSession(agentEndpoint, runtimeContext);
+            PotentialSession ps = new PotentialSession(agentEndpoint, sessionDispatcher);
             ps.setMatcherEndpoint(matcherEndpoints.get(matcherId));
-            potentialSessions.get(matcherId).add(ps);
+            siblings.put(agentId, ps);
             LOGGER.debug("AgentEndpoint with id [{}] added", agentId);
-        }
 
-        tryConnect();
+            if (ps.tryConnect()) {
+                // When this agent is also a matcher, its own children can now be connected
+                tryConnectChildren(agentId);
+            }
+        }
     }
 
     /**
@@ -164,13 +199,12 @@ public class SessionManager {
         String matcherId = agentEndpoint.getDesiredParentId();
         PotentialSession currentSession = null;
         synchronized (potentialSessions) {
-            Iterator<PotentialSession> it = potentialSessions.get(matcherId).iterator();
-            while (it.hasNext()) {
-                PotentialSession ps = it.next();
-                if (agentId.equals(ps.getAgentId())) {
-                    currentSession = ps;
-                    it.remove();
-                    break;
+            Map<String, PotentialSession> siblings = potentialSessions.get(matcherId);
+            if (siblings != null) {
+                currentSession = siblings.remove(agentId);
+                if (siblings.isEmpty()) {
+                    // Do not keep an entry for every matcher id that has ever been used
+                    potentialSessions.remove(matcherId);
                 }
             }
         }
@@ -180,23 +214,57 @@ public class SessionManager {
     }
 
     /**
-     * See if there is a {@link PotentialSession} that can be connected. Since one new Session can lead to another, this
-     * is tried until nothing changes.
+     * Gets the {@link PotentialSession}s of the agents that want the given matcher as their parent. Should be called
+     * while holding the lock on potentialSessions.
+     *
+     * @param matcherId
+     *            the agentId of the matcher
+     * @return the (unmodifiable) map of {@link PotentialSession}s by the agentId of the child, which is empty when
+     *         there are none
+     */
+    private Map<String, PotentialSession> getChildren(String matcherId) {
+        Map<String, PotentialSession> children = potentialSessions.get(matcherId);
+        return children == null ? Collections.<String, PotentialSession> emptyMap()
+                                : Collections.unmodifiableMap(children);
+    }
+
+    /**
+     * Gets the {@link PotentialSession}s of the agents that want the given matcher as their parent, and creates the
+     * entry for the matcher when there is none yet. Should be called while holding the lock on potentialSessions.
+     *
+     * @param matcherId
+     *            the agentId of the matcher
+     * @return the (modifiable) map of {@link PotentialSession}s by the agentId of the child
+     */
+    private Map<String, PotentialSession> getOrCreateChildren(String matcherId) {
+        Map<String, PotentialSession> children = potentialSessions.get(matcherId);
+        if (children == null) {
+            children = new LinkedHashMap<String, PotentialSession>();
+            potentialSessions.put(matcherId, children);
+        }
+        return children;
+    }
+
+    /**
+     * See if the {@link PotentialSession}s below the given matcher can be connected. Since a new Session can make a
+     * child matcher (e.g. a concentrator) connected, the subtree is walked from top to bottom. The rest of the tree is
+     * not affected and is not looked at. Should be called while holding the lock on potentialSessions.
+     *
+     * @param matcherId
+     *            the agentId of the matcher at the top of the subtree
      */
-    private void tryConnect() {
-        // TODO do something more efficient? We could build some tree and try to connect agents from top to bottom.
-        boolean somethingChanged;
-        do {
-            somethingChanged = false;
-            synchronized (potentialSessions) {
-                for (List<PotentialSession> list : potentialSessions.values()) {
-                    for (PotentialSession ps : list) {
-                        if (ps.tryConnect()) {
-                            somethingChanged = true;
-                        }
+    private void tryConnectChildren(String matcherId) {
+        Deque<String> pendingMatchers = new ArrayDeque<String>();
+        pendingMatchers.add(matcherId);
+        while (!pendingMatchers.isEmpty()) {
+            Map<String, PotentialSession> children = potentialSessions.get(pendingMatchers.poll());
+            if (children != null) {
+                for (PotentialSession ps : children.values()) {
+                    if (ps.tryConnect() && potentialSessions.containsKey(ps.getAgentId())) {
+                        pendingMatchers.add(ps.getAgentId());
                     }
                 }
             }
-        } while (somethingChanged);
+        }
     }
 }
@@ -0,0 +1,103 @@
+package net.powermatcher.runtime.sessions.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.mock.MockContext;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.MockMatcherAgent;
+import net.powermatcher.runtime.PotentialSession;
+import net.powermatcher.runtime.SessionDispatcher;
+
+/**
+ * JUnit tests for the {@link SessionDispatcher} class and the mailbox of the sessions that it delivers.
+ */
+public class SessionDispatcherTest {
+    private static final MarketBasis MARKET_BASIS = new MarketBasis("electricity", "EUR", 10, 0, 1);
+
+    private MockContext context;
+    private MockMatcherAgent matcher;
+    private List<MockDeviceAgent> agents;
+    private List<Session> sessions;
+
+    @Before
+    public void setUp() {
+        context = new MockContext(0);
+        matcher = new MockMatcherAgent("matcher", "cluster", MARKET_BASIS);
+        matcher.setContext(context);
+
+        // A single worker that delivers at most 2 sessions per run
+        SessionDispatcher dispatcher = new SessionDispatcher(context, 1, 2);
+        agents = new ArrayList<MockDeviceAgent>();
+        sessions = new ArrayList<Session>();
+        for (int ix = 0; ix < 3; ix++) {
+            MockDeviceAgent agent = new MockDeviceAgent("agent" + ix, "matcher");
+            PotentialSession potentialSession = new PotentialSession(agent, dispatcher);
+            potentialSession.setMatcherEndpoint(matcher);
+            assertThat(potentialSession.tryConnect(), is(true));
+            agents.add(agent);
+            sessions.add(agent.getSession());
+        }
+    }
+
+    @Test
+    public void testPriceUpdatesAreCoalesced() {
+        Session session = sessions.get(0);
+        for (int bidNumber = 1; bidNumber <= 3; bidNumber++) {
+            session.updatePrice(new PriceUpdate(new Price(MARKET_BASIS, bidNumber / 10.0), bidNumber));
+        }
+        assertThat(agents.get(0).getLastPriceUpdate(), is(nullValue()));
+
+        context.doTaskOnce();
+        assertThat(agents.get(0).getLastPriceUpdate().getBidNumber(), is(equalTo(3)));
+    }
+
+    @Test
+    public void testBidUpdatesAreCoalesced() {
+        MockDeviceAgent agent = agents.get(0);
+        agent.sendBid(Bid.flatDemand(MARKET_BASIS, 10), 1);
+        agent.sendBid(Bid.flatDemand(MARKET_BASIS, 20), 2);
+
+        context.doTaskOnce();
+        assertThat(matcher.getLastReceivedBid().getBidNumber(), is(equalTo(2)));
+        assertThat(matcher.getLastReceivedBid().getBid(), is(equalTo(Bid.flatDemand(MARKET_BASIS, 20))));
+    }
+
+    @Test
+    public void testDeliveredInBatches() {
+        for (int ix = 0; ix < sessions.size(); ix++) {
+            sessions.get(ix).updatePrice(new PriceUpdate(new Price(MARKET_BASIS, 0.5), ix + 1));
+        }
+
+        // The first run delivers the first 2 sessions and submits the worker again for the last one
+        context.doTaskOnce();
+        assertThat(agents.get(0).getLastPriceUpdate().getBidNumber(), is(equalTo(1)));
+        assertThat(agents.get(1).getLastPriceUpdate().getBidNumber(), is(equalTo(2)));
+        assertThat(agents.get(2).getLastPriceUpdate(), is(nullValue()));
+
+        context.doTaskOnce();
+        assertThat(agents.get(2).getLastPriceUpdate().getBidNumber(), is(equalTo(3)));
+    }
+
+    @Test
+    public void testNotDeliveredAfterDisconnect() {
+        sessions.get(0).updatePrice(new PriceUpdate(new Price(MARKET_BASIS, 0.5), 1));
+        sessions.get(0).disconnect();
+
+        context.doTaskOnce();
+        assertThat(agents.get(0).getLastPriceUpdate(), is(nullValue()));
+    }
+}
@@ -6,7 +6,13 @@ import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.powermatcher.api.MatcherEndpoint;
 import net.powermatcher.api.Session;
+import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.mock.MockContext;
 import net.powermatcher.mock.MockDeviceAgent;
@@ -34,6 +40,34 @@ public class SessionManagerTest {
     private static final String AGENT_ID = "testAgent";
     private static final String CLUSTER_ID = "testCluster";
 
+    /**
+     * An agent that is also a matcher, which can only accept agents when it is connected to its own matcher.
+     */
+    private static class MockConcentrator
+        extends MockDeviceAgent
+        implements MatcherEndpoint {
+        private final List<Session> childSessions = new ArrayList<Session>();
+
+        public MockConcentrator(String agentId, String desiredParentId) {
+            super(agentId, desiredParentId);
+        }
+
+        @Override
+        public void connectToAgent(Session session) {
+            session.setMarketBasis(getSession().getMarketBasis());
+            childSessions.add(session);
+        }
+
+        @Override
+        public void agentEndpointDisconnected(Session session) {
+            childSessions.remove(session);
+        }
+
+        @Override
+        public void handleBidUpdate(Session session, BidUpdate bidUpdate) {
+        }
+    }
+
     private SessionManager sessionManager;
     private MockMatcherAgent auctioneer;
     private MockDeviceAgent testAgent;
@@ -107,6 +141,20 @@ public class SessionManagerTest {
         assertThat(testAgent.getSession(), is(nullValue()));
     }
 
+    @Test
+    public void testReaddAgentEndpoint() {
+        // The last child of the matcher is removed before the matcher exists, and then added again
+        sessionManager.addAgentEndpoint(testAgent);
+        sessionManager.removeAgentEndpoint(testAgent);
+        sessionManager.removeAgentEndpoint(testAgent);
+        sessionManager.addAgentEndpoint(testAgent);
+        assertThat(testAgent.getSession(), is(nullValue()));
+
+        sessionManager.addMatcherEndpoint(auctioneer);
+        assertThat(testAgent.getSession(), is(notNullValue()));
+        assertEquals(AUCTIONEER_NAME, testAgent.getSession().getMatcherId());
+    }
+
     @Test
     public void testremoveMatcherEndpoint() {
         sessionManager.addAgentEndpoint(testAgent);
@@ -123,4 +171,41 @@ public class SessionManagerTest {
         assertThat(session, is(notNullValue()));
     }
 
+    @Test
+    public void testHierarchyConnectedFromTopToBottom() {
+        MockConcentrator concentrator = new MockConcentrator("concentrator", AUCTIONEER_NAME);
+        MockDeviceAgent leaf = new MockDeviceAgent("leaf", "concentrator");
+
+        // Added from bottom to top, nothing can be connected until the auctioneer is there
+        sessionManager.addAgentEndpoint(leaf);
+        sessionManager.addMatcherEndpoint(concentrator);
+        sessionManager.addAgentEndpoint(concentrator);
+        assertThat(concentrator.getSession(), is(nullValue()));
+        assertThat(leaf.getSession(), is(nullValue()));
+
+        sessionManager.addMatcherEndpoint(auctioneer);
+        assertThat(concentrator.getSession(), is(notNullValue()));
+        assertThat(leaf.getSession(), is(notNullValue()));
+        assertEquals("concentrator", leaf.getSession().getMatcherId());
+    }
+
+    @Test
+    public void testManyAgentsConnected() {
+        MockConcentrator concentrator = new MockConcentrator("concentrator", AUCTIONEER_NAME);
+        sessionManager.addMatcherEndpoint(auctioneer);
+        sessionManager.addMatcherEndpoint(concentrator);
+        sessionManager.addAgentEndpoint(concentrator);
+
+        List<MockDeviceAgent> leafs = new ArrayList<MockDeviceAgent>();
+        for (int ix = 0; ix < 5000; ix++) {
+            MockDeviceAgent leaf = new MockDeviceAgent("leaf" + ix, "concentrator");
+            sessionManager.addAgentEndpoint(leaf);
+            leafs.add(leaf);
+        }
+        assertThat(concentrator.childSessions.size(), is(5000));
+
+        sessionManager.removeAgentEndpoint(leafs.get(0));
+        assertThat(leafs.get(0).getSession(), is(nullValue()));
+        assertThat(concentrator.childSessions.size(), is(4999));
+    }
 }
@@ -0,0 +1,116 @@
+package net.powermatcher.runtime.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.junit.After;
+import org.junit.Test;
+
+import net.powermatcher.runtime.HashedWheelTimer;
+import net.powermatcher.runtime.PowerMatcherContext;
+
+/**
+ * JUnit tests for the {@link HashedWheelTimer} class and its use in the {@link PowerMatcherContext}.
+ */
+public class HashedWheelTimerTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(10, 8, DIRECT, Executors.defaultThreadFactory());
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void testNotEarly() throws Exception {
+        final long start = System.nanoTime();
+        // A delay longer than a round of the wheel (8 ticks of 10 ms)
+        ScheduledFuture<Long> future = timer.schedule(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }, 150);
+        assertTrue(future.get(5, TimeUnit.SECONDS) >= 150);
+        assertThat(timer.getPendingTimeouts(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Callable<Object> task = Executors.callable(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        ScheduledFuture<?>[] futures = new ScheduledFuture<?>[1000];
+        for (int ix = 0; ix < futures.length; ix++) {
+            futures[ix] = timer.schedule(task, 50 + ix % 100);
+        }
+        assertThat(timer.getPendingTimeouts(), is(equalTo(1000)));
+        for (int ix = 0; ix < futures.length; ix += 2) {
+            assertThat(futures[ix].cancel(false), is(true));
+        }
+        assertThat(timer.getPendingTimeouts(), is(equalTo(500)));
+
+        futures[futures.length - 1].get(5, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        assertThat(runs.get(), is(equalTo(500)));
+    }
+
+    @Test
+    public void testFixedRate() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(5);
+        ScheduledFuture<?> future = timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 0, 20);
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        future.cancel(false);
+        assertThat(timer.getPendingTimeouts(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testContextUsesWheelForCoarseTasks() throws Exception {
+        PowerMatcherContext context = new PowerMatcherContext();
+        try {
+            context.setTimerWheelEnabled(true);
+            final CountDownLatch latch = new CountDownLatch(2);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            };
+            ScheduledFuture<?> coarse = context.schedule(task, Measure.valueOf(20, SI.MILLI(SI.SECOND)));
+            ScheduledFuture<?> precise = context.schedule(task, Measure.valueOf(1, SI.MILLI(SI.SECOND)));
+            assertTrue(coarse instanceof HashedWheelTimer.Timeout);
+            assertTrue(!(precise instanceof HashedWheelTimer.Timeout));
+            assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        } finally {
+            context.shutdownNow();
+        }
+    }
+}
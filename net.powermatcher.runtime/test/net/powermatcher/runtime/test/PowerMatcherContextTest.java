@@ -0,0 +1,242 @@
+package net.powermatcher.runtime.test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.junit.After;
+import org.junit.Test;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.runtime.HashedWheelTimer;
+import net.powermatcher.runtime.PowerMatcherContext;
+import net.powermatcher.runtime.PowerMatcherContext.ExecutionMode;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+
+/**
+ * JUnit tests for the {@link PowerMatcherContext} class.
+ */
+public class PowerMatcherContextTest {
+    private final PowerMatcherContext context = new PowerMatcherContext();
+
+    @After
+    public void tearDown() {
+        context.shutdownNow();
+    }
+
+    /**
+     * Submits more blocking tasks than the pooled mode has threads. They can only all start in the elastic mode.
+     */
+    @Test
+    public void testBlockingTasksDoNotStarveElasticMode() throws Exception {
+        context.setExecutionMode(ExecutionMode.ELASTIC);
+        assertThat(context.getExecutionMode(), is(equalTo(ExecutionMode.ELASTIC)));
+
+        int taskCount = Runtime.getRuntime().availableProcessors() + 4;
+        final CountDownLatch started = new CountDownLatch(taskCount);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int ix = 0; ix < taskCount; ix++) {
+            context.submit(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        // A delayed task is handed off as well
+        Future<String> delayed = context.schedule(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, Measure.valueOf(10, SI.MILLI(SI.SECOND)));
+
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(delayed.get(5, TimeUnit.SECONDS), is(equalTo("done")));
+        release.countDown();
+    }
+
+    /**
+     * Fills the bounded elastic pool and its queue. The tasks that do not fit run on the scheduler instead of being
+     * lost, and the pool never has more threads than its maximum.
+     */
+    @Test
+    public void testElasticPoolIsBounded() throws Exception {
+        context.setElasticMaxThreads(2);
+        context.setExecutionMode(ExecutionMode.ELASTIC);
+        assertThat(context.getElasticMaxThreads(), is(equalTo(2)));
+
+        int taskCount = 2 + PowerMatcherContext.ELASTIC_QUEUE_CAPACITY + 1;
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(taskCount);
+        final Set<String> threadNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (int ix = 0; ix < taskCount; ix++) {
+            context.submit(new Runnable() {
+                @Override
+                public void run() {
+                    threadNames.add(Thread.currentThread().getName());
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        release.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        int elasticThreads = 0;
+        boolean overflowed = false;
+        for (String name : threadNames) {
+            if (name.startsWith("PowerMatcherElastic-")) {
+                elasticThreads++;
+            } else if (name.startsWith("PowerMatcherRuntime-")) {
+                overflowed = true;
+            }
+        }
+        assertThat(elasticThreads, is(equalTo(2)));
+        assertThat(overflowed, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testElasticMaxThreadsMustBePositive() {
+        context.setElasticMaxThreads(0);
+    }
+
+    @Test
+    public void testCancelDelayedTaskInElasticMode() throws Exception {
+        context.setExecutionMode(ExecutionMode.ELASTIC);
+        final CountDownLatch ran = new CountDownLatch(1);
+        ScheduledFuture<?> future = context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, Measure.valueOf(100, SI.MILLI(SI.SECOND)));
+
+        assertThat(future.cancel(false), is(true));
+        assertThat(future.isCancelled(), is(true));
+        assertThat(ran.await(300, TimeUnit.MILLISECONDS), is(false));
+    }
+
+    @Test
+    public void testSwitchBackToPooledMode() throws Exception {
+        context.setExecutionMode(ExecutionMode.ELASTIC);
+        context.setExecutionMode(ExecutionMode.POOLED);
+        assertThat(context.getExecutionMode(), is(equalTo(ExecutionMode.POOLED)));
+        assertThat(context.getCorePoolSize(), is(equalTo(Runtime.getRuntime().availableProcessors() + 1)));
+
+        Future<String> result = context.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return Thread.currentThread().getName();
+            }
+        });
+        assertThat(result.get(5, TimeUnit.SECONDS).startsWith("PowerMatcherRuntime-"), is(true));
+    }
+
+    @Test
+    public void testDisablingTimerWheelKeepsPendingTasks() throws Exception {
+        context.setTimerWheelEnabled(true);
+        final CountDownLatch ran = new CountDownLatch(1);
+        ScheduledFuture<?> delayed = context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, Measure.valueOf(100, SI.MILLI(SI.SECOND)));
+        ScheduledFuture<?> cancelled = context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, Measure.valueOf(100, SI.MILLI(SI.SECOND)));
+        assertTrue(delayed instanceof HashedWheelTimer.Timeout);
+
+        context.setTimerWheelEnabled(false);
+        assertThat(context.isTimerWheelEnabled(), is(false));
+        // The future that the caller holds still controls the moved task
+        assertThat(cancelled.cancel(false), is(true));
+        assertThat(ran.await(5, TimeUnit.SECONDS), is(true));
+        delayed.get(5, TimeUnit.SECONDS);
+        assertThat(delayed.isDone(), is(true));
+        assertThat(cancelled.isCancelled(), is(true));
+    }
+
+    /**
+     * Toggles the timer wheel while the auctioneer waits for the end of its cooling-off period. The aggregation that was
+     * pending on the wheel must still run, otherwise the auctioneer never aggregates again.
+     */
+    @Test
+    public void testToggleTimerWheelWhileAggregationIsPending() throws Exception {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 5, 0, 10);
+        context.setTimerWheelEnabled(true);
+        Auctioneer auctioneer = new Auctioneer();
+        auctioneer.activate(new PropertiesBuilder().agentId("auctioneer")
+                                                   .clusterId("testCluster")
+                                                   .marketBasis(marketBasis)
+                                                   .minTimeBetweenPriceUpdates(300)
+                                                   .build());
+        auctioneer.setContext(context);
+        MockDeviceAgent agent = new MockDeviceAgent("agent", "auctioneer");
+        new SimpleSession(agent, auctioneer).connect();
+
+        try {
+            agent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 100), 1));
+            waitForPrice(agent, 1);
+
+            // This bid arrives in the cooling-off period, so its aggregation is scheduled on the wheel
+            agent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 200), 2));
+            context.setTimerWheelEnabled(false);
+            waitForPrice(agent, 2);
+
+            // The matcher keeps aggregating after the switch
+            context.setTimerWheelEnabled(true);
+            agent.sendBid(new BidUpdate(Bid.flatDemand(marketBasis, 300), 3));
+            context.setTimerWheelEnabled(false);
+            waitForPrice(agent, 3);
+        } finally {
+            auctioneer.deactivate();
+        }
+    }
+
+    private void waitForPrice(MockDeviceAgent agent, int bidNumber) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            PriceUpdate priceUpdate = agent.getLastPriceUpdate();
+            if (priceUpdate != null && priceUpdate.getBidNumber() == bidNumber) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        PriceUpdate priceUpdate = agent.getLastPriceUpdate();
+        assertThat(priceUpdate == null ? 0 : priceUpdate.getBidNumber(), is(equalTo(bidNumber)));
+    }
+}
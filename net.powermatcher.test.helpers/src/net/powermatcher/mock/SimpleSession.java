@@ -15,6 +15,7 @@ public class SimpleSession
     private final MatcherEndpoint matcher;
     private final String sessionId;
     private MarketBasis marketBasis;
+    private volatile int agentHandle = NO_AGENT_HANDLE;
 
     private volatile boolean isConnected;
 
@@ -76,6 +77,16 @@ public class SimpleSession
         this.marketBasis = marketBasis;
     }
 
+    @Override
+    public int getAgentHandle() {
+        return agentHandle;
+    }
+
+    @Override
+    public void setAgentHandle(int agentHandle) {
+        this.agentHandle = agentHandle;
+    }
+
     @Override
     public void updatePrice(PriceUpdate priceUpdate) {
         agent.handlePriceUpdate(priceUpdate);
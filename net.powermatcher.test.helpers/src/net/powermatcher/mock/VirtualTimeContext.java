@@ -0,0 +1,289 @@
+package net.powermatcher.mock;
+
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.SI;
+import javax.measure.unit.Unit;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FlexiblePowerContext} that runs on virtual time, for discrete-event simulations. Scheduled tasks are kept in
+ * a priority queue and are only executed when the simulation is driven with {@link #runNext()},
+ * {@link #runUntil(long)} or {@link #runFor(long)}. The clock jumps straight to the time of the next task, so a
+ * simulation runs as fast as the tasks can be executed.
+ *
+ * Tasks are executed in the order of their time. Tasks with the same time are executed in the order in which they
+ * were scheduled (or, for a periodic task, rescheduled), so a simulation that is driven from a single thread always
+ * executes its tasks in the same order. Executing a task takes no virtual time.
+ *
+ * Like the runtime, a periodic task stops when it throws an exception. The exception is logged.
+ *
+ * This class is thread-safe, but only 1 thread should drive the simulation.
+ */
+public class VirtualTimeContext
+    implements FlexiblePowerContext {
+
+    private static final Unit<Duration> MS = SI.MILLI(SI.SECOND);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualTimeContext.class);
+
+    /**
+     * A task in the queue. A periodic task is put back in the queue with a new time after each execution.
+     */
+    private class Event<V>
+        extends FutureTask<V>
+        implements RunnableScheduledFuture<V> {
+        private long sequenceNumber;
+        private final long period;
+        private long time;
+
+        /**
+         * @param period
+         *            the time between 2 executions in milliseconds: positive for a fixed rate, negative for a fixed
+         *            delay and 0 for a task that is executed once
+         */
+        Event(Callable<V> callable, long time, long period) {
+            super(callable);
+            this.time = time;
+            this.period = period;
+            sequenceNumber = nextSequenceNumber++;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            } else if (other instanceof Event) {
+                Event<?> that = (Event<?>) other;
+                if (time != that.time) {
+                    return time < that.time ? -1 : 1;
+                }
+                return sequenceNumber < that.sequenceNumber ? -1 : 1;
+            } else {
+                long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                synchronized (VirtualTimeContext.this) {
+                    time = period > 0 ? time + period : now - period;
+                    sequenceNumber = nextSequenceNumber++;
+                    queue.add(this);
+                }
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            LOGGER.error("A scheduled execution has thrown an exception: " + t.getMessage(), t);
+            super.setException(t);
+        }
+    }
+
+    private final PriorityQueue<Event<?>> queue = new PriorityQueue<Event<?>>();
+
+    private long now;
+    private long nextSequenceNumber;
+
+    /**
+     * Creates a new {@link VirtualTimeContext}.
+     *
+     * @param startTime
+     *            the virtual time at which the simulation starts, in milliseconds since the epoch
+     */
+    public VirtualTimeContext(long startTime) {
+        now = startTime;
+        nextSequenceNumber = 0;
+    }
+
+    /**
+     * Creates a new {@link VirtualTimeContext}.
+     *
+     * @param startTime
+     *            the virtual time at which the simulation starts
+     */
+    public VirtualTimeContext(Date startTime) {
+        this(startTime.getTime());
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(currentTimeMillis());
+    }
+
+    /**
+     * Executes the next task that has not been cancelled, first moving the clock to its time.
+     *
+     * @return <code>true</code> when a task has been executed, <code>false</code> when there were no tasks left
+     */
+    public boolean runNext() {
+        return runNext(Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes all the tasks up to and including the given time, including the tasks that they schedule in that
+     * period. After that the clock is moved to the given time.
+     *
+     * @param time
+     *            the virtual time in milliseconds until which the simulation should run
+     * @return the number of tasks that have been executed
+     * @throws IllegalArgumentException
+     *             when the time is before the current virtual time
+     */
+    public int runUntil(long time) {
+        synchronized (this) {
+            if (time < now) {
+                throw new IllegalArgumentException("The time can not be before the current time");
+            }
+        }
+        int count = 0;
+        while (runNext(time)) {
+            count++;
+        }
+        synchronized (this) {
+            now = time;
+        }
+        return count;
+    }
+
+    /**
+     * Runs the simulation for a period of virtual time. See {@link #runUntil(long)}.
+     *
+     * @param duration
+     *            the period in milliseconds
+     * @return the number of tasks that have been executed
+     */
+    public int runFor(long duration) {
+        return runUntil(currentTimeMillis() + duration);
+    }
+
+    /**
+     * @return the number of tasks that are waiting to be executed, which may include tasks that have been cancelled
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the time of the next task that has not been cancelled, or {@link Long#MAX_VALUE} when there is none
+     */
+    public synchronized long getNextEventTime() {
+        Event<?> event = peekActive();
+        return event == null ? Long.MAX_VALUE : event.time;
+    }
+
+    private boolean runNext(long until) {
+        Event<?> event;
+        synchronized (this) {
+            event = peekActive();
+            if (event == null || event.time > until) {
+                return false;
+            }
+            queue.poll();
+            now = Math.max(now, event.time);
+        }
+        event.run();
+        return true;
+    }
+
+    /**
+     * Removes the cancelled tasks from the head of the queue.
+     *
+     * @return the first task that has not been cancelled, or <code>null</code> when there is none
+     */
+    private Event<?> peekActive() {
+        Event<?> event = queue.peek();
+        while (event != null && event.isCancelled()) {
+            queue.poll();
+            event = queue.peek();
+        }
+        return event;
+    }
+
+    private synchronized <V> Event<V> enqueue(Callable<V> callable, long delay, long period) {
+        Event<V> event = new Event<V>(callable, now + Math.max(0, delay), period);
+        queue.add(event);
+        return event;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return enqueue(Executors.callable(command), delay.longValue(MS), 0);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return enqueue(callable, delay.longValue(MS), 0);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        long periodMs = period.longValue(MS);
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("The period should be positive");
+        }
+        return enqueue(Executors.callable(command), initialDelay.longValue(MS), periodMs);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        long delayMs = delay.longValue(MS);
+        if (delayMs <= 0) {
+            throw new IllegalArgumentException("The delay should be positive");
+        }
+        return enqueue(Executors.callable(command), initialDelay.longValue(MS), -delayMs);
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return enqueue(task, 0, 0);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return enqueue(Executors.callable(task), 0, 0);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return enqueue(Executors.callable(task, result), 0, 0);
+    }
+}
@@ -1,2 +1,2 @@
-@org.osgi.annotation.versioning.Version("2.0.0.${tstamp}")
+@org.osgi.annotation.versioning.Version("2.1.0.${tstamp}")
 package net.powermatcher.mock;
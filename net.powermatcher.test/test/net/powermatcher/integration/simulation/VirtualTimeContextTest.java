@@ -0,0 +1,155 @@
+package net.powermatcher.integration.simulation;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.core.auctioneer.Auctioneer;
+import net.powermatcher.core.concentrator.Concentrator;
+import net.powermatcher.mock.MockDeviceAgent;
+import net.powermatcher.mock.SimpleSession;
+import net.powermatcher.mock.VirtualTimeContext;
+import net.powermatcher.test.helpers.PropertiesBuilder;
+
+import org.junit.Test;
+
+/**
+ * JUnit test for the {@link VirtualTimeContext}.
+ *
+ * @author FAN
+ * @version 2.1
+ */
+public class VirtualTimeContextTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private final VirtualTimeContext context = new VirtualTimeContext(1000);
+    private final List<String> executed = new ArrayList<String>();
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name + "@" + context.currentTimeMillis());
+            }
+        };
+    }
+
+    @Test
+    public void testTimestampOrder() {
+        context.schedule(record("c"), Measure.valueOf(300, SI.MILLI(SI.SECOND)));
+        context.schedule(record("a"), Measure.valueOf(100, SI.MILLI(SI.SECOND)));
+        context.submit(record("now"));
+        context.schedule(record("b"), Measure.valueOf(200, SI.MILLI(SI.SECOND)));
+
+        assertThat(context.runUntil(1250), is(equalTo(3)));
+        assertThat(executed, is(equalTo(Arrays.asList("now@1000", "a@1100", "b@1200"))));
+        assertThat(context.currentTimeMillis(), is(equalTo(1250L)));
+        assertThat(context.runNext(), is(true));
+        assertThat(context.currentTimeMillis(), is(equalTo(1300L)));
+        assertThat(context.runNext(), is(false));
+    }
+
+    @Test
+    public void testTiesInSchedulingOrder() {
+        for (int ix = 0; ix < 5; ix++) {
+            context.schedule(record("t" + ix), Measure.valueOf(100, SI.MILLI(SI.SECOND)));
+        }
+        context.runFor(100);
+        assertThat(executed, is(equalTo(Arrays.asList("t0@1100", "t1@1100", "t2@1100", "t3@1100", "t4@1100"))));
+    }
+
+    @Test
+    public void testFixedRate() {
+        ScheduledFuture<?> future = context.scheduleAtFixedRate(record("p"),
+                                                                Measure.valueOf(0, SI.SECOND),
+                                                                Measure.valueOf(1, SI.SECOND));
+        assertThat(context.runFor(DAY), is(equalTo(24 * 60 * 60 + 1)));
+
+        future.cancel(false);
+        assertThat(context.runFor(DAY), is(equalTo(0)));
+        assertThat(context.getNextEventTime(), is(equalTo(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testCallableAndFailingTask() throws Exception {
+        context.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected failure");
+            }
+        });
+        Future<String> result = context.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        context.runFor(0);
+        assertThat(result.isDone(), is(true));
+        assertThat(result.get(), is(equalTo("done")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRunUntilInThePast() {
+        context.runUntil(999);
+    }
+
+    @Test
+    public void testClusterRunsForADay() {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", 11, 0, 10);
+        Auctioneer auctioneer = new Auctioneer();
+        auctioneer.activate(new PropertiesBuilder().agentId("auctioneer")
+                                                   .clusterId("cluster")
+                                                   .marketBasis(marketBasis)
+                                                   .minTimeBetweenPriceUpdates(1000)
+                                                   .build());
+        auctioneer.setContext(context);
+        Concentrator concentrator = new Concentrator();
+        concentrator.activate(new PropertiesBuilder().agentId("concentrator")
+                                                     .desiredParentId("auctioneer")
+                                                     .minTimeBetweenBidUpdates(1000)
+                                                     .build());
+        concentrator.setContext(context);
+        new SimpleSession(concentrator, auctioneer).connect();
+
+        final MockDeviceAgent[] agents = new MockDeviceAgent[10];
+        for (int ix = 0; ix < agents.length; ix++) {
+            agents[ix] = new MockDeviceAgent("agent" + ix, "concentrator");
+            new SimpleSession(agents[ix], concentrator).connect();
+        }
+
+        // Every agent changes its bid every 5 minutes
+        context.scheduleAtFixedRate(new Runnable() {
+            private int bidNumber = 0;
+
+            @Override
+            public void run() {
+                bidNumber++;
+                for (int ix = 0; ix < agents.length; ix++) {
+                    double demand = (bidNumber + ix) % 2 == 0 ? 100 : 50;
+                    agents[ix].sendBid(new Bid(marketBasis, demand, demand, demand, demand, demand, 0, 0, 0, 0, 0, 0),
+                                       bidNumber);
+                }
+            }
+        }, Measure.valueOf(0, SI.SECOND), Measure.valueOf(300, SI.SECOND));
+
+        context.runFor(DAY);
+
+        assertThat(context.currentTimeMillis(), is(equalTo(1000 + DAY)));
+        for (MockDeviceAgent agent : agents) {
+            assertThat(agent.getLastPriceUpdate().getBidNumber(), is(equalTo(24 * 12 + 1)));
+        }
+    }
+}